@@ -4,7 +4,7 @@ import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
-import de.codesourcery.logreceiver.logstorage.MessageDAO;
+import de.codesourcery.logreceiver.logstorage.IMessageDAO;
 import de.codesourcery.logreceiver.storage.IHostManager;
 
 import java.util.List;
@@ -12,10 +12,10 @@ import java.util.List;
 public class APIImpl implements IAPI
 {
     private final IHostManager hostManager;
-    private final MessageDAO dao;
+    private final IMessageDAO dao;
     private FilterCallbackManager callbackHelper;
 
-    public APIImpl(IHostManager hostManager, MessageDAO dao, FilterCallbackManager callbackHelper) {
+    public APIImpl(IHostManager hostManager, IMessageDAO dao, FilterCallbackManager callbackHelper) {
 
         this.hostManager = hostManager;
         this.dao = dao;
@@ -2,12 +2,20 @@ package de.codesourcery.logreceiver;
 
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
-import de.codesourcery.logreceiver.logstorage.DelegatingLogStorage;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
 import de.codesourcery.logreceiver.logstorage.ISQLLogStorage;
+import de.codesourcery.logreceiver.logstorage.LogStorageFactory;
+import de.codesourcery.logreceiver.logstorage.LogWriterFactory;
+import de.codesourcery.logreceiver.logstorage.ColumnarArchive;
+import de.codesourcery.logreceiver.logstorage.IMessageDAO;
 import de.codesourcery.logreceiver.logstorage.MessageDAO;
 import de.codesourcery.logreceiver.logstorage.PostgreSQLHostIdManager;
-import de.codesourcery.logreceiver.logstorage.SQLLogWriter;
+import de.codesourcery.logreceiver.logstorage.RoutingMessageDAO;
+import de.codesourcery.logreceiver.logstorage.SegmentLogStorage;
+import de.codesourcery.logreceiver.logstorage.TieredMessageDAO;
 import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.receiving.PacketProcessor;
+import de.codesourcery.logreceiver.receiving.TCPServer;
 import de.codesourcery.logreceiver.receiving.UDPServer;
 import de.codesourcery.logreceiver.storage.IHostManager;
 import de.codesourcery.logreceiver.util.DataSourceFactory;
@@ -23,9 +31,11 @@ public class Main
     public static DataSource ds;
     public static IHostManager hostIdManager;
     public static ISQLLogStorage storage;
-    public static SQLLogWriter writer;
+    public static ILogStorage writer;
     public static UDPServer server;
-    public static MessageDAO messageDAO;
+    public static TCPServer tcpServer;
+    public static SegmentLogStorage segmentStorage;
+    public static IMessageDAO messageDAO;
 
     public static void main(String[] args) throws Exception
     {
@@ -36,16 +46,23 @@ public class Main
     {
         final EventBus eventBus = new EventBus();
         ds = new DataSourceFactory( config ).getObject();
-        messageDAO = new MessageDAO( new JdbcTemplate(ds) );
         hostIdManager = new PostgreSQLHostIdManager( ds, config, eventBus );
+        segmentStorage = new SegmentLogStorage( hostIdManager, config );
+        messageDAO = new RoutingMessageDAO( new TieredMessageDAO( new MessageDAO( new JdbcTemplate(ds) ), new ColumnarArchive( config ) ), segmentStorage );
 
-        final FilterCallbackManager callbackHelper = new FilterCallbackManager( hostIdManager, messageDAO );
+        final FilterCallbackManager callbackHelper = new FilterCallbackManager( hostIdManager, messageDAO, config );
         callbackHelper.afterPropertiesSet();
 
-        storage = new DelegatingLogStorage( ds , hostIdManager, config, callbackHelper );
-        writer = new SQLLogWriter( storage,hostIdManager );
+        storage = new LogStorageFactory( ds , hostIdManager, config, callbackHelper ).getObject();
+        writer = new LogWriterFactory( storage, hostIdManager, config, segmentStorage, callbackHelper ).getObject();
 
-        server = new UDPServer( config, new LogParserFactory( writer, hostIdManager ) );
+        final PacketProcessor packetProcessor = new PacketProcessor( config, new LogParserFactory( writer, hostIdManager, config ) );
+        packetProcessor.start();
+
+        tcpServer = new TCPServer( config, packetProcessor );
+        tcpServer.start();
+
+        server = new UDPServer( config, packetProcessor );
         server.process();
     }
 }
\ No newline at end of file
@@ -1,8 +1,16 @@
 package de.codesourcery.logreceiver.entity;
 
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
+import de.codesourcery.logreceiver.logstorage.CopyFormat;
+import de.codesourcery.logreceiver.logstorage.LogStorageFactory;
+import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.receiving.PacketRingBuffer;
+import de.codesourcery.logreceiver.util.DateUtils;
 
 import java.time.Duration;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.Set;
 
 public class Configuration
 {
@@ -18,12 +26,67 @@ public class Configuration
     public boolean startUDPServer = true;
     public int udpPort = 1234;
     public int maxReceiveBufferSize = 2048; // also limits max. length of log message that can be received
+    public int udpReceiverThreads = Runtime.getRuntime().availableProcessors(); // each thread binds its own socket using SO_REUSEPORT
+    public int udpReceiveBatchSize = 32; // max. number of datagrams a receiver thread reads per selector wake-up
+    public boolean startTCPServer = false;
+    public int tcpPort = 1234;
+    public int tcpReceiverThreads = 2; // selector threads, connections get spread across them
+    public int tcpReadBufferSize = 16*1024; // initial size of each connection's read buffer, grows up to the max. message size
+    public int tcpMaxMessageSize = 64*1024; // connections sending larger messages get closed
+
+    // parsing
+    public int parserThreads = 0; // 0 = parse packets on the receiving thread. Parser threads don't preserve the order of a sender's messages
+    public int receiveRingBufferSize = 8192; // number of packets that may be waiting for a parser thread, rounded up to the next power of two
+    public PacketRingBuffer.OverflowPolicy receiveRingBufferOverflowPolicy = PacketRingBuffer.OverflowPolicy.BLOCK;
+    public double receiveRingBufferHighWatermark = 0.75; // TCP receivers stop reading while the ring buffer is filled beyond this fraction
+    public int parserBatchSize = 64; // max. number of packets a parser thread parses and stores in one go
+    public LogParserFactory.ParserType parserType = LogParserFactory.ParserType.RFC5424_BYTES;
+    public ZoneId rfc3164TimeZone = DateUtils.UTC; // RFC 3164 timestamps carry no timezone, they're assumed to be in this one
+    public int messagePoolSize = 1024; // max. number of released messages the parsers keep for re-use
+    public int internTableSize = 256; // per host, number of app names/proc IDs/msg IDs/SD names parsers re-use instead of creating new Strings, 0 = disabled
 
     // flushing
-    public int maxCharsInBuffer=100*1024;
+    public CopyFormat copyFormat = CopyFormat.TEXT; // data format used to bulk-load rows into the database
+    public int maxCharsInBuffer=100*1024; // characters resp. bytes (binary COPY format)
+    public int copyBuffersPerPartition = 2; // min. 2, while one buffer gets written to the database producers append to the next one
     public Duration flushInterval = Duration.ofSeconds(1); // max. time until messages get flushed to the database
+    public int flushThreads = 4; // threads shared by all partitions for writing buffered rows to the database
+    public int maxFlushAttempts = 5; // staging table storage: rows that failed to flush this often get quarantined to spillDirectory (or dropped if not set)
+    public boolean streamingCopy = false; // keep one COPY command per partition open and stream flushed rows into it (holds one pooled connection per active partition)
+    public int streamingCopyCommitRows = 50_000; // streaming COPY: commit after this many rows...
+    public Duration streamingCopyCommitInterval = Duration.ofSeconds(5); // ...or once this much time has passed since the last commit
+
+    // memory budget for rows waiting to be written to the database, in characters resp. bytes (binary COPY format)
+    public long maxPendingBytesPerPartition = 16*1024*1024;
+    public long maxPendingBytes = 256*1024*1024; // all partitions combined
+    public String spillDirectory = null; // rows exceeding the memory budget get spilled to disk and loaded later, NULL = block producers instead
+
+    // spooling
+    public String spoolDirectory = null; // rows get written to an on-disk spool before they're passed on to the database, NULL = no spool
+    public int spoolSegmentSize = 64*1024*1024; // bytes
+    public long spoolMaxSize = 4L*1024*1024*1024; // bytes, storing rows blocks once this much data is waiting to be written to the database
+    public int spoolDrainBatchSize = 1024; // max. number of rows read back from the spool in one go
+    public Duration spoolCheckpointInterval = Duration.ofSeconds(5); // how often the position of rows known to be in the database gets persisted
+    public Duration spoolSyncInterval = Duration.ofSeconds(1); // how often spooled rows get forced to disk (rows survive JVM crashes anyway)
+
+    // filtering
+    public int filterThreads = Runtime.getRuntime().availableProcessors(); // threads passing new messages to filters, all messages of a host are handled by the same thread
+
+    // segment file storage
+    public String segmentStorageDirectory = null; // messages of the hosts below get stored in memory-mapped files instead of the database, NULL = disabled
+    public Set<String> segmentStorageHosts = new HashSet<>(); // host names or IP addresses
+    public int segmentStorageSegmentSize = 16*1024*1024; // bytes
+
+    // archive
+    public String archiveDirectory = null; // partitions older than the hot window get moved to compressed columnar files here, NULL = keep them in the database
+    public Duration archiveHotWindow = Duration.ofDays( 2 ); // min. age of partitions that get archived, only useful if less than the data retention time
+    public int archiveCacheSize = 8; // number of decoded archive files kept in memory
+
+    // trigram indices, speed up substring and regex searches (requires the pg_trgm extension)
+    public boolean trigramIndex = false; // partitions no longer written to get a GIN trigram index on the message text (only used if defaultLogDisplayPattern is "%t")
 
     // database layout
+    public LogStorageFactory.StorageType storageType = LogStorageFactory.StorageType.PER_PARTITION;
     public int hoursPerPartition = 4;
     public Duration defaultDataRetentionTime = Duration.ofDays( 7 );
 
@@ -9,7 +9,7 @@ import java.util.Map;
 public final class SDParam
 {
     @JsonProperty("id")
-    public final String id;
+    public String id;
 
     @JsonIgnore
     private int paramPtr;
@@ -25,6 +25,33 @@ public final class SDParam
         this.id = id;
     }
 
+    public SDParam(SDParam other)
+    {
+        this.id = other.id;
+        this.paramPtr = other.paramPtr;
+        if ( other.paramNames != null )
+        {
+            this.paramNames = resize( other.paramNames, other.paramPtr );
+            this.paramValues = resize( other.paramValues, other.paramPtr );
+        }
+    }
+
+    /**
+     * Prepares this instance for re-use, keeping the parameter arrays.
+     *
+     * @param id new ID
+     */
+    public void reset(String id)
+    {
+        for ( int i = 0 ; i < paramPtr ; i++ )
+        {
+            paramNames[i] = null;
+            paramValues[i] = null;
+        }
+        paramPtr = 0;
+        this.id = id;
+    }
+
     public String toString() {
         if ( paramPtr == 0 ) {
             return id;
@@ -61,7 +88,7 @@ public final class SDParam
     private String[] resize(String[] input, int newSize)
     {
         final String[] result = new String[ newSize ];
-        System.arraycopy( input, 0, result, 0 , input.length );
+        System.arraycopy( input, 0, result, 0 , Math.min( input.length, newSize ) );
         return result;
     }
 
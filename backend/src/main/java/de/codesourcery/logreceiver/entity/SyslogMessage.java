@@ -2,20 +2,37 @@ package de.codesourcery.logreceiver.entity;
 
 import org.apache.logging.log4j.core.net.Facility;
 
+import de.codesourcery.logreceiver.util.DateUtils;
+
 import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class SyslogMessage implements Serializable
 {
+    /**
+     * Value of {@link #getEpochSecond()} for messages without a timestamp (RFC5424 NILVALUE).
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final AtomicIntegerFieldUpdater<SyslogMessage> REF_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater( SyslogMessage.class, "refCount" );
+
     // other
     public long id;
     public Host host;
 
     // protocol fields
-    public ZonedDateTime timestamp;
+    private long epochSecond = NO_TIMESTAMP;
+    private int nanos;
+    private int tzOffsetSeconds;
+    private transient ZonedDateTime timestamp; // created lazily by getTimestamp()
+
     public short priority;
     public String appName;
     public String procId;
@@ -26,13 +43,34 @@ public class SyslogMessage implements Serializable
 
     public byte paramCount;
 
+    // pooling
+    final transient SyslogMessagePool pool; // NULL if not pooled
+    private transient volatile int refCount;
+
     public SyslogMessage() {
+        this.pool = null;
+    }
+
+    SyslogMessage(SyslogMessagePool pool) {
+        this.pool = pool;
     }
 
+    /**
+     * Copy constructor.
+     *
+     * The copy is not pooled and does not share any mutable state with the original,
+     * so it stays valid after the original got released.
+     *
+     * @param other
+     */
     public SyslogMessage(SyslogMessage other)
     {
+        this.pool = null;
         this.id = other.id;
         this.host = other.host;
+        this.epochSecond = other.epochSecond;
+        this.nanos = other.nanos;
+        this.tzOffsetSeconds = other.tzOffsetSeconds;
         this.timestamp = other.timestamp;
         this.priority = other.priority;
         this.appName = other.appName;
@@ -40,18 +78,98 @@ public class SyslogMessage implements Serializable
         this.msgId = other.msgId;
         this.hostName = other.hostName;
         this.message = other.message;
-        this.params = other.params;
+        this.params = new SDParam[ Math.max( 1, other.paramCount ) ];
+        for ( int i = 0 ; i < other.paramCount ; i++ ) {
+            this.params[i] = new SDParam( other.params[i] );
+        }
         this.paramCount = other.paramCount;
     }
 
     /**
-     * Returns a SHALLOW copy of this instance.
+     * Returns a copy of this instance that is not pooled.
+     *
      * @return
+     * @see #SyslogMessage(SyslogMessage)
      */
     public SyslogMessage copy() {
         return new SyslogMessage(this );
     }
 
+    public boolean hasTimestamp() {
+        return epochSecond != NO_TIMESTAMP;
+    }
+
+    /**
+     * Sets the timestamp.
+     *
+     * @param epochSecond seconds since 1970-01-01T00:00:00Z
+     * @param nanos nano-of-second
+     * @param tzOffsetSeconds time zone offset the sender used
+     */
+    public void setTimestamp(long epochSecond, int nanos, int tzOffsetSeconds)
+    {
+        this.epochSecond = epochSecond;
+        this.nanos = nanos;
+        this.tzOffsetSeconds = tzOffsetSeconds;
+        this.timestamp = null;
+    }
+
+    /**
+     * Sets the timestamp.
+     *
+     * @param timestamp timestamp, <code>null</code> clears it
+     */
+    public void setTimestamp(ZonedDateTime timestamp)
+    {
+        if ( timestamp == null ) {
+            clearTimestamp();
+        } else {
+            setTimestamp( timestamp.toEpochSecond(), timestamp.getNano(), timestamp.getOffset().getTotalSeconds() );
+            this.timestamp = timestamp;
+        }
+    }
+
+    private void clearTimestamp()
+    {
+        epochSecond = NO_TIMESTAMP;
+        nanos = 0;
+        tzOffsetSeconds = 0;
+        timestamp = null;
+    }
+
+    /**
+     * Returns the timestamp in the time zone offset the sender used.
+     *
+     * Creates a new object on first use, code on the hot path should stick to {@link #getEpochSecond()},
+     * {@link #getNanos()} and {@link #getTZOffsetSeconds()}.
+     *
+     * @return timestamp or <code>null</code> if the message had none
+     */
+    public ZonedDateTime getTimestamp()
+    {
+        if ( timestamp == null && hasTimestamp() )
+        {
+            final ZoneId zone = tzOffsetSeconds == 0 ? DateUtils.UTC : ZoneOffset.ofTotalSeconds( tzOffsetSeconds );
+            timestamp = Instant.ofEpochSecond( epochSecond, nanos ).atZone( zone );
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return seconds since 1970-01-01T00:00:00Z or {@link #NO_TIMESTAMP}
+     */
+    public long getEpochSecond() {
+        return epochSecond;
+    }
+
+    public int getNanos() {
+        return nanos;
+    }
+
+    public int getTZOffsetSeconds() {
+        return tzOffsetSeconds;
+    }
+
     public int getParamCount() {
         return paramCount;
     }
@@ -64,6 +182,35 @@ public class SyslogMessage implements Serializable
         return result;
     }
 
+    /**
+     * Appends a new structured data element, re-using an {@link SDParam} left over from
+     * a previous use of this instance if possible.
+     *
+     * @param id SD-ID
+     * @return
+     */
+    public SDParam newParam(String id)
+    {
+        final SDParam existing = paramCount < params.length ? params[paramCount] : null;
+        if ( existing != null )
+        {
+            existing.reset( id );
+            paramCount++;
+            return existing;
+        }
+        final SDParam result = new SDParam( id );
+        addParam( result );
+        return result;
+    }
+
+    /**
+     * Appends a structured data element.
+     *
+     * This instance takes ownership of the element, it gets re-used by {@link #newParam(String)}
+     * once this message got reset.
+     *
+     * @param param
+     */
     public void addParam(SDParam param)
     {
         if ( paramCount == params.length )
@@ -79,7 +226,7 @@ public class SyslogMessage implements Serializable
     {
         host = null;
         priority=0;
-        timestamp = null;
+        clearTimestamp();
         hostName = null;
         appName = null;
         procId = null;
@@ -88,14 +235,67 @@ public class SyslogMessage implements Serializable
         message = null;
     }
 
+    /**
+     * Returns whether this message is owned by a {@link SyslogMessagePool}.
+     *
+     * @return
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Keeps a pooled message from getting recycled until {@link #release()} is called.
+     *
+     * Code that holds on to a message after the call it was handed to returns (queues, asynchronous stages)
+     * needs to do this or work on a {@link #copy()} instead. Does nothing for messages that are not pooled.
+     *
+     * @return this instance
+     */
+    public SyslogMessage retain()
+    {
+        if ( pool != null && REF_COUNT.getAndIncrement( this ) <= 0 ) {
+            throw new IllegalStateException( "retain() called on a recycled message" );
+        }
+        return this;
+    }
+
+    /**
+     * Gives up a reference to a pooled message, the message gets returned to its pool and must
+     * no longer be accessed once the last reference is gone.
+     *
+     * Does nothing for messages that are not pooled.
+     */
+    public void release()
+    {
+        if ( pool != null && releaseRef() ) {
+            pool.recycle( this );
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the last reference was released
+     */
+    boolean releaseRef()
+    {
+        final int count = REF_COUNT.decrementAndGet( this );
+        if ( count < 0 ) {
+            throw new IllegalStateException( "release() called too often" );
+        }
+        return count == 0;
+    }
+
+    void setRefCount(int count) {
+        REF_COUNT.set( this, count );
+    }
+
     public interface TZVisitor<T> {
         T visit(int tzHours, int tzMinutes, boolean posTZ);
     }
 
     public <T> T visitTZOffset(TZVisitor<T> visitor)
     {
-        final ZoneOffset offset = ZoneOffset.from( timestamp );
-        int seconds = offset.getTotalSeconds();
+        int seconds = tzOffsetSeconds;
         final int tzHours;
         final int tzMinutes;
         boolean posTZ = true;
@@ -0,0 +1,161 @@
+package de.codesourcery.logreceiver.entity;
+
+/**
+ * Pool of re-usable {@link SyslogMessage} instances.
+ *
+ * Messages get handed out with a reference count of one and return to the pool once the last
+ * reference has been given up using {@link SyslogMessage#release()}. Their {@link SDParam}s
+ * get re-used along with them, see {@link SyslogMessage#newParam(String)}.
+ *
+ * Thread-safe.
+ */
+public final class SyslogMessagePool
+{
+    public static final class PoolStatistics
+    {
+        public long created; // messages allocated because the pool was empty
+        public long reused;
+        public long discarded; // released messages dropped because the pool was full
+        public int idle;
+
+        @Override
+        public String toString()
+        {
+            return "created="+created+", reused="+reused+", discarded="+discarded+", idle="+idle;
+        }
+    }
+
+    private final Object LOCK = new Object();
+
+    // @GuardedBy( LOCK )
+    private final SyslogMessage[] idle;
+    // @GuardedBy( LOCK )
+    private int idleCount;
+    // @GuardedBy( LOCK )
+    private final PoolStatistics statistics = new PoolStatistics();
+
+    /**
+     * Create pool.
+     *
+     * @param maxIdle max. number of released messages kept for re-use
+     */
+    public SyslogMessagePool(int maxIdle)
+    {
+        if ( maxIdle < 0 ) {
+            throw new IllegalArgumentException( "maxIdle must be >= 0" );
+        }
+        this.idle = new SyslogMessage[ maxIdle ];
+    }
+
+    public SyslogMessage acquire()
+    {
+        SyslogMessage result = null;
+        synchronized( LOCK )
+        {
+            if ( idleCount > 0 )
+            {
+                result = idle[--idleCount];
+                idle[idleCount] = null;
+                statistics.reused++;
+            } else {
+                statistics.created++;
+            }
+        }
+        if ( result == null ) {
+            result = new SyslogMessage( this );
+        }
+        result.setRefCount( 1 );
+        return result;
+    }
+
+    /**
+     * Acquire multiple messages in one go.
+     *
+     * @param destination array to store the messages in
+     * @param count number of messages to acquire (starting at index 0)
+     */
+    public void acquire(SyslogMessage[] destination, int count)
+    {
+        int i = 0;
+        synchronized( LOCK )
+        {
+            for ( ; i < count && idleCount > 0 ; i++ )
+            {
+                destination[i] = idle[--idleCount];
+                idle[idleCount] = null;
+            }
+            statistics.reused += i;
+            statistics.created += count - i;
+        }
+        for ( ; i < count ; i++ ) {
+            destination[i] = new SyslogMessage( this );
+        }
+        for ( i = 0 ; i < count ; i++ ) {
+            destination[i].setRefCount( 1 );
+        }
+    }
+
+    /**
+     * Calls {@link SyslogMessage#release()} on multiple messages, recycling them in one go.
+     *
+     * @param messages messages to release, array elements get set to <code>null</code>
+     * @param count number of messages (starting at index 0)
+     */
+    public void release(SyslogMessage[] messages, int count)
+    {
+        int recycled = 0;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SyslogMessage msg = messages[i];
+            messages[i] = null;
+            if ( msg.pool != this ) {
+                msg.release();
+            }
+            else if ( msg.releaseRef() )
+            {
+                msg.reset();
+                messages[recycled++] = msg;
+            }
+        }
+        synchronized( LOCK )
+        {
+            for ( int i = 0 ; i < recycled ; i++ ) {
+                offer( messages[i] );
+            }
+        }
+        for ( int i = 0 ; i < recycled ; i++ ) {
+            messages[i] = null;
+        }
+    }
+
+    void recycle(SyslogMessage msg)
+    {
+        msg.reset();
+        synchronized( LOCK ) {
+            offer( msg );
+        }
+    }
+
+    // @GuardedBy( LOCK )
+    private void offer(SyslogMessage msg)
+    {
+        if ( idleCount < idle.length ) {
+            idle[idleCount++] = msg;
+        } else {
+            statistics.discarded++;
+        }
+    }
+
+    public PoolStatistics getStatistics()
+    {
+        final PoolStatistics result = new PoolStatistics();
+        synchronized( LOCK )
+        {
+            result.created = statistics.created;
+            result.reused = statistics.reused;
+            result.discarded = statistics.discarded;
+            result.idle = idleCount;
+        }
+        return result;
+    }
+}
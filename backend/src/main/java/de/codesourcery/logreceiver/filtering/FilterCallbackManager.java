@@ -1,10 +1,11 @@
 package de.codesourcery.logreceiver.filtering;
 
+import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
-import de.codesourcery.logreceiver.logstorage.MessageDAO;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.IMessageDAO;
 import de.codesourcery.logreceiver.storage.IHostManager;
 import de.codesourcery.logreceiver.util.EternalThread;
-import de.codesourcery.logreceiver.util.OptionalBarrier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -13,94 +14,342 @@ import javax.annotation.PreDestroy;
 import java.net.InetAddress;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Passes new messages of a host to the {@link IFilterCallback}s registered for it.
+ *
+ * Storages either {@link #publish(InetAddress, List) publish} the messages they've just written to the database
+ * or {@link #markDirty(InetAddress) mark} the host as having new messages, in which case they get read back from
+ * the database. Published messages are passed on directly as long as their entry IDs follow the latest ID
+ * passed on so far, a gap makes the filters catch up by reading everything newer from the database.
+ *
+ * Storages reserve entry IDs before the rows get committed, so a catch-up may move past IDs whose rows
+ * are still in flight. These IDs are remembered and their messages still get passed on once they are
+ * published or show up in the database, for up to {@link Gaps#EXPIRY}.
+ *
+ * Hosts are sharded across {@link Configuration#filterThreads} threads, all messages of a host are
+ * always processed by the same thread (and thus in order).
+ */
 public class FilterCallbackManager
 {
     private static final Logger LOG = LogManager.getLogger( FilterCallbackManager.class );
 
-    private final Map<InetAddress, ConcurrentLinkedQueue<IFilterCallback>> filterCallbacks = new ConcurrentHashMap<>();
+    public static final class ShardStatistics
+    {
+        public final int shard;
+        public int pendingHosts; // hosts waiting to be processed
+        public int pendingBatches; // published batches waiting to be processed
+        public long lagMillis; // time the longest-waiting host has been waiting
+        public long maxLagMillis; // longest time a host had to wait so far
+        public long processedHosts;
+        public long pushedMessages; // messages passed to filters without reading them from the database
+        public long catchUps; // database queries for messages that have not been published
 
-    // @GuardedBy( dirtyIPs )
-    private final Set<InetAddress> dirtyIPs = new HashSet<>();
+        private ShardStatistics(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "shard #"+shard+": pending hosts="+pendingHosts+", pending batches="+pendingBatches+", lag="+lagMillis+" ms (max. "+maxLagMillis+" ms)"+
+                   ", processed hosts="+processedHosts+", pushed messages="+pushedMessages+", catch-ups="+catchUps;
+        }
+    }
 
     private static final Duration SLEEP_TIME = Duration.ofSeconds( 60 );
 
+    private final Map<InetAddress, ConcurrentLinkedQueue<IFilterCallback>> filterCallbacks = new ConcurrentHashMap<>();
+
+    // batches of published messages by host, ordered by ascending entry ID within each batch
+    private final Map<InetAddress, ConcurrentLinkedQueue<List<SyslogMessage>>> published = new ConcurrentHashMap<>();
+
     private volatile boolean cancel;
 
     private final IHostManager hostManager;
-    private final MessageDAO dao;
+    private final IMessageDAO dao;
 
     // contains the latest entry ID that we processed so far
     // @GuardedBy( watermarks )
     private final Map<InetAddress, Long> watermarks = new HashMap<>();
 
-    private final OptionalBarrier FILTERING_ITERATION_DONE = new OptionalBarrier();
+    // entry IDs skipped by catch-ups, only accessed by the shard thread of the respective host
+    private final Map<InetAddress, Gaps> gaps = new ConcurrentHashMap<>();
+
+    private final Shard[] shards;
 
-    private final EternalThread thread = new EternalThread( "filter-processor", () -> new EternalThread.Interruptable()
+    /**
+     * Entry IDs at or below a host's watermark that have not been passed to filters yet.
+     */
+    private static final class Gaps
     {
-        @Override
-        public void cancel()
+        // rows of reserved IDs get committed within a few flush intervals, IDs older than this
+        // most likely belong to rolled back transactions
+        private static final Duration EXPIRY = Duration.ofMinutes( 5 );
+        private static final int MAX_IDS = 10_000;
+
+        // time each ID got skipped, by ID
+        private final TreeMap<Long,Long> ids = new TreeMap<>();
+
+        public void add(long firstId, long lastId, long now)
         {
-            cancel = true;
+            for ( long id = firstId ; id <= lastId ; id++ ) {
+                ids.put( id, now );
+            }
+            if ( ids.size() > MAX_IDS )
+            {
+                LOG.warn( "add(): Too many skipped entry IDs, forgetting "+(ids.size()-MAX_IDS)+" of them" );
+                while ( ids.size() > MAX_IDS ) {
+                    ids.pollFirstEntry();
+                }
+            }
         }
 
-        @Override
-        public void run(EternalThread.Context context) throws Exception
+        public boolean remove(long id) {
+            return ids.remove( id ) != null;
+        }
+
+        public void expire(long now) {
+            ids.values().removeIf( time -> now - time > EXPIRY.toMillis() );
+        }
+
+        public List<Long> ids() {
+            return new ArrayList<>( ids.keySet() );
+        }
+
+        public boolean isEmpty() {
+            return ids.isEmpty();
+        }
+    }
+
+    /**
+     * Hosts handled by one thread.
+     */
+    private final class Shard
+    {
+        public final int index;
+
+        private final Object LOCK = new Object();
+
+        // hosts whose new messages need to be read from the database
+        // @GuardedBy( LOCK )
+        private final Set<InetAddress> dirtyIPs = new HashSet<>();
+
+        // hosts with published messages waiting to be passed to filters
+        // @GuardedBy( LOCK )
+        private final Set<InetAddress> publishedIPs = new HashSet<>();
+
+        // time the first of the currently waiting hosts got added, 0 if none are waiting
+        // @GuardedBy( LOCK )
+        private long pendingSince;
+
+        // @GuardedBy( LOCK )
+        private long startedIterations;
+        // @GuardedBy( LOCK )
+        private long completedIterations;
+
+        private final AtomicInteger pendingBatches = new AtomicInteger();
+        private final AtomicLong processedHosts = new AtomicLong();
+        private final AtomicLong pushedMessages = new AtomicLong();
+        private final AtomicLong catchUps = new AtomicLong();
+        private volatile long maxLagMillis;
+
+        private final EternalThread thread;
+
+        private Shard(int index)
         {
-            while ( !context.isCancelled() )
+            this.index = index;
+            this.thread = new EternalThread( "filter-processor-"+index, () -> new EternalThread.Interruptable()
             {
-                final Set<InetAddress> dirty;
-                synchronized (dirtyIPs)
+                @Override
+                public void cancel()
                 {
-                    if ( dirtyIPs.isEmpty() )
-                    {
-                        dirty = Collections.emptySet();
+                    cancel = true;
+                    synchronized( LOCK ) {
+                        LOCK.notifyAll();
                     }
-                    else
+                }
+
+                @Override
+                public void run(EternalThread.Context context)
+                {
+                    while ( !context.isCancelled() )
                     {
-                        dirty = new HashSet<>( dirtyIPs );
-                        dirtyIPs.clear();
+                        if ( ! processPendingHosts() ) {
+                            context.sleep( SLEEP_TIME );
+                        }
                     }
                 }
-                if ( LOG.isDebugEnabled() && !dirty.isEmpty() )
+            } );
+        }
+
+        /**
+         * Invokes the filters of all hosts that are waiting.
+         *
+         * @return <code>true</code> if more hosts have been added in the meantime
+         */
+        private boolean processPendingHosts()
+        {
+            final Set<InetAddress> dirty;
+            final Set<InetAddress> hosts;
+            synchronized( LOCK )
+            {
+                startedIterations++;
+                dirty = new HashSet<>( dirtyIPs );
+                hosts = new HashSet<>( dirtyIPs );
+                hosts.addAll( publishedIPs );
+                dirtyIPs.clear();
+                publishedIPs.clear();
+                if ( pendingSince != 0 )
                 {
-                    LOG.info( "Invoking filters for " + dirty.size() + " IPs" );
+                    maxLagMillis = Math.max( maxLagMillis, System.currentTimeMillis() - pendingSince );
+                    pendingSince = 0;
                 }
-                for (InetAddress dirtyIP : dirty)
+            }
+            if ( LOG.isDebugEnabled() && !hosts.isEmpty() )
+            {
+                LOG.info( "Invoking filters for " + hosts.size() + " IPs on shard #"+index );
+            }
+            try
+            {
+                for (InetAddress ip : hosts)
                 {
-                    final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( dirtyIP );
+                    final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( ip );
                     if ( list != null )
                     {
-                        filter( dirtyIP, list );
+                        filter( this, ip, list, dirty.contains( ip ) );
+                    }
+                    else
+                    {
+                        final Queue<List<SyslogMessage>> queue = published.remove( ip );
+                        if ( queue != null ) {
+                            pendingBatches.addAndGet( -queue.size() );
+                        }
+                        gaps.remove( ip );
                     }
+                    processedHosts.incrementAndGet();
                 }
-                // wake-up any thread waiting inside #subscribe() method.
-                FILTERING_ITERATION_DONE.wakeAll();
-
-                boolean doSleep;
-                synchronized (dirtyIPs)
+            }
+            finally
+            {
+                synchronized( LOCK )
                 {
-                    doSleep = dirtyIPs.isEmpty();
+                    // wake-up any thread waiting inside #register() method.
+                    completedIterations = startedIterations;
+                    LOCK.notifyAll();
                 }
-                if ( doSleep )
+            }
+            synchronized( LOCK ) {
+                return pendingSince != 0;
+            }
+        }
+
+        public void markDirty(InetAddress hostIP)
+        {
+            synchronized( LOCK )
+            {
+                dirtyIPs.add( hostIP );
+                pending();
+            }
+            thread.wakeUp();
+        }
+
+        public void markPublished(InetAddress hostIP)
+        {
+            synchronized( LOCK )
+            {
+                publishedIPs.add( hostIP );
+                pending();
+            }
+            thread.wakeUp();
+        }
+
+        // @GuardedBy( LOCK )
+        private void pending()
+        {
+            if ( pendingSince == 0 ) {
+                pendingSince = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Marks a host as dirty and blocks until its filters have been invoked.
+         */
+        public void markDirtyAndWait(InetAddress hostIP)
+        {
+            final long target;
+            synchronized( LOCK )
+            {
+                dirtyIPs.add( hostIP );
+                pending();
+                target = startedIterations + 1;
+            }
+            thread.wakeUp();
+            synchronized( LOCK )
+            {
+                while ( completedIterations < target )
                 {
-                    context.sleep( SLEEP_TIME );
+                    if ( cancel ) {
+                        throw new IllegalStateException("Shutdown in progress");
+                    }
+                    try
+                    {
+                        LOCK.wait( 1000 );
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // can't help it
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 }
             }
         }
-    } );
 
-    private void filter(InetAddress address, Queue<IFilterCallback> callback)
+        public ShardStatistics getStatistics()
+        {
+            final ShardStatistics result = new ShardStatistics( index );
+            synchronized( LOCK )
+            {
+                final Set<InetAddress> hosts = new HashSet<>( dirtyIPs );
+                hosts.addAll( publishedIPs );
+                result.pendingHosts = hosts.size();
+                result.lagMillis = pendingSince == 0 ? 0 : System.currentTimeMillis() - pendingSince;
+            }
+            result.pendingBatches = pendingBatches.get();
+            result.maxLagMillis = Math.max( maxLagMillis, result.lagMillis );
+            result.processedHosts = processedHosts.get();
+            result.pushedMessages = pushedMessages.get();
+            result.catchUps = catchUps.get();
+            return result;
+        }
+    }
+
+    private void filter(Shard shard, InetAddress address, Queue<IFilterCallback> callback, boolean catchUp)
     {
+        final List<List<SyslogMessage>> batches = new ArrayList<>();
+        final Queue<List<SyslogMessage>> queue = published.get( address );
+        if ( queue != null )
+        {
+            for ( List<SyslogMessage> batch ; ( batch = queue.poll() ) != null ; ) {
+                batches.add( batch );
+                shard.pendingBatches.decrementAndGet();
+            }
+        }
+
         final Host host = hostManager.getHost( address );
         if ( host == null )
         {
@@ -115,16 +364,22 @@ public class FilterCallbackManager
         if ( LOG.isDebugEnabled() )
         {
             LOG.info( "filter(): [ " + host + " ] Invoking " + filterCallbacks.size() + " filters for " + host.ip +
-                      " , watermark=" + oldId );
+                      " , watermark=" + oldId + ", published batches: " + batches.size() + ", catch-up: " + catchUp );
         }
-        final Long newId;
+        Long newId;
         if ( oldId != null )
         {
-            newId = dao.visitNewerMessages( host, new ArrayList<>( callback ), oldId, () -> cancel );
+            final List<IFilterCallback> filters = new ArrayList<>( callback );
+            newId = catchUp ? catchUp( shard, host, filters, oldId ) : oldId;
+            for ( List<SyslogMessage> batch : batches ) {
+                newId = push( shard, host, filters, batch, newId );
+            }
         }
         else
         {
+            // published messages are already in the database
             newId = dao.getLatestMessageId( host );
+            gaps.remove( address );
         }
         if ( newId != null )
         {
@@ -132,6 +387,94 @@ public class FilterCallbackManager
         }
     }
 
+    /**
+     * Passes all messages newer than a given entry ID to filters, reading them from the database.
+     *
+     * Messages of IDs skipped by earlier catch-ups that have been committed in the meantime get passed on as well,
+     * IDs skipped by this catch-up are remembered.
+     *
+     * @return latest entry ID passed to filters
+     */
+    private long catchUp(Shard shard, Host host, List<IFilterCallback> filters, long latestId)
+    {
+        shard.catchUps.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        final Gaps hostGaps = gaps.computeIfAbsent( host.ip, key -> new Gaps() );
+        hostGaps.expire( now );
+        if ( ! hostGaps.isEmpty() )
+        {
+            final List<SyslogMessage> found = new ArrayList<>();
+            dao.visitMessages( host, found::add, hostGaps.ids() );
+            found.removeIf( msg -> ! hostGaps.remove( msg.id ) );
+            if ( ! found.isEmpty() )
+            {
+                found.sort( Comparator.comparingLong( msg -> msg.id ) );
+                for ( IFilterCallback filter : filters ) {
+                    filter.visit( found );
+                }
+            }
+        }
+
+        final long[] expectedId = { latestId + 1 };
+        final IFilterCallback gapDetector = msg ->
+        {
+            if ( msg.id > expectedId[0] ) {
+                hostGaps.add( expectedId[0], msg.id - 1, now );
+            }
+            expectedId[0] = msg.id + 1;
+        };
+        final List<IFilterCallback> visitors = new ArrayList<>( filters );
+        visitors.add( gapDetector );
+        final Long newId = dao.visitNewerMessages( host, visitors, latestId, () -> cancel );
+        return newId != null ? newId : latestId;
+    }
+
+    /**
+     * Passes published messages to filters, skipping the ones that have been passed on already
+     * (unless a catch-up skipped them).
+     *
+     * Catches up from the database if the batch does not continue where the last message passed on left off,
+     * the missing messages got written without being published or have not been published yet.
+     *
+     * @return latest entry ID passed to filters
+     */
+    private long push(Shard shard, Host host, List<IFilterCallback> filters, List<SyslogMessage> batch, long latestId)
+    {
+        final int size = batch.size();
+        final Gaps hostGaps = gaps.get( host.ip );
+        final List<SyslogMessage> skipped = new ArrayList<>();
+        int start = 0;
+        while ( start < size && batch.get( start ).id <= latestId )
+        {
+            if ( hostGaps != null && hostGaps.remove( batch.get( start ).id ) ) {
+                skipped.add( batch.get( start ) );
+            }
+            start++;
+        }
+        if ( ! skipped.isEmpty() )
+        {
+            for ( IFilterCallback filter : filters ) {
+                filter.visit( skipped );
+            }
+            shard.pushedMessages.addAndGet( skipped.size() );
+        }
+        int end = start;
+        while ( end < size && batch.get( end ).id == latestId + 1 + ( end - start ) ) {
+            end++;
+        }
+        long newId = latestId;
+        if ( end > start )
+        {
+            final List<SyslogMessage> messages = batch.subList( start, end );
+            for ( IFilterCallback filter : filters ) {
+                filter.visit( messages );
+            }
+            shard.pushedMessages.addAndGet( end - start );
+            newId = batch.get( end - 1 ).id;
+        }
+        return end < size ? catchUp( shard, host, filters, newId ) : newId;
+    }
+
     private void updateWatermark(Host host, Long oldValue, Long newValue)
     {
         synchronized (watermarks)
@@ -144,19 +487,55 @@ public class FilterCallbackManager
         }
     }
 
-    public FilterCallbackManager(IHostManager hostManager, MessageDAO dao)
+    public FilterCallbackManager(IHostManager hostManager, IMessageDAO dao, Configuration config)
     {
         this.hostManager = hostManager;
         this.dao = dao;
+        this.shards = new Shard[ Math.max( 1, config.filterThreads ) ];
+        for ( int i = 0 ; i < shards.length ; i++ ) {
+            shards[i] = new Shard( i );
+        }
+    }
+
+    private Shard shard(InetAddress hostIP) {
+        return shards[ Math.floorMod( hostIP.hashCode(), shards.length ) ];
     }
 
     public void markDirty(InetAddress hostIP)
     {
-        synchronized (dirtyIPs)
-        {
-            dirtyIPs.add( hostIP );
+        shard( hostIP ).markDirty( hostIP );
+    }
+
+    /**
+     * Hands messages that have just been written to the database to the filters of a host.
+     *
+     * @param hostIP
+     * @param messages messages with their entry IDs set, ordered by ascending entry ID. Must not be modified afterwards.
+     * @see #hasCallbacks(InetAddress)
+     */
+    public void publish(InetAddress hostIP, List<SyslogMessage> messages)
+    {
+        if ( messages.isEmpty() ) {
+            return;
         }
-        thread.wakeUp();
+        final Shard shard = shard( hostIP );
+        shard.pendingBatches.incrementAndGet();
+        published.computeIfAbsent( hostIP, key -> new ConcurrentLinkedQueue<>() ).add( messages );
+        shard.markPublished( hostIP );
+    }
+
+    /**
+     * Check whether any filters are registered for a host.
+     *
+     * Storages use this to decide whether it's worth holding on to messages so they can be {@link #publish(InetAddress, List) published}.
+     *
+     * @param hostIP
+     * @return
+     */
+    public boolean hasCallbacks(InetAddress hostIP)
+    {
+        final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( hostIP );
+        return list != null && ! list.isEmpty();
     }
 
     public void register(InetAddress hostIP, IFilterCallback callback)
@@ -171,18 +550,10 @@ public class FilterCallbackManager
         filterCallbacks.computeIfAbsent( hostIP, key -> new ConcurrentLinkedQueue<>() );
         LOG.info("register(): Registered callback "+callback);
 
-        // make sure all watermarks are up-to-date before
+        // make sure the host's watermark is up-to-date before
         // registering the new filter (so it doesn't receive the whole database
         // if it happens to be the first filter to be added)
-        thread.wakeUp();
-        try
-        {
-            FILTERING_ITERATION_DONE.await();
-        }
-        catch (InterruptedException e)
-        {
-            // can't help it
-        }
+        shard( hostIP ).markDirtyAndWait( hostIP );
         list.add( callback );
     }
 
@@ -198,17 +569,35 @@ public class FilterCallbackManager
         }
     }
 
+    /**
+     * Returns statistics for each of the threads invoking filters.
+     *
+     * @return
+     */
+    public List<ShardStatistics> getStatistics()
+    {
+        final List<ShardStatistics> result = new ArrayList<>();
+        for ( Shard shard : shards ) {
+            result.add( shard.getStatistics() );
+        }
+        return result;
+    }
+
     @PreDestroy
     public void destroy() throws InterruptedException
     {
-        FILTERING_ITERATION_DONE.destroy();
+        getStatistics().forEach( stats -> LOG.info( "destroy(): "+stats ) );
         cancel = true;
-        thread.stopThread();
+        for ( Shard shard : shards ) {
+            shard.thread.stopThread();
+        }
     }
 
     @PostConstruct
     public void afterPropertiesSet()
     {
-        thread.startThread();
+        for ( Shard shard : shards ) {
+            shard.thread.startThread();
+        }
     }
-}
\ No newline at end of file
+}
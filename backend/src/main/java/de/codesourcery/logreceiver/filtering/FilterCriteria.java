@@ -0,0 +1,46 @@
+package de.codesourcery.logreceiver.filtering;
+
+/**
+ * Conditions a {@link IFilterCallback} applies to messages, in a form storages can evaluate themselves
+ * (e.g. as a SQL <code>WHERE</code> clause) instead of fetching all messages and testing them with
+ * {@link IFilterCallback#getPredicate()}.
+ *
+ * Unset fields don't restrict anything, all set fields need to match.
+ */
+public class FilterCriteria
+{
+    public int minSeverity = 0; // most severe level to include (0 = emergency)
+    public int maxSeverity = 7; // least severe level to include (7 = debug)
+    public String appName; // exact app name, NULL = any
+    public String substring; // literal text the message needs to contain, NULL = any
+    public String regex; // POSIX regular expression the message needs to contain a match of, NULL = any
+    public boolean ignoreCase; // applies to substring and regex
+
+    // whether these criteria are all the filter checks. If so, storages may skip the
+    // filter's predicate and limit the number of messages they read, otherwise the
+    // criteria only narrow down the messages the predicate gets tested against
+    public boolean complete;
+
+    /**
+     * Returns criteria matching all messages.
+     *
+     * @return
+     */
+    public static FilterCriteria all()
+    {
+        final FilterCriteria result = new FilterCriteria();
+        result.complete = true;
+        return result;
+    }
+
+    public boolean hasSeverityRange() {
+        return minSeverity > 0 || maxSeverity < 7;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FilterCriteria[ severity "+minSeverity+"-"+maxSeverity+", app="+appName+", substring="+substring+
+               ", regex="+regex+", ignoreCase="+ignoreCase+", complete="+complete+" ]";
+    }
+}
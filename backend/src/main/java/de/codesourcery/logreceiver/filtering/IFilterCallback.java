@@ -20,4 +20,13 @@ public interface IFilterCallback
     {
         throw new UnsupportedOperationException( "Not implemented - getPredicate()" );
     }
+
+    /**
+     * Returns the conditions of this filter that storages may evaluate on their own.
+     *
+     * @return criteria or <code>null</code> if only {@link #getPredicate()} is available
+     */
+    default FilterCriteria getCriteria() {
+        return null;
+    }
 }
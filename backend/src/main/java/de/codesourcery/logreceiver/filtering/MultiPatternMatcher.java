@@ -0,0 +1,356 @@
+package de.codesourcery.logreceiver.filtering;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a text against many regular expressions at once.
+ *
+ * For each expression a literal substring that every match needs to contain gets extracted. All of them
+ * are searched in a single pass over the text (using Aho-Corasick), only expressions whose literal was
+ * found (or that have none) then get matched against the text.
+ *
+ * Instances are immutable and thread-safe.
+ *
+ * @param <T> values associated with the expressions
+ */
+public final class MultiPatternMatcher<T>
+{
+    private final List<T> values;
+    private final Pattern[] patterns;
+
+    // expressions without a required literal, they need to be checked for every text
+    private final BitSet alwaysCandidates = new BitSet();
+
+    // Aho-Corasick automaton, node 0 is the root
+    private final char[][] keys; // sorted transition characters of each node
+    private final int[][] targets; // target node of each transition
+    private final int[] fail;
+    private final int[][] outputs; // expressions whose literal ends at a node, including those reachable via fail links
+
+    private MultiPatternMatcher(List<T> values, List<Pattern> patterns)
+    {
+        this.values = new ArrayList<>( values );
+        this.patterns = patterns.toArray( new Pattern[0] );
+
+        final List<Map<Character,Integer>> trie = new ArrayList<>();
+        final List<List<Integer>> nodeOutputs = new ArrayList<>();
+        trie.add( new HashMap<>() );
+        nodeOutputs.add( new ArrayList<>() );
+        for ( int i = 0 ; i < this.patterns.length ; i++ )
+        {
+            final String literal = getRequiredLiteral( this.patterns[i] );
+            if ( literal == null ) {
+                alwaysCandidates.set( i );
+                continue;
+            }
+            int node = 0;
+            for ( int j = 0, len = literal.length() ; j < len ; j++ )
+            {
+                final char c = fold( literal.charAt( j ) );
+                Integer next = trie.get( node ).get( c );
+                if ( next == null )
+                {
+                    next = trie.size();
+                    trie.add( new HashMap<>() );
+                    nodeOutputs.add( new ArrayList<>() );
+                    trie.get( node ).put( c, next );
+                }
+                node = next;
+            }
+            nodeOutputs.get( node ).add( i );
+        }
+
+        final int nodeCount = trie.size();
+        keys = new char[ nodeCount ][];
+        targets = new int[ nodeCount ][];
+        for ( int node = 0 ; node < nodeCount ; node++ )
+        {
+            final Map<Character, Integer> transitions = trie.get( node );
+            final char[] chars = new char[ transitions.size() ];
+            int i = 0;
+            for ( char c : transitions.keySet() ) {
+                chars[i++] = c;
+            }
+            Arrays.sort( chars );
+            keys[node] = chars;
+            targets[node] = new int[ chars.length ];
+            for ( i = 0 ; i < chars.length ; i++ ) {
+                targets[node][i] = transitions.get( chars[i] );
+            }
+        }
+
+        // breadth-first so fail links always point to nodes that are already done
+        fail = new int[ nodeCount ];
+        outputs = new int[ nodeCount ][];
+        outputs[0] = toArray( nodeOutputs.get( 0 ) );
+        final Queue<Integer> queue = new ArrayDeque<>();
+        for ( int child : targets[0] )
+        {
+            fail[ child ] = 0;
+            queue.add( child );
+        }
+        while ( ! queue.isEmpty() )
+        {
+            final int node = queue.remove();
+            final List<Integer> out = nodeOutputs.get( node );
+            for ( int id : outputs[ fail[ node ] ] ) {
+                out.add( id );
+            }
+            outputs[ node ] = toArray( out );
+            for ( int i = 0 ; i < keys[node].length ; i++ )
+            {
+                final int child = targets[node][i];
+                fail[ child ] = node == 0 ? 0 : next( fail[ node ], keys[node][i] );
+                queue.add( child );
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt( Integer::intValue ).toArray();
+    }
+
+    /**
+     * Creates a matcher.
+     *
+     * @param values values to return for matching expressions
+     * @param patterns expressions, in the same order as the values
+     * @param <T>
+     * @return
+     */
+    public static <T> MultiPatternMatcher<T> create(List<T> values, List<Pattern> patterns)
+    {
+        if ( values.size() != patterns.size() ) {
+            throw new IllegalArgumentException( "Need one pattern per value" );
+        }
+        return new MultiPatternMatcher<>( values, patterns );
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase( Character.toUpperCase( c ) );
+    }
+
+    // follows transitions and fail links starting at a node, like the scan does
+    private int next(int node, char c)
+    {
+        while ( true )
+        {
+            final int idx = Arrays.binarySearch( keys[node], c );
+            if ( idx >= 0 ) {
+                return targets[node][idx];
+            }
+            if ( node == 0 ) {
+                return 0;
+            }
+            node = fail[node];
+        }
+    }
+
+    /**
+     * Invokes a consumer for the values of all expressions that match the whole text,
+     * in the order the expressions were passed to {@link #create(List, List)}.
+     *
+     * @param text
+     * @param consumer
+     * @see java.util.regex.Matcher#matches()
+     */
+    public void forEachMatch(CharSequence text, Consumer<T> consumer)
+    {
+        final BitSet candidates = getCandidates( text );
+        for ( int i = candidates.nextSetBit( 0 ) ; i >= 0 ; i = candidates.nextSetBit( i + 1 ) )
+        {
+            if ( patterns[i].matcher( text ).matches() ) {
+                consumer.accept( values.get( i ) );
+            }
+        }
+    }
+
+    /**
+     * Returns the indices of all expressions that may match a text.
+     *
+     * @param text
+     * @return
+     */
+    BitSet getCandidates(CharSequence text)
+    {
+        final BitSet result = (BitSet) alwaysCandidates.clone();
+        int node = 0;
+        for ( int i = 0, len = text.length() ; i < len ; i++ )
+        {
+            node = next( node, fold( text.charAt( i ) ) );
+            for ( int id : outputs[node] ) {
+                result.set( id );
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Returns the longest literal that every text matched by an expression must contain.
+     *
+     * This errs on the safe side, constructs that aren't understood make the whole
+     * expression (or at least the group they're part of) have no required literal.
+     *
+     * @param pattern
+     * @return literal or <code>null</code>
+     */
+    static String getRequiredLiteral(Pattern pattern)
+    {
+        if ( ( pattern.flags() & ( Pattern.LITERAL | Pattern.COMMENTS | Pattern.CANON_EQ ) ) != 0 ) {
+            return null;
+        }
+        final String regex = pattern.pattern();
+        String longest = null;
+        final StringBuilder current = new StringBuilder();
+        for ( int i = 0, len = regex.length() ; i < len ; i++ )
+        {
+            final char c = regex.charAt( i );
+            switch( c )
+            {
+                case '\\':
+                    if ( i + 1 >= len ) {
+                        return null;
+                    }
+                    final char escaped = regex.charAt( ++i );
+                    if ( Character.isLetterOrDigit( escaped ) )
+                    {
+                        // character classes and boundaries are fine, escapes with arguments (\x41, \p{L}, back-references, \Q...) are not
+                        if ( "dDsSwWbBAzZGhHvVRXntrfea".indexOf( escaped ) == -1 ) {
+                            return null;
+                        }
+                        longest = longer( longest, current );
+                    } else {
+                        current.append( escaped );
+                    }
+                    break;
+                case '[':
+                    i = skipCharacterClass( regex, i );
+                    if ( i == -1 ) {
+                        return null;
+                    }
+                    longest = longer( longest, current );
+                    break;
+                case '(':
+                    if ( regex.startsWith( "(?", i ) && i + 2 < len && regex.charAt( i + 2 ) != ':' && regex.charAt( i + 2 ) != '<' )
+                    {
+                        // inline flags like (?i) or (?x)
+                        final int end = regex.indexOf( ')', i );
+                        if ( end == -1 || regex.substring( i, end ).indexOf( 'x' ) != -1 ) {
+                            return null;
+                        }
+                    }
+                    i = skipGroup( regex, i );
+                    if ( i == -1 ) {
+                        return null;
+                    }
+                    longest = longer( longest, current );
+                    break;
+                case '|':
+                    // only the common parts of all alternatives would be required
+                    return null;
+                case '*':
+                case '?':
+                case '{':
+                    // whatever came before is optional
+                    if ( current.length() > 0 ) {
+                        current.setLength( current.length() - 1 );
+                    }
+                    longest = longer( longest, current );
+                    if ( c == '{' )
+                    {
+                        i = regex.indexOf( '}', i );
+                        if ( i == -1 ) {
+                            return null;
+                        }
+                    }
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                case ')':
+                    longest = longer( longest, current );
+                    break;
+                default:
+                    current.append( c );
+            }
+        }
+        return longer( longest, current );
+    }
+
+    private static String longer(String longest, StringBuilder current)
+    {
+        if ( current.length() > 0 && ( longest == null || current.length() > longest.length() ) ) {
+            longest = current.toString();
+        }
+        current.setLength( 0 );
+        return longest;
+    }
+
+    // returns the index of the closing ']', -1 if there is none
+    private static int skipCharacterClass(String regex, int start)
+    {
+        int depth = 0;
+        for ( int i = start, len = regex.length() ; i < len ; i++ )
+        {
+            final char c = regex.charAt( i );
+            if ( c == '\\' ) {
+                i++;
+            }
+            else if ( c == '[' ) {
+                depth++;
+                // a ']' right at the start is part of the class
+                if ( i + 1 < len && regex.charAt( i + 1 ) == '^' ) {
+                    i++;
+                }
+                if ( i + 1 < len && regex.charAt( i + 1 ) == ']' ) {
+                    i++;
+                }
+            }
+            else if ( c == ']' && --depth == 0 ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index of the closing ')', -1 if there is none
+    private static int skipGroup(String regex, int start)
+    {
+        int depth = 0;
+        for ( int i = start, len = regex.length() ; i < len ; i++ )
+        {
+            final char c = regex.charAt( i );
+            if ( c == '\\' ) {
+                i++;
+            }
+            else if ( c == '[' )
+            {
+                i = skipCharacterClass( regex, i );
+                if ( i == -1 ) {
+                    return -1;
+                }
+            }
+            else if ( c == '(' ) {
+                depth++;
+            }
+            else if ( c == ')' && --depth == 0 ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,6 +1,7 @@
 package de.codesourcery.logreceiver.formatting;
 
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.util.DateUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -9,13 +10,13 @@ public class PatternLogFormatter implements ILogFormatter
 {
     public static final String DEFAULT_PATTERN = "%Y-%m-%d %H:%M:%s.%S%Z %D(%i) - %e - %t";
 
-    private static final Transformer YEAR_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getYear() ), '0', 4 );
-    private static final Transformer MONTH_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getMonthValue() ), '0', 2 );
-    private static final Transformer DAY_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getDayOfMonth() ), '0', 2 );
-    private static final Transformer HOUR_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getHour() ), '0', 2 );
-    private static final Transformer MINUTE_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getMinute() ), '0', 2 );
-    private static final Transformer SECOND_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getSecond() ), '0', 2 );
-    private static final Transformer NANO_FIELD = msg -> Integer.toString( msg.timestamp.getNano() );
+    private static final Transformer YEAR_FIELD = msg -> leftPad( Integer.toString( DateUtils.getYear( localDate( msg ) ) ), '0', 4 );
+    private static final Transformer MONTH_FIELD = msg -> leftPad( Integer.toString( DateUtils.getMonth( localDate( msg ) ) ), '0', 2 );
+    private static final Transformer DAY_FIELD = msg -> leftPad( Integer.toString( DateUtils.getDayOfMonth( localDate( msg ) ) ), '0', 2 );
+    private static final Transformer HOUR_FIELD = msg -> leftPad( Integer.toString( localSecondOfDay( msg ) / 3600 ), '0', 2 );
+    private static final Transformer MINUTE_FIELD = msg -> leftPad( Integer.toString( ( localSecondOfDay( msg ) / 60 ) % 60 ), '0', 2 );
+    private static final Transformer SECOND_FIELD = msg -> leftPad( Integer.toString( localSecondOfDay( msg ) % 60 ), '0', 2 );
+    private static final Transformer NANO_FIELD = msg -> Integer.toString( msg.getNanos() );
     private static final Transformer MSG_FIELD = msg -> msg.message;
     private static final Transformer PRIORITY_FIELD = msg -> leftPad( Short.toString( msg.priority ), '0', 3 );
     private static final Transformer PROTO_HOSTNAME_FIELD = msg -> msg.hostName;
@@ -205,6 +206,14 @@ public class PatternLogFormatter implements ILogFormatter
         return null;
     }
 
+    private static int localDate(SyslogMessage msg) {
+        return DateUtils.toDate( DateUtils.toLocalEpochDay( msg.getEpochSecond(), msg.getTZOffsetSeconds() ) );
+    }
+
+    private static int localSecondOfDay(SyslogMessage msg) {
+        return DateUtils.toLocalSecondOfDay( msg.getEpochSecond(), msg.getTZOffsetSeconds() );
+    }
+
     private static String leftPad(String input, char padChar, int len)
     {
         int delta = len - input.length();
@@ -223,6 +232,15 @@ public class PatternLogFormatter implements ILogFormatter
         return new PatternLogFormatter( pattern );
     }
 
+    /**
+     * Returns whether this formatter outputs nothing but the message text (<code>%t</code>).
+     *
+     * @return
+     */
+    public boolean isMessageOnly() {
+        return transformers.length == 1 && transformers[0] == MSG_FIELD;
+    }
+
     @Override
     public String format(SyslogMessage message)
     {
@@ -0,0 +1,476 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A read-only file holding the log messages of one dropped database partition, stored column by column.
+ *
+ * File layout:
+ * <pre>
+ * header: magic (int), version (int), partition start (long, epoch seconds), partition end (long, epoch seconds),
+ *         row count (int), min. entry ID (long), max. entry ID (long)
+ * columns: column count (int), followed by name (UTF), length (int) and deflate-compressed data of each column
+ * </pre>
+ * Rows are ordered by ascending entry ID. Entry IDs and timestamps (epoch millis) are stored as zig-zag encoded
+ * deltas to the previous row, app name, proc ID and msg ID as indexes into a per-file dictionary that is stored
+ * in a column of its own (<code>&lt;name&gt;.dict</code>, entries in order of first use). All integers are written
+ * as variable-length quantities, <code>null</code> strings and fractions as 0 with all other values shifted up by one.
+ */
+final class ArchiveFile
+{
+    private static final int MAGIC = 0x4c415243; // 'LARC'
+    private static final int VERSION = 1;
+
+    private static final String COL_ID = "entry_id";
+    private static final String COL_PRIORITY = "priority";
+    private static final String COL_TIMESTAMP = "log_ts";
+    private static final String COL_FRACTION = "log_ts_fraction";
+    private static final String COL_APP_NAME = "app_name";
+    private static final String COL_PROC_ID = "proc_id";
+    private static final String COL_MSG_ID = "msg_id";
+    private static final String COL_PARAMS = "params";
+    private static final String COL_MESSAGE = "msg";
+
+    private static final String DICTIONARY_SUFFIX = ".dict";
+
+    public final Path file;
+    public final long partitionStart;
+    public final long partitionEnd;
+    public final int rowCount;
+    public final long minId;
+    public final long maxId;
+
+    private ArchiveFile(Path file, long partitionStart, long partitionEnd, int rowCount, long minId, long maxId)
+    {
+        this.file = file;
+        this.partitionStart = partitionStart;
+        this.partitionEnd = partitionEnd;
+        this.rowCount = rowCount;
+        this.minId = minId;
+        this.maxId = maxId;
+    }
+
+    /**
+     * Reads just the header of an archive file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ArchiveFile open(Path file) throws IOException
+    {
+        try ( DataInputStream in = new DataInputStream( Files.newInputStream( file ) ) ) {
+            return readHeader( file, in );
+        }
+    }
+
+    private static ArchiveFile readHeader(Path file, DataInputStream in) throws IOException
+    {
+        if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+            throw new IOException( "Not an archive file: " + file );
+        }
+        final long partitionStart = in.readLong();
+        final long partitionEnd = in.readLong();
+        final int rowCount = in.readInt();
+        final long minId = in.readLong();
+        final long maxId = in.readLong();
+        return new ArchiveFile( file, partitionStart, partitionEnd, rowCount, minId, maxId );
+    }
+
+    /**
+     * Reads and decodes all rows of this file.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Rows load() throws IOException
+    {
+        final Map<String,byte[]> columns = new HashMap<>();
+        try ( DataInputStream in = new DataInputStream( Files.newInputStream( file ) ) )
+        {
+            readHeader( file, in );
+            for ( int count = in.readInt() ; count > 0 ; count-- )
+            {
+                final String name = in.readUTF();
+                final byte[] data = new byte[ in.readInt() ];
+                in.readFully( data );
+                try ( InputStream inflater = new InflaterInputStream( new ByteArrayInputStream( data ) ) ) {
+                    columns.put( name, inflater.readAllBytes() );
+                }
+            }
+        }
+        return new Rows( this, columns );
+    }
+
+    /**
+     * Returns whether this file may contain messages with IDs in the given (inclusive) range.
+     */
+    public boolean overlaps(long fromId, long toId) {
+        return rowCount > 0 && minId <= toId && maxId >= fromId;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveFile[ " + file + " ]";
+    }
+
+    /**
+     * Decoded rows of an archive file.
+     */
+    public static final class Rows
+    {
+        public final ArchiveFile file;
+
+        private final long[] ids;
+        private final short[] priorities;
+        private final long[] timestamps;
+        private final int[] fractions; // -1 = null
+        private final String[] appNames;
+        private final String[] procIds;
+        private final String[] msgIds;
+        private final String[] params; // JSON
+        private final String[] messages;
+
+        private Rows(ArchiveFile file, Map<String,byte[]> columns) throws IOException
+        {
+            this.file = file;
+            final int count = file.rowCount;
+            ids = new long[count];
+            priorities = new short[count];
+            timestamps = new long[count];
+            fractions = new int[count];
+            params = new String[count];
+            messages = new String[count];
+
+            final Decoder id = decoder( columns, COL_ID );
+            final Decoder priority = decoder( columns, COL_PRIORITY );
+            final Decoder timestamp = decoder( columns, COL_TIMESTAMP );
+            final Decoder fraction = decoder( columns, COL_FRACTION );
+            final Decoder param = decoder( columns, COL_PARAMS );
+            final Decoder message = decoder( columns, COL_MESSAGE );
+            long prevId = 0;
+            long prevTimestamp = 0;
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                prevId += id.readSignedVarLong();
+                ids[i] = prevId;
+                priorities[i] = (short) priority.readVarLong();
+                prevTimestamp += timestamp.readSignedVarLong();
+                timestamps[i] = prevTimestamp;
+                fractions[i] = (int) fraction.readVarLong() - 1;
+                params[i] = param.readString();
+                messages[i] = message.readString();
+            }
+            appNames = readDictionaryColumn( columns, COL_APP_NAME, count );
+            procIds = readDictionaryColumn( columns, COL_PROC_ID, count );
+            msgIds = readDictionaryColumn( columns, COL_MSG_ID, count );
+        }
+
+        private static Decoder decoder(Map<String,byte[]> columns, String name) throws IOException
+        {
+            final byte[] data = columns.get( name );
+            if ( data == null ) {
+                throw new IOException( "Archive file lacks column '" + name + "'" );
+            }
+            return new Decoder( data );
+        }
+
+        private static String[] readDictionaryColumn(Map<String,byte[]> columns, String name, int count) throws IOException
+        {
+            final Decoder entries = decoder( columns, name + DICTIONARY_SUFFIX );
+            final List<String> dictionary = new ArrayList<>();
+            dictionary.add( null );
+            while ( entries.hasMore() ) {
+                dictionary.add( entries.readString() );
+            }
+            final Decoder indexes = decoder( columns, name );
+            final String[] result = new String[count];
+            for ( int i = 0 ; i < count ; i++ ) {
+                result[i] = dictionary.get( (int) indexes.readVarLong() );
+            }
+            return result;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public long id(int row) {
+            return ids[row];
+        }
+
+        /**
+         * Returns the row holding a given entry ID.
+         *
+         * @param id
+         * @return row or <code>-(insertion point) - 1</code> if there is no such row, see {@link Arrays#binarySearch(long[], long)}
+         */
+        public int indexOf(long id) {
+            return Arrays.binarySearch( ids, id );
+        }
+
+        public SyslogMessage toMessage(int row, Host host)
+        {
+            final SyslogMessage msg = new SyslogMessage();
+            msg.id = ids[row];
+            msg.priority = priorities[row];
+            final long millis = timestamps[row];
+            final int nanos = fractions[row] != -1 ? fractions[row] : (int) Math.floorMod( millis, 1000L ) * 1_000_000;
+            msg.setTimestamp( Math.floorDiv( millis, 1000 ), nanos, 0 );
+            msg.appName = appNames[row];
+            msg.procId = procIds[row];
+            msg.msgId = msgIds[row];
+            SDParamsJSON.unmarshal( params[row], msg );
+            msg.message = messages[row];
+            msg.host = host;
+            return msg;
+        }
+    }
+
+    /**
+     * Writes rows to a new archive file.
+     *
+     * Rows need to be added in ascending entry ID order.
+     */
+    public static final class Writer
+    {
+        private final long partitionStart;
+        private final long partitionEnd;
+
+        private final Column ids = new Column( COL_ID );
+        private final Column priorities = new Column( COL_PRIORITY );
+        private final Column timestamps = new Column( COL_TIMESTAMP );
+        private final Column fractions = new Column( COL_FRACTION );
+        private final DictionaryColumn appNames = new DictionaryColumn( COL_APP_NAME );
+        private final DictionaryColumn procIds = new DictionaryColumn( COL_PROC_ID );
+        private final DictionaryColumn msgIds = new DictionaryColumn( COL_MSG_ID );
+        private final Column paramsColumn = new Column( COL_PARAMS );
+        private final Column messages = new Column( COL_MESSAGE );
+
+        private int rowCount;
+        private long minId;
+        private long maxId;
+        private long prevTimestamp;
+
+        public Writer(long partitionStart, long partitionEnd)
+        {
+            this.partitionStart = partitionStart;
+            this.partitionEnd = partitionEnd;
+        }
+
+        /**
+         * Adds a row.
+         *
+         * @param id entry ID, must be greater than the ID of the previous row
+         * @param priority
+         * @param epochMillis
+         * @param fraction nanosecond fraction of the timestamp or -1 if there is none
+         * @param appName
+         * @param procId
+         * @param msgId
+         * @param params JSON parameters, may be <code>null</code>
+         * @param message
+         * @throws IOException
+         */
+        public void add(long id, short priority, long epochMillis, int fraction,
+                        String appName, String procId, String msgId, String params, String message) throws IOException
+        {
+            if ( rowCount == 0 ) {
+                minId = id;
+            } else if ( id <= maxId ) {
+                throw new IllegalArgumentException( "Entry IDs need to be ascending, got " + id + " after " + maxId );
+            }
+            ids.writeSignedVarLong( id - ( rowCount == 0 ? 0 : maxId ) );
+            priorities.writeVarLong( priority & 0xffff );
+            timestamps.writeSignedVarLong( epochMillis - prevTimestamp );
+            fractions.writeVarLong( fraction + 1 );
+            appNames.write( appName );
+            procIds.write( procId );
+            msgIds.write( msgId );
+            paramsColumn.writeString( params );
+            messages.writeString( message );
+            prevTimestamp = epochMillis;
+            maxId = id;
+            rowCount++;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Writes all rows added so far to a file, replacing it atomically.
+         *
+         * @param file
+         * @return header of the written file
+         * @throws IOException
+         */
+        public ArchiveFile write(Path file) throws IOException
+        {
+            final Path tmpFile = file.resolveSibling( file.getFileName() + ".tmp" );
+            try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmpFile ) ) ) )
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeLong( partitionStart );
+                out.writeLong( partitionEnd );
+                out.writeInt( rowCount );
+                out.writeLong( minId );
+                out.writeLong( maxId );
+                final Column[] columns = { ids, priorities, timestamps, fractions, appNames.indexes, appNames.entries,
+                        procIds.indexes, procIds.entries, msgIds.indexes, msgIds.entries, paramsColumn, messages };
+                out.writeInt( columns.length );
+                for ( Column column : columns ) {
+                    column.writeTo( out );
+                }
+            }
+            Files.move( tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            return new ArchiveFile( file, partitionStart, partitionEnd, rowCount, minId, maxId );
+        }
+    }
+
+    private static class Column
+    {
+        public final String name;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DeflaterOutputStream out = new DeflaterOutputStream( buffer, new Deflater( Deflater.BEST_SPEED ), 8192 );
+
+        public Column(String name) {
+            this.name = name;
+        }
+
+        public void writeVarLong(long value) throws IOException
+        {
+            while ( ( value & ~0x7fL ) != 0 )
+            {
+                out.write( (int) ( value & 0x7f ) | 0x80 );
+                value >>>= 7;
+            }
+            out.write( (int) value );
+        }
+
+        public void writeSignedVarLong(long value) throws IOException {
+            writeVarLong( ( value << 1 ) ^ ( value >> 63 ) );
+        }
+
+        public void writeString(String value) throws IOException
+        {
+            if ( value == null ) {
+                writeVarLong( 0 );
+            } else {
+                final byte[] data = value.getBytes( StandardCharsets.UTF_8 );
+                writeVarLong( data.length + 1 );
+                out.write( data );
+            }
+        }
+
+        public void writeTo(DataOutputStream file) throws IOException
+        {
+            out.finish();
+            file.writeUTF( name );
+            file.writeInt( buffer.size() );
+            buffer.writeTo( file );
+        }
+    }
+
+    private static final class DictionaryColumn
+    {
+        public final Column indexes;
+        public final Column entries;
+        private final Map<String,Integer> dictionary = new HashMap<>();
+
+        public DictionaryColumn(String name)
+        {
+            this.indexes = new Column( name );
+            this.entries = new Column( name + DICTIONARY_SUFFIX );
+        }
+
+        public void write(String value) throws IOException
+        {
+            if ( value == null ) {
+                indexes.writeVarLong( 0 );
+                return;
+            }
+            Integer index = dictionary.get( value );
+            if ( index == null )
+            {
+                index = dictionary.size() + 1;
+                dictionary.put( value, index );
+                entries.writeString( value );
+            }
+            indexes.writeVarLong( index );
+        }
+    }
+
+    private static final class Decoder
+    {
+        private final byte[] data;
+        private int position;
+
+        public Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        public boolean hasMore() {
+            return position < data.length;
+        }
+
+        public long readVarLong() throws IOException
+        {
+            long result = 0;
+            for ( int shift = 0 ; shift < 64 ; shift += 7 )
+            {
+                if ( position >= data.length ) {
+                    throw new IOException( "Truncated column data" );
+                }
+                final int b = data[position++];
+                result |= (long) ( b & 0x7f ) << shift;
+                if ( ( b & 0x80 ) == 0 ) {
+                    return result;
+                }
+            }
+            throw new IOException( "Malformed variable-length quantity" );
+        }
+
+        public long readSignedVarLong() throws IOException
+        {
+            final long value = readVarLong();
+            return ( value >>> 1 ) ^ -( value & 1 );
+        }
+
+        public String readString() throws IOException
+        {
+            final int len = (int) readVarLong() - 1;
+            if ( len < 0 ) {
+                return null;
+            }
+            if ( position + len > data.length ) {
+                throw new IOException( "Truncated column data" );
+            }
+            final String result = new String( data, position, len, StandardCharsets.UTF_8 );
+            position += len;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes messages as rows in PostgreSQL's binary COPY format.
+ *
+ * Column values are encoded straight into the {@link RowBatch} buffer, the column layout
+ * matches the one used by {@link SQLLogWriter} (see {@link PostgreSQLStorage}).
+ *
+ * @see <a href="https://www.postgresql.org/docs/current/sql-copy.html">Binary format</a>
+ */
+public class BinaryLogWriter implements ILogStorage
+{
+    // 2000-01-01T00:00:00Z, the epoch used by PostgreSQL's binary timestamp representation
+    private static final long PG_EPOCH_SECONDS = 946684800L;
+
+    private static final short FIELD_COUNT = 9;
+    private static final int NULL_LENGTH = -1;
+    private static final byte JSONB_VERSION = 1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ISQLLogStorage storage;
+
+    // row assembly is stateful, each thread gets its own writer instance
+    private final ThreadLocal<BinaryLogWriter> writerPerThread;
+
+    private final RowBatch batch = new RowBatch();
+    private final SyslogMessage[] singleMessage = new SyslogMessage[1];
+
+    private ByteBuffer buffer;
+
+    public BinaryLogWriter(ISQLLogStorage storage)
+    {
+        this.storage = storage;
+        this.writerPerThread = ThreadLocal.withInitial( () -> new BinaryLogWriter( this ) );
+    }
+
+    private BinaryLogWriter(BinaryLogWriter parent)
+    {
+        this.storage = parent.storage;
+        this.writerPerThread = null;
+    }
+
+    @Override
+    public void store(SyslogMessage message)
+    {
+        final BinaryLogWriter writer = writerPerThread.get();
+        writer.singleMessage[0] = message;
+        try
+        {
+            writer.write( writer.singleMessage, 1 );
+        }
+        finally
+        {
+            writer.singleMessage[0] = null;
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage[] messages, int count)
+    {
+        writerPerThread.get().write( messages, count );
+    }
+
+    private void write(SyslogMessage[] messages, int count)
+    {
+        try
+        {
+            for ( int i = 0 ; i < count ; i++ ) {
+                write( messages[i] );
+            }
+            storage.store( batch );
+        }
+        finally
+        {
+            batch.clear();
+            buffer = null;
+        }
+    }
+
+    private void write(SyslogMessage message)
+    {
+        ensureRemaining( 2 + 4+2 + 4+8 + 4+4 + 4+8 );
+        buffer.putShort( FIELD_COUNT );
+
+        // priority smallint
+        buffer.putInt( 2 ).putShort( message.priority );
+
+        // log_ts timestamptz, microseconds since 2000-01-01 UTC (sub-second precision goes into log_ts_fraction)
+        buffer.putInt( 8 ).putLong( ( message.getEpochSecond() - PG_EPOCH_SECONDS ) * 1_000_000L );
+
+        // log_ts_fraction integer
+        buffer.putInt( 4 ).putInt( message.getNanos() );
+
+        // host_id bigint
+        buffer.putInt( 8 ).putLong( message.host.id );
+
+        writeText( message.appName );
+        writeText( message.procId );
+        writeText( message.msgId );
+        writeParams( message );
+        writeNullableText( message.message );
+
+        batch.endBinaryRow( message.host, message.getEpochSecond(), message );
+    }
+
+    private void writeText(String value)
+    {
+        if ( value == null || value.length() == 0 ) {
+            writeNull();
+        } else {
+            writeNullableText( value );
+        }
+    }
+
+    private void writeNullableText(String value)
+    {
+        if ( value == null ) {
+            writeNull();
+            return;
+        }
+        final int lengthOffset = beginField( value.length()*3 );
+        writeUTF8( value );
+        endField( lengthOffset );
+    }
+
+    private void writeNull()
+    {
+        ensureRemaining( 4 );
+        buffer.putInt( NULL_LENGTH );
+    }
+
+    private void writeParams(SyslogMessage message)
+    {
+        final int count = message.getParamCount();
+        if ( count == 0 ) {
+            writeNull();
+            return;
+        }
+        final int lengthOffset = beginField( 32 );
+        buffer.put( JSONB_VERSION );
+
+        writeASCII( "{\"data\":[" );
+        for ( int i = count-1 ; i >= 0 ; i-- )
+        {
+            final SDParam value = message.params[i];
+            writeASCII( "{\"id\":" );
+            writeJSON( value.id );
+            writeASCII( ",\"params\":" );
+            if ( value.paramCount() > 0 )
+            {
+                writeASCII( "{" );
+                for ( int j = value.paramCount()-1 ; j >= 0 ; j-- )
+                {
+                    writeJSON( value.paramNames[j] );
+                    writeASCII( ":" );
+                    writeJSON( value.paramValues[j] );
+                    if ( j != 0 ) {
+                        writeASCII( "," );
+                    }
+                }
+                writeASCII( "}" );
+            } else {
+                writeASCII( "null" );
+            }
+            writeASCII( "}" );
+            if ( i != 0 ) {
+                writeASCII( "," );
+            }
+        }
+        writeASCII( "]}" );
+        endField( lengthOffset );
+    }
+
+    /**
+     * Reserves space for the length of a field.
+     *
+     * @param expectedLength expected number of bytes the field value will need
+     * @return offset of the length prefix, to be passed to {@link #endField(int)}
+     */
+    private int beginField(int expectedLength)
+    {
+        ensureRemaining( 4 + expectedLength );
+        final int offset = buffer.position();
+        buffer.putInt( 0 );
+        return offset;
+    }
+
+    private void endField(int lengthOffset)
+    {
+        buffer.putInt( lengthOffset, buffer.position() - lengthOffset - 4 );
+    }
+
+    private void writeASCII(String value)
+    {
+        ensureRemaining( value.length() );
+        for ( int i = 0, len = value.length() ; i < len ; i++ ) {
+            buffer.put( (byte) value.charAt( i ) );
+        }
+    }
+
+    private void writeJSON(String value)
+    {
+        if ( value == null ) {
+            writeASCII( "null" );
+            return;
+        }
+        // worst case: every character needs a \\uXXXX escape
+        ensureRemaining( 2 + value.length()*6 );
+        buffer.put( (byte) '"' );
+        for ( int i = 0, len = value.length() ; i < len ; i++ )
+        {
+            final char c = value.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                buffer.put( (byte) '\\' ).put( (byte) c );
+            }
+            else if ( c < 32 )
+            {
+                buffer.put( (byte) '\\' ).put( (byte) 'u' ).put( (byte) '0' ).put( (byte) '0' );
+                buffer.put( (byte) HEX[ c >>> 4 ] ).put( (byte) HEX[ c & 0x0f ] );
+            }
+            else {
+                i = putUTF8( value, i, c );
+            }
+        }
+        buffer.put( (byte) '"' );
+    }
+
+    private void writeUTF8(String value)
+    {
+        for ( int i = 0, len = value.length() ; i < len ; i++ ) {
+            i = putUTF8( value, i, value.charAt( i ) );
+        }
+    }
+
+    /**
+     * Writes a character as UTF-8, caller needs to make sure at least 3 bytes per character are available.
+     *
+     * @param value
+     * @param index index of <code>c</code> in <code>value</code>
+     * @param c
+     * @return index of the last character consumed (surrogate pairs consume two characters)
+     */
+    private int putUTF8(String value, int index, char c)
+    {
+        if ( c < 0x80 ) {
+            buffer.put( (byte) c );
+        }
+        else if ( c < 0x800 )
+        {
+            buffer.put( (byte) (0xc0 | (c >> 6)) );
+            buffer.put( (byte) (0x80 | (c & 0x3f)) );
+        }
+        else if ( Character.isSurrogate( c ) )
+        {
+            if ( Character.isHighSurrogate( c ) && index+1 < value.length() && Character.isLowSurrogate( value.charAt( index+1 ) ) )
+            {
+                final int cp = Character.toCodePoint( c, value.charAt( index+1 ) );
+                buffer.put( (byte) (0xf0 | (cp >> 18)) );
+                buffer.put( (byte) (0x80 | ((cp >> 12) & 0x3f)) );
+                buffer.put( (byte) (0x80 | ((cp >> 6) & 0x3f)) );
+                buffer.put( (byte) (0x80 | (cp & 0x3f)) );
+                return index+1;
+            }
+            buffer.put( (byte) '?' ); // malformed surrogate pair
+        }
+        else
+        {
+            buffer.put( (byte) (0xe0 | (c >> 12)) );
+            buffer.put( (byte) (0x80 | ((c >> 6) & 0x3f)) );
+            buffer.put( (byte) (0x80 | (c & 0x3f)) );
+        }
+        return index;
+    }
+
+    private void ensureRemaining(int bytes)
+    {
+        if ( buffer == null || buffer.remaining() < bytes ) {
+            buffer = batch.binaryData( bytes );
+        }
+    }
+}
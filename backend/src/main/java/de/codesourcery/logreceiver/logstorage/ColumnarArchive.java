@@ -0,0 +1,332 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.parsing.JDBCHelper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Read access to partitions that got moved out of the database into {@link ArchiveFile}s.
+ *
+ * Files are stored as <code>&lt;archive directory&gt;/&lt;host ID&gt;/&lt;partition table&gt;_&lt;timestamp&gt;.col</code>
+ * and written by the {@link PartitionPruner}. Only file headers are read to decide which files
+ * need to be looked at, the decoded rows of the most recently used files are cached.
+ *
+ * The list of a host's files is cached as well, whoever adds or deletes archive files needs to
+ * call {@link #invalidate(Path)}.
+ */
+public class ColumnarArchive implements IMessageDAO
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( ColumnarArchive.class.getName() );
+
+    static final String FILE_SUFFIX = ".col";
+
+    private static final Comparator<SyslogMessage> BY_ID = Comparator.comparingLong( m -> m.id );
+
+    private final Path directory;
+
+    // number of changes to the files in a host directory, shared by all instances
+    private static final Map<Path,Long> GENERATIONS = new ConcurrentHashMap<>();
+
+    private final Object LOCK = new Object();
+
+    // headers of all files of a host directory, ordered by ascending min. entry ID
+    // @GuardedBy( LOCK )
+    private final Map<Path,HostFiles> filesByHost = new HashMap<>();
+
+    // @GuardedBy( LOCK )
+    private final Map<Path,ArchiveFile.Rows> cache;
+
+    private static final class HostFiles
+    {
+        public final long generation;
+        public final List<ArchiveFile> files;
+
+        private HostFiles(long generation, List<ArchiveFile> files)
+        {
+            this.generation = generation;
+            this.files = files;
+        }
+    }
+
+    public ColumnarArchive(Configuration config)
+    {
+        this.directory = config.archiveDirectory == null ? null : Paths.get( config.archiveDirectory );
+        final int cacheSize = config.archiveCacheSize;
+        this.cache = new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path,ArchiveFile.Rows> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    static Path hostDirectory(Path archiveDirectory, Host host) {
+        return archiveDirectory.resolve( Long.toString( host.id ) );
+    }
+
+    /**
+     * Makes all instances re-read the list of files in a host directory.
+     *
+     * @param hostDirectory
+     */
+    static void invalidate(Path hostDirectory) {
+        GENERATIONS.merge( hostDirectory, 1L, Long::sum );
+    }
+
+    static List<Path> list(Path hostDirectory) throws IOException
+    {
+        if ( ! Files.isDirectory( hostDirectory ) ) {
+            return Collections.emptyList();
+        }
+        try ( Stream<Path> files = Files.list( hostDirectory ) ) {
+            return files.filter( p -> p.getFileName().toString().endsWith( FILE_SUFFIX ) ).collect( Collectors.toList() );
+        }
+    }
+
+    /**
+     * Returns the headers of all archive files of a host, ordered by ascending min. entry ID.
+     */
+    private List<ArchiveFile> files(Host host)
+    {
+        if ( directory == null ) {
+            return Collections.emptyList();
+        }
+        final Path hostDirectory = hostDirectory( directory, host );
+        // read before listing so that changes made while listing invalidate the result
+        final long generation = GENERATIONS.getOrDefault( hostDirectory, 0L );
+        final Map<Path,ArchiveFile> known = new HashMap<>();
+        synchronized( LOCK )
+        {
+            final HostFiles cached = filesByHost.get( hostDirectory );
+            if ( cached != null )
+            {
+                if ( cached.generation == generation ) {
+                    return cached.files;
+                }
+                cached.files.forEach( f -> known.put( f.file, f ) );
+            }
+        }
+        final List<Path> paths;
+        try {
+            paths = list( hostDirectory );
+        } catch (IOException e) {
+            throw new UncheckedIOException( e );
+        }
+        final List<ArchiveFile> result = new ArrayList<>();
+        for ( Path path : paths )
+        {
+            ArchiveFile file = known.get( path );
+            if ( file == null )
+            {
+                try {
+                    file = ArchiveFile.open( path );
+                } catch (IOException e) {
+                    LOG.error( "files(): Skipping unreadable archive file " + path, e );
+                    continue;
+                }
+            }
+            if ( file.rowCount > 0 ) {
+                result.add( file );
+            }
+        }
+        result.sort( Comparator.comparingLong( f -> f.minId ) );
+        final Set<Path> existing = new HashSet<>( paths );
+        synchronized( LOCK )
+        {
+            filesByHost.put( hostDirectory, new HostFiles( generation, Collections.unmodifiableList( result ) ) );
+            cache.keySet().removeIf( p -> p.getParent().equals( hostDirectory ) && ! existing.contains( p ) );
+        }
+        return result;
+    }
+
+    private ArchiveFile.Rows rows(ArchiveFile file)
+    {
+        synchronized( LOCK )
+        {
+            final ArchiveFile.Rows rows = cache.get( file.file );
+            if ( rows != null ) {
+                return rows;
+            }
+        }
+        final ArchiveFile.Rows rows;
+        try {
+            rows = file.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException( "Failed to read " + file.file, e );
+        }
+        synchronized( LOCK ) {
+            cache.put( file.file, rows );
+        }
+        return rows;
+    }
+
+    @Override
+    public Long getLatestMessageId(Host host)
+    {
+        return files( host ).stream().map( f -> f.maxId ).max( Long::compare ).orElse( null );
+    }
+
+    @Override
+    public void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids)
+    {
+        if ( ids.isEmpty() ) {
+            return;
+        }
+        final long min = Collections.min( ids );
+        final long max = Collections.max( ids );
+        final List<SyslogMessage> result = new ArrayList<>();
+        for ( ArchiveFile file : files( host ) )
+        {
+            if ( file.overlaps( min, max ) )
+            {
+                final ArchiveFile.Rows rows = rows( file );
+                for ( long id : ids )
+                {
+                    final int row = rows.indexOf( id );
+                    if ( row >= 0 ) {
+                        result.add( rows.toMessage( row, host ) );
+                    }
+                }
+            }
+        }
+        result.sort( BY_ID );
+        result.forEach( consumer );
+    }
+
+    @Override
+    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    {
+        return getMessages( host, callback, IAPI.PagingDirection.BACKWARD_IN_TIME, Long.MAX_VALUE, maxCount );
+    }
+
+    @Override
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
+    {
+        final long after = latestId == null ? Long.MIN_VALUE : latestId;
+        Long lastId = null;
+        final List<SyslogMessage> batch = new ArrayList<>();
+        for ( ArchiveFile file : files( host ) )
+        {
+            if ( file.maxId <= after ) {
+                continue;
+            }
+            final ArchiveFile.Rows rows = rows( file );
+            final int start = rows.indexOf( after );
+            for ( int row = start >= 0 ? start + 1 : -start - 1 ; row < rows.size() ; row++ )
+            {
+                final SyslogMessage msg = rows.toMessage( row, host );
+                lastId = lastId == null ? msg.id : Math.max( lastId, msg.id );
+                batch.add( msg );
+                if ( batch.size() >= JDBCHelper.BATCH_SIZE )
+                {
+                    if ( cancel.getAsBoolean() ) {
+                        return lastId;
+                    }
+                    filters.forEach( x -> x.visit( batch ) );
+                    batch.clear();
+                }
+            }
+        }
+        if ( ! batch.isEmpty() && ! cancel.getAsBoolean() ) {
+            filters.forEach( x -> x.visit( batch ) );
+        }
+        return lastId;
+    }
+
+    @Override
+    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                           long refLogEntryId, int maxCount)
+    {
+        final Predicate<SyslogMessage> predicate = callback.getPredicate();
+        final List<ArchiveFile> files = new ArrayList<>( files( host ) );
+        final boolean forward;
+        switch( direction )
+        {
+            case FORWARD_IN_TIME:
+                forward = true;
+                break;
+            case BACKWARD_IN_TIME:
+                forward = false;
+                Collections.reverse( files );
+                break;
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + direction );
+        }
+        final Comparator<SyslogMessage> order = forward ? BY_ID : BY_ID.reversed();
+
+        final List<SyslogMessage> result = new ArrayList<>();
+        for ( ArchiveFile file : files )
+        {
+            if ( forward ? file.maxId <= refLogEntryId : file.minId >= refLogEntryId ) {
+                continue;
+            }
+            // files are visited in paging order, stop once no remaining file can hold a better candidate
+            if ( result.size() >= maxCount )
+            {
+                final long worst = result.get( maxCount - 1 ).id;
+                if ( forward ? file.minId > worst : file.maxId < worst ) {
+                    break;
+                }
+            }
+            final ArchiveFile.Rows rows = rows( file );
+            final int idx = rows.indexOf( refLogEntryId );
+            int found = 0;
+            if ( forward )
+            {
+                for ( int row = idx >= 0 ? idx + 1 : -idx - 1 ; row < rows.size() && found < maxCount ; row++ ) {
+                    found += addIfMatches( rows.toMessage( row, host ), predicate, result );
+                }
+            }
+            else
+            {
+                for ( int row = idx >= 0 ? idx - 1 : -idx - 2 ; row >= 0 && found < maxCount ; row-- ) {
+                    found += addIfMatches( rows.toMessage( row, host ), predicate, result );
+                }
+            }
+            result.sort( order );
+            if ( result.size() > maxCount ) {
+                result.subList( maxCount, result.size() ).clear();
+            }
+        }
+        return result;
+    }
+
+    private static int addIfMatches(SyslogMessage msg, Predicate<SyslogMessage> predicate, List<SyslogMessage> result)
+    {
+        if ( predicate.test( msg ) )
+        {
+            result.add( msg );
+            return 1;
+        }
+        return 0;
+    }
+}
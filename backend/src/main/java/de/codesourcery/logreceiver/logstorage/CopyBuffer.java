@@ -0,0 +1,473 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Accumulates rows until they get written to the database using <code>COPY ... FROM STDIN</code>.
+ *
+ * Not thread-safe.
+ */
+abstract class CopyBuffer
+{
+    private int rowCount;
+
+    // copies of the messages rows were created from (by row index), NULL entries for rows without a message
+    private SyslogMessage[] messages = new SyslogMessage[0];
+    private int messageCount;
+
+    public static CopyBuffer create(CopyFormat format)
+    {
+        switch( format )
+        {
+            case TEXT:
+                return new Text();
+            case BINARY:
+                return new Binary();
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + format );
+        }
+    }
+
+    /**
+     * Append a range of rows from a batch.
+     *
+     * @param batch
+     * @param start index of first row (inclusive)
+     * @param end index of last row (exclusive)
+     */
+    public abstract void append(RowBatch batch, int start, int end);
+
+    /**
+     * Returns the amount of buffered data.
+     *
+     * @return number of characters (text format) or bytes (binary format)
+     */
+    public abstract int size();
+
+    public final boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of buffered rows.
+     *
+     * @return
+     */
+    public final int rowCount() {
+        return rowCount;
+    }
+
+    protected final void rowsAdded(int count) {
+        rowCount += count;
+    }
+
+    public final void clear()
+    {
+        Arrays.fill( messages, 0, Math.min( rowCount, messages.length ), null );
+        messageCount = 0;
+        rowCount = 0;
+        clearData();
+    }
+
+    protected abstract void clearData();
+
+    /**
+     * Keeps copies of the messages the rows most recently appended from a batch were created from,
+     * so that they can be passed to filters once the rows are in the database.
+     *
+     * @param batch batch the rows have just been appended from using {@link #append(RowBatch, int, int)}
+     * @param start index of first row (inclusive)
+     * @param end index of last row (exclusive)
+     * @see #message(int)
+     */
+    public final void keepMessages(RowBatch batch, int start, int end)
+    {
+        final int firstRow = rowCount - ( end - start );
+        if ( messages.length < rowCount ) {
+            messages = Arrays.copyOf( messages, Math.max( rowCount, messages.length * 2 ) );
+        }
+        for ( int i = start ; i < end ; i++ )
+        {
+            final SyslogMessage message = batch.message( i );
+            if ( message != null )
+            {
+                messages[ firstRow + i - start ] = message.copy();
+                messageCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the message a row was created from.
+     *
+     * @param row row index
+     * @return message or <code>null</code> if it has not been kept, see {@link #keepMessages(RowBatch, int, int)}
+     */
+    public final SyslogMessage message(int row) {
+        return row < messages.length ? messages[row] : null;
+    }
+
+    /**
+     * Returns the number of rows whose messages have been kept.
+     *
+     * @return
+     */
+    public final int messageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Append all rows of another buffer using the same format.
+     *
+     * @param other
+     */
+    public abstract void append(CopyBuffer other);
+
+    /**
+     * Append all rows of another buffer using the same format, prepending an <code>entry_id</code> column to each row.
+     *
+     * Messages kept by the other buffer are not carried over.
+     *
+     * @param other
+     * @param entryIds entry IDs by row index, needs to hold at least {@link #rowCount()} elements of the other buffer
+     */
+    public abstract void appendWithEntryIds(CopyBuffer other, long[] entryIds);
+
+    /**
+     * Returns the options that need to be appended to the <code>COPY ... FROM STDIN</code> command.
+     *
+     * @return
+     */
+    public abstract String getCopyOptions();
+
+    /**
+     * Write the buffered rows to the database.
+     *
+     * @param copyManager
+     * @param sql <code>COPY ... FROM STDIN</code> command
+     * @return number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public abstract long copyIn(CopyManager copyManager, String sql) throws SQLException, IOException;
+
+    /**
+     * Writes whatever needs to be sent before the first row of a COPY command.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public void writeHeader(CopyIn copyIn) throws SQLException {
+    }
+
+    /**
+     * Streams the buffered rows to a COPY command that is already in progress.
+     *
+     * More rows may get written to the same command afterwards.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public abstract void writeRows(CopyIn copyIn) throws SQLException;
+
+    /**
+     * Writes whatever needs to be sent after the last row of a COPY command.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public void writeTrailer(CopyIn copyIn) throws SQLException {
+    }
+
+    /**
+     * Writes the buffered rows to a stream, in the same format as {@link #writeRows(CopyIn)}.
+     *
+     * @param out
+     * @throws IOException
+     * @see #writeHeader(CopyFormat, OutputStream)
+     * @see #writeTrailer(CopyFormat, OutputStream)
+     */
+    public abstract void writeRows(OutputStream out) throws IOException;
+
+    /**
+     * Writes whatever needs to precede the first row of a COPY data stream written to a file.
+     *
+     * @param format
+     * @param out
+     * @throws IOException
+     */
+    public static void writeHeader(CopyFormat format, OutputStream out) throws IOException
+    {
+        if ( format == CopyFormat.BINARY ) {
+            out.write( Binary.HEADER );
+        }
+    }
+
+    /**
+     * Writes whatever needs to follow the last row of a COPY data stream written to a file.
+     *
+     * @param format
+     * @param out
+     * @throws IOException
+     */
+    public static void writeTrailer(CopyFormat format, OutputStream out) throws IOException
+    {
+        if ( format == CopyFormat.BINARY ) {
+            out.write( Binary.TRAILER );
+        }
+    }
+
+    private static final class Text extends CopyBuffer
+    {
+        private final StringBuilder buffer = new StringBuilder();
+
+        private void append(String row)
+        {
+            if ( buffer.length() > 0 )
+            {
+                buffer.append( SQLLogWriter.ROW_DELIMITER );
+            }
+            buffer.append( row );
+            rowsAdded( 1 );
+        }
+
+        @Override
+        public void append(CopyBuffer other)
+        {
+            final Text text = (Text) other;
+            if ( text.buffer.length() > 0 )
+            {
+                if ( buffer.length() > 0 ) {
+                    buffer.append( SQLLogWriter.ROW_DELIMITER );
+                }
+                buffer.append( text.buffer );
+                rowsAdded( text.rowCount() );
+            }
+        }
+
+        @Override
+        public void appendWithEntryIds(CopyBuffer other, long[] entryIds)
+        {
+            final StringBuilder rows = ((Text) other).buffer;
+            final int len = rows.length();
+            int row = 0;
+            for ( int start = 0 ; start < len ; row++ )
+            {
+                int end = start;
+                while ( end < len && rows.charAt( end ) != SQLLogWriter.ROW_DELIMITER ) {
+                    end++;
+                }
+                if ( buffer.length() > 0 ) {
+                    buffer.append( SQLLogWriter.ROW_DELIMITER );
+                }
+                buffer.append( entryIds[row] ).append( SQLLogWriter.COL_DELIMITER ).append( rows, start, end );
+                start = end + 1;
+            }
+            rowsAdded( row );
+        }
+
+        @Override
+        public void append(RowBatch batch, int start, int end)
+        {
+            if ( batch.isBinary() ) {
+                throw new IllegalArgumentException( "Binary rows can not be written using text COPY format" );
+            }
+            for ( int i = start ; i < end ; i++ ) {
+                append( batch.row( i ) );
+            }
+        }
+
+        @Override
+        public int size() {
+            return buffer.length();
+        }
+
+        @Override
+        protected void clearData() {
+            buffer.setLength( 0 );
+        }
+
+        @Override
+        public String getCopyOptions() {
+            return CopyFormat.TEXT.copyOptions;
+        }
+
+        @Override
+        public long copyIn(CopyManager copyManager, String sql) throws SQLException, IOException
+        {
+            final Reader reader = new InputStreamReader( new ByteArrayInputStream( buffer.toString().getBytes() ) );
+            return copyManager.copyIn( sql, reader );
+        }
+
+        @Override
+        public void writeRows(CopyIn copyIn) throws SQLException
+        {
+            if ( buffer.length() > 0 )
+            {
+                // terminate the last row as well, more rows may follow
+                final byte[] data = ( buffer.toString() + SQLLogWriter.ROW_DELIMITER ).getBytes( StandardCharsets.UTF_8 );
+                copyIn.writeToCopy( data, 0, data.length );
+            }
+        }
+
+        @Override
+        public void writeRows(OutputStream out) throws IOException
+        {
+            if ( buffer.length() > 0 ) {
+                out.write( ( buffer.toString() + SQLLogWriter.ROW_DELIMITER ).getBytes( StandardCharsets.UTF_8 ) );
+            }
+        }
+
+        @Override
+        public String toString() {
+            return buffer.toString();
+        }
+    }
+
+    private static final class Binary extends CopyBuffer
+    {
+        // signature, flags field, header extension length
+        private static final byte[] HEADER = {
+            'P','G','C','O','P','Y','\n',(byte) 0xff,'\r','\n',0,
+            0,0,0,0,
+            0,0,0,0
+        };
+
+        // field count of -1
+        private static final byte[] TRAILER = { (byte) 0xff, (byte) 0xff };
+
+        // heap buffer, CopyIn#writeToCopy() only accepts byte arrays
+        private ByteBuffer buffer = ByteBuffer.allocate( 64*1024 );
+
+        @Override
+        public void append(RowBatch batch, int start, int end)
+        {
+            if ( ! batch.isBinary() ) {
+                throw new IllegalArgumentException( "Text rows can not be written using binary COPY format" );
+            }
+            ensureRemaining( batch.binaryLength( start, end ) );
+            batch.copyBinaryRows( start, end, buffer );
+            rowsAdded( end - start );
+        }
+
+        @Override
+        public void append(CopyBuffer other)
+        {
+            final Binary binary = (Binary) other;
+            ensureRemaining( binary.buffer.position() );
+            buffer.put( binary.buffer.array(), binary.buffer.arrayOffset(), binary.buffer.position() );
+            rowsAdded( binary.rowCount() );
+        }
+
+        @Override
+        public void appendWithEntryIds(CopyBuffer other, long[] entryIds)
+        {
+            final ByteBuffer rows = ((Binary) other).buffer;
+            final int rowCount = other.rowCount();
+            // each row grows by the bigint column (length + value)
+            ensureRemaining( rows.position() + rowCount * ( 4 + 8 ) );
+            int offset = 0;
+            for ( int row = 0 ; row < rowCount ; row++ )
+            {
+                final short fieldCount = rows.getShort( offset );
+                buffer.putShort( (short) ( fieldCount + 1 ) );
+                buffer.putInt( 8 ).putLong( entryIds[row] );
+
+                final int fieldsStart = offset + 2;
+                offset = fieldsStart;
+                for ( int i = 0 ; i < fieldCount ; i++ )
+                {
+                    final int fieldLength = rows.getInt( offset );
+                    offset += 4 + Math.max( 0, fieldLength ); // -1 = NULL
+                }
+                buffer.put( rows.array(), rows.arrayOffset() + fieldsStart, offset - fieldsStart );
+            }
+            rowsAdded( rowCount );
+        }
+
+        private void ensureRemaining(int len)
+        {
+            if ( buffer.remaining() < len )
+            {
+                final ByteBuffer tmp = ByteBuffer.allocate( Math.max( buffer.position() + len, buffer.capacity() * 2 ) );
+                buffer.flip();
+                tmp.put( buffer );
+                buffer = tmp;
+            }
+        }
+
+        @Override
+        public int size() {
+            return buffer.position();
+        }
+
+        @Override
+        protected void clearData() {
+            buffer.clear();
+        }
+
+        @Override
+        public String getCopyOptions() {
+            return CopyFormat.BINARY.copyOptions;
+        }
+
+        @Override
+        public long copyIn(CopyManager copyManager, String sql) throws SQLException
+        {
+            final CopyIn copyIn = copyManager.copyIn( sql );
+            try
+            {
+                writeHeader( copyIn );
+                writeRows( copyIn );
+                writeTrailer( copyIn );
+                return copyIn.endCopy();
+            }
+            finally
+            {
+                if ( copyIn.isActive() ) {
+                    copyIn.cancelCopy();
+                }
+            }
+        }
+
+        @Override
+        public void writeHeader(CopyIn copyIn) throws SQLException {
+            copyIn.writeToCopy( HEADER, 0, HEADER.length );
+        }
+
+        @Override
+        public void writeRows(CopyIn copyIn) throws SQLException
+        {
+            if ( buffer.position() > 0 ) {
+                copyIn.writeToCopy( buffer.array(), buffer.arrayOffset(), buffer.position() );
+            }
+        }
+
+        @Override
+        public void writeRows(OutputStream out) throws IOException {
+            out.write( buffer.array(), buffer.arrayOffset(), buffer.position() );
+        }
+
+        @Override
+        public void writeTrailer(CopyIn copyIn) throws SQLException {
+            copyIn.writeToCopy( TRAILER, 0, TRAILER.length );
+        }
+
+        @Override
+        public String toString() {
+            return "<"+buffer.position()+" bytes of binary COPY data>";
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package de.codesourcery.logreceiver.logstorage;
+
+/**
+ * Data format used when bulk-loading rows using PostgreSQL's <code>COPY ... FROM STDIN</code>.
+ */
+public enum CopyFormat
+{
+    /**
+     * Rows are written as '|'-delimited text by {@link SQLLogWriter}.
+     */
+    TEXT("(DELIMITER '|')"),
+    /**
+     * Rows are written in PostgreSQL's binary COPY format by {@link BinaryLogWriter}.
+     */
+    BINARY("(FORMAT binary)");
+
+    /**
+     * Options that need to be appended to the <code>COPY ... FROM STDIN</code> command.
+     */
+    public final String copyOptions;
+
+    CopyFormat(String copyOptions) {
+        this.copyOptions = copyOptions;
+    }
+}
@@ -0,0 +1,358 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+
+/**
+ * A <code>COPY ... FROM STDIN</code> command that is kept open across flushes.
+ *
+ * Rows get streamed to the database as soon as they're written but only become visible
+ * when the session gets committed (= the COPY command is ended and its transaction committed).
+ * All rows written since the last commit are also kept in memory so that they can be replayed
+ * after the connection failed and the session had to be re-opened.
+ *
+ * If committing fails, the server may still have committed the transaction (e.g. when the connection
+ * dropped after the commit went through). Rows then only get replayed once the transaction's status
+ * shows that it did not commit, replaying them blindly would store them twice.
+ *
+ * Not thread-safe.
+ */
+final class CopySession
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( CopySession.class.getName() );
+
+    private static final long NO_TRANSACTION = -1;
+
+    // how long to wait for a transaction whose commit failed to be no longer in progress
+    private static final Duration RESOLVE_TIMEOUT = Duration.ofSeconds( 10 );
+
+    private final DataSource ds;
+    private String sql;
+
+    // rows written since the last commit
+    private final CopyBuffer uncommitted;
+
+    private Connection connection;
+    private CopyIn copyIn;
+    private long lastCommitTimestamp = System.currentTimeMillis();
+
+    // ID of the transaction the current COPY command runs in
+    private long transactionId = NO_TRANSACTION;
+
+    // transaction whose commit failed without us knowing whether it went through
+    private long ambiguousTransactionId = NO_TRANSACTION;
+
+    /**
+     * Create instance.
+     *
+     * @param ds
+     * @param sql <code>COPY ... FROM STDIN</code> command
+     * @param format
+     */
+    public CopySession(DataSource ds, String sql, CopyFormat format)
+    {
+        this.ds = ds;
+        this.sql = sql;
+        this.uncommitted = CopyBuffer.create( format );
+    }
+
+    /**
+     * Stream rows to the database, re-opening the session once if writing fails.
+     *
+     * @param buffer
+     * @throws SQLException
+     */
+    public void write(CopyBuffer buffer) throws SQLException
+    {
+        try
+        {
+            buffer.writeRows( copyIn() );
+        }
+        catch(SQLException e)
+        {
+            LOG.warn("write(): Streaming COPY failed, re-opening session and replaying "+uncommitted.rowCount()+" rows",e);
+            abort();
+            try
+            {
+                buffer.writeRows( copyIn() );
+            }
+            catch(SQLException e2)
+            {
+                abort();
+                throw e2;
+            }
+        }
+        uncommitted.append( buffer );
+    }
+
+    /**
+     * Changes the COPY command used for rows written from now on.
+     *
+     * All rows of a COPY command need to have the same columns, so rows written with the
+     * previous command get committed first.
+     *
+     * @param sql
+     * @return number of rows committed
+     * @throws SQLException
+     */
+    public long setCommand(String sql) throws SQLException
+    {
+        if ( this.sql.equals( sql ) ) {
+            return 0;
+        }
+        final long rows = commit();
+        if ( copyIn != null ) {
+            abort();
+        }
+        this.sql = sql;
+        return rows;
+    }
+
+    public String getCommand() {
+        return sql;
+    }
+
+    /**
+     * Check whether a commit boundary has been reached.
+     *
+     * @param maxRows
+     * @param maxDelay
+     * @return
+     */
+    public boolean isCommitDue(int maxRows, Duration maxDelay)
+    {
+        if ( uncommitted.isEmpty() ) {
+            return false;
+        }
+        return uncommitted.rowCount() >= maxRows || ( System.currentTimeMillis() - lastCommitTimestamp ) >= maxDelay.toMillis();
+    }
+
+    /**
+     * Ends the current COPY command, making all rows written so far visible.
+     *
+     * @return number of rows committed
+     * @throws SQLException
+     */
+    public long commit() throws SQLException
+    {
+        long rows = 0;
+        if ( ! uncommitted.isEmpty() )
+        {
+            try
+            {
+                rows = endCopy();
+            }
+            catch(SQLException e)
+            {
+                if ( ambiguousTransactionId != NO_TRANSACTION && resolveAmbiguousCommit() )
+                {
+                    LOG.warn("commit(): Commit failed but the transaction went through, "+uncommitted.rowCount()+" rows committed",e);
+                    rows = uncommitted.rowCount();
+                }
+                else
+                {
+                    LOG.warn("commit(): Commit failed, re-opening session and replaying "+uncommitted.rowCount()+" rows",e);
+                    rows = endCopy();
+                }
+            }
+            uncommitted.clear();
+        }
+        lastCommitTimestamp = System.currentTimeMillis();
+        return rows;
+    }
+
+    /**
+     * Commit and release the database connection.
+     *
+     * @return number of rows committed
+     * @throws SQLException
+     */
+    public long close() throws SQLException
+    {
+        try
+        {
+            return commit();
+        }
+        finally
+        {
+            abort();
+        }
+    }
+
+    private long endCopy() throws SQLException
+    {
+        final CopyIn copy = copyIn();
+        final long rows;
+        try
+        {
+            uncommitted.writeTrailer( copy );
+            rows = copy.endCopy();
+        }
+        catch(SQLException e)
+        {
+            // the transaction is still open, so nothing got committed
+            abort();
+            throw e;
+        }
+        finally
+        {
+            copyIn = null;
+        }
+        try
+        {
+            connection.commit();
+        }
+        catch(SQLException e)
+        {
+            ambiguousTransactionId = transactionId;
+            abort();
+            throw e;
+        }
+        transactionId = NO_TRANSACTION;
+        return rows;
+    }
+
+    /**
+     * Looks up whether the transaction whose commit failed actually got committed.
+     *
+     * @return <code>true</code> if it got committed, <code>false</code> if it got rolled back
+     * @throws SQLException if the outcome is still unknown, uncommitted rows are kept but must not be replayed yet
+     */
+    private boolean resolveAmbiguousCommit() throws SQLException
+    {
+        final long deadline = System.currentTimeMillis() + RESOLVE_TIMEOUT.toMillis();
+        try ( Connection con = ds.getConnection(); PreparedStatement stmt = con.prepareStatement( "SELECT txid_status(?)" ) )
+        {
+            stmt.setLong( 1, ambiguousTransactionId );
+            while ( true )
+            {
+                final String status;
+                try ( ResultSet rs = stmt.executeQuery() )
+                {
+                    rs.next();
+                    status = rs.getString( 1 );
+                }
+                if ( "committed".equals( status ) || "aborted".equals( status ) )
+                {
+                    LOG.info("resolveAmbiguousCommit(): Transaction "+ambiguousTransactionId+" "+status);
+                    ambiguousTransactionId = NO_TRANSACTION;
+                    return "committed".equals( status );
+                }
+                if ( status == null || System.currentTimeMillis() >= deadline ) {
+                    throw new SQLException( "Outcome of transaction "+ambiguousTransactionId+" with "+uncommitted.rowCount()+" rows is unknown (status: "+status+")" );
+                }
+                // the server has not processed the commit (or noticed the connection loss) yet
+                try
+                {
+                    Thread.sleep( 100 );
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException( "Interrupted while resolving transaction "+ambiguousTransactionId, e );
+                }
+            }
+        }
+    }
+
+    private CopyIn copyIn() throws SQLException
+    {
+        if ( copyIn == null )
+        {
+            try
+            {
+                if ( ambiguousTransactionId != NO_TRANSACTION && resolveAmbiguousCommit() )
+                {
+                    LOG.info("copyIn(): "+uncommitted.rowCount()+" uncommitted rows have been committed after all");
+                    uncommitted.clear();
+                }
+                if ( connection == null )
+                {
+                    connection = ds.getConnection();
+                    connection.setAutoCommit( false );
+                }
+                // remember the transaction so that its outcome can be looked up if committing it fails
+                try ( Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery( "SELECT txid_current()" ) )
+                {
+                    rs.next();
+                    transactionId = rs.getLong( 1 );
+                }
+                copyIn = new CopyManager( connection.unwrap( BaseConnection.class ) ).copyIn( sql );
+                uncommitted.writeHeader( copyIn );
+                if ( ! uncommitted.isEmpty() )
+                {
+                    LOG.info("copyIn(): Replaying "+uncommitted.rowCount()+" uncommitted rows");
+                    uncommitted.writeRows( copyIn );
+                }
+            }
+            catch(SQLException e)
+            {
+                abort();
+                throw e;
+            }
+        }
+        return copyIn;
+    }
+
+    /**
+     * Cancels the current COPY command (if any) and releases the database connection.
+     *
+     * Uncommitted rows are kept and get replayed when the session is used again
+     * (once it is known that they did not get committed).
+     */
+    public void abort()
+    {
+        if ( copyIn != null && copyIn.isActive() )
+        {
+            try
+            {
+                copyIn.cancelCopy();
+            }
+            catch(SQLException e)
+            {
+                LOG.debug("abort(): Failed to cancel COPY",e);
+            }
+        }
+        copyIn = null;
+        transactionId = NO_TRANSACTION;
+        if ( connection != null )
+        {
+            try
+            {
+                connection.rollback();
+                connection.setAutoCommit( true );
+            }
+            catch(SQLException e)
+            {
+                LOG.debug("abort(): Failed to roll back",e);
+            }
+            try
+            {
+                connection.close();
+            }
+            catch(SQLException e)
+            {
+                LOG.debug("abort(): Failed to close connection",e);
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Returns the number of rows that have been written but not committed yet.
+     *
+     * @return
+     */
+    public int getUncommittedRows() {
+        return uncommitted.rowCount();
+    }
+}
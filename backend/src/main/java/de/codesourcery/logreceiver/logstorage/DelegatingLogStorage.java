@@ -2,28 +2,30 @@ package de.codesourcery.logreceiver.logstorage;
 
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.util.DateUtils;
 import de.codesourcery.logreceiver.util.Interval;
-import de.codesourcery.logreceiver.parsing.JDBCHelper;
 import de.codesourcery.logreceiver.storage.IHostManager;
-import de.codesourcery.logreceiver.util.EternalThread;
-import org.springframework.jdbc.core.JdbcTemplate;
 
 import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class DelegatingLogStorage implements ISQLLogStorage
 {
@@ -32,8 +34,34 @@ public class DelegatingLogStorage implements ISQLLogStorage
     // !!! Make sure to adjust parsePartitionName() if you change this pattern
     private static final DateTimeFormatter PARTITION_NAME_TZ_FORMAT = DateTimeFormatter.ofPattern( "YYYYMMDD" );
 
+    private static final int ROUTE_CACHE_SIZE = 16384;
+
+    /**
+     * Snapshot of the rows waiting to be written to the database for a single host, summed over all its partitions.
+     */
+    public static final class HostStatistics
+    {
+        public final long hostId;
+        public long pendingBytes; // in memory
+        public long spilledBytes; // on disk
+        public long spilledRows;
+
+        private HostStatistics(long hostId) {
+            this.hostId = hostId;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "host #"+hostId+": pending="+pendingBytes+", spilled="+spilledBytes+" ("+spilledRows+" rows)";
+        }
+    }
+
     private final Map<Long, Map<String,PostgreSQLStorage>> storageByHostAndTime = new ConcurrentHashMap<>();
 
+    // fast path for getStorage()
+    private final PartitionRouteCache<PostgreSQLStorage> routes = new PartitionRouteCache<>( ROUTE_CACHE_SIZE );
+
     private final Thread shutdownHook;
     private volatile boolean shutdown;
 
@@ -41,122 +69,112 @@ public class DelegatingLogStorage implements ISQLLogStorage
     private final IHostManager hostManager;
     private final Configuration config;
     private final FilterCallbackManager callbackHelper;
+    private final FlushScheduler flushScheduler;
+    private final PartitionPruner partitionPruner;
+    private final MemoryBudget memoryBudget;
+    private final SpillArea spillArea;
 
     private volatile long lastBackendPurge=0;
     private final AtomicBoolean purgeBackends = new AtomicBoolean();
 
-    private EternalThread watchdog = new EternalThread("partition-pruner", () -> context ->
+    public DelegatingLogStorage(DataSource dataSource, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper) throws IOException
     {
-        cleanUp(context);
-        context.sleep( Duration.ofHours(1) );
-    });
-
-    private void cleanUp(EternalThread.Context context)
-    {
-        LOG.info("cleanUp(): Started");
-        for ( Host h : hostManager.getAllHosts() )
-        {
-            if ( context.isCancelled() )
-            {
-                LOG.info("cleanUp(): Cancelled, terminating.");
-                break;
-            }
-            try
-            {
-                cleanUp(h);
-            }
-            catch (SQLException e)
-            {
-                LOG.error("cleanUp(): Failed for host "+h,e);
-            }
-        }
+        this.dataSource = dataSource;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.shutdownHook = registerShutdownHook();
+        this.callbackHelper = callbackHelper;
+        this.flushScheduler = new FlushScheduler( config.flushThreads );
+        this.memoryBudget = new MemoryBudget( config.maxPendingBytes );
+        this.spillArea = config.spillDirectory == null ? null : new SpillArea( Paths.get( config.spillDirectory ), dataSource, flushScheduler );
+        this.partitionPruner = new PartitionPruner( dataSource, hostManager, config );
     }
 
-    private void cleanUp(Host host) throws SQLException
+    @Override
+    public void store(Host host, long epochSecond, String sql)
     {
-        if ( host.dataRetentionTime == null ) {
-            LOG.debug("cleanUp(): Host "+host+" has cleanup disabled.");
+        final PostgreSQLStorage storage = getStorage( host, epochSecond );
+        if ( storage == null ) {
             return;
         }
-
-        LOG.debug("cleanUp(): Invoked for host "+host+", retention time: "+host.dataRetentionTime);
-
-        final JDBCHelper helper = new JDBCHelper( new JdbcTemplate(this.dataSource) );
-        final ZonedDateTime now = ZonedDateTime.now();
-        final ZonedDateTime earliestDate = now.minus( host.dataRetentionTime );
-        for ( String partTableName : findPartitions( host, helper ) )
-        {
-            final PartitionNamePattern pattern = PartitionNamePattern.parse( partTableName , config );
-            final Interval iv = pattern.getInterval( config );
-            if ( iv.end.isBefore( earliestDate ) )
-            {
-                LOG.debug("cleanUp(): Dropping table '"+partTableName+"' for host "+host);
-                helper.executeUpdate( "DROP TABLE IF EXISTS "+partTableName );
-            } else if ( LOG.isDebugEnabled() ) {
-                LOG.debug("cleanUp(): Data in partition '"+partTableName+"' is not older than "+host.dataRetentionTime);
-            }
+        if ( shutdown ) {
+            LOG.fatal("store(): Shutting down - message lost for host #"+host.id+", timestamp "+Instant.ofEpochSecond( epochSecond ));
+            shutdown( storage );
+        } else {
+            storage.store( host, epochSecond, sql );
         }
     }
 
-    private List<String> findPartitions(Host host, JDBCHelper helper) throws SQLException
+    @Override
+    public void store(RowBatch batch)
     {
-        // 1. find OID of base table
-        final String parentTable = PostgreSQLStorage.createParentTableName( host );
-        final String sql = "SELECT oid FROM pg_catalog.pg_class WHERE relkind in ('r','p') AND relname=?";
-
-        Long oid = helper.execQuery( sql, rs ->
+        final int size = batch.size();
+        int start = 0;
+        while ( start < size )
         {
-            Long result = null;
-            if ( rs.next() ) {
-                result = rs.getLong( 1 );
-                if ( rs.wasNull() ) {
-                    result = null;
-                }
-                if ( rs.next() ) {
-                    throw new RuntimeException("Internal error, found multiple OIDs for table '"+parentTable+"'");
-                }
+            final Host host = batch.host( start );
+            final long epochSecond = batch.epochSecond( start );
+            final PostgreSQLStorage storage = getStorage( host, epochSecond );
+
+            // rows for the same host and partition usually arrive back-to-back,
+            // hand them to the backend in one go
+            if ( storage == null ) {
+                start++; // message lost, already logged by getStorage()
+                continue;
+            }
+            int end = start + 1;
+            while ( end < size && batch.host( end ).id == host.id && storage.interval.contains( batch.epochSecond( end ) ) ) {
+                end++;
             }
-            return result;
-        } , parentTable );
-        if ( oid == null )
-        {
-            LOG.error("findPartitions(): Failed to find parent table '"+parentTable+"' for host "+host);
-            return Collections.emptyList();
-        }
-
-        // 2. find partitions of base table
-        String query = "SELECT c.relname " +
-        " FROM " +
-        "       pg_catalog.pg_class c, " +
-        "       pg_catalog.pg_inherits i" +
-        " WHERE c.oid=i.inhrelid AND i.inhparent = ? AND c.relkind='r'";
 
-        return helper.execQuery(query,rs ->
-        {
-            final List<String> result = new ArrayList<>();
-            while ( rs.next() ) {
-                String value = rs.getString(1);
-                if ( value == null || value.isBlank() ) {
-                    throw new RuntimeException("Internal error,NULL/blank partition name?");
-                }
-                result.add( value );
+            if ( shutdown ) {
+                LOG.fatal("store(): Shutting down - "+(end-start)+" messages lost for host #"+host.id+", timestamp "+Instant.ofEpochSecond( epochSecond ));
+                shutdown( storage );
+            } else {
+                storage.store( batch, start, end );
             }
-            return  result;
-        }, oid );
+            start = end;
+        }
     }
 
-    public DelegatingLogStorage(DataSource dataSource, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper)
+    /**
+     * Returns the backend responsible for a given host and timestamp, creating it if necessary.
+     *
+     * @param host
+     * @param epochSecond timestamp (seconds since the epoch)
+     * @return backend or <code>null</code> if the message has no timestamp or creating the backend failed
+     */
+    private PostgreSQLStorage getStorage(Host host, long epochSecond)
     {
-        this.dataSource = dataSource;
-        this.hostManager = hostManager;
-        this.config = config;
-        this.shutdownHook = registerShutdownHook();
-        this.callbackHelper = callbackHelper;
-        watchdog.startThread();
+        if ( epochSecond == SyslogMessage.NO_TIMESTAMP )
+        {
+            // partitions are by time, so there's nowhere to put it
+            LOG.error("getStorage(): Message lost for host #"+host.id+", it has no timestamp");
+            return null;
+        }
+        final PostgreSQLStorage cached = routes.get( host.id, epochSecond );
+        if ( cached != null ) {
+            return cached;
+        }
+        final ZonedDateTime timestamp = Instant.ofEpochSecond( epochSecond ).atZone( DateUtils.UTC );
+        final PostgreSQLStorage storage = lookupStorage( host, timestamp );
+        if ( storage != null && storage.interval.contains( epochSecond ) )
+        {
+            routes.put( host.id, storage.interval, storage );
+            // purgeStaleBackends() might have unloaded the backend after we looked it up,
+            // don't keep routing messages to it
+            final Map<String, PostgreSQLStorage> map = storageByHostAndTime.get( host.id );
+            if ( map == null || map.get( partitionKey( host, timestamp ) ) != storage ) {
+                routes.remove( storage );
+            }
+        }
+        return storage;
     }
 
-    @Override
-    public void store(Host host, ZonedDateTime timestamp, String sql)
+    /**
+     * Slow path of {@link #getStorage(Host, long)}.
+     */
+    private PostgreSQLStorage lookupStorage(Host host, ZonedDateTime timestamp)
     {
         final Long hostId = host.id;
         Map<String, PostgreSQLStorage> map = storageByHostAndTime.get( hostId );
@@ -169,15 +187,14 @@ public class DelegatingLogStorage implements ISQLLogStorage
                 if ( map == null ) {
                     if ( LOG.isDebugEnabled() )
                     {
-                        LOG.debug( "store(): No entry for host ID " + hostId );
+                        LOG.debug( "lookupStorage(): No entry for host ID " + hostId );
                     }
                     map = new ConcurrentHashMap<>();
                     storageByHostAndTime.put(hostId,map);
                 }
             }
         }
-        final String hostName = host.getSQLCompatibleHostName();
-        final String partition = hostName+"_"+toPartitionPart( timestamp );
+        final String partition = partitionKey( host, timestamp );
         PostgreSQLStorage storage = map.get( partition );
         if ( storage == null )
         {
@@ -188,20 +205,20 @@ public class DelegatingLogStorage implements ISQLLogStorage
                 {
                     if ( LOG.isDebugEnabled() )
                     {
-                        LOG.debug( "store(): No entry for partition " + partition);
+                        LOG.debug( "lookupStorage(): No entry for partition " + partition);
                     }
-                    final Interval interval = toPartitionInterval( timestamp );
+                    final Interval interval = PartitionNamePattern.toPartitionInterval( timestamp.toEpochSecond(), config );
                     if ( LOG.isTraceEnabled() ) {
-                        LOG.trace("store(): timestamp "+timestamp+" -> interval "+interval);
+                        LOG.trace("lookupStorage(): timestamp "+timestamp+" -> interval "+interval);
                     }
                     try
                     {
-                        storage = new PostgreSQLStorage( host, dataSource, partition, interval, config, callbackHelper );
+                        storage = new PostgreSQLStorage( host, dataSource, partition, interval, config, callbackHelper, flushScheduler, memoryBudget, spillArea );
                     }
-                    catch (SQLException e)
+                    catch (SQLException | IOException e)
                     {
-                        LOG.fatal("store(): Message lost for host #"+hostId+", timestamp "+timestamp,e);
-                        return;
+                        LOG.fatal("lookupStorage(): Message lost for host #"+hostId+", timestamp "+timestamp,e);
+                        return null;
                     }
                     map.put( partition, storage );
                 }
@@ -209,12 +226,7 @@ public class DelegatingLogStorage implements ISQLLogStorage
             purgeStaleBackends();
         }
 
-        if ( shutdown ) {
-            LOG.fatal("store(): Shutting down - message lost for host #"+hostId+", timestamp "+timestamp);
-            shutdown( storage );
-        } else {
-            storage.store( host, timestamp, sql );
-        }
+        return storage;
     }
 
     private void purgeStaleBackends()
@@ -258,6 +270,7 @@ public class DelegatingLogStorage implements ISQLLogStorage
                 try
                 {
                     LOG.debug( "purgeStaleBackends(): Unloading stale backend " + backend );
+                    routes.remove( backend );
                     backend.shutdown();
                 } catch (InterruptedException e)
                 {
@@ -281,14 +294,8 @@ public class DelegatingLogStorage implements ISQLLogStorage
         }
     }
 
-    private Interval toPartitionInterval(ZonedDateTime ts)
-    {
-        final int hoursPerPartition = config.hoursPerPartition;
-        final ZonedDateTime utc = ts.withZoneSameInstant( DateUtils.UTC );
-        final int startHour = (utc.getHour() / hoursPerPartition )* hoursPerPartition;
-        final ZonedDateTime start = utc.withHour( startHour ).withMinute( 0 ).withSecond( 0 ).withNano( 0 );
-        final ZonedDateTime end = start.plusHours( hoursPerPartition );
-        return new Interval(start,end);
+    private String partitionKey(Host host, ZonedDateTime timestamp) {
+        return host.getSQLCompatibleHostName()+"_"+toPartitionPart( timestamp );
     }
 
     private String toPartitionPart(ZonedDateTime ts)
@@ -300,12 +307,65 @@ public class DelegatingLogStorage implements ISQLLogStorage
         return pattern+"_"+partitionNumber;
     }
 
+    @Override
+    public CopyFormat getCopyFormat() {
+        return config.copyFormat;
+    }
+
+    @Override
+    public boolean sync(Duration timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout.toMillis();
+        final List<PostgreSQLStorage> backends = new ArrayList<>();
+        doWithBackends( backends::add );
+        for ( PostgreSQLStorage backend : backends )
+        {
+            if ( ! backend.sync( Duration.ofMillis( Math.max( 0, deadline - System.currentTimeMillis() ) ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the amount of rows waiting to be written to the database, per host.
+     *
+     * @return
+     */
+    public List<HostStatistics> getStatistics()
+    {
+        final Map<Long,HostStatistics> result = new HashMap<>();
+        doWithBackends( backend ->
+        {
+            final HostStatistics stats = result.computeIfAbsent( backend.host.id, HostStatistics::new );
+            stats.pendingBytes += backend.getPendingBytes();
+            stats.spilledBytes += backend.getSpilledBytes();
+            stats.spilledRows += backend.getSpilledRows();
+        });
+        return new ArrayList<>( result.values() );
+    }
+
+    /**
+     * Returns the amount of rows buffered in memory for all hosts.
+     *
+     * @return number of characters (text format) or bytes (binary format)
+     */
+    public long getPendingBytes() {
+        return memoryBudget.getUsed();
+    }
+
+    @Override
     @PreDestroy
     public void shutdown() throws InterruptedException
     {
         shutdown = true;
+        LOG.info( "shutdown(): Statistics on shutdown: "+memoryBudget+" | "+getStatistics().stream().map( HostStatistics::toString ).collect( Collectors.joining(" | ") ) );
         doWithBackends( this::shutdown );
-        watchdog.stopThread();
+        if ( spillArea != null ) {
+            spillArea.shutdown();
+        }
+        flushScheduler.shutdown();
+        partitionPruner.shutdown();
         Runtime.getRuntime().removeShutdownHook( this.shutdownHook );
     }
 
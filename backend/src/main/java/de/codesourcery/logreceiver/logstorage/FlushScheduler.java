@@ -0,0 +1,311 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.util.EternalThread;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs flush tasks of all storage backends on a fixed number of worker threads.
+ *
+ * Tasks are kept in a priority queue ordered by their next deadline, a task that has nothing
+ * to flush simply is not queued and thus costs nothing. A task never runs on more than one worker at a time.
+ */
+public final class FlushScheduler
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( FlushScheduler.class.getName() );
+
+    /**
+     * Returned by {@link Task#run()} if the task does not need to run again until re-scheduled.
+     */
+    public static final long NOT_SCHEDULED = Long.MAX_VALUE;
+
+    private static final Duration RETRY_DELAY = Duration.ofSeconds( 10 );
+
+    public interface Task
+    {
+        /**
+         * Flush.
+         *
+         * @return time ({@link System#currentTimeMillis()}) when the task wants to run next or {@link #NOT_SCHEDULED}
+         * @throws Exception failed tasks are retried after a delay
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * A task registered with the scheduler.
+     */
+    public final class Registration
+    {
+        private final String name;
+        private final Task task;
+
+        // @GuardedBy( LOCK )
+        private long deadline = NOT_SCHEDULED;
+        // @GuardedBy( LOCK )
+        private boolean running;
+        // @GuardedBy( LOCK )
+        private long rescheduleAt = NOT_SCHEDULED; // requested while the task was running
+        // @GuardedBy( LOCK )
+        private boolean cancelled;
+
+        private Registration(String name, Task task)
+        {
+            this.name = name;
+            this.task = task;
+        }
+
+        /**
+         * Make sure the task runs no later than a given time.
+         *
+         * @param deadline time in milliseconds ({@link System#currentTimeMillis()})
+         */
+        public void schedule(long deadline)
+        {
+            synchronized( LOCK )
+            {
+                if ( cancelled ) {
+                    return;
+                }
+                if ( running ) {
+                    rescheduleAt = Math.min( rescheduleAt, deadline );
+                    return;
+                }
+                enqueue( this, deadline );
+            }
+        }
+
+        /**
+         * Run the task as soon as possible.
+         */
+        public void wakeUp() {
+            schedule( System.currentTimeMillis() );
+        }
+
+        /**
+         * Remove the task from the scheduler, waiting for it to finish if it is currently running.
+         *
+         * Must not be called by the task itself.
+         *
+         * @throws InterruptedException
+         */
+        public void cancel() throws InterruptedException
+        {
+            synchronized( LOCK )
+            {
+                cancelled = true;
+                deadline = NOT_SCHEDULED;
+                while ( running ) {
+                    LOCK.wait();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class QueueEntry implements Comparable<QueueEntry>
+    {
+        public final Registration registration;
+        public final long deadline;
+
+        private QueueEntry(Registration registration, long deadline)
+        {
+            this.registration = registration;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(QueueEntry o) {
+            return Long.compare( this.deadline, o.deadline );
+        }
+    }
+
+    private final Object LOCK = new Object();
+
+    // entries are not removed when a task gets re-scheduled or cancelled,
+    // stale entries (deadline no longer matching the registration's) are skipped instead
+    // @GuardedBy( LOCK )
+    private final PriorityQueue<QueueEntry> queue = new PriorityQueue<>();
+
+    // @GuardedBy( LOCK )
+    private boolean shutdown;
+
+    private final List<EternalThread> workers = new ArrayList<>();
+
+    /**
+     * Create instance.
+     *
+     * @param threadCount number of worker threads
+     */
+    public FlushScheduler(int threadCount)
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException( "Thread count must be >= 1" );
+        }
+        for ( int i = 0 ; i < threadCount ; i++ )
+        {
+            workers.add( new EternalThread( "flush-scheduler-" + i, () -> new EternalThread.Interruptable()
+            {
+                @Override
+                public void cancel()
+                {
+                    synchronized( LOCK ) {
+                        LOCK.notifyAll();
+                    }
+                }
+
+                @Override
+                public void run(EternalThread.Context context) {
+                    work( context );
+                }
+            } ) );
+        }
+        workers.forEach( EternalThread::startThread );
+    }
+
+    /**
+     * Register a task.
+     *
+     * The task does not run until it gets scheduled using {@link Registration#schedule(long)} or {@link Registration#wakeUp()}.
+     *
+     * @param name task name, used for logging
+     * @param task
+     * @return
+     */
+    public Registration register(String name, Task task)
+    {
+        return new Registration( name, task );
+    }
+
+    // @GuardedBy( LOCK )
+    private void enqueue(Registration registration, long deadline)
+    {
+        if ( deadline == NOT_SCHEDULED || registration.deadline <= deadline ) {
+            return;
+        }
+        registration.deadline = deadline;
+        final QueueEntry entry = new QueueEntry( registration, deadline );
+        queue.add( entry );
+        if ( queue.peek() == entry ) {
+            LOCK.notifyAll();
+        }
+    }
+
+    private void work(EternalThread.Context context)
+    {
+        while ( ! context.isCancelled() )
+        {
+            final Registration registration = take( context );
+            if ( registration == null ) {
+                return;
+            }
+            long next;
+            try
+            {
+                next = registration.task.run();
+            }
+            catch(Exception e)
+            {
+                LOG.error("work(): Task "+registration+" failed, retrying in "+RETRY_DELAY,e);
+                next = System.currentTimeMillis() + RETRY_DELAY.toMillis();
+            }
+            synchronized( LOCK )
+            {
+                registration.running = false;
+                final long deadline = Math.min( next, registration.rescheduleAt );
+                registration.rescheduleAt = NOT_SCHEDULED;
+                if ( registration.cancelled ) {
+                    LOCK.notifyAll();
+                } else {
+                    enqueue( registration, deadline );
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the task with the earliest deadline to become due.
+     *
+     * @param context
+     * @return task, marked as running, or <code>null</code> if the scheduler got shut down
+     */
+    private Registration take(EternalThread.Context context)
+    {
+        synchronized( LOCK )
+        {
+            while ( ! shutdown && ! context.isCancelled() )
+            {
+                final QueueEntry entry = queue.peek();
+                if ( entry != null && entry.registration.deadline != entry.deadline )
+                {
+                    queue.poll(); // stale
+                    continue;
+                }
+                final long waitMillis = entry == null ? 0 : entry.deadline - System.currentTimeMillis();
+                if ( entry != null && waitMillis <= 0 )
+                {
+                    queue.poll();
+                    entry.registration.deadline = NOT_SCHEDULED;
+                    entry.registration.running = true;
+                    return entry.registration;
+                }
+                try
+                {
+                    LOCK.wait( waitMillis );
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.warn("take(): Interrupted");
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stops all worker threads.
+     *
+     * Tasks still queued do not get executed anymore, their owners need to flush on their own.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Stopping "+workers.size()+" worker threads");
+        synchronized( LOCK )
+        {
+            shutdown = true;
+            LOCK.notifyAll();
+        }
+        for ( EternalThread worker : workers ) {
+            worker.stopThread();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed.
+     *
+     * @return
+     */
+    public int getQueuedTaskCount()
+    {
+        synchronized( LOCK )
+        {
+            int result = 0;
+            for ( QueueEntry entry : queue )
+            {
+                if ( entry.registration.deadline == entry.deadline ) {
+                    result++;
+                }
+            }
+            return result;
+        }
+    }
+}
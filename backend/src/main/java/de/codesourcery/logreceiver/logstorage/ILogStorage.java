@@ -10,5 +10,25 @@ import de.codesourcery.logreceiver.entity.SyslogMessage;
 @FunctionalInterface
 public interface ILogStorage
 {
+    /**
+     * Store a message.
+     *
+     * @param message message to store, may be re-used by the caller as soon as this method returns.
+     *                Implementations that need the message afterwards must {@link SyslogMessage#retain()} it
+     *                (and {@link SyslogMessage#release()} it when done) or store a {@link SyslogMessage#copy()}.
+     */
     void store(SyslogMessage message);
+
+    /**
+     * Store multiple messages.
+     *
+     * @param messages messages to store, may be re-used by the caller as soon as this method returns, see {@link #store(SyslogMessage)}
+     * @param count number of messages (starting at index 0) to store
+     */
+    default void store(SyslogMessage[] messages, int count)
+    {
+        for ( int i = 0 ; i < count ; i++ ) {
+            store( messages[i] );
+        }
+    }
 }
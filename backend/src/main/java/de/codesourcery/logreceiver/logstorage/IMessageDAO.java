@@ -0,0 +1,74 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Read access to stored log messages.
+ *
+ * Message IDs are unique per host and increase in the order messages got stored. Messages that had to be
+ * spilled to disk while the database was lagging behind (see {@link SpillArea}) count as stored once they
+ * get loaded into the database, so IDs are not necessarily in order of the messages' timestamps.
+ */
+public interface IMessageDAO
+{
+    /**
+     * Returns the ID of the most recently stored message for a host.
+     *
+     * @param host
+     * @return message ID or <code>null</code> if no messages have been stored for this host
+     */
+    Long getLatestMessageId(Host host);
+
+    /**
+     * Visits messages with the given IDs, ordered by ascending ID.
+     *
+     * @param host
+     * @param consumer
+     * @param ids message IDs, unknown IDs are ignored
+     */
+    void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids);
+
+    /**
+     * Returns the most recent messages matching a filter, newest first.
+     *
+     * @param host
+     * @param callback
+     * @param maxCount
+     * @return
+     */
+    List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount);
+
+    /**
+     * Visit all messages for a given host that have an ID greater than X.
+     *
+     * Messages are visited oldest to newest.
+     *
+     * @param host
+     * @param filters
+     * @param latestId ID or null to visit ALL messages
+     * @param cancel
+     * @return ID of latest log entry that has been visited (may be NULL if there were no messages)
+     */
+    Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel);
+
+    /**
+     * Returns messages matching a filter that are newer ({@link IAPI.PagingDirection#FORWARD_IN_TIME}, oldest first)
+     * or older ({@link IAPI.PagingDirection#BACKWARD_IN_TIME}, newest first) than a reference message.
+     *
+     * @param host
+     * @param callback
+     * @param direction
+     * @param refLogEntryId ID of reference message
+     * @param maxCount
+     * @return
+     */
+    List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                    long refLogEntryId, int maxCount);
+}
@@ -2,9 +2,58 @@ package de.codesourcery.logreceiver.logstorage;
 
 import de.codesourcery.logreceiver.entity.Host;
 
-import java.time.ZonedDateTime;
+import java.time.Duration;
 
 public interface ISQLLogStorage
 {
-    void store(Host host, ZonedDateTime timestamp, String sql);
+    /**
+     * Store a single row.
+     *
+     * @param host
+     * @param epochSecond timestamp of the row's message (seconds since the epoch), used to pick the partition
+     * @param sql
+     */
+    void store(Host host, long epochSecond, String sql);
+
+    /**
+     * Store multiple rows.
+     *
+     * Storages accepting {@link CopyFormat#BINARY} rows need to override this.
+     *
+     * @param batch rows to store, the batch may be cleared and re-used by the caller as soon as this method returns
+     */
+    default void store(RowBatch batch)
+    {
+        for ( int i = 0, len = batch.size() ; i < len ; i++ ) {
+            store( batch.host( i ), batch.epochSecond( i ), batch.row( i ) );
+        }
+    }
+
+    /**
+     * Returns the format of the rows this storage accepts.
+     *
+     * @return
+     */
+    default CopyFormat getCopyFormat() {
+        return CopyFormat.TEXT;
+    }
+
+    /**
+     * Blocks until all rows stored so far have been written to the database.
+     *
+     * @param timeout max. time to wait
+     * @return <code>false</code> if the timeout expired or this storage is shutting down
+     * @throws InterruptedException
+     */
+    default boolean sync(Duration timeout) throws InterruptedException {
+        return true;
+    }
+
+    /**
+     * Flush all buffered rows and release resources.
+     *
+     * @throws InterruptedException
+     */
+    default void shutdown() throws InterruptedException {
+    }
 }
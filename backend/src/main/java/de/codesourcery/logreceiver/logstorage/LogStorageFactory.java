@@ -0,0 +1,89 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Creates the {@link ISQLLogStorage} selected by {@link Configuration#storageType}, fronted
+ * by a {@link SpoolingLogStorage} if {@link Configuration#spoolDirectory} is set.
+ */
+public class LogStorageFactory implements FactoryBean<ISQLLogStorage>, DisposableBean
+{
+    public enum StorageType
+    {
+        /**
+         * One buffer and <code>COPY</code> per host and partition, see {@link DelegatingLogStorage}.
+         */
+        PER_PARTITION,
+        /**
+         * One <code>COPY</code> for all hosts into a staging table, see {@link StagingTableLogStorage}.
+         */
+        STAGING_TABLE
+    }
+
+    private final DataSource dataSource;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final FilterCallbackManager callbackHelper;
+
+    private ISQLLogStorage instance;
+
+    public LogStorageFactory(DataSource dataSource, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper)
+    {
+        this.dataSource = dataSource;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.callbackHelper = callbackHelper;
+    }
+
+    @Override
+    public synchronized ISQLLogStorage getObject() throws SQLException, IOException
+    {
+        if ( instance == null )
+        {
+            final ISQLLogStorage storage = createStorage();
+            instance = config.spoolDirectory == null ? storage : new SpoolingLogStorage( storage, hostManager, config );
+        }
+        return instance;
+    }
+
+    private ISQLLogStorage createStorage() throws SQLException, IOException
+    {
+        switch( config.storageType )
+        {
+            case PER_PARTITION:
+                return new DelegatingLogStorage( dataSource, hostManager, config, callbackHelper );
+            case STAGING_TABLE:
+                return new StagingTableLogStorage( dataSource, hostManager, config, callbackHelper );
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + config.storageType );
+        }
+    }
+
+    @Override
+    public synchronized void destroy() throws InterruptedException
+    {
+        if ( instance != null ) {
+            instance.shutdown();
+        }
+    }
+
+    @Override
+    public Class<?> getObjectType()
+    {
+        return ISQLLogStorage.class;
+    }
+
+    @Override
+    public boolean isSingleton()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import org.springframework.beans.factory.FactoryBean;
+
+/**
+ * Creates the {@link ILogStorage} that turns messages into rows in the {@link CopyFormat} selected
+ * by {@link Configuration#copyFormat}, diverting messages of hosts handled by the {@link SegmentLogStorage}.
+ */
+public class LogWriterFactory implements FactoryBean<ILogStorage>
+{
+    private final ISQLLogStorage storage;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final SegmentLogStorage segments;
+    private final FilterCallbackManager callbackHelper;
+
+    private ILogStorage instance;
+
+    public LogWriterFactory(ISQLLogStorage storage, IHostManager hostManager, Configuration config,
+                            SegmentLogStorage segments, FilterCallbackManager callbackHelper)
+    {
+        if ( storage.getCopyFormat() != config.copyFormat ) {
+            throw new IllegalArgumentException( "Storage accepts " + storage.getCopyFormat() + " rows but copy format is " + config.copyFormat );
+        }
+        this.storage = storage;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.segments = segments;
+        this.callbackHelper = callbackHelper;
+    }
+
+    @Override
+    public synchronized ILogStorage getObject()
+    {
+        if ( instance == null )
+        {
+            final ILogStorage writer = createWriter();
+            instance = segments.isEnabled() ? new SegmentRoutingLogStorage( segments, writer, callbackHelper ) : writer;
+        }
+        return instance;
+    }
+
+    private ILogStorage createWriter()
+    {
+        switch( config.copyFormat )
+        {
+            case TEXT:
+                return new SQLLogWriter( storage, hostManager );
+            case BINARY:
+                return new BinaryLogWriter( storage );
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + config.copyFormat );
+        }
+    }
+
+    @Override
+    public Class<?> getObjectType()
+    {
+        return ILogStorage.class;
+    }
+
+    @Override
+    public boolean isSingleton()
+    {
+        return true;
+    }
+}
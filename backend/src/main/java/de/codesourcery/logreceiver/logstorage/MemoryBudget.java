@@ -0,0 +1,48 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the amount of buffered rows that are waiting to be written to the database,
+ * shared by all partitions.
+ */
+final class MemoryBudget
+{
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Create instance.
+     *
+     * @param limit number of characters (text COPY format) or bytes (binary COPY format)
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Account for rows getting buffered (positive delta) or written/discarded (negative delta).
+     *
+     * @param delta
+     */
+    public void add(long delta) {
+        used.addAndGet( delta );
+    }
+
+    public boolean isExhausted() {
+        return used.get() > limit;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget[ "+used.get()+" / "+limit+" ]";
+    }
+}
@@ -3,16 +3,16 @@ package de.codesourcery.logreceiver.logstorage;
 import de.codesourcery.logreceiver.IAPI;
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.FilterCriteria;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
 import de.codesourcery.logreceiver.parsing.JDBCHelper;
-import de.codesourcery.logreceiver.util.DateUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.ZonedDateTime;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BooleanSupplier;
@@ -20,18 +20,20 @@ import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-public class MessageDAO
+public class MessageDAO implements IMessageDAO
 {
     private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( MessageDAO.class );
 
     private final JDBCHelper helper;
 
+    @Override
     public Long getLatestMessageId(Host host)
     {
         final String sql = "SELECT max(entry_id) AS entry_id FROM "+PartitionNamePattern.parentTableName( host );
         return helper.queryForLong( sql );
     }
 
+    @Override
     public void visitMessages(Host currentHost, Consumer<SyslogMessage> consumer, List<Long> batch)
     {
         if ( batch.isEmpty() ) {
@@ -82,12 +84,9 @@ public class MessageDAO
             final SyslogMessage msg = new SyslogMessage();
             msg.id = rs.getLong("entry_id");
             msg.priority = rs.getShort("priority");
-            ZonedDateTime ts = rs.getTimestamp( "log_ts" ).toInstant().atZone( DateUtils.UTC );
+            final Timestamp ts = rs.getTimestamp( "log_ts" );
             final int fraction = rs.getInt( "log_ts_fraction" );
-            if ( ! rs.wasNull() ) {
-                ts = ts.withNano( fraction );
-            }
-            msg.timestamp = ts;
+            msg.setTimestamp( Math.floorDiv( ts.getTime(), 1000 ), rs.wasNull() ? ts.getNanos() : fraction, 0 );
             final long hostId = rs.getLong("host_id");
             if ( hostId != host.id ) {
                 // should never happen
@@ -96,12 +95,7 @@ public class MessageDAO
             msg.appName = rs.getString("app_name");
             msg.procId  = rs.getString("proc_id");
             msg.msgId = rs.getString("msg_id");
-            String json = rs.getString("params");
-            if ( ! rs.wasNull() && ! "null".equals(json) ) {
-                // TODO: implement me
-                // msg.addParam( ...  );
-                throw new RuntimeException("Not implemented - unmarshalling JSON parameter string");
-            }
+            SDParamsJSON.unmarshal( rs.getString("params"), msg );
             msg.message = rs.getString("msg");
             msg.host = host;
             return msg;
@@ -145,13 +139,112 @@ public class MessageDAO
         helper = new JDBCHelper(template);
     }
 
-    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    static String escapeLikePattern(String text)
+    {
+        final StringBuilder result = new StringBuilder( text.length() );
+        for ( int i = 0, len = text.length() ; i < len ; i++ )
+        {
+            final char c = text.charAt( i );
+            if ( c == '\\' || c == '%' || c == '_' ) {
+                result.append( '\\' );
+            }
+            result.append( c );
+        }
+        return result.toString();
+    }
+
+    /**
+     * Translates the criteria of a filter into SQL conditions.
+     *
+     * @param criteria criteria, may be <code>null</code>
+     * @param arguments receives the values for the parameters used by the conditions
+     * @return conditions that all need to be true, empty if there's nothing to check
+     */
+    static List<String> getConditions(FilterCriteria criteria, List<Object> arguments)
+    {
+        final List<String> result = new ArrayList<>();
+        if ( criteria == null ) {
+            return result;
+        }
+        if ( criteria.hasSeverityRange() )
+        {
+            result.add( "(priority & 7) BETWEEN ? AND ?" );
+            arguments.add( criteria.minSeverity );
+            arguments.add( criteria.maxSeverity );
+        }
+        if ( criteria.appName != null )
+        {
+            result.add( "app_name = ?" );
+            arguments.add( criteria.appName );
+        }
+        if ( criteria.substring != null )
+        {
+            // LIKE / ILIKE can use a trigram index (see Configuration#trigramIndex), just like ~ and ~*
+            result.add( criteria.ignoreCase ? "msg ILIKE ?" : "msg LIKE ?" );
+            arguments.add( "%"+escapeLikePattern( criteria.substring )+"%" );
+        }
+        if ( criteria.regex != null )
+        {
+            result.add( criteria.ignoreCase ? "msg ~* ?" : "msg ~ ?" );
+            arguments.add( criteria.regex );
+        }
+        return result;
+    }
+
+    /**
+     * Builds a query for the messages of a host that match a filter.
+     *
+     * The filter's criteria become part of the <code>WHERE</code> clause, if they are all the
+     * filter checks the query is also limited to <code>maxCount</code> rows.
+     *
+     * @param host
+     * @param condition additional condition or <code>null</code>
+     * @param sortDirection
+     * @param criteria the filter's criteria, may be <code>null</code>
+     * @param maxCount
+     * @param arguments receives the values for the query's parameters
+     * @return
+     */
+    static String createQuery(Host host, String condition, String sortDirection, FilterCriteria criteria, int maxCount, List<Object> arguments)
+    {
+        final List<String> conditions = new ArrayList<>();
+        if ( condition != null ) {
+            conditions.add( condition );
+        }
+        conditions.addAll( getConditions( criteria, arguments ) );
+
+        String sql = "SELECT * FROM "+ PartitionNamePattern.parentTableName( host );
+        if ( ! conditions.isEmpty() ) {
+            sql += " WHERE "+String.join( " AND ", conditions );
+        }
+        sql += " ORDER BY entry_id "+sortDirection;
+        if ( criteria != null && criteria.complete )
+        {
+            sql += " LIMIT ?";
+            arguments.add( maxCount );
+        }
+        return sql;
+    }
+
+    private List<SyslogMessage> getMessages(Host host, IFilterCallback callback, String condition, String sortDirection, int maxCount)
     {
-        // TODO: limit currently cannot be enforced on server-side as we're doing the matching on the client-side...which is sloooow
-        final String sql = "SELECT * FROM "+ PartitionNamePattern.parentTableName( host )+" ORDER BY entry_id DESC";
+        final FilterCriteria criteria = callback.getCriteria();
+        final List<Object> arguments = new ArrayList<>();
+        final String sql = createQuery( host, condition, sortDirection, criteria, maxCount, arguments );
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "getMessages(): "+sql+" "+arguments );
+        }
 
-        final FilteringResultSetExtractor extractor = new FilteringResultSetExtractor(callback.getPredicate(),maxCount);
-        return helper.execStreamingQuery( sql, rs -> extractor.extract( host,rs ) );
+        // only what couldn't be pushed down to the database needs to be checked here
+        final Predicate<SyslogMessage> predicate = criteria != null && criteria.complete ? msg -> true : callback.getPredicate();
+        final FilteringResultSetExtractor extractor = new FilteringResultSetExtractor(predicate,maxCount);
+        return helper.execStreamingQuery( sql, rs -> extractor.extract( host,rs ), arguments.toArray() );
+    }
+
+    @Override
+    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    {
+        return getMessages( host, callback, null, "DESC", maxCount );
     }
 
     /**
@@ -164,6 +257,7 @@ public class MessageDAO
      * @param latestId ID or null to visit ALL messages
      * @return DB primary key of latest log entry that has been visited (may be NULL if DB was empty)
      */
+    @Override
     public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
     {
         final String sql;
@@ -200,6 +294,7 @@ public class MessageDAO
         return helper.execStreamingQuery( sql, c );
     }
 
+    @Override
     public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
                                            long refLogEntryId, int maxCount)
     {
@@ -218,9 +313,6 @@ public class MessageDAO
             default:
                 throw new RuntimeException( "Unhandled switch/case: " + direction );
         }
-        final String sql = "SELECT * FROM "+ PartitionNamePattern.parentTableName( host )+" WHERE "+condition+" ORDER BY entry_id "+sortDirection;
-
-        final FilteringResultSetExtractor extractor = new FilteringResultSetExtractor(callback.getPredicate(),maxCount);
-        return helper.execStreamingQuery( sql, rs -> extractor.extract( host,rs ) );
+        return getMessages( host, callback, condition, sortDirection, maxCount );
     }
 }
\ No newline at end of file
@@ -0,0 +1,412 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A memory-mapped file holding log messages of a single host and partition, in the order they got stored.
+ *
+ * File layout:
+ * <pre>
+ * header: magic (int), version (int), partition start (long, epoch seconds), partition end (long, epoch seconds), reserved (long)
+ * records: length (int), body, length (int)
+ * body: entry ID (long), epoch second (long), nanos (int), priority (short), app name, proc ID, msg ID, host name, message, params
+ * params: element count (int), per element: ID, parameter count (int), per parameter: name, value
+ * </pre>
+ * Strings are stored as length (int, -1 for <code>null</code>) followed by UTF-8 bytes, params are stored the same way
+ * (-1 if the message has none). The leading length of a record
+ * gets written last so that a record becomes valid atomically, the trailing length allows walking backwards.
+ *
+ * A sparse index maps every {@link #INDEX_INTERVAL}th entry ID to its file offset.
+ *
+ * Appending is not thread-safe, reading concurrently with a single writer is.
+ */
+final class MessageSegment
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( MessageSegment.class.getName() );
+
+    private static final int MAGIC = 0x4c4f4753; // 'LOGS'
+    private static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 32;
+
+    // id + epoch second + nanos + priority + 5 string lengths + params length
+    private static final int MIN_BODY_SIZE = 8 + 8 + 4 + 2 + 5*4 + 4;
+
+    private static final int INDEX_INTERVAL = 32;
+
+    public final Path file;
+    public final long partitionStart;
+    public final long partitionEnd;
+
+    private final MappedByteBuffer buffer;
+
+    // end of last complete record
+    private volatile int end = HEADER_SIZE;
+    private volatile long firstId = -1;
+    private volatile long lastId = -1;
+
+    // @GuardedBy( this )
+    private long[] indexIds = new long[16];
+    // @GuardedBy( this )
+    private int[] indexOffsets = new int[16];
+    // @GuardedBy( this )
+    private int indexSize;
+    private int recordCount;
+
+    private MessageSegment(Path file, MappedByteBuffer buffer, long partitionStart, long partitionEnd)
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.partitionStart = partitionStart;
+        this.partitionEnd = partitionEnd;
+    }
+
+    /**
+     * Create a new segment file.
+     *
+     * @param file
+     * @param size file size in bytes
+     * @param partitionStart
+     * @param partitionEnd
+     * @return
+     * @throws IOException
+     */
+    public static MessageSegment create(Path file, int size, long partitionStart, long partitionEnd) throws IOException
+    {
+        final MappedByteBuffer buffer;
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+        }
+        buffer.putInt( 4, VERSION );
+        buffer.putLong( 8, partitionStart );
+        buffer.putLong( 16, partitionEnd );
+        buffer.putInt( 0, MAGIC );
+        return new MessageSegment( file, buffer, partitionStart, partitionEnd );
+    }
+
+    /**
+     * Open an existing segment file, discarding any incomplete record at its end.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MessageSegment open(Path file) throws IOException
+    {
+        final MappedByteBuffer buffer;
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, channel.size() );
+        }
+        if ( buffer.capacity() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC ) {
+            throw new IOException( "Not a segment file: " + file );
+        }
+        final int version = buffer.getInt( 4 );
+        if ( version != VERSION ) {
+            throw new IOException( "Unsupported version " + version + " of segment file: " + file );
+        }
+        final MessageSegment segment = new MessageSegment( file, buffer, buffer.getLong( 8 ), buffer.getLong( 16 ) );
+        int offset = HEADER_SIZE;
+        while ( offset + 4 <= buffer.capacity() )
+        {
+            final int len = buffer.getInt( offset );
+            final long next = (long) offset + 4 + len + 4;
+            if ( len < MIN_BODY_SIZE || next > buffer.capacity() || buffer.getInt( offset + 4 + len ) != len ) {
+                break;
+            }
+            segment.indexRecord( buffer.getLong( offset + 4 ), offset );
+            offset = (int) next;
+        }
+        segment.end = offset;
+        // make sure an incomplete record does not become valid on the next append
+        if ( offset + 4 <= buffer.capacity() ) {
+            buffer.putInt( offset, 0 );
+        }
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "open(): Recovered " + segment.recordCount + " records from " + file );
+        }
+        return segment;
+    }
+
+    private void indexRecord(long id, int offset)
+    {
+        if ( firstId == -1 ) {
+            firstId = id;
+        }
+        if ( recordCount++ % INDEX_INTERVAL == 0 )
+        {
+            synchronized( this )
+            {
+                if ( indexSize == indexIds.length )
+                {
+                    indexIds = Arrays.copyOf( indexIds, indexSize * 2 );
+                    indexOffsets = Arrays.copyOf( indexOffsets, indexSize * 2 );
+                }
+                indexIds[indexSize] = id;
+                indexOffsets[indexSize] = offset;
+                indexSize++;
+            }
+        }
+        lastId = id;
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param message
+     * @param id entry ID, must be greater than the ID of any message already in this segment
+     * @return <code>false</code> if the segment does not have enough space left
+     */
+    public boolean append(SyslogMessage message, long id)
+    {
+        final byte[] appName = utf8( message.appName );
+        final byte[] procId = utf8( message.procId );
+        final byte[] msgId = utf8( message.msgId );
+        final byte[] hostName = utf8( message.hostName );
+        final byte[] text = utf8( message.message );
+        final byte[] params = encodeParams( message );
+        final int len = MIN_BODY_SIZE + length( appName ) + length( procId ) + length( msgId ) + length( hostName ) + length( text ) + length( params );
+
+        final int start = end;
+        if ( (long) start + 4 + len + 4 > buffer.capacity() ) {
+            return false;
+        }
+        final ByteBuffer out = buffer.duplicate();
+        out.position( start + 4 );
+        out.putLong( id );
+        out.putLong( message.getEpochSecond() );
+        out.putInt( message.getNanos() );
+        out.putShort( message.priority );
+        put( out, appName );
+        put( out, procId );
+        put( out, msgId );
+        put( out, hostName );
+        put( out, text );
+        put( out, params );
+        out.putInt( len );
+        if ( out.position() + 4 <= buffer.capacity() ) {
+            out.putInt( 0 ); // terminates the records during recovery
+        }
+        buffer.putInt( start, len );
+
+        indexRecord( id, start );
+        end = start + 4 + len + 4;
+        return true;
+    }
+
+    /**
+     * Check whether a message fits into an empty segment.
+     *
+     * @param message
+     * @param size segment file size in bytes
+     * @return
+     */
+    public static boolean fitsInto(SyslogMessage message, int size)
+    {
+        final long len = MIN_BODY_SIZE + length( utf8( message.appName ) ) + length( utf8( message.procId ) ) + length( utf8( message.msgId ) ) +
+                         length( utf8( message.hostName ) ) + length( utf8( message.message ) ) + length( encodeParams( message ) );
+        return HEADER_SIZE + 4 + len + 4 <= size;
+    }
+
+    private static byte[] encodeParams(SyslogMessage message)
+    {
+        final int count = message.getParamCount();
+        if ( count == 0 ) {
+            return null;
+        }
+        int len = 4;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SDParam param = message.params[i];
+            len += 4 + length( utf8( param.id ) ) + 4;
+            for ( int j = 0, params = param.paramCount() ; j < params ; j++ ) {
+                len += 4 + length( utf8( param.paramNames[j] ) ) + 4 + length( utf8( param.paramValues[j] ) );
+            }
+        }
+        final ByteBuffer out = ByteBuffer.allocate( len );
+        out.putInt( count );
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SDParam param = message.params[i];
+            put( out, utf8( param.id ) );
+            out.putInt( param.paramCount() );
+            for ( int j = 0, params = param.paramCount() ; j < params ; j++ )
+            {
+                put( out, utf8( param.paramNames[j] ) );
+                put( out, utf8( param.paramValues[j] ) );
+            }
+        }
+        return out.array();
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static int length(byte[] data) {
+        return data == null ? 0 : data.length;
+    }
+
+    private static void put(ByteBuffer out, byte[] data)
+    {
+        if ( data == null ) {
+            out.putInt( -1 );
+        } else {
+            out.putInt( data.length );
+            out.put( data );
+        }
+    }
+
+    /**
+     * Returns the offset of the first record with an ID greater than the given one.
+     *
+     * @param id
+     * @return record offset or {@link #end()} if there is no such record
+     */
+    public int seekAfter(long id)
+    {
+        final int limit = end;
+        int offset = HEADER_SIZE;
+        synchronized( this )
+        {
+            int low = 0;
+            int high = indexSize - 1;
+            while ( low <= high )
+            {
+                final int mid = ( low + high ) >>> 1;
+                if ( indexIds[mid] <= id ) {
+                    offset = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        }
+        while ( offset < limit && idAt( offset ) <= id ) {
+            offset = next( offset );
+        }
+        return offset;
+    }
+
+    public long idAt(int offset) {
+        return buffer.getLong( offset + 4 );
+    }
+
+    /**
+     * Returns the offset of the record following the one at the given offset.
+     */
+    public int next(int offset) {
+        return offset + 4 + buffer.getInt( offset ) + 4;
+    }
+
+    /**
+     * Returns the offset of the record preceding the one at (or ending at) the given offset.
+     *
+     * @param offset must be greater than {@link #HEADER_SIZE}
+     */
+    public int previous(int offset) {
+        return offset - 4 - buffer.getInt( offset - 4 ) - 4;
+    }
+
+    /**
+     * Read the record at a given offset.
+     *
+     * @param offset
+     * @param host host the message belongs to
+     * @return
+     */
+    public SyslogMessage read(int offset, Host host)
+    {
+        final ByteBuffer in = buffer.duplicate();
+        in.position( offset + 4 );
+        final SyslogMessage msg = new SyslogMessage();
+        msg.id = in.getLong();
+        final long epochSecond = in.getLong();
+        final int nanos = in.getInt();
+        msg.setTimestamp( epochSecond, nanos, 0 );
+        msg.priority = in.getShort();
+        msg.appName = readString( in );
+        msg.procId = readString( in );
+        msg.msgId = readString( in );
+        msg.hostName = readString( in );
+        msg.message = readString( in );
+        if ( in.getInt() >= 0 )
+        {
+            for ( int i = 0, count = in.getInt() ; i < count ; i++ )
+            {
+                final SDParam param = msg.newParam( readString( in ) );
+                for ( int j = 0, params = in.getInt() ; j < params ; j++ ) {
+                    param.addParam( readString( in ), readString( in ) );
+                }
+            }
+        }
+        msg.host = host;
+        return msg;
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        final int len = in.getInt();
+        if ( len < 0 ) {
+            return null;
+        }
+        final byte[] data = new byte[len];
+        in.get( data );
+        return new String( data, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Returns the end of the last complete record.
+     *
+     * @return
+     */
+    public int end() {
+        return end;
+    }
+
+    public boolean isEmpty() {
+        return firstId == -1;
+    }
+
+    /**
+     * Returns the ID of the first message in this segment.
+     *
+     * @return ID or -1 if the segment is empty
+     */
+    public long firstId() {
+        return firstId;
+    }
+
+    /**
+     * Returns the ID of the last message in this segment.
+     *
+     * @return ID or -1 if the segment is empty
+     */
+    public long lastId() {
+        return lastId;
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists( file );
+    }
+
+    @Override
+    public String toString() {
+        return "MessageSegment[ " + file + " ]";
+    }
+}
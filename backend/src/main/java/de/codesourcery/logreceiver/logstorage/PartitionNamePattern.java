@@ -5,6 +5,7 @@ import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.util.DateUtils;
 import de.codesourcery.logreceiver.util.Interval;
 
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -64,6 +65,23 @@ public class PartitionNamePattern
         return new PartitionNamePattern(hostName,dt);
     }
 
+    /**
+     * Returns the time interval covered by the partition a given timestamp belongs to.
+     *
+     * @param epochSecond timestamp (seconds since the epoch)
+     * @param config
+     * @return
+     */
+    public static Interval toPartitionInterval(long epochSecond, Configuration config)
+    {
+        final int hoursPerPartition = config.hoursPerPartition;
+        final long epochDay = DateUtils.toLocalEpochDay( epochSecond, 0 );
+        final int startHour = ( DateUtils.toLocalSecondOfDay( epochSecond, 0 ) / 3600 / hoursPerPartition ) * hoursPerPartition;
+        final ZonedDateTime start = Instant.ofEpochSecond( epochDay * DateUtils.SECONDS_PER_DAY + startHour * 3600 ).atZone( DateUtils.UTC );
+        final ZonedDateTime end = start.plusHours( hoursPerPartition );
+        return new Interval(start,end);
+    }
+
     public static String parentTableName(Host host) {
         return PartitionNamePattern.TABLE_NAME_PREFIX + host.hostName;
     }
@@ -0,0 +1,360 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.parsing.JDBCHelper;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+import de.codesourcery.logreceiver.util.Interval;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically drops partitions that hold data older than the host's data retention time.
+ *
+ * If an archive directory is configured, partitions older than the hot window get copied to a {@link ArchiveFile}
+ * before they are dropped and archive files holding data older than the retention time get deleted.
+ *
+ * If {@link Configuration#trigramIndex trigram indices} are enabled, partitions whose time interval has passed
+ * get them here instead of when they're created, so building them never slows down writing to the current partition.
+ */
+final class PartitionPruner
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( PartitionPruner.class.getName() );
+
+    // PostgreSQL silently truncates longer identifiers (NAMEDATALEN - 1)
+    private static final int MAX_IDENTIFIER_BYTES = 63;
+
+    private final DataSource dataSource;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final Path archiveDirectory;
+    private boolean trigramIndex;
+
+    private EternalThread watchdog = new EternalThread("partition-pruner", () -> context ->
+    {
+        cleanUp(context);
+        context.sleep( Duration.ofHours(1) );
+    });
+
+    private void cleanUp(EternalThread.Context context)
+    {
+        LOG.info("cleanUp(): Started");
+        if ( trigramIndex && ! createTrigramExtension() ) {
+            trigramIndex = false;
+        }
+        for ( Host h : hostManager.getAllHosts() )
+        {
+            if ( context.isCancelled() )
+            {
+                LOG.info("cleanUp(): Cancelled, terminating.");
+                break;
+            }
+            try
+            {
+                cleanUp(h);
+            }
+            catch (SQLException | IOException e)
+            {
+                LOG.error("cleanUp(): Failed for host "+h,e);
+            }
+        }
+    }
+
+    private void cleanUp(Host host) throws SQLException, IOException
+    {
+        if ( host.dataRetentionTime == null && archiveDirectory == null && ! trigramIndex ) {
+            LOG.debug("cleanUp(): Host "+host+" has cleanup disabled.");
+            return;
+        }
+
+        LOG.debug("cleanUp(): Invoked for host "+host+", retention time: "+host.dataRetentionTime);
+
+        final JDBCHelper helper = new JDBCHelper( new JdbcTemplate(this.dataSource) );
+        final ZonedDateTime now = ZonedDateTime.now();
+        final ZonedDateTime earliestDate = host.dataRetentionTime == null ? null : now.minus( host.dataRetentionTime );
+        final ZonedDateTime hotWindowStart = archiveDirectory == null ? null : now.minus( config.archiveHotWindow );
+        for ( String partTableName : findPartitions( host, helper ) )
+        {
+            final PartitionNamePattern pattern = PartitionNamePattern.parse( partTableName , config );
+            final Interval iv = pattern.getInterval( config );
+            if ( earliestDate != null && iv.end.isBefore( earliestDate ) )
+            {
+                LOG.debug("cleanUp(): Dropping table '"+partTableName+"' for host "+host);
+                helper.executeUpdate( "DROP TABLE IF EXISTS "+partTableName );
+            }
+            else if ( hotWindowStart != null && iv.end.isBefore( hotWindowStart ) )
+            {
+                archiveAndDrop( host, partTableName, iv );
+            }
+            else
+            {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug("cleanUp(): Data in partition '"+partTableName+"' is not older than "+host.dataRetentionTime);
+                }
+                if ( trigramIndex && ! iv.end.isAfter( now ) ) {
+                    createTrigramIndex( partTableName, "msg", helper );
+                }
+            }
+        }
+        if ( archiveDirectory != null && earliestDate != null )
+        {
+            final Path directory = ColumnarArchive.hostDirectory( archiveDirectory, host );
+            for ( Path path : ColumnarArchive.list( directory ) )
+            {
+                if ( ArchiveFile.open( path ).partitionEnd < earliestDate.toEpochSecond() )
+                {
+                    LOG.debug("cleanUp(): Deleting archive file "+path+" for host "+host);
+                    Files.deleteIfExists( path );
+                    ColumnarArchive.invalidate( directory );
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all rows of a partition to an archive file and drops the partition.
+     *
+     * Both happen in one transaction holding an exclusive lock on the partition, so late messages
+     * written to the partition meanwhile can neither get lost nor end up in the archive as well as the database.
+     *
+     * @param host
+     * @param partTableName
+     * @param iv
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void archiveAndDrop(Host host, String partTableName, Interval iv) throws SQLException, IOException
+    {
+        final Path directory = ColumnarArchive.hostDirectory( archiveDirectory, host );
+        // a partition may get re-created by late messages and archived again, so file names need to be unique
+        final Path file = directory.resolve( partTableName + "_" + System.currentTimeMillis() + ColumnarArchive.FILE_SUFFIX );
+        boolean fileWritten = false;
+        try ( Connection connection = dataSource.getConnection() )
+        {
+            connection.setAutoCommit( false );
+            try
+            {
+                try ( Statement stmt = connection.createStatement() ) {
+                    stmt.execute( "LOCK TABLE "+partTableName+" IN ACCESS EXCLUSIVE MODE" );
+                }
+
+                final ArchiveFile.Writer writer = new ArchiveFile.Writer( iv.startEpochSeconds, iv.endEpochSeconds );
+                try ( PreparedStatement stmt = connection.prepareStatement( "SELECT * FROM "+partTableName+" ORDER BY entry_id ASC" ) )
+                {
+                    stmt.setFetchSize( JDBCHelper.BATCH_SIZE );
+                    try ( ResultSet rs = stmt.executeQuery() )
+                    {
+                        while ( rs.next() )
+                        {
+                            int fraction = rs.getInt( "log_ts_fraction" );
+                            if ( rs.wasNull() ) {
+                                fraction = -1;
+                            }
+                            writer.add( rs.getLong( "entry_id" ), rs.getShort( "priority" ), rs.getTimestamp( "log_ts" ).getTime(), fraction,
+                                rs.getString( "app_name" ), rs.getString( "proc_id" ), rs.getString( "msg_id" ),
+                                rs.getString( "params" ), rs.getString( "msg" ) );
+                        }
+                    }
+                }
+                if ( writer.getRowCount() > 0 )
+                {
+                    Files.createDirectories( directory );
+                    writer.write( file );
+                    fileWritten = true;
+                    ColumnarArchive.invalidate( directory );
+                }
+
+                LOG.debug("archiveAndDrop(): Dropping archived table '"+partTableName+"' for host "+host);
+                try ( Statement stmt = connection.createStatement() ) {
+                    stmt.execute( "DROP TABLE IF EXISTS "+partTableName );
+                }
+            }
+            catch(SQLException | IOException e)
+            {
+                connection.rollback();
+                connection.setAutoCommit( true );
+                // the rows are still in the database
+                if ( fileWritten )
+                {
+                    Files.deleteIfExists( file );
+                    ColumnarArchive.invalidate( directory );
+                }
+                throw e;
+            }
+            // if the commit fails, the table might have been dropped anyway so the file needs to stay,
+            // readers skip rows that are in the archive as well as in the database
+            try
+            {
+                connection.commit();
+            }
+            finally
+            {
+                connection.setAutoCommit( true );
+            }
+        }
+        if ( fileWritten ) {
+            LOG.info("archiveAndDrop(): Archived table '"+partTableName+"' to "+file);
+        }
+    }
+
+    private boolean createTrigramExtension()
+    {
+        try
+        {
+            new JdbcTemplate( dataSource ).execute( "CREATE EXTENSION IF NOT EXISTS pg_trgm" );
+            return true;
+        }
+        catch(DataAccessException e)
+        {
+            LOG.error("createTrigramExtension(): Failed to create pg_trgm extension, trigram indices are disabled",e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name of the trigram index on a column of a partition.
+     *
+     * Names that would exceed PostgreSQL's identifier limit get truncated and a hash of
+     * the full name is appended, so they don't silently get cut off and clash.
+     *
+     * @param partTableName
+     * @param column
+     * @return
+     */
+    static String trigramIndexName(String partTableName, String column)
+    {
+        final String name = partTableName+"_"+column+"_trgm";
+        if ( utf8Length( name ) <= MAX_IDENTIFIER_BYTES ) {
+            return name;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update( name.getBytes( StandardCharsets.UTF_8 ) );
+        final String suffix = String.format( "_%08x_trgm", crc.getValue() );
+        String prefix = partTableName+"_"+column;
+        while ( utf8Length( prefix ) + suffix.length() > MAX_IDENTIFIER_BYTES ) {
+            prefix = prefix.substring( 0, prefix.offsetByCodePoints( prefix.length(), -1 ) );
+        }
+        return prefix + suffix;
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes( StandardCharsets.UTF_8 ).length;
+    }
+
+    /**
+     * Creates a GIN trigram index on a column of a partition, unless it already exists.
+     *
+     * The index gets built concurrently as late messages may still arrive for the partition.
+     *
+     * @param partTableName
+     * @param column
+     * @param helper
+     */
+    private void createTrigramIndex(String partTableName, String column, JDBCHelper helper)
+    {
+        final String indexName = trigramIndexName( partTableName, column );
+        try
+        {
+            final Boolean valid = helper.execQuery( "SELECT i.indisvalid FROM pg_catalog.pg_class c, pg_catalog.pg_index i WHERE c.oid=i.indexrelid AND c.relname=?", rs ->
+                rs.next() ? rs.getBoolean( 1 ) : null, indexName );
+            if ( Boolean.TRUE.equals( valid ) ) {
+                return;
+            }
+            if ( valid != null )
+            {
+                // left behind by a concurrent build that failed
+                LOG.warn("createTrigramIndex(): Dropping invalid index '"+indexName+"'");
+                helper.executeUpdate( "DROP INDEX CONCURRENTLY IF EXISTS "+indexName );
+            }
+            LOG.info("createTrigramIndex(): Creating index '"+indexName+"' on table '"+partTableName+"'");
+            final long start = System.currentTimeMillis();
+            helper.executeUpdate( "CREATE INDEX CONCURRENTLY IF NOT EXISTS "+indexName+" ON "+partTableName+" USING gin ("+column+" gin_trgm_ops)" );
+            LOG.info("createTrigramIndex(): Created index '"+indexName+"' in "+(System.currentTimeMillis()-start)+" ms");
+        }
+        catch(DataAccessException e)
+        {
+            LOG.error("createTrigramIndex(): Failed to create index '"+indexName+"'",e);
+        }
+    }
+
+    private List<String> findPartitions(Host host, JDBCHelper helper) throws SQLException
+    {
+        // 1. find OID of base table
+        final String parentTable = PostgreSQLStorage.createParentTableName( host );
+        final String sql = "SELECT oid FROM pg_catalog.pg_class WHERE relkind in ('r','p') AND relname=?";
+
+        Long oid = helper.execQuery( sql, rs ->
+        {
+            Long result = null;
+            if ( rs.next() ) {
+                result = rs.getLong( 1 );
+                if ( rs.wasNull() ) {
+                    result = null;
+                }
+                if ( rs.next() ) {
+                    throw new RuntimeException("Internal error, found multiple OIDs for table '"+parentTable+"'");
+                }
+            }
+            return result;
+        } , parentTable );
+        if ( oid == null )
+        {
+            LOG.error("findPartitions(): Failed to find parent table '"+parentTable+"' for host "+host);
+            return Collections.emptyList();
+        }
+
+        // 2. find partitions of base table
+        String query = "SELECT c.relname " +
+        " FROM " +
+        "       pg_catalog.pg_class c, " +
+        "       pg_catalog.pg_inherits i" +
+        " WHERE c.oid=i.inhrelid AND i.inhparent = ? AND c.relkind='r'";
+
+        return helper.execQuery(query,rs ->
+        {
+            final List<String> result = new ArrayList<>();
+            while ( rs.next() ) {
+                String value = rs.getString(1);
+                if ( value == null || value.isBlank() ) {
+                    throw new RuntimeException("Internal error,NULL/blank partition name?");
+                }
+                result.add( value );
+            }
+            return  result;
+        }, oid );
+    }
+
+    public PartitionPruner(DataSource dataSource, IHostManager hostManager, Configuration config)
+    {
+        this.dataSource = dataSource;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.archiveDirectory = config.archiveDirectory == null ? null : Paths.get( config.archiveDirectory );
+        this.trigramIndex = config.trigramIndex;
+        watchdog.startThread();
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        watchdog.stopThread();
+    }
+}
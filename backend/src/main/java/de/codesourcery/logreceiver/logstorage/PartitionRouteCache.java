@@ -0,0 +1,99 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.util.Interval;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, direct-mapped cache remembering the partition most recently used for a host.
+ *
+ * Lookups do not allocate, a hit costs one volatile read and a range check against the partition's interval.
+ * Host IDs are handed out sequentially so hosts only evict each other once there are more active hosts than
+ * cache slots, misses need to be resolved by the caller who then puts the result into the cache.
+ *
+ * @param <T> partition type
+ */
+final class PartitionRouteCache<T>
+{
+    private static final class Route<T>
+    {
+        public final long hostId;
+        public final long startEpochSeconds;
+        public final long endEpochSeconds;
+        public final T partition;
+
+        private Route(long hostId, Interval interval, T partition)
+        {
+            this.hostId = hostId;
+            this.startEpochSeconds = interval.startEpochSeconds;
+            this.endEpochSeconds = interval.endEpochSeconds;
+            this.partition = partition;
+        }
+    }
+
+    private final AtomicReferenceArray<Route<T>> routes;
+    private final int mask;
+
+    /**
+     * Create instance.
+     *
+     * @param size number of cache slots, gets rounded up to the next power of two
+     */
+    public PartitionRouteCache(int size)
+    {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "Size must be >= 1" );
+        }
+        final int actualSize = size == 1 ? 1 : Integer.highestOneBit( size - 1 ) << 1;
+        this.routes = new AtomicReferenceArray<>( actualSize );
+        this.mask = actualSize - 1;
+    }
+
+    /**
+     * Look up the partition for a host and timestamp.
+     *
+     * @param hostId
+     * @param epochSeconds
+     * @return partition or <code>null</code> if not cached
+     */
+    public T get(long hostId, long epochSeconds)
+    {
+        final Route<T> route = routes.get( slot( hostId ) );
+        if ( route != null && route.hostId == hostId && route.startEpochSeconds <= epochSeconds && epochSeconds < route.endEpochSeconds ) {
+            return route.partition;
+        }
+        return null;
+    }
+
+    /**
+     * Remember the partition for a host, replacing whatever partition was cached for the host's slot.
+     *
+     * @param hostId
+     * @param interval time interval covered by the partition
+     * @param partition
+     */
+    public void put(long hostId, Interval interval, T partition)
+    {
+        routes.set( slot( hostId ), new Route<>( hostId, interval, partition ) );
+    }
+
+    /**
+     * Remove a partition from the cache.
+     *
+     * @param partition
+     */
+    public void remove(T partition)
+    {
+        for ( int i = 0, len = routes.length() ; i < len ; i++ )
+        {
+            final Route<T> route = routes.get( i );
+            if ( route != null && route.partition == partition ) {
+                routes.compareAndSet( i, route, null );
+            }
+        }
+    }
+
+    private int slot(long hostId) {
+        return (int) hostId & mask;
+    }
+}
@@ -112,38 +112,35 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
                 try ( ResultSet rs = stmt.executeQuery( "SELECT "+PROJECTION_COLUMNS+" FROM "+HOSTS_TABLE ) )
                 {
                     int count = 0;
-                    synchronized (LOCK)
+                    super.hostsById.clear();
+                    super.hostsByIP.clear();
+                    while ( rs.next() )
                     {
-                        super.hostsById.clear();
-                        super.hostsByIP.clear();
-                        while ( rs.next() )
+                        final Host host = new Host();
+
+                        final Long hostId = rs.getLong( "host_id" );
+                        host.id = hostId;
+
+                        final int retentionTimeHours = rs.getInt( "data_retention_hours" );
+                        if ( ! rs.wasNull() ) {
+                            host.dataRetentionTime = Duration.ofHours( retentionTimeHours );
+                        }
+                        final String ip = rs.getString("ip");
+                        try
                         {
-                            final Host host = new Host();
-
-                            final Long hostId = rs.getLong( "host_id" );
-                            host.id = hostId;
-
-                            final int retentionTimeHours = rs.getInt( "data_retention_hours" );
-                            if ( ! rs.wasNull() ) {
-                                host.dataRetentionTime = Duration.ofHours( retentionTimeHours );
-                            }
-                            final String ip = rs.getString("ip");
-                            try
-                            {
-                                // TODO: Potential for speeding things up as we know the string is definitely not a hostname
-                                host.ip = InetAddress.getByName(ip);
-                            }
-                            catch (UnknownHostException e)
-                            {
-                                // should never happen as we're parsing a literal IP
-                                throw new RuntimeException(e);
-                            }
-                            host.hostName = rs.getString( "name" );
-
-                            super.hostsById.put( hostId, host );
-                            super.hostsByIP.put( host.ip, host );
-                            count++;
+                            // TODO: Potential for speeding things up as we know the string is definitely not a hostname
+                            host.ip = InetAddress.getByName(ip);
                         }
+                        catch (UnknownHostException e)
+                        {
+                            // should never happen as we're parsing a literal IP
+                            throw new RuntimeException(e);
+                        }
+                        host.hostName = rs.getString( "name" );
+
+                        super.hostsById.put( hostId, host );
+                        super.hostsByIP.put( host.ip, host );
+                        count++;
                     }
                     LOG.info("loadTable(): Loaded "+count+" host entries.");
                 }
@@ -2,44 +2,122 @@ package de.codesourcery.logreceiver.logstorage;
 
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.util.Interval;
-import de.codesourcery.logreceiver.util.EternalThread;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 
 import javax.sql.DataSource;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.time.ZonedDateTime;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PostgreSQLStorage implements ISQLLogStorage
 {
     private final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( PostgreSQLStorage.class );
+    // arguments for handOffActiveBuffer()
+    private static final long NO_WAIT = 0;
+    private static final long WAIT_FOREVER = Long.MAX_VALUE;
+
     private static final DateTimeFormatter PG_DATE_FORMAT = DateTimeFormatter.ofPattern( "yyyy-MM-dd HH:mm:ssZ" );
 
     // Columns for COPY statement
-    private static final String COPY_COLUMNS = "priority,log_ts,log_ts_fraction,host_id,app_name,proc_id,msg_id,params,msg";
+    static final String COPY_COLUMNS = "priority,log_ts,log_ts_fraction,host_id,app_name,proc_id,msg_id,params,msg";
+    // Columns for COPY statement when entry IDs are assigned by us (only done if there are filters to pass the messages to)
+    static final String COPY_COLUMNS_WITH_ID = "entry_id,"+COPY_COLUMNS;
 
     private final FilterCallbackManager callbackHelper;
 
-    private final EternalThread watchdog;
+    private final FlushScheduler.Registration flushTask;
+
+    private final Object LOCK = new Object();
+
+    // buffer producers append to
+    // @GuardedBy( LOCK )
+    private CopyBuffer activeBuffer;
+
+    // time the first row got appended to the active buffer
+    // @GuardedBy( LOCK )
+    private long activeBufferTimestamp;
+
+    // buffers waiting to be written to the database (oldest first), the first one may currently be in flight
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<CopyBuffer> fullBuffers = new ArrayDeque<>();
+
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<CopyBuffer> freeBuffers = new ArrayDeque<>();
+
+    // @GuardedBy( LOCK )
+    private int allocatedBuffers;
+
+    // buffers that replace the active buffer while it gets spilled to disk
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<CopyBuffer> spillBuffers = new ArrayDeque<>();
+
+    // number of buffers producers are currently spilling to disk
+    // @GuardedBy( LOCK )
+    private int spillsInFlight;
+
+    // size of active and full buffers, only modified while holding LOCK
+    private volatile long pendingBytes;
+
+    // @GuardedBy( LOCK )
+    private boolean shutdown;
+
+    // number of buffers handed off to the flusher so far
+    // @GuardedBy( LOCK )
+    private long handOffs;
+
+    // number of handed-off buffers written to the database resp. committed (streaming COPY)
+    // @GuardedBy( LOCK )
+    private long buffersWritten;
+    // @GuardedBy( LOCK )
+    private long buffersDurable;
+
+    // streaming COPY: commit on next flush regardless of commit boundaries
+    private volatile boolean commitRequested;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong producerStalls = new AtomicLong();
+    private final AtomicLong producerStallMillis = new AtomicLong();
+    private final AtomicLong spilledRows = new AtomicLong();
+
+    // long-lived COPY command, NULL unless streaming COPY is enabled. Only accessed by the flush task.
+    private final CopySession copySession;
 
-    // @GuardedBy(buffer)
-    private final StringBuilder copyBuffer = new StringBuilder();
+    private final MemoryBudget memoryBudget;
 
-    private long lastFlushTimestamp = System.currentTimeMillis();
+    // rows of the buffer currently being flushed with their entry IDs prepended (if it kept messages), only accessed by the flush task
+    private final CopyBuffer rowsWithIds;
+    // entry IDs of the buffer currently being flushed, only accessed by the flush task
+    private long[] entryIds = new long[0];
+
+    // messages of rows that have been written but not published to the filters yet, only accessed by the flush task
+    private final List<SyslogMessage> writtenMessages = new ArrayList<>();
+    // whether all rows written since the last publication had their messages kept, only accessed by the flush task
+    private boolean allMessagesWritten = true;
+
+    // rows that exceeded the memory budget, NULL if spilling is disabled
+    private final SpillArea spillArea;
+    private final Spill spill;
 
     public final Host host;
     public final DataSource ds;
     public final String partitionName;
     public final String parentTable;
+    public final String sequenceName;
     public final Interval interval;
     public final Configuration config;
 
@@ -47,7 +125,11 @@ public class PostgreSQLStorage implements ISQLLogStorage
                              DataSource datasource,
                              String partition,
                              Interval interval,
-                             Configuration config, FilterCallbackManager callbackHelper) throws SQLException
+                             Configuration config,
+                             FilterCallbackManager callbackHelper,
+                             FlushScheduler flushScheduler,
+                             MemoryBudget memoryBudget,
+                             SpillArea spillArea) throws SQLException, IOException
     {
         this.host = host;
         this.callbackHelper = callbackHelper;
@@ -57,10 +139,22 @@ public class PostgreSQLStorage implements ISQLLogStorage
         this.partitionName = new PartitionNamePattern( hostName, interval.start ).getTableName( config );
         this.interval = interval;
         this.parentTable = createParentTableName( host );
+        this.sequenceName = createSequenceName( host );
         this.config = config;
-        this.watchdog =new EternalThread("psql-storage-"+hostName+"_"+interval, () -> this::flush );
+        this.activeBuffer = CopyBuffer.create( config.copyFormat );
+        this.rowsWithIds = CopyBuffer.create( config.copyFormat );
+        this.allocatedBuffers = 1;
+        this.copySession = config.streamingCopy ? new CopySession( datasource, createCopyCommand( false ), config.copyFormat ) : null;
+        this.flushTask = flushScheduler.register( "psql-storage-"+hostName+"_"+interval, this::flush );
+        this.memoryBudget = memoryBudget;
         createTables();
-        watchdog.startThread();
+        this.spillArea = spillArea;
+        this.spill = spillArea == null ? null : spillArea.create( partitionName, config.copyFormat );
+    }
+
+    private String createCopyCommand(boolean withEntryIds)
+    {
+        return "COPY " + partitionName + "("+(withEntryIds ? COPY_COLUMNS_WITH_ID : COPY_COLUMNS)+") FROM STDIN "+activeBuffer.getCopyOptions();
     }
 
     public static String createParentTableName(Host host)
@@ -68,7 +162,32 @@ public class PostgreSQLStorage implements ISQLLogStorage
         return PartitionNamePattern.TABLE_NAME_PREFIX+host.getSQLCompatibleHostName();
     }
 
+    /**
+     * Returns the name of the sequence entry IDs of a host's messages are taken from.
+     *
+     * @param host
+     * @return
+     */
+    public static String createSequenceName(Host host)
+    {
+        return "seq_"+createParentTableName( host );
+    }
+
     private void createTables() throws SQLException
+    {
+        createTables( ds, host, partitionName, interval );
+    }
+
+    /**
+     * Creates the parent table for a host (if necessary) and the partition for a given time interval.
+     *
+     * @param ds
+     * @param host
+     * @param partitionName
+     * @param interval
+     * @throws SQLException
+     */
+    static void createTables(DataSource ds, Host host, String partitionName, Interval interval) throws SQLException
     {
         try ( Connection con = ds.getConnection() )
         {
@@ -77,7 +196,7 @@ public class PostgreSQLStorage implements ISQLLogStorage
             {
                 final String parentTable = createParentTableName(host);
 
-                final String seqName = "seq_"+parentTable;
+                final String seqName = createSequenceName( host );
                 stmt.execute( "CREATE SEQUENCE IF NOT EXISTS " + seqName );
 
                 stmt.execute( "CREATE TABLE IF NOT EXISTS " + parentTable + " (" +
@@ -112,118 +231,742 @@ public class PostgreSQLStorage implements ISQLLogStorage
         }
     }
 
-    private void flushBuffer(String reason) throws SQLException, IOException
+    /**
+     * Writes all full buffers to the database, oldest first.
+     *
+     * @param reason
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void flushBuffers(String reason) throws SQLException, IOException
     {
-        synchronized(copyBuffer)
+        boolean flushed = false;
+        while ( true )
         {
-            if ( copyBuffer.length() == 0 )
+            final CopyBuffer buffer;
+            synchronized( LOCK ) {
+                buffer = fullBuffers.peekFirst();
+            }
+            if ( buffer == null ) {
+                break;
+            }
+
+            // producers keep appending to the active buffer while this one is in flight
+            writeToDatabase( buffer, reason );
+            keepWrittenMessages( buffer );
+
+            synchronized( LOCK )
             {
-                return;
+                fullBuffers.removeFirst();
+                account( -buffer.size() );
+                buffer.clear();
+                freeBuffers.addLast( buffer );
+                buffersWritten++;
+                if ( copySession == null ) {
+                    buffersDurable = buffersWritten;
+                }
+                LOCK.notifyAll();
             }
-            if ( LOG.isDebugEnabled() ) {
-                LOG.debug("flushBuffer(): Flushing buffer ("+ copyBuffer.length()+" characters) , reason: "+reason);
+            flushed = true;
+        }
+        if ( copySession != null )
+        {
+            // rows only become visible on commit
+            flushed = false;
+            if ( commitRequested || copySession.isCommitDue( config.streamingCopyCommitRows, config.streamingCopyCommitInterval ) )
+            {
+                commitRequested = false;
+                final long written;
+                synchronized( LOCK ) {
+                    written = buffersWritten;
+                }
+                flushed = commit();
+                synchronized( LOCK )
+                {
+                    buffersDurable = written;
+                    LOCK.notifyAll();
+                }
             }
+        }
+        if ( flushed ) {
+            publishWrittenMessages();
+        }
+    }
 
-            final String sql = copyBuffer.toString();
-            final Reader reader = new InputStreamReader( new ByteArrayInputStream( sql.getBytes() ) );
-            try ( final Connection connection = ds.getConnection() )
+    private void keepWrittenMessages(CopyBuffer buffer)
+    {
+        final int rowCount = buffer.rowCount();
+        if ( buffer.messageCount() > 0 )
+        {
+            for ( int i = 0 ; i < rowCount ; i++ )
             {
-                final BaseConnection con = connection.unwrap( BaseConnection.class );
-                long rowsInserted = new CopyManager( con ).copyIn( "COPY " + partitionName + "("+COPY_COLUMNS+") FROM STDIN (DELIMITER '|')", reader );
-                if ( LOG.isTraceEnabled() ) {
-                    LOG.trace("flushBuffer(): Wrote "+rowsInserted+" rows to database.");
+                final SyslogMessage message = buffer.message( i );
+                if ( message != null ) {
+                    writtenMessages.add( message );
                 }
-                copyBuffer.setLength( 0 );
-                lastFlushTimestamp = System.currentTimeMillis();
             }
-            catch(SQLException e)
+        }
+        if ( buffer.messageCount() < rowCount ) {
+            allMessagesWritten = false;
+        }
+    }
+
+    /**
+     * Passes the messages of rows that are now visible in the database to the filters, having
+     * them read the rows back from the database instead if some messages have not been kept.
+     */
+    private void publishWrittenMessages()
+    {
+        if ( ! writtenMessages.isEmpty() )
+        {
+            callbackHelper.publish( host.ip, new ArrayList<>( writtenMessages ) );
+            writtenMessages.clear();
+        }
+        if ( ! allMessagesWritten )
+        {
+            callbackHelper.markDirty( host.ip );
+            allMessagesWritten = true;
+        }
+    }
+
+    /**
+     * Reserves entry IDs for all rows of a buffer from the host's sequence.
+     *
+     * Rows of buffers that kept their messages get their entry ID assigned here instead of by the
+     * column default so that the IDs are known without reading the rows back, kept messages get their ID set.
+     * <code>COPY</code> can't return generated values, so learning the IDs costs one round-trip per flush either way.
+     * Other buffers are written without entry IDs, saving the round-trip.
+     *
+     * The IDs are reserved before the rows get committed, {@link FilterCallbackManager} copes with
+     * other flushes committing higher IDs in the meantime.
+     *
+     * @param con
+     * @param buffer
+     * @return the buffer's rows with the entry IDs prepended, only valid until the next call
+     * @throws SQLException
+     */
+    private CopyBuffer assignEntryIds(Connection con, CopyBuffer buffer) throws SQLException
+    {
+        final int count = buffer.rowCount();
+        if ( entryIds.length < count ) {
+            entryIds = new long[ count ];
+        }
+        try ( PreparedStatement stmt = con.prepareStatement( "SELECT nextval('"+sequenceName+"') FROM generate_series(1,?)" ) )
+        {
+            stmt.setInt( 1, count );
+            try ( ResultSet rs = stmt.executeQuery() )
             {
-                LOG.error("flushBuffer():\n"+sql);
-                throw e;
+                int i = 0;
+                while ( i < count && rs.next() ) {
+                    entryIds[i++] = rs.getLong( 1 );
+                }
+                if ( i != count ) {
+                    throw new SQLException( "Expected "+count+" entry IDs from "+sequenceName+" but got "+i );
+                }
             }
         }
-        callbackHelper.markDirty( host.ip );
+        Arrays.sort( entryIds, 0, count );
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SyslogMessage message = buffer.message( i );
+            if ( message != null ) {
+                message.id = entryIds[i];
+            }
+        }
+        rowsWithIds.clear();
+        rowsWithIds.appendWithEntryIds( buffer, entryIds );
+        return rowsWithIds;
+    }
+
+    private void writeToDatabase(CopyBuffer buffer, String reason) throws SQLException, IOException
+    {
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug("writeToDatabase(): Flushing buffer ("+ buffer.size()+" characters/bytes) , reason: "+reason);
+        }
+
+        final boolean withEntryIds = buffer.messageCount() > 0;
+        if ( copySession != null )
+        {
+            CopyBuffer rows = buffer;
+            if ( withEntryIds )
+            {
+                try ( final Connection connection = ds.getConnection() ) {
+                    rows = assignEntryIds( connection, buffer );
+                }
+            }
+            if ( copySession.setCommand( createCopyCommand( withEntryIds ) ) > 0 ) {
+                publishWrittenMessages();
+            }
+            copySession.write( rows );
+            flushCount.incrementAndGet();
+            return;
+        }
+
+        try ( final Connection connection = ds.getConnection() )
+        {
+            final CopyBuffer rows = withEntryIds ? assignEntryIds( connection, buffer ) : buffer;
+            final BaseConnection con = connection.unwrap( BaseConnection.class );
+            long rowsInserted = rows.copyIn( new CopyManager( con ), createCopyCommand( withEntryIds ) );
+            if ( LOG.isTraceEnabled() ) {
+                LOG.trace("writeToDatabase(): Wrote "+rowsInserted+" rows to database.");
+            }
+            flushCount.incrementAndGet();
+        }
+        catch(SQLException e)
+        {
+            LOG.error("writeToDatabase():\n"+buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Commits the streaming COPY session.
+     *
+     * @return <code>true</code> if any rows got committed
+     * @throws SQLException
+     */
+    private boolean commit() throws SQLException
+    {
+        final long rowsCommitted = copySession.commit();
+        if ( LOG.isTraceEnabled() ) {
+            LOG.trace("commit(): Committed "+rowsCommitted+" rows.");
+        }
+        return rowsCommitted > 0;
+    }
+
+    /**
+     * Moves the active buffer to the list of buffers waiting to be flushed.
+     *
+     * @param waitUntil time until which to wait for a buffer to become available if all buffers are full or in flight,
+     *                  {@link #NO_WAIT} or {@link #WAIT_FOREVER}
+     * @return <code>true</code> if the active buffer got handed off
+     */
+    // @GuardedBy( LOCK )
+    private boolean handOffActiveBuffer(long waitUntil)
+    {
+        CopyBuffer next = freeBuffers.pollFirst();
+        if ( next == null && allocatedBuffers < Math.max( 2, config.copyBuffersPerPartition ) )
+        {
+            next = CopyBuffer.create( config.copyFormat );
+            allocatedBuffers++;
+        }
+        if ( next == null )
+        {
+            if ( waitUntil == NO_WAIT ) {
+                return false;
+            }
+            // all buffers are full or in flight, block until the flusher returns one
+            producerStalls.incrementAndGet();
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("handOffActiveBuffer(): All "+allocatedBuffers+" buffers in use, waiting for flush of "+this);
+            }
+            flushTask.wakeUp();
+            final long generation = handOffs;
+            final long start = System.currentTimeMillis();
+            try
+            {
+                while ( ! shutdown && ( next = freeBuffers.pollFirst() ) == null )
+                {
+                    final long remaining = waitUntil - System.currentTimeMillis();
+                    if ( remaining <= 0 ) {
+                        break;
+                    }
+                    LOCK.wait( Math.min( remaining, 100 ) );
+                    flushTask.wakeUp();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                producerStallMillis.addAndGet( System.currentTimeMillis() - start );
+            }
+            if ( next == null ) {
+                return false;
+            }
+            if ( handOffs != generation )
+            {
+                // another producer handed off the buffer while we were waiting
+                freeBuffers.addFirst( next );
+                LOCK.notifyAll();
+                return false;
+            }
+        }
+        fullBuffers.addLast( activeBuffer );
+        activeBuffer = next;
+        handOffs++;
+        return true;
+    }
+
+    @Override
+    public CopyFormat getCopyFormat() {
+        return config.copyFormat;
     }
 
     @Override
-    public void store(Host host, ZonedDateTime timestamp, String sql)
+    public boolean sync(Duration timeout) throws InterruptedException
     {
-        if ( ! interval.contains( timestamp ) ) {
-            LOG.error("store(): Timestamp "+timestamp+" is not in range of "+interval);
-            throw new IllegalArgumentException( "Timestamp not in range" );
+        final long deadline = System.currentTimeMillis() + timeout.toMillis();
+        synchronized( LOCK )
+        {
+            if ( ! activeBuffer.isEmpty() )
+            {
+                final long generation = handOffs;
+                if ( ! handOffActiveBuffer( deadline ) && handOffs == generation ) {
+                    return false;
+                }
+            }
+            final long target = handOffs;
+            while ( buffersDurable < target || spillsInFlight > 0 || ( spill != null && ! spill.isEmpty() ) )
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( shutdown || remaining <= 0 ) {
+                    return false;
+                }
+                if ( copySession != null ) {
+                    commitRequested = true;
+                }
+                flushTask.wakeUp();
+                LOCK.wait( Math.min( remaining, 100 ) );
+            }
+            return true;
         }
-        if ( host.id != this.host.id ) {
-            throw new IllegalArgumentException( "Wrong host ID" );
+    }
+
+    @Override
+    public void store(Host host, long epochSecond, String sql) {
+        store( RowBatch.of( host, epochSecond, sql ) );
+    }
+
+    @Override
+    public void store(RowBatch batch)
+    {
+        store( batch, 0, batch.size() );
+    }
+
+    /**
+     * Store a range of rows from a batch, taking the buffer lock only once.
+     *
+     * @param batch
+     * @param start index of first row to store (inclusive)
+     * @param end index of last row to store (exclusive)
+     */
+    public void store(RowBatch batch, int start, int end)
+    {
+        for ( int i = start ; i < end ; i++ )
+        {
+            if ( ! interval.contains( batch.epochSecond( i ) ) ) {
+                LOG.error("store(): Timestamp "+Instant.ofEpochSecond( batch.epochSecond( i ) )+" is not in range of "+interval);
+                throw new IllegalArgumentException( "Timestamp not in range" );
+            }
+            if ( batch.host( i ).id != this.host.id ) {
+                throw new IllegalArgumentException( "Wrong host ID" );
+            }
         }
 
-        final int charsInBuffer;
-        synchronized(copyBuffer)
+        // only hold on to messages if somebody is interested in them
+        final boolean keepMessages = callbackHelper.hasCallbacks( host.ip );
+
+        final boolean firstRow;
+        final boolean handedOff;
+        final CopyBuffer toSpill;
+        synchronized( LOCK )
         {
-            if ( watchdog.isShutdown() ) {
-                LOG.fatal("store(): Shutting down, lost message for "+ host +" @ "+timestamp);
+            if ( shutdown ) {
+                LOG.fatal("store(): Shutting down, lost "+(end-start)+" messages for "+ host);
                 return;
             }
-            if ( copyBuffer.length() > 0 )
+            firstRow = beforeAppend();
+            final int sizeBefore = activeBuffer.size();
+            activeBuffer.append( batch, start, end );
+            if ( keepMessages ) {
+                activeBuffer.keepMessages( batch, start, end );
+            }
+            account( activeBuffer.size() - sizeBefore );
+            final long generation = handOffs;
+            toSpill = handOffIfNecessary();
+            handedOff = handOffs != generation;
+        }
+        if ( toSpill != null ) {
+            spill( toSpill );
+        }
+        afterAppend( firstRow, handedOff );
+    }
+
+    // @GuardedBy( LOCK )
+    private void account(long delta)
+    {
+        pendingBytes += delta;
+        memoryBudget.add( delta );
+    }
+
+    // @GuardedBy( LOCK )
+    private boolean isOverBudget() {
+        return pendingBytes > config.maxPendingBytesPerPartition || memoryBudget.isExhausted();
+    }
+
+    /**
+     * Hands off the active buffer once it is full.
+     *
+     * If the memory budget is exhausted or all buffers are in use, the active buffer gets replaced by an empty one
+     * instead and returned so that the caller can {@link #spill(CopyBuffer) spill} it to disk after releasing the lock.
+     * Without spilling, producers block until a buffer becomes available and the memory budget permits.
+     *
+     * @return buffer to spill or <code>null</code>
+     */
+    // @GuardedBy( LOCK )
+    private CopyBuffer handOffIfNecessary()
+    {
+        final boolean overBudget = isOverBudget();
+        if ( ! overBudget && activeBuffer.size() <= config.maxCharsInBuffer ) {
+            return null;
+        }
+        if ( spill == null )
+        {
+            handOffActiveBuffer( WAIT_FOREVER );
+            if ( overBudget ) {
+                awaitBudget();
+            }
+            return null;
+        }
+        if ( ! overBudget && handOffActiveBuffer( NO_WAIT ) ) {
+            return null;
+        }
+        final CopyBuffer buffer = activeBuffer;
+        activeBuffer = spillBuffers.isEmpty() ? CopyBuffer.create( config.copyFormat ) : spillBuffers.removeFirst();
+        spillsInFlight++;
+        return buffer;
+    }
+
+    /**
+     * Writes a buffer returned by {@link #handOffIfNecessary()} to disk.
+     *
+     * If that fails, the buffer gets handed to the flusher instead and the caller waits for the database.
+     *
+     * @param buffer
+     */
+    private void spill(CopyBuffer buffer)
+    {
+        boolean spilled = false;
+        try
+        {
+            spill.write( buffer );
+            spilled = true;
+        }
+        catch (IOException e)
+        {
+            LOG.error("spill(): Failed to spill rows of "+this+", waiting for database instead",e);
+        }
+        synchronized( LOCK )
+        {
+            spillsInFlight--;
+            if ( spilled )
+            {
+                spilledRows.addAndGet( buffer.rowCount() );
+                account( -buffer.size() );
+                buffer.clear();
+                spillBuffers.addLast( buffer );
+                // make sure spilled rows get loaded into the database eventually
+                flushTask.schedule( System.currentTimeMillis() + config.flushInterval.toMillis() );
+            }
+            else
             {
-                copyBuffer.append( SQLLogWriter.ROW_DELIMITER );
+                fullBuffers.addLast( buffer );
+                handOffs++;
+                awaitFlush( buffer );
             }
-            copyBuffer.append( sql );
-            charsInBuffer = copyBuffer.length();
+            LOCK.notifyAll();
         }
+    }
 
-        if ( charsInBuffer > config.maxCharsInBuffer )
+    /**
+     * Blocks until a buffer that could not be spilled has been written to the database.
+     *
+     * @param buffer
+     */
+    // @GuardedBy( LOCK )
+    private void awaitFlush(CopyBuffer buffer)
+    {
+        producerStalls.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        try
         {
-            if ( LOG.isDebugEnabled() ) {
-                LOG.debug("store(): Flushing (batch size "+config.maxCharsInBuffer+" exceeded)");
+            while ( ! shutdown && fullBuffers.contains( buffer ) )
+            {
+                flushTask.wakeUp();
+                LOCK.wait( 100 );
             }
-            watchdog.wakeUp();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            producerStallMillis.addAndGet( System.currentTimeMillis() - start );
+        }
+        // the flusher put it into the free buffers, keep the number of buffers of each kind stable
+        if ( freeBuffers.remove( buffer ) ) {
+            spillBuffers.addLast( buffer );
         }
     }
 
-    private void flush(EternalThread.Context ctx) throws SQLException, IOException
+    // @GuardedBy( LOCK )
+    private void awaitBudget()
     {
-        while ( ! ctx.isCancelled() )
+        producerStalls.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        try
         {
-            String reason = null;
-            boolean doFlush = false;
+            while ( ! shutdown && isOverBudget() )
+            {
+                flushTask.wakeUp();
+                LOCK.wait( 100 );
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            producerStallMillis.addAndGet( System.currentTimeMillis() - start );
+        }
+    }
 
-            if ( ! ctx.sleep( config.flushInterval ) ) {
-                break;
+    /**
+     * Remembers when the first row got appended to the active buffer.
+     *
+     * @return <code>true</code> if the active buffer was empty
+     */
+    // @GuardedBy( LOCK )
+    private boolean beforeAppend()
+    {
+        if ( activeBuffer.isEmpty() )
+        {
+            activeBufferTimestamp = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    private void afterAppend(boolean firstRow, boolean handedOff)
+    {
+        if ( handedOff )
+        {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("store(): Flushing (batch size "+config.maxCharsInBuffer+" exceeded)");
             }
-            long elapsedMillis = System.currentTimeMillis() - lastFlushTimestamp;
-            if ( elapsedMillis >= config.flushInterval.toMillis() )
+            flushTask.wakeUp();
+        }
+        else if ( firstRow )
+        {
+            flushTask.schedule( System.currentTimeMillis() + config.flushInterval.toMillis() );
+        }
+    }
+
+    /**
+     * Invoked by the {@link FlushScheduler}.
+     *
+     * @return time of next invocation
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long flush() throws SQLException, IOException
+    {
+        String reason = "batchsize exceeded";
+        synchronized( LOCK )
+        {
+            if ( ! activeBuffer.isEmpty() && System.currentTimeMillis() - activeBufferTimestamp >= config.flushInterval.toMillis() )
             {
                 reason = "timeout";
-                doFlush = true;
+                handOffActiveBuffer( NO_WAIT );
             }
-            else
+        }
+        flushBuffers( reason );
+        if ( spill != null ) {
+            ingestSpilledRows();
+        }
+
+        final long now = System.currentTimeMillis();
+        synchronized( LOCK )
+        {
+            if ( ! fullBuffers.isEmpty() ) {
+                return now;
+            }
+            long next = FlushScheduler.NOT_SCHEDULED;
+            if ( ! activeBuffer.isEmpty() ) {
+                next = activeBufferTimestamp + config.flushInterval.toMillis();
+            }
+            if ( copySession != null && copySession.getUncommittedRows() > 0 ) {
+                next = Math.min( next, now + config.flushInterval.toMillis() );
+            }
+            if ( spill != null && ! spill.isEmpty() ) {
+                next = Math.min( next, now + config.flushInterval.toMillis() );
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Loads spilled rows into the database, unless the memory budget is still exhausted
+     * (in which case the database is most likely still lagging behind).
+     *
+     * Spilled rows get their entry IDs from the column default while being loaded, so they end up with
+     * higher IDs than rows that got buffered after them (see {@link IMessageDAO}).
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void ingestSpilledRows() throws SQLException, IOException
+    {
+        synchronized( LOCK )
+        {
+            if ( isOverBudget() && ! shutdown ) {
+                return;
+            }
+        }
+        spill.complete();
+        if ( spill.hasCompleteFiles() && spill.ingest( ds ) > 0 ) {
+            callbackHelper.markDirty( host.ip );
+        }
+    }
+
+    /**
+     * Writes rows that could not be flushed on shutdown to disk and hands them over to the {@link SpillArea}.
+     */
+    private void releaseSpill()
+    {
+        try
+        {
+            synchronized( LOCK )
             {
-                final int charsInBuffer;
-                synchronized(copyBuffer) {
-                    charsInBuffer = copyBuffer.length();
+                // producers might still be writing to the spill
+                while ( spillsInFlight > 0 ) {
+                    LOCK.wait( 100 );
                 }
-                if ( charsInBuffer > config.maxCharsInBuffer )
+                if ( ! activeBuffer.isEmpty() ) {
+                    fullBuffers.addLast( activeBuffer );
+                }
+                for ( CopyBuffer buffer : fullBuffers )
                 {
-                    reason = "batchsize exceeded";
-                    doFlush = true;
+                    spill.write( buffer );
+                    spilledRows.addAndGet( buffer.rowCount() );
+                    account( -buffer.size() );
+                    buffer.clear();
                 }
+                fullBuffers.clear();
             }
-            if ( doFlush )
+            spillArea.release( spill );
+        }
+        catch(IOException e)
+        {
+            LOG.fatal("releaseSpill(): Failed to spill rows of "+this+", rows lost",e);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOG.fatal("releaseSpill(): Interrupted while waiting for producers, rows of "+this+" lost",e);
+        }
+    }
+
+    private void flushOnShutdown() throws SQLException, IOException
+    {
+        while ( true )
+        {
+            flushBuffers( "shutdown" );
+            synchronized( LOCK )
             {
-                flushBuffer(reason);
+                if ( activeBuffer.isEmpty() || ! handOffActiveBuffer( NO_WAIT ) ) {
+                    break;
+                }
             }
         }
-        // make sure to flush on shutdown
-        flushBuffer("shutdown");
+        if ( copySession != null && copySession.close() > 0 ) {
+            publishWrittenMessages();
+        }
+        if ( spill != null ) {
+            ingestSpilledRows();
+        }
     }
 
     public void shutdown() throws InterruptedException
     {
-        LOG.info("shutdown(): Shutting down ");
-        synchronized( copyBuffer )
+        LOG.info("shutdown(): Shutting down "+this+", flushes: "+getFlushCount()+", producer stalls: "+getProducerStalls()+" ("+getProducerStallMillis()+" ms), spilled rows: "+getSpilledRows());
+        synchronized( LOCK )
+        {
+            shutdown = true;
+            LOCK.notifyAll();
+        }
+        // wait for a flush that might currently be running, then flush the rest on this thread
+        flushTask.cancel();
+        try
         {
-            watchdog.stopThread();
+            flushOnShutdown();
         }
+        catch(SQLException | IOException e)
+        {
+            LOG.error("shutdown(): Failed to flush "+this,e);
+        }
+        if ( spill != null ) {
+            releaseSpill();
+        }
+    }
+
+    /**
+     * Returns the number of times buffered rows got written to the database.
+     *
+     * @return
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Returns the number of times a producer had to wait because all buffers were full or being flushed.
+     *
+     * @return
+     */
+    public long getProducerStalls() {
+        return producerStalls.get();
+    }
+
+    /**
+     * Returns the total time producers spent waiting for a free buffer.
+     *
+     * @return
+     */
+    public long getProducerStallMillis() {
+        return producerStallMillis.get();
+    }
+
+    /**
+     * Returns the amount of rows buffered in memory that are waiting to be written to the database.
+     *
+     * @return number of characters (text format) or bytes (binary format)
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Returns the number of bytes of spilled rows waiting on disk to be loaded into the database.
+     *
+     * @return
+     */
+    public long getSpilledBytes() {
+        return spill == null ? 0 : spill.getBytes();
+    }
+
+    /**
+     * Returns the number of rows that got spilled to disk because the memory budget was exhausted.
+     *
+     * @return
+     */
+    public long getSpilledRows() {
+        return spilledRows.get();
     }
 
     @Override
@@ -0,0 +1,54 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reads messages from a {@link SegmentLogStorage} for hosts it handles and from the database for all others.
+ */
+public class RoutingMessageDAO implements IMessageDAO
+{
+    private final IMessageDAO database;
+    private final SegmentLogStorage segments;
+
+    public RoutingMessageDAO(IMessageDAO database, SegmentLogStorage segments)
+    {
+        this.database = database;
+        this.segments = segments;
+    }
+
+    private IMessageDAO dao(Host host) {
+        return segments.handles( host ) ? segments : database;
+    }
+
+    @Override
+    public Long getLatestMessageId(Host host) {
+        return dao( host ).getLatestMessageId( host );
+    }
+
+    @Override
+    public void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids) {
+        dao( host ).visitMessages( host, consumer, ids );
+    }
+
+    @Override
+    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount) {
+        return dao( host ).getLatestMessages( host, callback, maxCount );
+    }
+
+    @Override
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel) {
+        return dao( host ).visitNewerMessages( host, filters, latestId, cancel );
+    }
+
+    @Override
+    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction, long refLogEntryId, int maxCount) {
+        return dao( host ).getMessages( host, callback, direction, refLogEntryId, maxCount );
+    }
+}
@@ -0,0 +1,241 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Re-usable list of rows that are handed to an {@link ISQLLogStorage} in one go.
+ *
+ * Rows are either text rows ({@link CopyFormat#TEXT}) or binary rows ({@link CopyFormat#BINARY}) that
+ * get written back-to-back into a single buffer, a batch never mixes both.
+ *
+ * Not thread-safe.
+ */
+public final class RowBatch
+{
+    private Host[] hosts;
+    private long[] epochSeconds;
+    private String[] rows;
+    private SyslogMessage[] messages;
+    private int size;
+
+    // binary rows
+    private ByteBuffer binaryData;
+    private int[] rowEnds;
+    private boolean binary;
+
+    public RowBatch() {
+        this( 16 );
+    }
+
+    public RowBatch(int initialCapacity)
+    {
+        final int capacity = Math.max( 1, initialCapacity );
+        hosts = new Host[ capacity ];
+        epochSeconds = new long[ capacity ];
+        rows = new String[ capacity ];
+        messages = new SyslogMessage[ capacity ];
+        rowEnds = new int[ capacity ];
+    }
+
+    /**
+     * Creates a batch holding a single text row.
+     *
+     * @param host
+     * @param epochSecond timestamp of the row's message (seconds since the epoch)
+     * @param row
+     * @return
+     */
+    public static RowBatch of(Host host, long epochSecond, String row)
+    {
+        final RowBatch batch = new RowBatch( 1 );
+        batch.add( host, epochSecond, row );
+        return batch;
+    }
+
+    public void add(Host host, long epochSecond, String row) {
+        add( host, epochSecond, row, null );
+    }
+
+    /**
+     * Add a text row.
+     *
+     * @param host
+     * @param epochSecond timestamp of the row's message (seconds since the epoch)
+     * @param row
+     * @param message message the row was created from, may be <code>null</code>
+     */
+    public void add(Host host, long epochSecond, String row, SyslogMessage message)
+    {
+        if ( binary ) {
+            throw new IllegalStateException( "Batch already contains binary rows" );
+        }
+        ensureCapacity();
+        hosts[size] = host;
+        epochSeconds[size] = epochSecond;
+        messages[size] = message;
+        rows[size++] = row;
+    }
+
+    /**
+     * Returns the buffer binary rows get written to.
+     *
+     * The returned buffer is positioned right after the last row and changes whenever
+     * it needs to grow, callers must not hold on to it after calling this method again.
+     *
+     * @param minRemaining number of bytes that need to be available after the buffer's position
+     * @return
+     * @see #endBinaryRow(Host, long, SyslogMessage)
+     */
+    public ByteBuffer binaryData(int minRemaining)
+    {
+        if ( binaryData == null ) {
+            binaryData = ByteBuffer.allocate( Math.max( 4096, minRemaining ) );
+        }
+        else if ( binaryData.remaining() < minRemaining )
+        {
+            final int required = binaryData.position() + minRemaining;
+            final ByteBuffer tmp = ByteBuffer.allocate( Math.max( required, binaryData.capacity() * 2 ) );
+            binaryData.flip();
+            tmp.put( binaryData );
+            binaryData = tmp;
+        }
+        return binaryData;
+    }
+
+    public void endBinaryRow(Host host, long epochSecond) {
+        endBinaryRow( host, epochSecond, null );
+    }
+
+    /**
+     * Marks everything written to {@link #binaryData(int)} since the last row as a new row.
+     *
+     * @param host
+     * @param epochSecond timestamp of the row's message (seconds since the epoch)
+     * @param message message the row was created from, may be <code>null</code>
+     */
+    public void endBinaryRow(Host host, long epochSecond, SyslogMessage message)
+    {
+        if ( size > 0 && ! binary ) {
+            throw new IllegalStateException( "Batch already contains text rows" );
+        }
+        binary = true;
+        ensureCapacity();
+        hosts[size] = host;
+        epochSeconds[size] = epochSecond;
+        messages[size] = message;
+        rowEnds[size++] = binaryData.position();
+    }
+
+    /**
+     * Returns the number of bytes occupied by a range of binary rows.
+     *
+     * @param start index of first row (inclusive)
+     * @param end index of last row (exclusive)
+     * @return
+     */
+    public int binaryLength(int start, int end)
+    {
+        if ( start >= end ) {
+            return 0;
+        }
+        return rowEnds[end-1] - rowStart( start );
+    }
+
+    /**
+     * Copies a range of binary rows into a buffer.
+     *
+     * @param start index of first row (inclusive)
+     * @param end index of last row (exclusive)
+     * @param destination buffer to copy to, needs to have at least {@link #binaryLength(int, int)} bytes remaining
+     */
+    public void copyBinaryRows(int start, int end, ByteBuffer destination)
+    {
+        if ( start >= end ) {
+            return;
+        }
+        final ByteBuffer src = binaryData.duplicate();
+        src.limit( rowEnds[end-1] ).position( rowStart( start ) );
+        destination.put( src );
+    }
+
+    private int rowStart(int index) {
+        return index == 0 ? 0 : rowEnds[index-1];
+    }
+
+    private void ensureCapacity()
+    {
+        if ( size == hosts.length )
+        {
+            final int newCapacity = hosts.length * 2;
+            hosts = Arrays.copyOf( hosts, newCapacity );
+            epochSeconds = Arrays.copyOf( epochSeconds, newCapacity );
+            rows = Arrays.copyOf( rows, newCapacity );
+            messages = Arrays.copyOf( messages, newCapacity );
+            rowEnds = Arrays.copyOf( rowEnds, newCapacity );
+        }
+    }
+
+    public Host host(int index) {
+        return hosts[index];
+    }
+
+    /**
+     * Returns the timestamp of a row's message.
+     *
+     * @param index
+     * @return seconds since the epoch
+     */
+    public long epochSecond(int index) {
+        return epochSeconds[index];
+    }
+
+    /**
+     * Returns the message a row was created from.
+     *
+     * The message may get re-used as soon as the batch has been stored, see {@link ILogStorage#store(SyslogMessage)}.
+     *
+     * @param index
+     * @return message or <code>null</code> if unknown
+     */
+    public SyslogMessage message(int index) {
+        return messages[index];
+    }
+
+    /**
+     * Returns a text row.
+     *
+     * @param index
+     * @return row or <code>null</code> if this batch contains binary rows
+     */
+    public String row(int index) {
+        return rows[index];
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        Arrays.fill( hosts, 0, size, null );
+        Arrays.fill( rows, 0, size, null );
+        Arrays.fill( messages, 0, size, null );
+        size = 0;
+        binary = false;
+        if ( binaryData != null ) {
+            binaryData.clear();
+        }
+    }
+}
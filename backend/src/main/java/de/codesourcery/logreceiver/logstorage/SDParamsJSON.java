@@ -0,0 +1,74 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads structured data parameters back from the JSON stored in the <code>params</code> column
+ * (see {@link SQLLogWriter#setParams(SyslogMessage)} and {@link BinaryLogWriter}).
+ *
+ * The writers emit elements and parameters last to first, so they get added in reverse order.
+ * Note that PostgreSQL's jsonb type does not preserve the order of parameters within an element.
+ */
+final class SDParamsJSON
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SDParamsJSON() {
+    }
+
+    /**
+     * Adds the structured data elements stored in a <code>params</code> column to a message.
+     *
+     * @param json column value, may be <code>null</code>
+     * @param message
+     * @throws UncheckedIOException if the value is not valid JSON
+     */
+    public static void unmarshal(String json, SyslogMessage message)
+    {
+        if ( json == null || "null".equals( json ) ) {
+            return;
+        }
+        final JsonNode data;
+        try
+        {
+            data = MAPPER.readTree( json ).get( "data" );
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException( "Malformed JSON in params column: " + json, e );
+        }
+        if ( data == null || ! data.isArray() ) {
+            return;
+        }
+        for ( int i = data.size() - 1 ; i >= 0 ; i-- )
+        {
+            final JsonNode element = data.get( i );
+            final SDParam param = message.newParam( text( element.get( "id" ) ) );
+            final JsonNode params = element.get( "params" );
+            if ( params != null && params.isObject() )
+            {
+                final List<Map.Entry<String, JsonNode>> entries = new ArrayList<>();
+                for ( Iterator<Map.Entry<String, JsonNode>> it = params.fields() ; it.hasNext() ; ) {
+                    entries.add( it.next() );
+                }
+                for ( int j = entries.size() - 1 ; j >= 0 ; j-- ) {
+                    param.addParam( entries.get( j ).getKey(), text( entries.get( j ).getValue() ) );
+                }
+            }
+        }
+    }
+
+    private static String text(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+}
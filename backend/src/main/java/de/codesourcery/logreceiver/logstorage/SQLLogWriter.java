@@ -4,15 +4,15 @@ import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SDParam;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.DateUtils;
 
-import java.time.ZonedDateTime;
 import java.util.Comparator;
 import java.util.stream.Stream;
 
 public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
 {
     private static final String SQL_NULL = "null";
-    private static final char COL_DELIMITER = '|';
+    static final char COL_DELIMITER = '|';
     public static final char ROW_DELIMITER = '\n';
 
     private final StringBuilder buffer = new StringBuilder();
@@ -20,10 +20,18 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
     private final ISQLLogStorage storage;
     private final IHostManager hostIdResolver;
 
-    private ZonedDateTime timestamp;
+    // row assembly is stateful, each thread gets its own writer instance
+    private final ThreadLocal<SQLLogWriter> writerPerThread;
+
+    private long epochSecond;
 
     private int currentField;
 
+    private RowBatch rowBatch;
+    // rows of the batch currently being written, NULL when writing a single message
+    private RowBatch pendingRows;
+    private final SyslogMessage[] singleMessage = new SyslogMessage[1];
+
     @Override
     public Void visit(int tzHours, int tzMinutes, boolean posTZ)
     {
@@ -53,6 +61,47 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
 
     @Override
     public void store(SyslogMessage message)
+    {
+        // go through a batch so the storage gets to see the message as well
+        final SQLLogWriter writer = writerPerThread.get();
+        writer.singleMessage[0] = message;
+        try
+        {
+            writer.write( writer.singleMessage, 1 );
+        }
+        finally
+        {
+            writer.singleMessage[0] = null;
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage[] messages, int count)
+    {
+        writerPerThread.get().write( messages, count );
+    }
+
+    private void write(SyslogMessage[] messages, int count)
+    {
+        if ( rowBatch == null ) {
+            rowBatch = new RowBatch( count );
+        }
+        pendingRows = rowBatch;
+        try
+        {
+            for ( int i = 0 ; i < count ; i++ ) {
+                write( messages[i] );
+            }
+            storage.store( rowBatch );
+        }
+        finally
+        {
+            pendingRows = null;
+            rowBatch.clear();
+        }
+    }
+
+    private void write(SyslogMessage message)
     {
         beginMessage();
         setPriority(message.priority);
@@ -63,7 +112,7 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
         setMsgId(message.msgId);
         setParams(message);
         setMessage(message.message);
-        endMessage(message.host);
+        endMessage(message.host, message);
     }
 
     private static final Field[] fields = Stream.of( Field.values() ).sorted( Comparator.comparingInt(a -> a.index ) ).toArray( Field[]::new );
@@ -71,6 +120,13 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
     public SQLLogWriter(ISQLLogStorage storage, IHostManager hostIdResolver) {
         this.storage = storage;
         this.hostIdResolver = hostIdResolver;
+        this.writerPerThread = ThreadLocal.withInitial( () -> new SQLLogWriter( this ) );
+    }
+
+    private SQLLogWriter(SQLLogWriter parent) {
+        this.storage = parent.storage;
+        this.hostIdResolver = parent.hostIdResolver;
+        this.writerPerThread = null;
     }
 
     public void beginMessage()
@@ -78,17 +134,25 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
         if ( currentField != 0 || buffer.length() != 0 ) {
             throw new IllegalStateException( "endMessage() not called?" );
         }
-        timestamp = null;
+        epochSecond = 0;
     }
 
-    public void endMessage(Host host)
+    public void endMessage(Host host) {
+        endMessage( host, null );
+    }
+
+    private void endMessage(Host host, SyslogMessage message)
     {
         if ( currentField != fields.length )
         {
             writeNullValues( fields.length - currentField );
         }
 
-        storage.store( host, timestamp, buffer.toString() );
+        if ( pendingRows != null ) {
+            pendingRows.add( host, epochSecond, buffer.toString(), message );
+        } else {
+            storage.store( host, epochSecond, buffer.toString() );
+        }
         currentField = 0;
         buffer.setLength( 0 );
     }
@@ -158,22 +222,26 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
             buffer.append(COL_DELIMITER);
         }
 
-        timestamp = message.timestamp;
+        epochSecond = message.getEpochSecond();
+
+        // local date and time as seen by the sender
+        final int date = DateUtils.toDate( DateUtils.toLocalEpochDay( epochSecond, message.getTZOffsetSeconds() ) );
+        final int secondOfDay = DateUtils.toLocalSecondOfDay( epochSecond, message.getTZOffsetSeconds() );
 
-        buffer.append( timestamp.getYear() ).append('-');
-        buffer.append( timestamp.getMonthValue() ).append('-');
-        buffer.append( timestamp.getDayOfMonth() ).append(' ');
+        buffer.append( DateUtils.getYear( date ) ).append('-');
+        buffer.append( DateUtils.getMonth( date ) ).append('-');
+        buffer.append( DateUtils.getDayOfMonth( date ) ).append(' ');
 
-        buffer.append( timestamp.getHour() ).append(':');
-        buffer.append( timestamp.getMinute() ).append(':');
-        buffer.append( timestamp.getSecond() );
+        buffer.append( secondOfDay / 3600 ).append(':');
+        buffer.append( ( secondOfDay / 60 ) % 60 ).append(':');
+        buffer.append( secondOfDay % 60 );
 
         message.visitTZOffset(this);
         currentField++;
 
         advanceTo( Field.TIMESTAMP_FRACTION );
         buffer.append(COL_DELIMITER);
-        buffer.append( timestamp.getNano() );
+        buffer.append( message.getNanos() );
         currentField++;
     }
 
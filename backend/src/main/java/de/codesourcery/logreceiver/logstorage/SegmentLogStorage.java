@@ -0,0 +1,518 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.parsing.JDBCHelper;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+import de.codesourcery.logreceiver.util.Interval;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores log messages in memory-mapped {@link MessageSegment} files instead of the database.
+ *
+ * Only used for hosts listed in {@link Configuration#segmentStorageHosts}. Files are organized like the database
+ * partitions used by {@link DelegatingLogStorage}: one directory per host, one or more segment files per
+ * {@link Configuration#hoursPerPartition} interval. Retention deletes whole partitions once they hold data older
+ * than the host's data retention time, just like {@link PartitionPruner} drops partition tables.
+ */
+public class SegmentLogStorage implements ILogStorage, IMessageDAO
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( SegmentLogStorage.class.getName() );
+
+    private static final Pattern HOST_DIR = Pattern.compile( "^\\d+$" );
+    private static final Pattern SEGMENT_FILE = Pattern.compile( "^(-?\\d+)_(\\d+)\\.seg$" );
+
+    private static final Duration PRUNE_INTERVAL = Duration.ofHours( 1 );
+
+    /**
+     * Segments of a single host.
+     */
+    private final class HostSegments
+    {
+        public final long hostId;
+        public final Path directory;
+
+        // @GuardedBy( this )
+        private long nextId = 1;
+        // segments by partition start, oldest first
+        // @GuardedBy( this )
+        private final TreeMap<Long,List<MessageSegment>> partitions = new TreeMap<>();
+        // @GuardedBy( this )
+        private Interval currentInterval;
+        // @GuardedBy( this )
+        private int nextSequence;
+
+        // all segments, replaced whenever a segment gets added or removed
+        private volatile List<MessageSegment> segments = Collections.emptyList();
+
+        private HostSegments(long hostId, Path directory)
+        {
+            this.hostId = hostId;
+            this.directory = directory;
+        }
+
+        // @GuardedBy( this )
+        private void add(MessageSegment segment, int sequence)
+        {
+            partitions.computeIfAbsent( segment.partitionStart, key -> new ArrayList<>() ).add( segment );
+            nextSequence = Math.max( nextSequence, sequence + 1 );
+            if ( ! segment.isEmpty() ) {
+                nextId = Math.max( nextId, segment.lastId() + 1 );
+            }
+            updateSnapshot();
+        }
+
+        // @GuardedBy( this )
+        private void updateSnapshot() {
+            segments = partitions.values().stream().flatMap( List::stream ).collect( Collectors.toList() );
+        }
+
+        public synchronized void store(SyslogMessage message) throws IOException
+        {
+            if ( currentInterval == null || ! currentInterval.contains( message.getEpochSecond() ) ) {
+                currentInterval = PartitionNamePattern.toPartitionInterval( message.getEpochSecond(), config );
+            }
+            final List<MessageSegment> list = partitions.get( currentInterval.startEpochSeconds );
+            MessageSegment segment = list == null ? null : list.get( list.size() - 1 );
+            if ( segment == null || ! segment.append( message, nextId ) )
+            {
+                // don't leave an empty segment file behind for a message that can never be stored
+                if ( ! MessageSegment.fitsInto( message, config.segmentStorageSegmentSize ) ) {
+                    LOG.error( "store(): Message too large for segment size "+config.segmentStorageSegmentSize+", lost message for host #"+hostId );
+                    return;
+                }
+                final int sequence = nextSequence;
+                final Path file = directory.resolve( currentInterval.startEpochSeconds + "_" + sequence + ".seg" );
+                segment = MessageSegment.create( file, config.segmentStorageSegmentSize,
+                    currentInterval.startEpochSeconds, currentInterval.endEpochSeconds );
+                add( segment, sequence );
+                segment.append( message, nextId );
+            }
+            nextId++;
+        }
+
+        public synchronized Long getLatestId() {
+            return nextId == 1 ? null : nextId - 1;
+        }
+
+        /**
+         * Delete all partitions that ended before a given time.
+         */
+        public void prune(long epochSeconds)
+        {
+            final List<MessageSegment> toDelete = new ArrayList<>();
+            synchronized( this )
+            {
+                final Iterator<List<MessageSegment>> it = partitions.values().iterator();
+                while ( it.hasNext() )
+                {
+                    final List<MessageSegment> list = it.next();
+                    if ( list.get( 0 ).partitionEnd <= epochSeconds )
+                    {
+                        toDelete.addAll( list );
+                        it.remove();
+                    }
+                }
+                if ( ! toDelete.isEmpty() ) {
+                    updateSnapshot();
+                }
+            }
+            for ( MessageSegment segment : toDelete )
+            {
+                LOG.debug( "prune(): Deleting "+segment+" of host #"+hostId );
+                try
+                {
+                    // readers may still use the mapping, which stays valid after the file got deleted
+                    segment.delete();
+                }
+                catch (IOException e)
+                {
+                    LOG.error( "prune(): Failed to delete "+segment,e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Position within a segment while merging messages of all segments by entry ID.
+     */
+    private static final class Cursor
+    {
+        public final MessageSegment segment;
+        public final boolean forward;
+        private final int end;
+        public int offset; // forward: offset of current record; backward: end of current record
+        public long id;
+
+        private Cursor(MessageSegment segment, boolean forward, long refId)
+        {
+            this.segment = segment;
+            this.forward = forward;
+            this.end = segment.end();
+            this.offset = forward ? segment.seekAfter( refId ) : segment.seekAfter( refId - 1 );
+            updateId();
+        }
+
+        private boolean isValid() {
+            return forward ? offset < end : offset > MessageSegment.HEADER_SIZE;
+        }
+
+        private int recordOffset() {
+            return forward ? offset : segment.previous( offset );
+        }
+
+        private void updateId()
+        {
+            if ( isValid() ) {
+                id = segment.idAt( recordOffset() );
+            }
+        }
+
+        public void advance()
+        {
+            offset = forward ? segment.next( offset ) : segment.previous( offset );
+            updateId();
+        }
+    }
+
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final Path directory;
+    private final Set<String> hosts;
+
+    private final Map<Long,HostSegments> segmentsByHost = new ConcurrentHashMap<>();
+    // hosts stored in segments, by ID
+    private final Map<Long,Boolean> routes = new ConcurrentHashMap<>();
+
+    private final EternalThread housekeeping;
+
+    public SegmentLogStorage(IHostManager hostManager, Configuration config) throws IOException
+    {
+        this.hostManager = hostManager;
+        this.config = config;
+        this.hosts = config.segmentStorageHosts;
+        if ( config.segmentStorageDirectory == null || hosts.isEmpty() )
+        {
+            this.directory = null;
+            this.housekeeping = null;
+            return;
+        }
+        this.directory = Paths.get( config.segmentStorageDirectory );
+        Files.createDirectories( directory );
+        load();
+        this.housekeeping = new EternalThread( "segment-storage", () -> new EternalThread.Interruptable()
+        {
+            private long lastPrune;
+
+            @Override
+            public void run(EternalThread.Context context)
+            {
+                forceAll();
+                if ( System.currentTimeMillis() - lastPrune >= PRUNE_INTERVAL.toMillis() )
+                {
+                    prune();
+                    lastPrune = System.currentTimeMillis();
+                }
+                context.sleep( config.flushInterval );
+            }
+        });
+        housekeeping.startThread();
+    }
+
+    private void load() throws IOException
+    {
+        for ( Path hostDir : list( directory ) )
+        {
+            if ( ! Files.isDirectory( hostDir ) || ! HOST_DIR.matcher( hostDir.getFileName().toString() ).matches() ) {
+                continue;
+            }
+            final HostSegments host = new HostSegments( Long.parseLong( hostDir.getFileName().toString() ), hostDir );
+            final List<Path> files = list( hostDir ).stream()
+                .filter( f -> SEGMENT_FILE.matcher( f.getFileName().toString() ).matches() )
+                .sorted( Comparator.comparingInt( SegmentLogStorage::sequenceOf ) )
+                .collect( Collectors.toList() );
+            synchronized( host )
+            {
+                for ( Path file : files ) {
+                    host.add( MessageSegment.open( file ), sequenceOf( file ) );
+                }
+            }
+            LOG.info( "load(): Loaded "+files.size()+" segments for host #"+host.hostId+", latest entry ID: "+host.getLatestId() );
+            segmentsByHost.put( host.hostId, host );
+        }
+    }
+
+    private static int sequenceOf(Path file)
+    {
+        final Matcher m = SEGMENT_FILE.matcher( file.getFileName().toString() );
+        if ( ! m.matches() ) {
+            throw new IllegalArgumentException( "Not a segment file: " + file );
+        }
+        return Integer.parseInt( m.group( 2 ) );
+    }
+
+    private static List<Path> list(Path directory) throws IOException
+    {
+        try ( Stream<Path> stream = Files.list( directory ) ) {
+            return stream.sorted().collect( Collectors.toList() );
+        }
+    }
+
+    /**
+     * Returns whether messages of a given host are stored in segment files.
+     *
+     * @param host
+     * @return
+     */
+    public boolean handles(Host host)
+    {
+        if ( directory == null ) {
+            return false;
+        }
+        final Boolean result = routes.get( host.id );
+        if ( result != null ) {
+            return result;
+        }
+        final boolean handles = ( host.hostName != null && hosts.contains( host.hostName ) ) ||
+                                ( host.ip != null && hosts.contains( host.ip.getHostAddress() ) );
+        routes.put( host.id, handles );
+        return handles;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    private HostSegments getSegments(Host host) throws IOException
+    {
+        final HostSegments existing = segmentsByHost.get( host.id );
+        if ( existing != null ) {
+            return existing;
+        }
+        final Path hostDir = directory.resolve( Long.toString( host.id ) );
+        Files.createDirectories( hostDir );
+        return segmentsByHost.computeIfAbsent( host.id, id -> new HostSegments( id, hostDir ) );
+    }
+
+    @Override
+    public void store(SyslogMessage message)
+    {
+        if ( message.getEpochSecond() == SyslogMessage.NO_TIMESTAMP )
+        {
+            // segments are partitioned by time, so there's nowhere to put it
+            LOG.error("store(): Message lost for host #"+message.host.id+", it has no timestamp");
+            return;
+        }
+        try
+        {
+            getSegments( message.host ).store( message );
+        }
+        catch (IOException e)
+        {
+            LOG.fatal( "store(): Message lost for host #"+message.host.id+", timestamp "+message.getTimestamp(), e );
+        }
+    }
+
+    private void forceAll()
+    {
+        for ( HostSegments host : segmentsByHost.values() )
+        {
+            // cheap for segments without dirty pages
+            host.segments.forEach( MessageSegment::force );
+        }
+    }
+
+    private void prune()
+    {
+        final long now = ZonedDateTime.now().toEpochSecond();
+        for ( HostSegments segments : segmentsByHost.values() )
+        {
+            final Host host = hostManager.getHost( segments.hostId );
+            if ( host == null || host.dataRetentionTime == null ) {
+                continue;
+            }
+            segments.prune( now - host.dataRetentionTime.getSeconds() );
+        }
+    }
+
+    /**
+     * Visit messages of a host, merged across all segments by entry ID.
+     *
+     * @param host
+     * @param refId messages with IDs greater (forward) resp. less (backward) than this one get visited
+     * @param forward
+     * @param visitor returns <code>false</code> to stop
+     */
+    private void visit(Host host, long refId, boolean forward, Predicate<SyslogMessage> visitor)
+    {
+        final HostSegments segments = segmentsByHost.get( host.id );
+        if ( segments == null ) {
+            return;
+        }
+        final Comparator<Cursor> order = Comparator.comparingLong( c -> c.id );
+        final PriorityQueue<Cursor> queue = new PriorityQueue<>( forward ? order : order.reversed() );
+        for ( MessageSegment segment : segments.segments )
+        {
+            if ( segment.isEmpty() || ( forward ? segment.lastId() <= refId : segment.firstId() >= refId ) ) {
+                continue;
+            }
+            final Cursor cursor = new Cursor( segment, forward, refId );
+            if ( cursor.isValid() ) {
+                queue.add( cursor );
+            }
+        }
+        Cursor cursor;
+        while ( ( cursor = queue.poll() ) != null )
+        {
+            if ( ! visitor.test( cursor.segment.read( cursor.recordOffset(), host ) ) ) {
+                return;
+            }
+            cursor.advance();
+            if ( cursor.isValid() ) {
+                queue.add( cursor );
+            }
+        }
+    }
+
+    private List<SyslogMessage> collect(Host host, long refId, boolean forward, Predicate<SyslogMessage> predicate, int maxCount)
+    {
+        final List<SyslogMessage> result = new ArrayList<>();
+        if ( maxCount <= 0 ) {
+            return result;
+        }
+        visit( host, refId, forward, msg ->
+        {
+            if ( predicate.test( msg ) ) {
+                result.add( msg );
+            }
+            return result.size() < maxCount;
+        });
+        return result;
+    }
+
+    @Override
+    public Long getLatestMessageId(Host host)
+    {
+        final HostSegments segments = segmentsByHost.get( host.id );
+        return segments == null ? null : segments.getLatestId();
+    }
+
+    @Override
+    public void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids)
+    {
+        if ( ids.isEmpty() ) {
+            return;
+        }
+        final List<Long> sorted = new ArrayList<>( ids );
+        Collections.sort( sorted );
+        final Iterator<Long> it = sorted.iterator();
+        final long[] wanted = { it.next() };
+        visit( host, wanted[0] - 1, true, msg ->
+        {
+            while ( wanted[0] < msg.id )
+            {
+                if ( ! it.hasNext() ) {
+                    return false;
+                }
+                wanted[0] = it.next();
+            }
+            if ( msg.id == wanted[0] ) {
+                consumer.accept( msg );
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    {
+        return collect( host, Long.MAX_VALUE, false, callback.getPredicate(), maxCount );
+    }
+
+    @Override
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
+    {
+        final Long[] lastId = { null };
+        final List<SyslogMessage> batch = new ArrayList<>();
+        final Consumer<IFilterCallback> filterVisitor = x -> x.visit( batch );
+        final boolean[] cancelled = { false };
+        visit( host, latestId == null ? Long.MIN_VALUE : latestId, true, msg ->
+        {
+            lastId[0] = msg.id;
+            batch.add( msg );
+            if ( batch.size() >= JDBCHelper.BATCH_SIZE )
+            {
+                if ( cancel.getAsBoolean() ) {
+                    cancelled[0] = true;
+                    return false;
+                }
+                filters.forEach( filterVisitor );
+                batch.clear();
+            }
+            return true;
+        });
+        if ( ! cancelled[0] && ! batch.isEmpty() && ! cancel.getAsBoolean() ) {
+            filters.forEach( filterVisitor );
+        }
+        return lastId[0];
+    }
+
+    @Override
+    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                           long refLogEntryId, int maxCount)
+    {
+        switch (direction)
+        {
+            case FORWARD_IN_TIME:
+                return collect( host, refLogEntryId, true, callback.getPredicate(), maxCount );
+            case BACKWARD_IN_TIME:
+                return collect( host, refLogEntryId, false, callback.getPredicate(), maxCount );
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + direction );
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException
+    {
+        if ( housekeeping != null )
+        {
+            LOG.info( "shutdown(): Shutting down "+this );
+            housekeeping.stopThread();
+            forceAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentLogStorage[ "+directory+" ]";
+    }
+}
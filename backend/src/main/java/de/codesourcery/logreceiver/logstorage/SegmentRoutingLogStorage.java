@@ -0,0 +1,75 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Stores messages of hosts handled by a {@link SegmentLogStorage} there and passes all other messages on.
+ */
+final class SegmentRoutingLogStorage implements ILogStorage
+{
+    private final SegmentLogStorage segments;
+    private final ILogStorage delegate;
+    private final FilterCallbackManager callbackHelper;
+
+    // messages of a batch that need to be passed on
+    private final ThreadLocal<SyslogMessage[]> remaining = ThreadLocal.withInitial( () -> new SyslogMessage[64] );
+
+    public SegmentRoutingLogStorage(SegmentLogStorage segments, ILogStorage delegate, FilterCallbackManager callbackHelper)
+    {
+        this.segments = segments;
+        this.delegate = delegate;
+        this.callbackHelper = callbackHelper;
+    }
+
+    @Override
+    public void store(SyslogMessage message)
+    {
+        if ( segments.handles( message.host ) )
+        {
+            segments.store( message );
+            callbackHelper.markDirty( message.host.ip );
+        } else {
+            delegate.store( message );
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage[] messages, int count)
+    {
+        SyslogMessage[] others = remaining.get();
+        if ( others.length < count )
+        {
+            others = new SyslogMessage[count];
+            remaining.set( others );
+        }
+        int otherCount = 0;
+        InetAddress lastMarked = null;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SyslogMessage message = messages[i];
+            if ( segments.handles( message.host ) )
+            {
+                segments.store( message );
+                if ( ! message.host.ip.equals( lastMarked ) )
+                {
+                    callbackHelper.markDirty( message.host.ip );
+                    lastMarked = message.host.ip;
+                }
+            } else {
+                others[otherCount++] = message;
+            }
+        }
+        if ( otherCount == count ) {
+            delegate.store( messages, count );
+        }
+        else if ( otherCount > 0 )
+        {
+            delegate.store( others, otherCount );
+        }
+        Arrays.fill( others, 0, otherCount, null );
+    }
+}
@@ -0,0 +1,635 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only spool of rows, stored in memory-mapped segment files.
+ *
+ * Positions are global byte offsets, each segment file is named after the offset of its first byte.
+ * Records look like this:
+ * <pre>
+ * int    payload length, 0 marks the (unused) rest of a segment
+ * int    CRC32 of everything following the CRC, including the payload
+ * long   offset of the record, rejects stale data when segments get re-used
+ * long   host ID
+ * long   timestamp (seconds since the epoch)
+ * int    reserved (0)
+ * byte   row format (0 = text, 1 = binary)
+ * byte[] payload
+ * </pre>
+ * Data written to the spool survives a crash of the JVM as it lives in the OS page cache, {@link #force()}
+ * needs to be called to also survive a crash of the OS.
+ *
+ * Records get read back by a single reader that persists the position up to which records have safely been
+ * processed using {@link #checkpoint(long)}. When opening a spool, reading starts at the last checkpoint and
+ * writing continues after the last intact record.
+ *
+ * Thread-safe, any number of writers but only one reader.
+ */
+final class SegmentSpool
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( SegmentSpool.class.getName() );
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 1;
+    private static final int CRC_START = 8; // offset of the first byte covered by the CRC
+
+    private static final byte FORMAT_TEXT = 0;
+    private static final byte FORMAT_BINARY = 1;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile( "([0-9]{20})\\.seg" );
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    // max. number of drained segment files kept for re-use
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    private static final class Segment
+    {
+        public final long baseOffset;
+        public final Path file;
+        public final MappedByteBuffer buffer;
+
+        private Segment(long baseOffset, Path file, MappedByteBuffer buffer)
+        {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public long endOffset() {
+            return baseOffset + buffer.capacity();
+        }
+
+        public boolean contains(long offset) {
+            return baseOffset <= offset && offset < endOffset();
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSize;
+
+    private final Object LOCK = new Object();
+
+    // segments not fully drained yet, oldest first, the last one is being written to
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // drained segment files that may be re-used
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<Path> freeSegments = new ArrayDeque<>();
+
+    // segments that got written to since the last call to force()
+    // @GuardedBy( LOCK )
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+
+    // @GuardedBy( LOCK )
+    private long writeOffset;
+
+    // @GuardedBy( LOCK )
+    private boolean readerWaiting;
+
+    // @GuardedBy( LOCK )
+    private boolean closed;
+
+    // end of the last record that may be read
+    private volatile long committedOffset;
+
+    private volatile long checkpointOffset;
+
+    // only accessed by the reader
+    private long readOffset;
+    private Segment readSegment;
+    private byte[] scratch = new byte[ 1024 ];
+
+    // @GuardedBy( LOCK )
+    private final CRC32 writeCrc = new CRC32();
+
+    private final AtomicLong writerStalls = new AtomicLong();
+
+    /**
+     * Open a spool, creating it if necessary.
+     *
+     * @param directory directory holding the segment files
+     * @param segmentSize size of newly created segment files in bytes
+     * @param maxSize max. number of bytes that may be waiting to be read before writers block
+     * @throws IOException
+     */
+    public SegmentSpool(Path directory, int segmentSize, long maxSize) throws IOException
+    {
+        if ( segmentSize < 1024 ) {
+            throw new IllegalArgumentException( "Segment size must be >= 1024 bytes" );
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = Math.max( maxSize, segmentSize );
+        Files.createDirectories( directory );
+        recover();
+    }
+
+    private void recover() throws IOException
+    {
+        final List<Path> files;
+        try ( Stream<Path> stream = Files.list( directory ) )
+        {
+            files = stream.filter( p -> SEGMENT_NAME.matcher( p.getFileName().toString() ).matches() ).sorted().collect( Collectors.toList() );
+        }
+
+        final Path checkpointFile = directory.resolve( CHECKPOINT_FILE );
+        long checkpoint = -1;
+        if ( Files.exists( checkpointFile ) ) {
+            checkpoint = ByteBuffer.wrap( Files.readAllBytes( checkpointFile ) ).getLong();
+        }
+
+        for ( Path file : files )
+        {
+            final long base = baseOffset( file );
+            final long size = Files.size( file );
+            if ( checkpoint == -1 ) {
+                checkpoint = base;
+            }
+            if ( base + size <= checkpoint || size < HEADER_SIZE ) {
+                recycle( file );
+            } else {
+                segments.add( map( base, file, size ) );
+            }
+        }
+        if ( checkpoint == -1 ) {
+            checkpoint = 0;
+        }
+        if ( segments.isEmpty() ) {
+            segments.add( createSegment( checkpoint ) );
+        }
+        if ( checkpoint < segments.getFirst().baseOffset ) {
+            LOG.warn("recover(): Spool data between offset "+checkpoint+" and "+segments.getFirst().baseOffset+" is missing");
+            checkpoint = segments.getFirst().baseOffset;
+        }
+
+        // find the end of the last intact record
+        long offset = checkpoint;
+        Segment segment = segmentAt( offset );
+        while ( true )
+        {
+            final long next = nextRecord( segment, offset );
+            if ( next == -1 ) {
+                break;
+            }
+            if ( next == segment.endOffset() )
+            {
+                // rest of segment is unused, records continue in the following segment (if any)
+                final Segment following = segmentAfter( segment );
+                if ( following == null || following.baseOffset != next ) {
+                    break;
+                }
+                segment = following;
+            }
+            offset = next;
+        }
+
+        // drop everything after the last intact record
+        while ( segments.getLast() != segment ) {
+            recycle( segments.removeLast().file );
+        }
+        writeOffset = offset;
+        committedOffset = offset;
+        checkpointOffset = checkpoint;
+        readOffset = checkpoint;
+        readSegment = segments.getFirst();
+        LOG.info("recover(): Opened spool in "+directory+", "+(writeOffset-checkpoint)+" bytes waiting to be drained");
+    }
+
+    /**
+     * Validates the record at a given offset.
+     *
+     * @return offset of the next record, the segment's end offset if the rest of the segment is unused
+     * or <code>-1</code> if there is no intact record at the given offset
+     */
+    private long nextRecord(Segment segment, long offset)
+    {
+        final int pos = (int) (offset - segment.baseOffset);
+        final ByteBuffer buffer = segment.buffer;
+        if ( buffer.capacity() - pos < HEADER_SIZE ) {
+            return segment.endOffset();
+        }
+        final int length = buffer.getInt( pos );
+        if ( length == 0 ) {
+            return segment.endOffset();
+        }
+        if ( length < 0 || length > buffer.capacity() - pos - HEADER_SIZE || buffer.getLong( pos + CRC_START ) != offset ) {
+            return -1;
+        }
+        final ByteBuffer data = buffer.duplicate();
+        data.limit( pos + HEADER_SIZE + length ).position( pos + CRC_START );
+        final CRC32 crc = new CRC32();
+        crc.update( data );
+        if ( (int) crc.getValue() != buffer.getInt( pos + 4 ) ) {
+            return -1;
+        }
+        return offset + HEADER_SIZE + length;
+    }
+
+    // @GuardedBy( LOCK )
+    private Segment segmentAt(long offset)
+    {
+        for ( Segment s : segments )
+        {
+            if ( s.contains( offset ) ) {
+                return s;
+            }
+        }
+        throw new IllegalStateException( "No segment holds offset " + offset );
+    }
+
+    // @GuardedBy( LOCK )
+    private Segment segmentAfter(Segment segment)
+    {
+        final Iterator<Segment> it = segments.iterator();
+        while ( it.hasNext() )
+        {
+            if ( it.next() == segment ) {
+                return it.hasNext() ? it.next() : null;
+            }
+        }
+        return null;
+    }
+
+    private static long baseOffset(Path file)
+    {
+        final Matcher m = SEGMENT_NAME.matcher( file.getFileName().toString() );
+        if ( ! m.matches() ) {
+            throw new IllegalArgumentException( "Not a segment file: " + file );
+        }
+        return Long.parseLong( m.group( 1 ) );
+    }
+
+    private Path segmentFile(long baseOffset) {
+        return directory.resolve( String.format( "%020d.seg", baseOffset ) );
+    }
+
+    private static Segment map(long baseOffset, Path file, long size) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            return new Segment( baseOffset, file, channel.map( FileChannel.MapMode.READ_WRITE, 0, size ) );
+        }
+    }
+
+    // @GuardedBy( LOCK )
+    private Segment createSegment(long baseOffset) throws IOException
+    {
+        final Path file = segmentFile( baseOffset );
+        final Path free = freeSegments.pollFirst();
+        if ( free != null && Files.size( free ) == segmentSize ) {
+            // re-use drained file, stale records are rejected by their offset
+            Files.move( free, file );
+        }
+        else
+        {
+            if ( free != null ) {
+                Files.deleteIfExists( free );
+            }
+            try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+                channel.truncate( 0 );
+                channel.write( ByteBuffer.wrap( new byte[1] ), segmentSize - 1 );
+            }
+        }
+        final Segment segment = map( baseOffset, file, segmentSize );
+        segment.buffer.putInt( 0, 0 );
+        return segment;
+    }
+
+    // @GuardedBy( LOCK )
+    private void recycle(Path file) throws IOException
+    {
+        if ( freeSegments.size() < MAX_FREE_SEGMENTS ) {
+            freeSegments.add( file );
+        } else {
+            Files.deleteIfExists( file );
+        }
+    }
+
+    /**
+     * Append a text row.
+     *
+     * @param host
+     * @param epochSecond timestamp of the row's message (seconds since the epoch)
+     * @param row
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void append(Host host, long epochSecond, String row) throws IOException, InterruptedException
+    {
+        final byte[] payload = row.getBytes( StandardCharsets.UTF_8 );
+        synchronized( LOCK )
+        {
+            final ByteBuffer buffer = beginRecord( payload.length );
+            buffer.put( payload );
+            endRecord( buffer, host, epochSecond, FORMAT_TEXT, payload.length );
+        }
+    }
+
+    /**
+     * Append a batch of rows.
+     *
+     * @param batch
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void append(RowBatch batch) throws IOException, InterruptedException
+    {
+        final int size = batch.size();
+        if ( batch.isBinary() )
+        {
+            synchronized( LOCK )
+            {
+                for ( int i = 0 ; i < size ; i++ )
+                {
+                    final int length = batch.binaryLength( i, i + 1 );
+                    final ByteBuffer buffer = beginRecord( length );
+                    batch.copyBinaryRows( i, i + 1, buffer );
+                    endRecord( buffer, batch.host( i ), batch.epochSecond( i ), FORMAT_BINARY, length );
+                }
+            }
+            return;
+        }
+        final byte[][] payloads = new byte[ size ][];
+        for ( int i = 0 ; i < size ; i++ ) {
+            payloads[i] = batch.row( i ).getBytes( StandardCharsets.UTF_8 );
+        }
+        synchronized( LOCK )
+        {
+            for ( int i = 0 ; i < size ; i++ )
+            {
+                final ByteBuffer buffer = beginRecord( payloads[i].length );
+                buffer.put( payloads[i] );
+                endRecord( buffer, batch.host( i ), batch.epochSecond( i ), FORMAT_TEXT, payloads[i].length );
+            }
+        }
+    }
+
+    /**
+     * Reserves space for a record.
+     *
+     * @param length payload length
+     * @return buffer positioned at the start of the payload
+     */
+    // @GuardedBy( LOCK )
+    private ByteBuffer beginRecord(int length) throws IOException, InterruptedException
+    {
+        if ( length > segmentSize - HEADER_SIZE ) {
+            throw new IllegalArgumentException( "Row too large for spool segment: "+length+" bytes" );
+        }
+        if ( writeOffset - checkpointOffset > maxSize )
+        {
+            // reader is too far behind
+            writerStalls.incrementAndGet();
+            while ( writeOffset - checkpointOffset > maxSize && ! closed ) {
+                LOCK.wait( 100 );
+            }
+        }
+        if ( closed ) {
+            throw new IOException( "Spool is closed" );
+        }
+
+        Segment segment = segments.getLast();
+        int pos = (int) (writeOffset - segment.baseOffset);
+        if ( segment.buffer.capacity() - pos < HEADER_SIZE + length )
+        {
+            if ( segment.buffer.capacity() - pos >= 4 ) {
+                segment.buffer.putInt( pos, 0 ); // rest of segment unused
+            }
+            unforced.add( segment.buffer );
+            segment = createSegment( segment.endOffset() );
+            segments.add( segment );
+            writeOffset = segment.baseOffset;
+            pos = 0;
+        }
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position( pos + HEADER_SIZE );
+        return buffer;
+    }
+
+    // @GuardedBy( LOCK )
+    private void endRecord(ByteBuffer buffer, Host host, long epochSecond, byte format, int length)
+    {
+        final int pos = buffer.position() - length - HEADER_SIZE;
+        buffer.putLong( pos + CRC_START, writeOffset );
+        buffer.putLong( pos + 16, host.id );
+        buffer.putLong( pos + 24, epochSecond );
+        buffer.putInt( pos + 32, 0 );
+        buffer.put( pos + 36, format );
+
+        final ByteBuffer data = buffer.duplicate();
+        data.limit( pos + HEADER_SIZE + length ).position( pos + CRC_START );
+        writeCrc.reset();
+        writeCrc.update( data );
+        buffer.putInt( pos + 4, (int) writeCrc.getValue() );
+        buffer.putInt( pos, length );
+
+        // mark the start of the next record as unused until it gets written
+        final int next = pos + HEADER_SIZE + length;
+        if ( buffer.capacity() - next >= 4 ) {
+            buffer.putInt( next, 0 );
+        }
+
+        writeOffset += HEADER_SIZE + length;
+        committedOffset = writeOffset;
+        if ( readerWaiting ) {
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Reads records into a batch, starting at the current read position.
+     *
+     * Reading stops early when a record uses a different row format than the rows already in the batch.
+     *
+     * @param batch batch to add rows to
+     * @param maxRecords max. number of records to read
+     * @param hostResolver used to look up hosts by ID, records of unknown hosts are skipped
+     * @return number of records read
+     */
+    public int read(RowBatch batch, int maxRecords, LongFunction<Host> hostResolver)
+    {
+        final long end = committedOffset;
+        int count = 0;
+        while ( count < maxRecords && readOffset < end )
+        {
+            final ByteBuffer buffer = readSegment.buffer;
+            final int pos = (int) (readOffset - readSegment.baseOffset);
+            final int length = buffer.capacity() - pos < HEADER_SIZE ? 0 : buffer.getInt( pos );
+            if ( length == 0 )
+            {
+                synchronized( LOCK ) {
+                    readSegment = segmentAt( readSegment.endOffset() );
+                }
+                readOffset = readSegment.baseOffset;
+                continue;
+            }
+            final boolean binary = buffer.get( pos + 36 ) == FORMAT_BINARY;
+            if ( ! batch.isEmpty() && batch.isBinary() != binary ) {
+                break;
+            }
+            final long hostId = buffer.getLong( pos + 16 );
+            final Host host = hostResolver.apply( hostId );
+            if ( host == null ) {
+                LOG.error("read(): Skipping spooled row of unknown host #"+hostId);
+            }
+            else
+            {
+                final long epochSecond = buffer.getLong( pos + 24 );
+                final ByteBuffer payload = buffer.duplicate();
+                payload.limit( pos + HEADER_SIZE + length ).position( pos + HEADER_SIZE );
+                if ( binary )
+                {
+                    batch.binaryData( length ).put( payload );
+                    batch.endBinaryRow( host, epochSecond );
+                }
+                else
+                {
+                    if ( scratch.length < length ) {
+                        scratch = new byte[ Math.max( length, scratch.length * 2 ) ];
+                    }
+                    payload.get( scratch, 0, length );
+                    batch.add( host, epochSecond, new String( scratch, 0, length, StandardCharsets.UTF_8 ) );
+                }
+            }
+            readOffset += HEADER_SIZE + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Wait until there is data to read.
+     *
+     * @param timeoutMillis
+     * @return <code>true</code> if there's data to read
+     * @throws InterruptedException
+     */
+    public boolean awaitData(long timeoutMillis) throws InterruptedException
+    {
+        synchronized( LOCK )
+        {
+            if ( readOffset >= committedOffset && ! closed )
+            {
+                readerWaiting = true;
+                try
+                {
+                    LOCK.wait( timeoutMillis );
+                }
+                finally
+                {
+                    readerWaiting = false;
+                }
+            }
+            return readOffset < committedOffset;
+        }
+    }
+
+    /**
+     * Returns the position right after the last record read.
+     *
+     * @return
+     */
+    public long getReadOffset() {
+        return readOffset;
+    }
+
+    /**
+     * Persist the position up to which records have been processed and recycle segments that are no longer needed.
+     *
+     * @param offset
+     * @throws IOException
+     */
+    public void checkpoint(long offset) throws IOException
+    {
+        if ( offset <= checkpointOffset ) {
+            return;
+        }
+        final Path tmp = directory.resolve( CHECKPOINT_FILE + ".tmp" );
+        Files.write( tmp, ByteBuffer.allocate( 8 ).putLong( 0, offset ).array(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC );
+        Files.move( tmp, directory.resolve( CHECKPOINT_FILE ), StandardCopyOption.ATOMIC_MOVE );
+
+        synchronized( LOCK )
+        {
+            checkpointOffset = offset;
+            while ( segments.size() > 1 && segments.getFirst().endOffset() <= offset ) {
+                recycle( segments.removeFirst().file );
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Write everything appended so far to disk.
+     */
+    public void force()
+    {
+        final List<MappedByteBuffer> toForce;
+        synchronized( LOCK )
+        {
+            toForce = new ArrayList<>( unforced );
+            toForce.add( segments.getLast().buffer );
+            unforced.clear();
+        }
+        toForce.forEach( MappedByteBuffer::force );
+    }
+
+    /**
+     * Stop accepting new records.
+     *
+     * Writers that are currently waiting for space fail with an {@link IOException}.
+     */
+    public void close()
+    {
+        synchronized( LOCK )
+        {
+            closed = true;
+            LOCK.notifyAll();
+        }
+        force();
+    }
+
+    /**
+     * Returns the number of bytes that have been written but not checkpointed yet.
+     *
+     * @return
+     */
+    public long size() {
+        return committedOffset - checkpointOffset;
+    }
+
+    /**
+     * Returns the number of times a writer had to wait because the spool was full.
+     *
+     * @return
+     */
+    public long getWriterStalls() {
+        return writerStalls.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentSpool[ "+directory+", "+size()+" bytes pending ]";
+    }
+}
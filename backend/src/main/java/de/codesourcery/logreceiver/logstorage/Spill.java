@@ -0,0 +1,267 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Rows of a single partition that did not fit into memory, written to local files until they can be loaded into the database.
+ *
+ * Each file holds a complete <code>COPY ... FROM STDIN</code> data stream. Files get written as "&lt;sequence&gt;.&lt;format&gt;.tmp"
+ * and renamed once complete, only complete files are ever loaded into the database.
+ *
+ * Thread-safe.
+ */
+final class Spill
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( Spill.class.getName() );
+
+    private static final Pattern FILE_NAME = Pattern.compile( "^(\\d{20})\\.([a-z]+)(\\.tmp)?$" );
+
+    // SQLSTATE 'undefined_table', partition got dropped in the meantime
+    private static final String UNDEFINED_TABLE = "42P01";
+
+    public final Path directory;
+    public final String table;
+    private final CopyFormat format;
+
+    private final Object LOCK = new Object();
+
+    // @GuardedBy( LOCK )
+    private final ArrayDeque<Path> completeFiles = new ArrayDeque<>();
+    // @GuardedBy( LOCK )
+    private long completeBytes;
+    // @GuardedBy( LOCK )
+    private long nextSequence;
+
+    // file currently being written, NULL if none
+    // @GuardedBy( LOCK )
+    private Path currentFile;
+    // @GuardedBy( LOCK )
+    private OutputStream out;
+    // @GuardedBy( LOCK )
+    private long currentBytes;
+
+    /**
+     * Create instance, picking up complete files already present in the directory.
+     *
+     * @param directory directory to write files to, created if necessary
+     * @param table table the rows belong to
+     * @param format format for newly written files
+     * @throws IOException
+     */
+    public Spill(Path directory, String table, CopyFormat format) throws IOException
+    {
+        this.directory = directory;
+        this.table = table;
+        this.format = format;
+        Files.createDirectories( directory );
+
+        final List<Path> files;
+        try ( Stream<Path> stream = Files.list( directory ) ) {
+            files = stream.sorted().collect( Collectors.toList() );
+        }
+        for ( Path file : files )
+        {
+            final Matcher m = FILE_NAME.matcher( file.getFileName().toString() );
+            if ( ! m.matches() ) {
+                continue;
+            }
+            nextSequence = Math.max( nextSequence, Long.parseLong( m.group( 1 ) ) + 1 );
+            if ( m.group( 3 ) != null )
+            {
+                LOG.warn( "Spill(): Discarding incomplete file " + file );
+                Files.delete( file );
+            }
+            else
+            {
+                completeFiles.add( file );
+                completeBytes += Files.size( file );
+            }
+        }
+    }
+
+    /**
+     * Appends the rows of a buffer to the current file.
+     *
+     * @param buffer buffer using the same format as this spill
+     * @throws IOException
+     */
+    public void write(CopyBuffer buffer) throws IOException
+    {
+        synchronized( LOCK )
+        {
+            if ( out == null )
+            {
+                final String name = String.format( "%020d.%s.tmp", nextSequence, format.name().toLowerCase( Locale.ROOT ) );
+                currentFile = directory.resolve( name );
+                out = new BufferedOutputStream( Files.newOutputStream( currentFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ), 64 * 1024 );
+                nextSequence++;
+                CopyBuffer.writeHeader( format, out );
+            }
+            buffer.writeRows( out );
+            currentBytes += buffer.size();
+        }
+    }
+
+    /**
+     * Closes the current file (if any) so that it may get loaded into the database.
+     *
+     * @throws IOException
+     */
+    public void complete() throws IOException
+    {
+        synchronized( LOCK )
+        {
+            if ( out == null ) {
+                return;
+            }
+            try
+            {
+                CopyBuffer.writeTrailer( format, out );
+            }
+            finally
+            {
+                out.close();
+                out = null;
+            }
+            final String name = currentFile.getFileName().toString();
+            final Path target = currentFile.resolveSibling( name.substring( 0, name.length() - ".tmp".length() ) );
+            Files.move( currentFile, target, StandardCopyOption.ATOMIC_MOVE );
+            completeFiles.add( target );
+            completeBytes += Files.size( target );
+            currentFile = null;
+            currentBytes = 0;
+        }
+    }
+
+    /**
+     * Loads all complete files into the database, oldest first, deleting each file once it has been loaded.
+     *
+     * Must not be called concurrently.
+     *
+     * @param ds
+     * @return number of rows loaded
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long ingest(DataSource ds) throws SQLException, IOException
+    {
+        long rows = 0;
+        while ( true )
+        {
+            final Path file;
+            synchronized( LOCK ) {
+                file = completeFiles.peekFirst();
+            }
+            if ( file == null ) {
+                return rows;
+            }
+            final long size = Files.size( file );
+            try ( Connection connection = ds.getConnection();
+                  InputStream in = new BufferedInputStream( Files.newInputStream( file ), 64 * 1024 ) )
+            {
+                final BaseConnection con = connection.unwrap( BaseConnection.class );
+                rows += new CopyManager( con ).copyIn( createCopyCommand( formatOf( file ) ), in );
+            }
+            catch(SQLException e)
+            {
+                if ( ! UNDEFINED_TABLE.equals( e.getSQLState() ) ) {
+                    throw e;
+                }
+                LOG.error( "ingest(): Table " + table + " no longer exists, discarding " + file );
+            }
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "ingest(): Loaded " + file + " into " + table );
+            }
+            Files.delete( file );
+            synchronized( LOCK )
+            {
+                completeFiles.removeFirst();
+                completeBytes -= size;
+            }
+        }
+    }
+
+    private String createCopyCommand(CopyFormat fileFormat) {
+        return "COPY " + table + "(" + PostgreSQLStorage.COPY_COLUMNS + ") FROM STDIN " + fileFormat.copyOptions;
+    }
+
+    private static CopyFormat formatOf(Path file)
+    {
+        final Matcher m = FILE_NAME.matcher( file.getFileName().toString() );
+        if ( ! m.matches() ) {
+            throw new IllegalArgumentException( "Not a spill file: " + file );
+        }
+        return CopyFormat.valueOf( m.group( 2 ).toUpperCase( Locale.ROOT ) );
+    }
+
+    /**
+     * Returns whether there are rows waiting to be loaded into the database.
+     *
+     * @return
+     */
+    public boolean isEmpty()
+    {
+        synchronized( LOCK ) {
+            return out == null && completeFiles.isEmpty();
+        }
+    }
+
+    /**
+     * Returns whether there are complete files ready to be loaded into the database.
+     *
+     * @return
+     */
+    public boolean hasCompleteFiles()
+    {
+        synchronized( LOCK ) {
+            return ! completeFiles.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting on disk.
+     *
+     * @return
+     */
+    public long getBytes()
+    {
+        synchronized( LOCK ) {
+            return completeBytes + currentBytes;
+        }
+    }
+
+    /**
+     * Deletes the directory, which must not contain any files.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        Files.delete( directory );
+    }
+
+    @Override
+    public String toString() {
+        return "Spill[ " + directory + " ]";
+    }
+}
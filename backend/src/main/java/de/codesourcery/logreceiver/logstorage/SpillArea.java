@@ -0,0 +1,137 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Directory holding the {@link Spill}s of all partitions.
+ *
+ * Each partition backend gets a sub-directory of its own. Spills that still hold rows when their backend
+ * shuts down (or that were left behind by a previous run) are moved to an "orphaned" directory and loaded into
+ * the database by a background task.
+ */
+final class SpillArea
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( SpillArea.class.getName() );
+
+    private static final String ORPHANED = "orphaned";
+
+    private final Path directory;
+    private final Path orphaned;
+    private final DataSource dataSource;
+    private final FlushScheduler.Registration recoveryTask;
+
+    // makes sure directory names do not clash with those of earlier runs
+    private final AtomicLong sequence = new AtomicLong( System.currentTimeMillis() );
+
+    public SpillArea(Path directory, DataSource dataSource, FlushScheduler scheduler) throws IOException
+    {
+        this.directory = directory;
+        this.orphaned = directory.resolve( ORPHANED );
+        this.dataSource = dataSource;
+        Files.createDirectories( orphaned );
+
+        // spills left behind by a previous run
+        for ( Path dir : list( directory ) )
+        {
+            if ( ! dir.equals( orphaned ) && Files.isDirectory( dir ) ) {
+                Files.move( dir, orphaned.resolve( dir.getFileName() ), StandardCopyOption.ATOMIC_MOVE );
+            }
+        }
+        this.recoveryTask = scheduler.register( "spill-recovery", this::recover );
+        recoveryTask.wakeUp();
+    }
+
+    private static List<Path> list(Path directory) throws IOException
+    {
+        try ( Stream<Path> stream = Files.list( directory ) ) {
+            return stream.sorted().collect( Collectors.toList() );
+        }
+    }
+
+    /**
+     * Create a spill for a partition.
+     *
+     * @param table partition table name
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public Spill create(String table, CopyFormat format) throws IOException {
+        return new Spill( directory.resolve( table + "." + sequence.incrementAndGet() ), table, format );
+    }
+
+    /**
+     * Hands over a spill whose backend is shutting down.
+     *
+     * Remaining rows get loaded into the database in the background.
+     *
+     * @param spill
+     * @throws IOException
+     */
+    public void release(Spill spill) throws IOException
+    {
+        spill.complete();
+        if ( spill.isEmpty() )
+        {
+            spill.delete();
+            return;
+        }
+        LOG.info( "release(): "+spill+" still holds "+spill.getBytes()+" bytes, loading them in the background" );
+        Files.move( spill.directory, orphaned.resolve( spill.directory.getFileName() ), StandardCopyOption.ATOMIC_MOVE );
+        recoveryTask.wakeUp();
+    }
+
+    /**
+     * Invoked by the {@link FlushScheduler}.
+     *
+     * @return
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long recover() throws SQLException, IOException
+    {
+        for ( Path dir : list( orphaned ) )
+        {
+            final String name = dir.getFileName().toString();
+            final int idx = name.lastIndexOf( '.' );
+            if ( idx <= 0 ) {
+                LOG.warn( "recover(): Ignoring unexpected directory " + dir );
+                continue;
+            }
+            // the format is taken from the file names, not needed for reading
+            final Spill spill = new Spill( dir, name.substring( 0, idx ), CopyFormat.TEXT );
+            final long rows = spill.ingest( dataSource );
+            LOG.info( "recover(): Loaded " + rows + " rows from " + spill );
+            spill.delete();
+        }
+        return FlushScheduler.NOT_SCHEDULED;
+    }
+
+    /**
+     * Returns whether there are spills waiting to be loaded into the database.
+     *
+     * @return
+     * @throws IOException
+     */
+    public boolean hasOrphans() throws IOException {
+        return ! list( orphaned ).isEmpty();
+    }
+
+    public void shutdown() throws InterruptedException {
+        recoveryTask.cancel();
+    }
+
+    @Override
+    public String toString() {
+        return "SpillArea[ " + directory + " ]";
+    }
+}
@@ -0,0 +1,209 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes rows to a durable on-disk {@link SegmentSpool} before handing them to the actual storage.
+ *
+ * Storing a row only appends it to the spool, a background thread reads rows back and passes them on.
+ * The spool's checkpoint only advances after the storage confirmed (see {@link ISQLLogStorage#sync(Duration)})
+ * that all rows passed to it have been written to the database, so rows survive database outages and
+ * restarts of the application. Rows after the last checkpoint are passed to the storage again after a restart
+ * and may thus be written twice.
+ */
+public class SpoolingLogStorage implements ISQLLogStorage
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( SpoolingLogStorage.class.getName() );
+
+    private static final int MAX_CACHED_HOSTS = 10_000;
+    private static final Duration SHUTDOWN_SYNC_TIMEOUT = Duration.ofSeconds( 10 );
+
+    private final ISQLLogStorage storage;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final SegmentSpool spool;
+    private final EternalThread drainer;
+
+    // only accessed by the drainer thread
+    private final RowBatch batch = new RowBatch( 256 );
+    private final Map<Long,Host> hosts = new HashMap<>();
+    private boolean uncheckpointedRows;
+    private long lastCheckpoint = System.currentTimeMillis();
+    private long lastForce = System.currentTimeMillis();
+
+    private volatile Thread drainerThread;
+
+    public SpoolingLogStorage(ISQLLogStorage storage, IHostManager hostManager, Configuration config) throws IOException
+    {
+        this.storage = storage;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.spool = new SegmentSpool( Paths.get( config.spoolDirectory ), config.spoolSegmentSize, config.spoolMaxSize );
+        this.drainer = new EternalThread( "spool-drainer", () -> new EternalThread.Interruptable()
+        {
+            @Override
+            public void cancel()
+            {
+                // the storage may block while the database is unavailable
+                final Thread thread = drainerThread;
+                if ( thread != null ) {
+                    thread.interrupt();
+                }
+            }
+
+            @Override
+            public void run(EternalThread.Context context) throws Exception {
+                drain( context );
+            }
+        });
+        drainer.startThread();
+    }
+
+    @Override
+    public void store(Host host, long epochSecond, String sql)
+    {
+        try
+        {
+            spool.append( host, epochSecond, sql );
+        }
+        catch (IOException e)
+        {
+            LOG.fatal("store(): Failed to spool message for host #"+host.id+", timestamp "+Instant.ofEpochSecond( epochSecond ),e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOG.fatal("store(): Interrupted, message lost for host #"+host.id+", timestamp "+Instant.ofEpochSecond( epochSecond ));
+        }
+    }
+
+    @Override
+    public void store(RowBatch batch)
+    {
+        try
+        {
+            spool.append( batch );
+        }
+        catch (IOException e)
+        {
+            LOG.fatal("store(): Failed to spool "+batch.size()+" messages",e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOG.fatal("store(): Interrupted, "+batch.size()+" messages lost");
+        }
+    }
+
+    private void drain(EternalThread.Context context) throws IOException, InterruptedException
+    {
+        drainerThread = Thread.currentThread();
+        try
+        {
+            while ( ! context.isCancelled() )
+            {
+                final int count = spool.read( batch, config.spoolDrainBatchSize, this::getHost );
+                if ( ! batch.isEmpty() )
+                {
+                    storage.store( batch );
+                    batch.clear();
+                }
+                if ( count > 0 ) {
+                    uncheckpointedRows = true;
+                }
+
+                final long now = System.currentTimeMillis();
+                if ( uncheckpointedRows && now - lastCheckpoint >= config.spoolCheckpointInterval.toMillis() ) {
+                    checkpoint( config.spoolCheckpointInterval );
+                }
+                if ( now - lastForce >= config.spoolSyncInterval.toMillis() )
+                {
+                    spool.force();
+                    lastForce = now;
+                }
+                if ( count == 0 ) {
+                    spool.awaitData( config.flushInterval.toMillis() );
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            if ( ! context.isCancelled() ) {
+                throw e;
+            }
+        }
+        finally
+        {
+            drainerThread = null;
+        }
+        // make sure interruptions from cancel() do not abort the final checkpoint
+        Thread.interrupted();
+        if ( uncheckpointedRows ) {
+            checkpoint( SHUTDOWN_SYNC_TIMEOUT );
+        }
+    }
+
+    private void checkpoint(Duration timeout) throws IOException, InterruptedException
+    {
+        final long offset = spool.getReadOffset();
+        if ( storage.sync( timeout ) )
+        {
+            spool.checkpoint( offset );
+            uncheckpointedRows = offset != spool.getReadOffset();
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("checkpoint(): Checkpointed at offset "+offset+", "+spool.size()+" bytes pending");
+            }
+        } else {
+            LOG.warn("checkpoint(): Storage did not sync within "+timeout+", "+spool.size()+" bytes pending");
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private Host getHost(long hostId)
+    {
+        Host host = hosts.get( hostId );
+        if ( host == null )
+        {
+            host = hostManager.getHost( hostId );
+            if ( host != null )
+            {
+                if ( hosts.size() >= MAX_CACHED_HOSTS ) {
+                    hosts.clear();
+                }
+                hosts.put( hostId, host );
+            }
+        }
+        return host;
+    }
+
+    @Override
+    public CopyFormat getCopyFormat() {
+        return storage.getCopyFormat();
+    }
+
+    @Override
+    public boolean sync(Duration timeout) throws InterruptedException
+    {
+        // rows are durable as soon as they're in the spool
+        return true;
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down "+spool+", writer stalls: "+spool.getWriterStalls());
+        spool.close();
+        drainer.stopThread();
+        storage.shutdown();
+    }
+}
@@ -0,0 +1,709 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.Interval;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the messages of all hosts using a single <code>COPY</code> per flush.
+ *
+ * Rows get bulk-loaded into a temporary staging table and are then moved to the per-host tables
+ * by a server-side function, all within the same transaction. The resulting table layout is the same as
+ * with {@link DelegatingLogStorage} but there is only one round-trip per flush instead of one per host and partition,
+ * which pays off when lots of hosts send only a few messages each.
+ *
+ * Rows that fail to flush {@link Configuration#maxFlushAttempts} times get spilled to disk and loaded into
+ * a quarantine table from where they are moved to the per-host tables in the background, so a single bad batch
+ * or a longer database outage does not block producers forever.
+ */
+public class StagingTableLogStorage implements ISQLLogStorage
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( StagingTableLogStorage.class.getName() );
+
+    private static final String STAGING_TABLE = "staging_logs";
+    private static final String QUARANTINE_TABLE = "staging_logs_quarantine";
+    private static final String STAGING_COLUMNS = "priority smallint NOT NULL," +
+        "log_ts timestamptz NOT NULL," +
+        "log_ts_fraction integer NOT NULL," +
+        "host_id bigint NOT NULL," +
+        "app_name text DEFAULT NULL," +
+        "proc_id text DEFAULT NULL," +
+        "msg_id text DEFAULT NULL," +
+        "params jsonb DEFAULT NULL," +
+        "msg text DEFAULT NULL";
+    private static final String FAN_OUT_FUNCTION = "logreceiver_fan_out";
+
+    private static final class StagingBuffer
+    {
+        public final CopyBuffer rows;
+        // hosts with rows in this buffer
+        public final Map<Long,Host> hosts = new HashMap<>();
+        // time the first row got appended
+        public long timestamp;
+
+        public StagingBuffer(CopyFormat format) {
+            this.rows = CopyBuffer.create( format );
+        }
+
+        public boolean isEmpty() {
+            return rows.isEmpty();
+        }
+
+        public void clear()
+        {
+            rows.clear();
+            hosts.clear();
+        }
+    }
+
+    private final DataSource dataSource;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final FilterCallbackManager callbackHelper;
+    private final PartitionPruner partitionPruner;
+    private final FlushScheduler flushScheduler;
+    private final FlushScheduler.Registration flushTask;
+    private final FlushScheduler.Registration quarantineTask;
+    private final Thread shutdownHook;
+
+    // rows that failed to flush too often, NULL if spilling is disabled
+    private final SpillArea spillArea;
+
+    // number of times in a row the flush buffer failed to be written, only accessed by the flush task
+    private int failedFlushes;
+
+    // partitions that are known to exist, by table name
+    private final Map<String,Interval> partitions = new ConcurrentHashMap<>();
+    private final Object PARTITION_LOCK = new Object();
+
+    private final Object LOCK = new Object();
+
+    // buffer producers append to
+    // @GuardedBy( LOCK )
+    private StagingBuffer activeBuffer;
+
+    // buffer being written to the database, only non-empty while a flush is in progress or after a flush failed
+    // @GuardedBy( LOCK )
+    private StagingBuffer flushBuffer;
+
+    // @GuardedBy( LOCK )
+    private boolean shutdown;
+
+    // number of times the active buffer became the flush buffer resp. the flush buffer got written to the database
+    // @GuardedBy( LOCK )
+    private long swaps;
+    // @GuardedBy( LOCK )
+    private long completedFlushes;
+
+    // flush the active buffer even if it is neither full nor due
+    private volatile boolean syncRequested;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong producerStalls = new AtomicLong();
+    private final AtomicLong producerStallMillis = new AtomicLong();
+    private final AtomicLong quarantinedRows = new AtomicLong();
+
+    public StagingTableLogStorage(DataSource dataSource, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper) throws SQLException, IOException
+    {
+        this.dataSource = dataSource;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.callbackHelper = callbackHelper;
+        this.activeBuffer = new StagingBuffer( config.copyFormat );
+        this.flushBuffer = new StagingBuffer( config.copyFormat );
+        createFanOutFunction();
+        this.partitionPruner = new PartitionPruner( dataSource, hostManager, config );
+        this.flushScheduler = new FlushScheduler( 1 );
+        this.flushTask = flushScheduler.register( "staging-table-storage", this::flush );
+        this.spillArea = config.spillDirectory == null ? null : new SpillArea( Paths.get( config.spillDirectory ), dataSource, flushScheduler );
+        // rows quarantined by a previous run
+        this.quarantineTask = flushScheduler.register( "staging-table-quarantine", this::drainQuarantine );
+        quarantineTask.wakeUp();
+        this.shutdownHook = registerShutdownHook();
+    }
+
+    private void createFanOutFunction() throws SQLException
+    {
+        // moves rows from the staging (or quarantine) table to the parent table of the host they belong to,
+        // PostgreSQL takes care of routing them to the right partition
+        final String sql = "CREATE OR REPLACE FUNCTION " + FAN_OUT_FUNCTION + "(source text, host_ids bigint[], tables text[]) RETURNS bigint AS $$\n" +
+            "DECLARE\n" +
+            "    total bigint := 0;\n" +
+            "    n bigint;\n" +
+            "BEGIN\n" +
+            "    FOR i IN 1 .. coalesce( array_length( host_ids, 1 ), 0 ) LOOP\n" +
+            "        EXECUTE format( 'INSERT INTO %I (" + PostgreSQLStorage.COPY_COLUMNS + ") " +
+                                     "SELECT " + PostgreSQLStorage.COPY_COLUMNS + " FROM %I WHERE host_id = $1', tables[i], source ) USING host_ids[i];\n" +
+            "        GET DIAGNOSTICS n = ROW_COUNT;\n" +
+            "        total := total + n;\n" +
+            "    END LOOP;\n" +
+            "    RETURN total;\n" +
+            "END;\n" +
+            "$$ LANGUAGE plpgsql";
+
+        try ( Connection con = dataSource.getConnection() ; Statement stmt = con.createStatement() )
+        {
+            stmt.execute( sql );
+            stmt.execute( "CREATE TABLE IF NOT EXISTS " + QUARANTINE_TABLE + " (" + STAGING_COLUMNS + ")" );
+        }
+    }
+
+    /**
+     * Makes sure the table partition for a given host and timestamp exists.
+     *
+     * @param host
+     * @param epochSecond timestamp (seconds since the epoch)
+     * @return interval covered by the partition or <code>null</code> if creating the partition failed
+     */
+    private Interval ensurePartitionExists(Host host, long epochSecond)
+    {
+        final Interval interval = PartitionNamePattern.toPartitionInterval( epochSecond, config );
+        final String partition = new PartitionNamePattern( host.getSQLCompatibleHostName(), interval.start ).getTableName( config );
+        if ( partitions.containsKey( partition ) ) {
+            return interval;
+        }
+        synchronized( PARTITION_LOCK )
+        {
+            if ( ! partitions.containsKey( partition ) )
+            {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "ensurePartitionExists(): No entry for partition " + partition );
+                }
+                try
+                {
+                    PostgreSQLStorage.createTables( dataSource, host, partition, interval );
+                }
+                catch (SQLException e)
+                {
+                    LOG.fatal("ensurePartitionExists(): Failed to create partition "+partition+" for host "+host,e);
+                    return null;
+                }
+                // forget about partitions nobody is likely to write to anymore, they just get re-checked if needed
+                final ZonedDateTime staleTime = ZonedDateTime.now().minusHours( config.hoursPerPartition );
+                partitions.values().removeIf( iv -> iv.end.isBefore( staleTime ) );
+                partitions.put( partition, interval );
+            }
+        }
+        return interval;
+    }
+
+    @Override
+    public void store(Host host, long epochSecond, String sql) {
+        store( RowBatch.of( host, epochSecond, sql ) );
+    }
+
+    @Override
+    public void store(RowBatch batch)
+    {
+        final int size = batch.size();
+
+        // create missing partitions before taking the buffer lock
+        boolean allPartitionsExist = true;
+        for ( int start = 0 ; start < size ; )
+        {
+            final Interval interval = ensurePartitionExists( batch.host( start ), batch.epochSecond( start ) );
+            final int end = endOfRun( batch, start, interval );
+            if ( interval == null ) {
+                allPartitionsExist = false;
+            }
+            start = end;
+        }
+
+        final boolean firstRow;
+        final boolean flushNow;
+        synchronized( LOCK )
+        {
+            if ( shutdown ) {
+                LOG.fatal("store(): Shutting down - "+size+" messages lost");
+                return;
+            }
+            firstRow = beforeAppend();
+            if ( allPartitionsExist )
+            {
+                activeBuffer.rows.append( batch, 0, size );
+                for ( int i = 0 ; i < size ; i++ )
+                {
+                    final Host host = batch.host( i );
+                    if ( i == 0 || batch.host( i - 1 ).id != host.id ) {
+                        activeBuffer.hosts.put( host.id, host );
+                    }
+                }
+            }
+            else
+            {
+                // skip rows whose partition could not be created
+                for ( int start = 0 ; start < size ; )
+                {
+                    final Host host = batch.host( start );
+                    final Interval interval = PartitionNamePattern.toPartitionInterval( batch.epochSecond( start ), config );
+                    final int end = endOfRun( batch, start, interval );
+                    if ( partitions.containsKey( new PartitionNamePattern( host.getSQLCompatibleHostName(), interval.start ).getTableName( config ) ) )
+                    {
+                        activeBuffer.rows.append( batch, start, end );
+                        activeBuffer.hosts.put( host.id, host );
+                    } else {
+                        LOG.fatal("store(): "+(end-start)+" messages lost for host #"+host.id+", timestamp "+Instant.ofEpochSecond( batch.epochSecond( start ) ));
+                    }
+                    start = end;
+                }
+            }
+            flushNow = afterAppend();
+        }
+        scheduleFlush( firstRow, flushNow );
+    }
+
+    /**
+     * Returns the end of the run of rows that belong to the same host and partition.
+     *
+     * @param batch
+     * @param start index of the first row
+     * @param interval interval of the partition the first row belongs to, may be <code>null</code>
+     * @return index of the first row not belonging to the run
+     */
+    private static int endOfRun(RowBatch batch, int start, Interval interval)
+    {
+        final long hostId = batch.host( start ).id;
+        int end = start + 1;
+        if ( interval != null )
+        {
+            while ( end < batch.size() && batch.host( end ).id == hostId && interval.contains( batch.epochSecond( end ) ) ) {
+                end++;
+            }
+        }
+        return end;
+    }
+
+    // @GuardedBy( LOCK )
+    private boolean beforeAppend()
+    {
+        if ( activeBuffer.isEmpty() )
+        {
+            activeBuffer.timestamp = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Blocks the producer while the active buffer is full and the previous one is still being written.
+     *
+     * @return <code>true</code> if the active buffer should be flushed right away
+     */
+    // @GuardedBy( LOCK )
+    private boolean afterAppend()
+    {
+        if ( activeBuffer.rows.size() <= config.maxCharsInBuffer ) {
+            return false;
+        }
+        if ( ! flushBuffer.isEmpty() )
+        {
+            producerStalls.incrementAndGet();
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("afterAppend(): Buffer full, waiting for flush to complete");
+            }
+            final long start = System.currentTimeMillis();
+            try
+            {
+                while ( ! shutdown && ! flushBuffer.isEmpty() ) {
+                    LOCK.wait( 100 );
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                producerStallMillis.addAndGet( System.currentTimeMillis() - start );
+            }
+        }
+        return true;
+    }
+
+    private void scheduleFlush(boolean firstRow, boolean flushNow)
+    {
+        if ( flushNow ) {
+            flushTask.wakeUp();
+        } else if ( firstRow ) {
+            flushTask.schedule( System.currentTimeMillis() + config.flushInterval.toMillis() );
+        }
+    }
+
+    /**
+     * Invoked by the {@link FlushScheduler}.
+     *
+     * @return time of next invocation
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long flush() throws SQLException, IOException
+    {
+        final StagingBuffer buffer;
+        synchronized( LOCK )
+        {
+            // a non-empty flush buffer is left over from a failed attempt and needs to be written first
+            if ( flushBuffer.isEmpty() )
+            {
+                if ( activeBuffer.isEmpty() ) {
+                    return FlushScheduler.NOT_SCHEDULED;
+                }
+                final long deadline = activeBuffer.timestamp + config.flushInterval.toMillis();
+                if ( ! shutdown && ! syncRequested && activeBuffer.rows.size() <= config.maxCharsInBuffer && System.currentTimeMillis() < deadline ) {
+                    return deadline;
+                }
+                syncRequested = false;
+                final StagingBuffer tmp = flushBuffer;
+                flushBuffer = activeBuffer;
+                activeBuffer = tmp;
+                swaps++;
+            }
+            buffer = flushBuffer;
+        }
+
+        // producers only ever touch the active buffer
+        try
+        {
+            writeToDatabase( buffer );
+            failedFlushes = 0;
+            for ( Host host : buffer.hosts.values() ) {
+                callbackHelper.markDirty( host.ip );
+            }
+        }
+        catch(SQLException | IOException e)
+        {
+            if ( ++failedFlushes < config.maxFlushAttempts ) {
+                throw e;
+            }
+            failedFlushes = 0;
+            quarantine( buffer );
+        }
+
+        synchronized( LOCK )
+        {
+            buffer.clear();
+            completedFlushes++;
+            LOCK.notifyAll();
+            if ( activeBuffer.isEmpty() ) {
+                return FlushScheduler.NOT_SCHEDULED;
+            }
+            return activeBuffer.rows.size() > config.maxCharsInBuffer ? System.currentTimeMillis() : activeBuffer.timestamp + config.flushInterval.toMillis();
+        }
+    }
+
+    /**
+     * Moves rows that could not be written to the database out of the way, so that producers may continue.
+     *
+     * @param buffer
+     */
+    private void quarantine(StagingBuffer buffer)
+    {
+        final int rows = buffer.rows.rowCount();
+        if ( spillArea == null ) {
+            LOG.fatal("quarantine(): Flush failed "+config.maxFlushAttempts+" times and no spill directory is configured, "+rows+" messages lost");
+            return;
+        }
+        try
+        {
+            final Spill spill = spillArea.create( QUARANTINE_TABLE, config.copyFormat );
+            spill.write( buffer.rows );
+            spillArea.release( spill );
+        }
+        catch(IOException e)
+        {
+            LOG.fatal("quarantine(): Failed to spill "+rows+" messages, messages lost",e);
+            return;
+        }
+        LOG.error("quarantine(): Flush failed "+config.maxFlushAttempts+" times, spilled "+rows+" messages to disk");
+        quarantinedRows.addAndGet( rows );
+        quarantineTask.wakeUp();
+    }
+
+    /**
+     * Invoked by the {@link FlushScheduler}, moves quarantined rows to the per-host tables
+     * once the {@link SpillArea} has loaded them into the quarantine table.
+     *
+     * @return time of next invocation
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long drainQuarantine() throws SQLException, IOException
+    {
+        if ( spillArea != null && spillArea.hasOrphans() ) {
+            return System.currentTimeMillis() + config.flushInterval.toMillis();
+        }
+
+        final List<Host> hosts = new ArrayList<>();
+        try ( final Connection connection = dataSource.getConnection() )
+        {
+            connection.setAutoCommit( false );
+            try
+            {
+                try ( Statement stmt = connection.createStatement() ;
+                      ResultSet rs = stmt.executeQuery( "SELECT DISTINCT host_id FROM " + QUARANTINE_TABLE ) )
+                {
+                    while ( rs.next() )
+                    {
+                        final Host host = hostManager.getHost( rs.getLong( 1 ) );
+                        if ( host == null ) {
+                            LOG.error("drainQuarantine(): Unknown host #"+rs.getLong( 1 )+", leaving its rows in "+QUARANTINE_TABLE);
+                        } else {
+                            hosts.add( host );
+                        }
+                    }
+                }
+                if ( hosts.isEmpty() ) {
+                    connection.commit();
+                    return FlushScheduler.NOT_SCHEDULED;
+                }
+
+                final Long[] hostIds = new Long[ hosts.size() ];
+                final String[] tables = new String[ hostIds.length ];
+                for ( int i = 0 ; i < hostIds.length ; i++ )
+                {
+                    hostIds[i] = hosts.get( i ).id;
+                    tables[i] = PostgreSQLStorage.createParentTableName( hosts.get( i ) );
+                }
+                final long rowsMoved = fanOut( connection, QUARANTINE_TABLE, hostIds, tables );
+                try ( PreparedStatement stmt = connection.prepareStatement( "DELETE FROM " + QUARANTINE_TABLE + " WHERE host_id = ANY(?)" ) )
+                {
+                    stmt.setArray( 1, connection.createArrayOf( "bigint", hostIds ) );
+                    final int rowsDeleted = stmt.executeUpdate();
+                    if ( rowsDeleted != rowsMoved ) {
+                        throw new SQLException( "Moved "+rowsMoved+" quarantined rows but deleted "+rowsDeleted );
+                    }
+                }
+                connection.commit();
+                LOG.info("drainQuarantine(): Moved "+rowsMoved+" quarantined rows for "+hostIds.length+" hosts to database.");
+            }
+            catch(SQLException e)
+            {
+                LOG.error("drainQuarantine(): Failed to move quarantined rows",e);
+                connection.rollback();
+                throw e;
+            }
+            finally
+            {
+                connection.setAutoCommit( true );
+            }
+        }
+        for ( Host host : hosts ) {
+            callbackHelper.markDirty( host.ip );
+        }
+        return FlushScheduler.NOT_SCHEDULED;
+    }
+
+    private static long fanOut(Connection connection, String source, Long[] hostIds, String[] tables) throws SQLException
+    {
+        try ( PreparedStatement stmt = connection.prepareStatement( "SELECT " + FAN_OUT_FUNCTION + "(?,?,?)" ) )
+        {
+            stmt.setString( 1, source );
+            stmt.setArray( 2, connection.createArrayOf( "bigint", hostIds ) );
+            stmt.setArray( 3, connection.createArrayOf( "text", tables ) );
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                rs.next();
+                return rs.getLong( 1 );
+            }
+        }
+    }
+
+    private void writeToDatabase(StagingBuffer buffer) throws SQLException, IOException
+    {
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug("writeToDatabase(): Flushing buffer ("+ buffer.rows.size()+" characters/bytes, "+buffer.hosts.size()+" hosts)");
+        }
+
+        final Long[] hostIds = new Long[ buffer.hosts.size() ];
+        final String[] tables = new String[ hostIds.length ];
+        int i = 0;
+        for ( Host host : buffer.hosts.values() )
+        {
+            hostIds[i] = host.id;
+            tables[i++] = PostgreSQLStorage.createParentTableName( host );
+        }
+
+        try ( final Connection connection = dataSource.getConnection() )
+        {
+            connection.setAutoCommit( false );
+            try
+            {
+                try ( Statement stmt = connection.createStatement() )
+                {
+                    stmt.execute( "CREATE TEMP TABLE IF NOT EXISTS " + STAGING_TABLE + " (" + STAGING_COLUMNS + ") ON COMMIT DELETE ROWS" );
+                    stmt.execute( "CREATE INDEX IF NOT EXISTS " + STAGING_TABLE + "_host_id ON " + STAGING_TABLE + "(host_id)" );
+                }
+
+                final BaseConnection con = connection.unwrap( BaseConnection.class );
+                final String sql = "COPY " + STAGING_TABLE + "("+PostgreSQLStorage.COPY_COLUMNS+") FROM STDIN "+buffer.rows.getCopyOptions();
+                final long rowsCopied = buffer.rows.copyIn( new CopyManager( con ), sql );
+
+                final long rowsMoved = fanOut( connection, STAGING_TABLE, hostIds, tables );
+                if ( rowsMoved != rowsCopied ) {
+                    throw new SQLException( "Copied "+rowsCopied+" rows to staging table but moved "+rowsMoved );
+                }
+                connection.commit();
+                flushCount.incrementAndGet();
+                if ( LOG.isTraceEnabled() ) {
+                    LOG.trace("writeToDatabase(): Wrote "+rowsMoved+" rows for "+hostIds.length+" hosts to database.");
+                }
+            }
+            catch(SQLException | IOException e)
+            {
+                LOG.error("writeToDatabase(): Flush failed",e);
+                connection.rollback();
+                throw e;
+            }
+            finally
+            {
+                connection.setAutoCommit( true );
+            }
+        }
+    }
+
+    @Override
+    public CopyFormat getCopyFormat() {
+        return config.copyFormat;
+    }
+
+    @Override
+    public boolean sync(Duration timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout.toMillis();
+        synchronized( LOCK )
+        {
+            final long target = swaps + ( activeBuffer.isEmpty() ? 0 : 1 );
+            while ( completedFlushes < target )
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( shutdown || remaining <= 0 ) {
+                    return false;
+                }
+                if ( swaps < target ) {
+                    syncRequested = true;
+                }
+                flushTask.wakeUp();
+                LOCK.wait( Math.min( remaining, 100 ) );
+            }
+            return true;
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down, flushes: "+getFlushCount()+", producer stalls: "+getProducerStalls()+" ("+getProducerStallMillis()+" ms), quarantined rows: "+getQuarantinedRows());
+        synchronized( LOCK )
+        {
+            if ( shutdown ) {
+                return;
+            }
+            shutdown = true;
+            LOCK.notifyAll();
+        }
+        // wait for a flush that might currently be running, then flush the rest on this thread
+        flushTask.cancel();
+        try
+        {
+            while ( flush() != FlushScheduler.NOT_SCHEDULED ) {
+                // flush() only returns NOT_SCHEDULED once both buffers are empty
+            }
+        }
+        catch(SQLException | IOException e)
+        {
+            LOG.error("shutdown(): Failed to flush remaining messages",e);
+        }
+        // quarantined rows left on disk get picked up on the next start
+        quarantineTask.cancel();
+        if ( spillArea != null ) {
+            spillArea.shutdown();
+        }
+        flushScheduler.shutdown();
+        partitionPruner.shutdown();
+        try
+        {
+            Runtime.getRuntime().removeShutdownHook( this.shutdownHook );
+        }
+        catch(IllegalStateException e) {
+            // VM is already shutting down
+        }
+    }
+
+    private Thread registerShutdownHook()
+    {
+        LOG.info("registerShutdownHook(): Registering shutdown hook");
+        final Thread thread = new Thread( () -> {
+
+            LOG.info("run(): VM is shutting down...");
+            try
+            {
+                shutdown();
+            }
+            catch (InterruptedException e)
+            {
+                LOG.error("run(): Caught exception during shutdown",e);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(thread);
+        return thread;
+    }
+
+    /**
+     * Returns the number of times buffered rows got written to the database.
+     *
+     * @return
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Returns the number of times a producer had to wait because the buffer was full and the previous one was still being flushed.
+     *
+     * @return
+     */
+    public long getProducerStalls() {
+        return producerStalls.get();
+    }
+
+    /**
+     * Returns the total time producers spent waiting for a flush to complete.
+     *
+     * @return
+     */
+    public long getProducerStallMillis() {
+        return producerStallMillis.get();
+    }
+
+    /**
+     * Returns the number of rows that were spilled to disk because they repeatedly failed to flush.
+     *
+     * @return
+     */
+    public long getQuarantinedRows() {
+        return quarantinedRows.get();
+    }
+}
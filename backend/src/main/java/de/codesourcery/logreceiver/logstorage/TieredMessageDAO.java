@@ -0,0 +1,174 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reads messages from the database and falls through to the {@link ColumnarArchive} for
+ * messages whose partitions have already been archived.
+ */
+public class TieredMessageDAO implements IMessageDAO
+{
+    private static final Comparator<SyslogMessage> BY_ID = Comparator.comparingLong( m -> m.id );
+
+    private final IMessageDAO database;
+    private final ColumnarArchive archive;
+
+    public TieredMessageDAO(IMessageDAO database, ColumnarArchive archive)
+    {
+        this.database = database;
+        this.archive = archive;
+    }
+
+    @Override
+    public Long getLatestMessageId(Host host)
+    {
+        final Long latest = database.getLatestMessageId( host );
+        if ( ! archive.isEnabled() ) {
+            return latest;
+        }
+        final Long archived = archive.getLatestMessageId( host );
+        if ( latest == null || archived == null ) {
+            return latest == null ? archived : latest;
+        }
+        return Math.max( latest, archived );
+    }
+
+    @Override
+    public void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids)
+    {
+        if ( ! archive.isEnabled() ) {
+            database.visitMessages( host, consumer, ids );
+            return;
+        }
+        final List<SyslogMessage> result = new ArrayList<>();
+        database.visitMessages( host, result::add, ids );
+        if ( result.size() < ids.size() ) {
+            archive.visitMessages( host, result::add, ids );
+        }
+        merge( result, BY_ID, Integer.MAX_VALUE ).forEach( consumer );
+    }
+
+    @Override
+    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    {
+        return getMessages( host, callback, IAPI.PagingDirection.BACKWARD_IN_TIME, Long.MAX_VALUE, maxCount );
+    }
+
+    @Override
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
+    {
+        if ( ! archive.isEnabled() ) {
+            return database.visitNewerMessages( host, filters, latestId, cancel );
+        }
+        // late messages may give archived partitions higher IDs than rows still in the database, so both get
+        // merged by ID. Archived messages are few unless filters catch up from long ago, they're read upfront
+        final List<SyslogMessage> archived = new ArrayList<>();
+        archive.visitNewerMessages( host, Collections.singletonList( archived::add ), latestId, cancel );
+        archived.sort( BY_ID );
+
+        final int[] next = { 0 };
+        final IFilterCallback merger = new IFilterCallback()
+        {
+            @Override
+            public void visit(SyslogMessage message) {
+                visit( Collections.singletonList( message ) );
+            }
+
+            @Override
+            public void visit(List<SyslogMessage> messages)
+            {
+                final List<SyslogMessage> merged = new ArrayList<>( messages.size() );
+                for ( SyslogMessage msg : messages )
+                {
+                    for ( ; next[0] < archived.size() && archived.get( next[0] ).id <= msg.id ; next[0]++ )
+                    {
+                        // skip rows of a partition that has been archived but not dropped yet
+                        if ( archived.get( next[0] ).id != msg.id ) {
+                            merged.add( archived.get( next[0] ) );
+                        }
+                    }
+                    merged.add( msg );
+                }
+                filters.forEach( filter -> filter.visit( merged ) );
+            }
+        };
+        final Long latest = database.visitNewerMessages( host, Collections.singletonList( merger ), latestId, cancel );
+        if ( cancel.getAsBoolean() ) {
+            return latest;
+        }
+        if ( next[0] < archived.size() )
+        {
+            final List<SyslogMessage> rest = archived.subList( next[0], archived.size() );
+            filters.forEach( filter -> filter.visit( rest ) );
+        }
+        if ( archived.isEmpty() ) {
+            return latest;
+        }
+        final long lastArchived = archived.get( archived.size() - 1 ).id;
+        return latest == null ? Long.valueOf( lastArchived ) : Long.valueOf( Math.max( latest, lastArchived ) );
+    }
+
+    @Override
+    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                           long refLogEntryId, int maxCount)
+    {
+        final List<SyslogMessage> result = direction == IAPI.PagingDirection.BACKWARD_IN_TIME && refLogEntryId == Long.MAX_VALUE ?
+            database.getLatestMessages( host, callback, maxCount ) :
+            database.getMessages( host, callback, direction, refLogEntryId, maxCount );
+        if ( ! archive.isEnabled() ) {
+            return result;
+        }
+        final Comparator<SyslogMessage> order;
+        switch( direction )
+        {
+            case FORWARD_IN_TIME:
+                order = BY_ID;
+                break;
+            case BACKWARD_IN_TIME:
+                order = BY_ID.reversed();
+                // paging backwards with a full page, the archive only matters if it holds newer messages than the oldest one we got
+                if ( result.size() >= maxCount )
+                {
+                    final Long archived = archive.getLatestMessageId( host );
+                    if ( archived == null || archived < result.get( result.size() - 1 ).id ) {
+                        return result;
+                    }
+                }
+                break;
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + direction );
+        }
+        result.addAll( archive.getMessages( host, callback, direction, refLogEntryId, maxCount ) );
+        return merge( result, order, maxCount );
+    }
+
+    /**
+     * Sorts messages, removes duplicates (a partition that failed to be dropped after it got archived)
+     * and truncates the list.
+     */
+    private static List<SyslogMessage> merge(List<SyslogMessage> messages, Comparator<SyslogMessage> order, int maxCount)
+    {
+        messages.sort( order );
+        final List<SyslogMessage> result = new ArrayList<>( Math.min( messages.size(), maxCount ) );
+        for ( SyslogMessage msg : messages )
+        {
+            if ( result.size() >= maxCount ) {
+                break;
+            }
+            if ( result.isEmpty() || result.get( result.size() - 1 ).id != msg.id ) {
+                result.add( msg );
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+package de.codesourcery.logreceiver.parsing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hands each message to either an RFC 5424 or an RFC 3164 parser.
+ *
+ * The format is told apart by the bytes following the PRI part only: RFC 5424 messages continue with
+ * a version number and a space (<code>&lt;13&gt;1 </code>), while RFC 3164 messages continue with a timestamp
+ * or arbitrary text. Messages without a PRI part are RFC 3164 messages that need a default priority.
+ */
+public class DetectingLogParser implements ILogParser
+{
+    private final ILogParser rfc5424;
+    private final ILogParser rfc3164;
+
+    // run of consecutive messages of the same format
+    private InetAddress[] runSenders = new InetAddress[0];
+    private ByteBuffer[] runPayloads = new ByteBuffer[0];
+
+    public DetectingLogParser(ILogParser rfc5424, ILogParser rfc3164)
+    {
+        this.rfc5424 = rfc5424;
+        this.rfc3164 = rfc3164;
+    }
+
+    /**
+     * Returns whether a message is an RFC 5424 message.
+     *
+     * @param data message bytes (between position and limit)
+     * @return
+     */
+    public static boolean isRFC5424(ByteBuffer data)
+    {
+        final int limit = data.limit();
+        int ptr = data.position();
+        if ( ptr >= limit || data.get( ptr++ ) != '<' ) {
+            return false;
+        }
+        // PRIVAL, 1-3 digits
+        final int priStart = ptr;
+        while ( ptr < limit && ptr - priStart < 3 && isDigit( data.get( ptr ) ) ) {
+            ptr++;
+        }
+        if ( ptr == priStart || ptr >= limit || data.get( ptr++ ) != '>' ) {
+            return false;
+        }
+        // VERSION = NONZERO-DIGIT 0*2DIGIT, followed by SP
+        if ( ptr >= limit || data.get( ptr ) < '1' || data.get( ptr ) > '9' ) {
+            return false;
+        }
+        final int versionStart = ptr++;
+        while ( ptr < limit && ptr - versionStart < 3 && isDigit( data.get( ptr ) ) ) {
+            ptr++;
+        }
+        return ptr < limit && data.get( ptr ) == ' ';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    @Override
+    public void parse(InetAddress sender, InputStream in)
+    {
+        try
+        {
+            parse( sender, ByteBuffer.wrap( in.readAllBytes() ) );
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @Override
+    public void parse(InetAddress sender, ByteBuffer data)
+    {
+        if ( isRFC5424( data ) ) {
+            rfc5424.parse( sender, data );
+        } else {
+            rfc3164.parse( sender, data );
+        }
+    }
+
+    /**
+     * Parse multiple messages.
+     *
+     * Consecutive messages of the same format get handed to the respective parser together,
+     * so messages are stored in the order they were received.
+     */
+    @Override
+    public int parse(InetAddress[] senders, ByteBuffer[] data, int count)
+    {
+        int parsed = 0;
+        int start = 0;
+        while ( start < count )
+        {
+            final boolean is5424 = isRFC5424( data[start] );
+            int end = start + 1;
+            while ( end < count && isRFC5424( data[end] ) == is5424 ) {
+                end++;
+            }
+            final ILogParser parser = is5424 ? rfc5424 : rfc3164;
+            if ( start == 0 && end == count )
+            {
+                // the whole batch has the same format
+                return parser.parse( senders, data, count );
+            }
+            parsed += parseRun( parser, senders, data, start, end );
+            start = end;
+        }
+        return parsed;
+    }
+
+    private int parseRun(ILogParser parser, InetAddress[] senders, ByteBuffer[] data, int start, int end)
+    {
+        final int len = end - start;
+        if ( runSenders.length < len )
+        {
+            runSenders = new InetAddress[len];
+            runPayloads = new ByteBuffer[len];
+        }
+        System.arraycopy( senders, start, runSenders, 0, len );
+        System.arraycopy( data, start, runPayloads, 0, len );
+        try
+        {
+            return parser.parse( runSenders, runPayloads, len );
+        }
+        finally
+        {
+            Arrays.fill( runSenders, 0, len, null );
+            Arrays.fill( runPayloads, 0, len, null );
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.entity.Host;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-host {@link StringInternTable}s shared by all parsers.
+ *
+ * Host names get resolved before the sending host is known, they use a single table shared by all hosts.
+ */
+public class HostStringInterner
+{
+    public static final class InternStatistics
+    {
+        public final long hostId; // 0 = host names
+        public long hits;
+        public long misses;
+        public int size;
+        public int capacity;
+
+        private InternStatistics(long hostId, StringInternTable table)
+        {
+            this.hostId = hostId;
+            this.hits = table.getHits();
+            this.misses = table.getMisses();
+            this.size = table.size();
+            this.capacity = table.capacity();
+        }
+
+        @Override
+        public String toString()
+        {
+            final long total = hits + misses;
+            final String ratio = total == 0 ? "n/a" : ( hits * 100 / total ) + "%";
+            return ( hostId == 0 ? "host names" : "host #"+hostId )+": hits="+hits+", misses="+misses+" ("+ratio+"), size="+size+"/"+capacity;
+        }
+    }
+
+    private final int capacityPerHost;
+    private final StringInternTable hostNames;
+    private final Map<Long,StringInternTable> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Create instance.
+     *
+     * @param capacityPerHost max. number of Strings per host, 0 disables interning
+     */
+    public HostStringInterner(int capacityPerHost)
+    {
+        this.capacityPerHost = capacityPerHost;
+        this.hostNames = new StringInternTable( capacityPerHost );
+    }
+
+    public StringInternTable hostNames() {
+        return hostNames;
+    }
+
+    public StringInternTable forHost(Host host) {
+        return tables.computeIfAbsent( host.id, id -> new StringInternTable( capacityPerHost ) );
+    }
+
+    public List<InternStatistics> getStatistics()
+    {
+        final List<InternStatistics> result = new ArrayList<>();
+        if ( hostNames.isEnabled() )
+        {
+            result.add( new InternStatistics( 0, hostNames ) );
+            tables.forEach( (hostId,table) -> result.add( new InternStatistics( hostId, table ) ) );
+        }
+        return result;
+    }
+}
@@ -1,9 +1,50 @@
 package de.codesourcery.logreceiver.parsing;
 
+import de.codesourcery.logreceiver.util.ByteBufferInputStream;
+
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public interface ILogParser
 {
     void parse(InetAddress sender,InputStream in);
+
+    /**
+     * Parse a message from a buffer.
+     *
+     * @param sender
+     * @param data message bytes (between position and limit), the buffer's position is not changed
+     */
+    default void parse(InetAddress sender, ByteBuffer data) {
+        parse( sender, new ByteBufferInputStream( data ) );
+    }
+
+    /**
+     * Parse multiple messages.
+     *
+     * Messages that fail to parse are skipped (and logged by the parser), all other messages are stored.
+     *
+     * @param senders
+     * @param data message bytes (between position and limit), the buffers' positions are not changed
+     * @param count number of messages (starting at index 0) to parse
+     * @return number of messages that were parsed successfully
+     */
+    default int parse(InetAddress[] senders, ByteBuffer[] data, int count)
+    {
+        int parsed = 0;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            try
+            {
+                parse( senders[i], data[i] );
+                parsed++;
+            }
+            catch(LogMessageParseException e)
+            {
+                // already logged by parser
+            }
+        }
+        return parsed;
+    }
 }
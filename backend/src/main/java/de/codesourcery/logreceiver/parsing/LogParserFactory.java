@@ -1,21 +1,88 @@
 package de.codesourcery.logreceiver.parsing;
 
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
 import de.codesourcery.logreceiver.logstorage.ILogStorage;
 import de.codesourcery.logreceiver.storage.IHostManager;
 
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * Creates parsers that accept both RFC 5424 and legacy RFC 3164 messages, see {@link DetectingLogParser}.
+ */
 public class LogParserFactory
 {
+    /**
+     * Parser used for RFC 5424 messages.
+     */
+    public enum ParserType
+    {
+        /**
+         * {@link RFC5424Parser}, decodes the input into characters before parsing.
+         */
+        RFC5424_CHARS,
+        /**
+         * {@link RFC5424ByteParser}, parses the raw bytes.
+         */
+        RFC5424_BYTES
+    }
+
     private final ILogStorage writer;
     private final IHostManager hostManager;
+    private final ParserType parserType;
+    private final ZoneId rfc3164TimeZone;
+    private final HostStringInterner interner;
+    private final SyslogMessagePool messagePool;
 
     public LogParserFactory(ILogStorage writer, IHostManager hostManager)
+    {
+        this( writer, hostManager, new Configuration() );
+    }
+
+    public LogParserFactory(ILogStorage writer, IHostManager hostManager, Configuration config)
     {
         this.writer = writer;
         this.hostManager = hostManager;
+        this.parserType = config.parserType;
+        this.rfc3164TimeZone = config.rfc3164TimeZone;
+        this.interner = new HostStringInterner( config.internTableSize );
+        this.messagePool = new SyslogMessagePool( config.messagePoolSize );
     }
 
     public ILogParser get()
     {
-        return new RFC5424Parser(hostManager,writer);
+        return new DetectingLogParser( getRFC5424Parser(), new RFC3164Parser( hostManager, writer, rfc3164TimeZone, interner, messagePool ) );
+    }
+
+    /**
+     * Returns hit/miss statistics of the String intern tables shared by all parsers created by this factory.
+     *
+     * @return
+     */
+    public List<HostStringInterner.InternStatistics> getInternStatistics() {
+        return interner.getStatistics();
+    }
+
+    /**
+     * Returns statistics of the message pool shared by all parsers created by this factory.
+     *
+     * @return
+     */
+    public SyslogMessagePool.PoolStatistics getMessagePoolStatistics() {
+        return messagePool.getStatistics();
+    }
+
+    private ILogParser getRFC5424Parser()
+    {
+        switch( parserType )
+        {
+            case RFC5424_CHARS:
+                return new RFC5424Parser(hostManager,writer,interner,messagePool);
+            case RFC5424_BYTES:
+                return new RFC5424ByteParser(hostManager,writer,interner,messagePool);
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + parserType );
+        }
     }
 }
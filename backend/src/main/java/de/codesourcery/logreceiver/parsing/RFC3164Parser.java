@@ -0,0 +1,467 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.storage.IHostManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Parser for legacy BSD syslog messages (RFC 3164), working directly on the bytes of a {@link ByteBuffer}.
+ *
+ * <pre>
+ * &lt;PRI&gt;Mmm dd hh:mm:ss HOSTNAME TAG[PID]: MSG
+ * </pre>
+ *
+ * Since senders rarely stick to the format, parsing is lenient:
+ * <ul>
+ *     <li>a missing PRI part means priority 13 (user.notice)</li>
+ *     <li>a missing or unparseable timestamp means the time of reception, the remainder is taken as the message then</li>
+ *     <li>the hostname may be missing if the next token looks like a tag</li>
+ *     <li>anything that does not look like a tag is taken as part of the message</li>
+ * </ul>
+ * Timestamps lack year and timezone, they are interpreted in the configured timezone and
+ * assumed to be in the past (allowing for a day of clock skew).
+ */
+public class RFC3164Parser implements ILogParser
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( RFC3164Parser.class.getName() );
+
+    private static final short DEFAULT_PRIORITY = 13;
+
+    private static final int MAX_TAG_LENGTH = 32;
+
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    private final ILogStorage logStorage;
+    private final IHostManager hostManager;
+    private final ZoneId timeZone;
+    private final HostStringInterner interner;
+    private final SyslogMessagePool pool;
+
+    // intern table of the host that sent the current message
+    private StringInternTable strings;
+    private long stringsHostId;
+
+    // messages of the current batch, index 0 is also used when parsing a single message
+    private SyslogMessage[] messages = new SyslogMessage[0];
+    private SyslogMessage message;
+
+    // used when the payload is not backed by an accessible array
+    private byte[] scratch = new byte[256];
+
+    private InetAddress currentIP;
+    private ZonedDateTime now;
+
+    private ByteBuffer data;
+    private int start;
+    private int ptr;
+    private int limit;
+
+    public RFC3164Parser(IHostManager hostManager, ILogStorage logWriter, ZoneId timeZone)
+    {
+        this( hostManager, logWriter, timeZone, new HostStringInterner( 0 ), new SyslogMessagePool( 64 ) );
+    }
+
+    public RFC3164Parser(IHostManager hostManager, ILogStorage logWriter, ZoneId timeZone, HostStringInterner interner, SyslogMessagePool pool)
+    {
+        this.logStorage = logWriter;
+        this.hostManager = hostManager;
+        this.timeZone = timeZone;
+        this.interner = interner;
+        this.pool = pool;
+    }
+
+    @Override
+    public void parse(InetAddress sender, InputStream in)
+    {
+        try
+        {
+            parse( sender, ByteBuffer.wrap( in.readAllBytes() ) );
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @Override
+    public void parse(InetAddress sender, ByteBuffer payload)
+    {
+        now = ZonedDateTime.now( timeZone );
+        message = pool.acquire();
+        setData( sender, payload );
+        try
+        {
+            parse();
+            logStorage.store(message);
+        }
+        catch(Throwable t)
+        {
+            LOG.fatal("parse(): Message might have been lost",t);
+            if ( t instanceof Error) {
+                throw t;
+            }
+            throw (RuntimeException) t;
+        }
+        finally
+        {
+            message.release();
+            message = null;
+            data = null;
+        }
+    }
+
+    @Override
+    public int parse(InetAddress[] senders, ByteBuffer[] payloads, int count)
+    {
+        if ( messages.length < count ) {
+            messages = new SyslogMessage[ count ];
+        }
+        pool.acquire( messages, count );
+
+        now = ZonedDateTime.now( timeZone );
+        int parsed = 0;
+        try
+        {
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                message = messages[parsed];
+                setData( senders[i], payloads[i] );
+                try
+                {
+                    parse();
+                    parsed++;
+                }
+                catch(LogMessageParseException e)
+                {
+                    LOG.error("parse(): Discarding malformed message from "+senders[i],e);
+                }
+            }
+            logStorage.store( messages, parsed );
+        }
+        catch(Throwable t)
+        {
+            LOG.fatal("parse(): "+parsed+" messages might have been lost",t);
+            if ( t instanceof Error) {
+                throw t;
+            }
+            throw (RuntimeException) t;
+        }
+        finally
+        {
+            // messages that failed to parse got re-used, all of them are still owned by this parser
+            message = null;
+            pool.release( messages, count );
+            data = null;
+        }
+        return parsed;
+    }
+
+    private void setData(InetAddress sender, ByteBuffer payload)
+    {
+        data = payload;
+        start = ptr = payload.position();
+        limit = payload.limit();
+        message.reset();
+        currentIP = sender;
+    }
+
+    private int offset() {
+        return ptr - start;
+    }
+
+    private boolean eof() {
+        return ptr >= limit;
+    }
+
+    private int peek() {
+        return data.get( ptr ) & 0xff;
+    }
+
+    private void fail(String message,int offset) {
+        throw new LogMessageParseException( message, offset);
+    }
+
+    private void parse()
+    {
+        parsePRI();
+        if ( ! parseTimestamp() )
+        {
+            message.setTimestamp( now );
+            setHost( hostManager.getOrCreateHost( currentIP, null ) );
+            parseMessage();
+            return;
+        }
+        maybeConsume( ' ' );
+        if ( ! looksLikeTag() ) {
+            parseHostname();
+        } else {
+            setHost( hostManager.getOrCreateHost( currentIP, null ) );
+        }
+        if ( looksLikeTag() ) {
+            parseTag();
+        }
+        parseMessage();
+    }
+
+    private void parsePRI()
+    {
+        if ( ! maybeConsume( '<' ) ) {
+            message.priority = DEFAULT_PRIORITY;
+            return;
+        }
+        final int offset = offset();
+        int prio = 0;
+        int digitCount = 0;
+        while ( digitCount < 3 && ! eof() && peek() >= '0' && peek() <= '9' )
+        {
+            prio = prio*10 + ( peek() - '0' );
+            ptr++;
+            digitCount++;
+        }
+        if ( digitCount == 0 ) {
+            fail( "Expected at least one digit of priority value", offset );
+        }
+        if ( prio > 191 ) {
+            fail("Priority must be [0...191] but was "+prio,offset);
+        }
+        if ( ! maybeConsume( '>' ) ) {
+            fail( "Expected '>'", offset() );
+        }
+        message.priority = (short) prio;
+    }
+
+    /**
+     * Parses a timestamp like <code>Jun  1 10:09:08</code>.
+     *
+     * @return <code>false</code> if there was no valid timestamp, the read pointer is left unchanged then
+     */
+    private boolean parseTimestamp()
+    {
+        final int mark = ptr;
+        final int month = parseMonth();
+        if ( month == -1 || ! maybeConsume( ' ' ) ) {
+            ptr = mark;
+            return false;
+        }
+        maybeConsume( ' ' ); // days < 10 are padded with a space
+        final int day = parseNumber( 1, 2 );
+        if ( day < 1 || day > 31 || ! maybeConsume( ' ' ) ) {
+            ptr = mark;
+            return false;
+        }
+        final int hour = parseNumber( 2, 2 );
+        final int minute = maybeConsume( ':' ) ? parseNumber( 2, 2 ) : -1;
+        final int second = maybeConsume( ':' ) ? parseNumber( 2, 2 ) : -1;
+        if ( hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 ) {
+            ptr = mark;
+            return false;
+        }
+        int nanos = 0;
+        if ( maybeConsume( '.' ) )
+        {
+            // some senders add fractional seconds
+            int factor = 100_000_000;
+            while ( ! eof() && peek() >= '0' && peek() <= '9' )
+            {
+                nanos += factor * ( peek() - '0' );
+                factor /= 10;
+                ptr++;
+            }
+        }
+        ZonedDateTime ts;
+        try
+        {
+            ts = ZonedDateTime.of( now.getYear(), month, day, hour, minute, second, nanos, timeZone );
+        }
+        catch(DateTimeException e)
+        {
+            // Feb 29th in a non-leap year
+            ts = null;
+        }
+        if ( ts == null || ts.isAfter( now.plusDays( 1 ) ) )
+        {
+            try {
+                ts = ZonedDateTime.of( now.getYear() - 1, month, day, hour, minute, second, nanos, timeZone );
+            } catch(DateTimeException e) {
+                ptr = mark;
+                return false;
+            }
+        }
+        message.setTimestamp( ts );
+        return true;
+    }
+
+    private int parseMonth()
+    {
+        if ( limit - ptr < 3 ) {
+            return -1;
+        }
+        final int c0 = peek();
+        final int c1 = data.get( ptr+1 ) & 0xff;
+        final int c2 = data.get( ptr+2 ) & 0xff;
+        for ( int i = 0 ; i < MONTHS.length ; i++ )
+        {
+            final String m = MONTHS[i];
+            if ( m.charAt( 0 ) == c0 && m.charAt( 1 ) == c1 && m.charAt( 2 ) == c2 )
+            {
+                ptr += 3;
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal number.
+     *
+     * @return number or -1 if there were less than <code>minLength</code> digits
+     */
+    private int parseNumber(int minLength,int maxLength)
+    {
+        int result = 0;
+        int digitCount = 0;
+        while ( digitCount < maxLength && ! eof() )
+        {
+            final int c = peek();
+            if ( c < '0' || c > '9' ) {
+                break;
+            }
+            result = result*10 + (c - '0');
+            ptr++;
+            digitCount++;
+        }
+        return digitCount < minLength ? -1 : result;
+    }
+
+    /**
+     * Returns whether the token at the read pointer is a tag, meaning it consists of up to {@link #MAX_TAG_LENGTH}
+     * non-blank characters followed by either <code>[</code> or <code>:</code>.
+     */
+    private boolean looksLikeTag()
+    {
+        final int max = Math.min( limit, ptr + MAX_TAG_LENGTH + 1 );
+        for ( int i = ptr ; i < max ; i++ )
+        {
+            final int c = data.get( i ) & 0xff;
+            if ( c == '[' || c == ':' ) {
+                return i > ptr;
+            }
+            if ( c < 33 || c > 126 ) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void parseHostname()
+    {
+        final int from = ptr;
+        final int max = Math.min( limit, ptr + 255 );
+        while ( ptr < max && peek() >= 33 && peek() <= 126 ) {
+            ptr++;
+        }
+        if ( ptr == from ) {
+            setHost( hostManager.getOrCreateHost( currentIP, null ) );
+            return;
+        }
+        message.hostName = interner.hostNames().intern( data, from, ptr );
+        setHost( hostManager.getOrCreateHost( currentIP, message.hostName ) );
+        maybeConsume( ' ' );
+    }
+
+    private void setHost(Host host)
+    {
+        message.host = host;
+        if ( strings == null || stringsHostId != host.id )
+        {
+            strings = interner.forHost( host );
+            stringsHostId = host.id;
+        }
+    }
+
+    private void parseTag()
+    {
+        final int from = ptr;
+        while ( peek() != '[' && peek() != ':' ) {
+            ptr++;
+        }
+        message.appName = strings.intern( data, from, ptr );
+        if ( maybeConsume( '[' ) )
+        {
+            final int pidStart = ptr;
+            while ( ! eof() && peek() != ']' && peek() >= 33 && peek() <= 126 ) {
+                ptr++;
+            }
+            if ( ptr > pidStart ) {
+                message.procId = strings.intern( data, pidStart, ptr );
+            }
+            maybeConsume( ']' );
+        }
+        maybeConsume( ':' );
+    }
+
+    private void parseMessage()
+    {
+        // strip leading/trailing whitespace
+        int from = ptr;
+        int to = limit;
+        for ( ; from < to && isWhitespace( data.get( from ) ) ; from++ );
+        for ( ; to > from && isWhitespace( data.get( to-1 ) ) ; to-- );
+        if ( to > from ) {
+            message.message = newString( from, to, StandardCharsets.UTF_8 );
+        }
+        ptr = limit;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && Character.isWhitespace( (char) b );
+    }
+
+    /**
+     * Creates a String from a range of the current payload.
+     *
+     * @param from start offset (inclusive)
+     * @param to end offset (exclusive)
+     * @param charset
+     * @return
+     */
+    private String newString(int from, int to, Charset charset)
+    {
+        final int len = to - from;
+        if ( len <= 0 ) {
+            return "";
+        }
+        if ( data.hasArray() ) {
+            return new String( data.array(), data.arrayOffset() + from, len, charset );
+        }
+        if ( scratch.length < len ) {
+            scratch = new byte[ len ];
+        }
+        for ( int i = 0 ; i < len ; i++ ) {
+            scratch[i] = data.get( from + i );
+        }
+        return new String( scratch, 0, len, charset );
+    }
+
+    private boolean maybeConsume(char c)
+    {
+        if ( ! eof() && peek() == c ) {
+            ptr++;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,585 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.DateUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntPredicate;
+
+/**
+ * RFC 5424 parser that works directly on the bytes of a {@link ByteBuffer}.
+ *
+ * Unlike {@link RFC5424Parser}, no charset decoder or intermediate character buffer
+ * is involved, Strings are only created for the fields that end up in the {@link SyslogMessage}.
+ */
+public class RFC5424ByteParser implements ILogParser
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( RFC5424ByteParser.class.getName() );
+
+    private static final byte QUOTE = (byte) 34;
+
+    private final ILogStorage logStorage;
+    private final IHostManager hostManager;
+    private final HostStringInterner interner;
+    private final SyslogMessagePool pool;
+
+    // intern table of the host that sent the current message
+    private StringInternTable strings;
+    private long stringsHostId;
+
+    // messages of the current batch, index 0 is also used when parsing a single message
+    private SyslogMessage[] messages = new SyslogMessage[0];
+    private SyslogMessage message;
+
+    // used when the payload is not backed by an accessible array
+    private byte[] scratch = new byte[256];
+
+    // used when parsing from an InputStream
+    private ByteBuffer streamBuffer = ByteBuffer.allocate( 2048 );
+
+    private InetAddress currentIP;
+
+    private ByteBuffer data;
+    private int start;
+    private int ptr;
+    private int limit;
+
+    public RFC5424ByteParser(IHostManager hostManager, ILogStorage logWriter) {
+        this( hostManager, logWriter, new HostStringInterner( 0 ), new SyslogMessagePool( 64 ) );
+    }
+
+    public RFC5424ByteParser(IHostManager hostManager, ILogStorage logWriter, HostStringInterner interner, SyslogMessagePool pool)
+    {
+        this.logStorage = logWriter;
+        this.hostManager = hostManager;
+        this.interner = interner;
+        this.pool = pool;
+    }
+
+    @Override
+    public void parse(InetAddress sender, InputStream in)
+    {
+        streamBuffer.clear();
+        try
+        {
+            int read;
+            do
+            {
+                if ( ! streamBuffer.hasRemaining() )
+                {
+                    final ByteBuffer tmp = ByteBuffer.allocate( streamBuffer.capacity()*2 );
+                    streamBuffer.flip();
+                    tmp.put( streamBuffer );
+                    streamBuffer = tmp;
+                }
+                read = in.read( streamBuffer.array(), streamBuffer.position(), streamBuffer.remaining() );
+                if ( read > 0 ) {
+                    streamBuffer.position( streamBuffer.position() + read );
+                }
+            } while ( read >= 0 );
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException( e );
+        }
+        streamBuffer.flip();
+        parse( sender, streamBuffer );
+    }
+
+    @Override
+    public void parse(InetAddress sender, ByteBuffer payload)
+    {
+        message = pool.acquire();
+        setData( sender, payload );
+        try
+        {
+            parse();
+            logStorage.store(message);
+        }
+        catch(Throwable t)
+        {
+            LOG.fatal("parse(): Message might have been lost",t);
+            if ( t instanceof Error) {
+                throw t;
+            }
+            throw (RuntimeException) t;
+        }
+        finally
+        {
+            message.release();
+            message = null;
+            data = null;
+        }
+    }
+
+    @Override
+    public int parse(InetAddress[] senders, ByteBuffer[] payloads, int count)
+    {
+        if ( messages.length < count ) {
+            messages = new SyslogMessage[ count ];
+        }
+        pool.acquire( messages, count );
+
+        int parsed = 0;
+        try
+        {
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                message = messages[parsed];
+                setData( senders[i], payloads[i] );
+                try
+                {
+                    parse();
+                    parsed++;
+                }
+                catch(LogMessageParseException e)
+                {
+                    LOG.error("parse(): Discarding malformed message from "+senders[i],e);
+                }
+                catch(RuntimeException e)
+                {
+                    LOG.fatal("parse(): Message from "+senders[i]+" might have been lost",e);
+                }
+            }
+            try
+            {
+                logStorage.store( messages, parsed );
+            }
+            catch(RuntimeException e)
+            {
+                // writers convert the whole batch before storing it, so most likely a single message is to blame
+                LOG.error("parse(): Failed to store "+parsed+" messages, storing them one by one",e);
+                parsed = storeIndividually( parsed );
+            }
+        }
+        catch(Throwable t)
+        {
+            LOG.fatal("parse(): "+parsed+" messages might have been lost",t);
+            if ( t instanceof Error) {
+                throw t;
+            }
+            throw (RuntimeException) t;
+        }
+        finally
+        {
+            // messages that failed to parse got re-used, all of them are still owned by this parser
+            message = null;
+            pool.release( messages, count );
+            data = null;
+        }
+        return parsed;
+    }
+
+    private void setData(InetAddress sender, ByteBuffer payload)
+    {
+        data = payload;
+        start = ptr = payload.position();
+        limit = payload.limit();
+        message.reset();
+        currentIP = sender;
+    }
+
+    private int offset() {
+        return ptr - start;
+    }
+
+    private boolean eof() {
+        return ptr >= limit;
+    }
+
+    private int peek() {
+        return data.get( ptr ) & 0xff;
+    }
+
+    private void fail(String message) {
+        fail(message,offset());
+    }
+
+    private void fail(String message,int offset) {
+        throw new LogMessageParseException( message, offset);
+    }
+
+    private void parse()
+    {
+        parseHeader();
+        parseSP();
+        parseStructuredData();
+        if ( maybeConsume( ' ' ) )
+        {
+            // skip leading whitespace
+            while ( maybeConsume( ' ' ) );
+            if ( ! eof() )
+            {
+                parseMessage();
+            }
+        }
+    }
+
+    private void parseMessage()
+    {
+        // strip leading/trailing whitespace
+        int from = ptr;
+        int to = limit;
+        if ( to - from >= 3 && data.get(from) == (byte) 0xef && data.get(from+1) == (byte) 0xbb && data.get(from+2) == (byte) 0xbf ) {
+            from += 3; // skip UTF-8 BOM
+        }
+        for ( ; from < to && isWhitespace( data.get( from ) ) ; from++ );
+        for ( ; to > from && isWhitespace( data.get( to-1 ) ) ; to-- );
+        message.message = newString( from, to, StandardCharsets.UTF_8 );
+        ptr = limit;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && Character.isWhitespace( (char) b );
+    }
+
+    private void parseStructuredData()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        int count = 0;
+        while ( parseSDElement() ) {
+            count++;
+        }
+
+        if ( count == 0 ) {
+            fail("Expected SD-Element");
+        }
+    }
+
+    private boolean parseSDElement() {
+
+        if ( ! maybeConsume( '[' ) ) {
+            return false;
+        }
+        final String id = parseSDId();
+
+        final SDParam param = message.newParam( id );
+
+        while (  maybeConsume( ' ' ) )
+        {
+            parseSDParam( param );
+        }
+        consume(']' );
+        return true;
+    }
+
+    private void parseSDParam(SDParam parent) {
+        final String key = parseSDName();
+        consume( '=' );
+        consume( (char) QUOTE );
+        final int valueStart = ptr;
+        while ( ! eof() && data.get( ptr ) != QUOTE ) {
+            ptr++;
+        }
+        final int valueEnd = ptr;
+        consume( (char) QUOTE );
+        parent.addParam(key,newString( valueStart, valueEnd, StandardCharsets.UTF_8 ));
+    }
+
+    private String parseSDId() {
+        return parseSDName();
+    }
+
+    private String parseSDName()
+    {
+        // SD-NAME = 1*32PRINTUSASCII except '=', SP, ']' and '"'
+        final int from = ptr;
+        final int max = Math.min( limit, ptr + 32 );
+        while ( ptr < max )
+        {
+            final int c = peek();
+            if ( c < 33 || c > 126 || c == '=' || c == ']' || c == QUOTE ) {
+                break;
+            }
+            ptr++;
+        }
+        if ( ptr == from ) {
+            fail( "Expected SD-NAME" );
+        }
+        return strings.intern( data, from, ptr );
+    }
+
+    private void parseHeader()
+    {
+        parsePRI();
+
+        parseVersion();
+
+        parseSP();
+        parseTimestamp();
+
+        parseSP();
+        parseHostname();
+
+        parseSP();
+        parseAppName();
+
+        parseSP();
+        parsePROCID();
+
+        parseSP();
+        parseMSGID();
+    }
+
+    private void parseMSGID()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.msgId = parseUSAscii( 32, strings );
+    }
+
+    private void parsePROCID() {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.procId = parseUSAscii( 128, strings );
+    }
+
+    private void parseHostname() {
+        if ( maybeParseNilValue() ) {
+            setHost( hostManager.getOrCreateHost( currentIP , null ) );
+            return;
+        }
+        message.hostName = parseUSAscii( 255, interner.hostNames() );
+        setHost( hostManager.getOrCreateHost( currentIP, message.hostName ) );
+    }
+
+    private void setHost(Host host)
+    {
+        message.host = host;
+        if ( strings == null || stringsHostId != host.id )
+        {
+            strings = interner.forHost( host );
+            stringsHostId = host.id;
+        }
+    }
+
+    private void parseAppName() {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.appName = parseUSAscii( 48, strings );
+    }
+
+    private String parseUSAscii(int maxLength, StringInternTable table)
+    {
+        final int from = ptr;
+        final int max = Math.min( limit, ptr + maxLength );
+        while ( ptr < max )
+        {
+            final int c = peek();
+            if ( c < 33 || c > 126 ) {
+                break;
+            }
+            ptr++;
+        }
+        if ( ptr == from ) {
+            fail( "Expected at least one US ASCII character" );
+        }
+        return table.intern( data, from, ptr );
+    }
+
+    /**
+     * Creates a String from a range of the current payload.
+     *
+     * @param from start offset (inclusive)
+     * @param to end offset (exclusive)
+     * @param charset
+     * @return
+     */
+    private String newString(int from, int to, Charset charset)
+    {
+        final int len = to - from;
+        if ( len <= 0 ) {
+            return "";
+        }
+        if ( data.hasArray() ) {
+            return new String( data.array(), data.arrayOffset() + from, len, charset );
+        }
+        if ( scratch.length < len ) {
+            scratch = new byte[ len ];
+        }
+        for ( int i = 0 ; i < len ; i++ ) {
+            scratch[i] = data.get( from + i );
+        }
+        return new String( scratch, 0, len, charset );
+    }
+
+    private void parseTimestamp()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+
+        // YYYY
+        int year = (short) parseFixedLengthNumber( "year (YYYY)", 4, num -> num > 0 );
+        consume('-' );
+        int month = (byte) parseFixedLengthNumber( "month (MM)", 2, num -> num > 0 && num < 13 );
+        consume('-' );
+        int dayOfMonth = (byte) parseFixedLengthNumber( "monthday (DD)", 2, num -> num > 0 && num < 32 );
+
+        consume('T' );
+
+        int hour = (byte) parseFixedLengthNumber( "hour (HH)", 2, num -> num >= 0 && num < 24 );
+        consume(':');
+        int minute = (byte) parseFixedLengthNumber( "minute (MM)", 2, num -> num >= 0 && num < 60 );
+        consume(':');
+        int second = (byte) parseFixedLengthNumber( "seconds (SS)", 2, num -> num >= 0 && num < 60 );
+
+        int secondFrag = 0;
+        if ( maybeConsume( '.' ) ) {
+            // fraction
+            secondFrag = parseNumber( 6, "time sec-frag" );
+        }
+
+        int factor = 1;
+        int tzHours = 0;
+        int tzMinutes = 0;
+        if ( !maybeConsume( 'Z' ) )
+        {
+            if ( ! maybeConsume( '+' ) )
+            {
+                factor = maybeConsume( '-' ) ? -1 : 1;
+            }
+
+            tzHours = factor*parseFixedLengthNumber( "TZ offset hours", 2, x -> x >= 0 && x < 24 );
+            consume(':');
+            tzMinutes = factor*parseFixedLengthNumber( "TZ offset minutes", 2, x -> x >= 0 && x < 60 );
+        }
+
+        if ( ! DateUtils.isValidDate( year, month, dayOfMonth ) ) {
+            fail( "Invalid date "+year+"-"+month+"-"+dayOfMonth );
+        }
+        final int offsetSeconds = tzHours*3600 + tzMinutes*60;
+        message.setTimestamp( DateUtils.toEpochSecond( year, month, dayOfMonth, hour, minute, second, offsetSeconds ), secondFrag, offsetSeconds );
+    }
+
+    private int parseNumber(int maxLength,String what)
+    {
+        return parseNumber(1,maxLength,what);
+    }
+
+    private int parseNumber(int minLength,int maxLength,String what)
+    {
+        final int startOffset = offset();
+        int result = 0;
+        int digitCount = 0;
+        while ( digitCount < maxLength && ! eof() )
+        {
+            final int c = peek();
+            if ( c < '0' || c > '9' ) {
+                break;
+            }
+            result = result*10 + (c - '0');
+            ptr++;
+            digitCount++;
+        }
+
+        if ( digitCount < minLength ) {
+            fail("Expected at least "+minLength+" digits of "+what,startOffset);
+        }
+        return result;
+    }
+
+    /**
+     * Stores parsed messages one at a time.
+     *
+     * @param count
+     * @return number of messages that got stored
+     */
+    private int storeIndividually(int count)
+    {
+        int stored = 0;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            try
+            {
+                logStorage.store( messages[i] );
+                stored++;
+            }
+            catch(RuntimeException e)
+            {
+                LOG.fatal("parse(): Message might have been lost",e);
+            }
+        }
+        return stored;
+    }
+
+    private boolean maybeParseNilValue()
+    {
+        if ( ! eof() && peek() == '-' ) {
+            ptr++;
+            return true;
+        }
+        return false;
+    }
+
+    private void parseVersion()
+    {
+        final int offset = offset();
+        final int version = parseNumber( 3, "version" );
+        if ( version != 1 ) {
+            fail("Unsupported protocol version "+version,offset);
+        }
+    }
+
+    private int parseFixedLengthNumber(String what, int len, IntPredicate validator)
+    {
+        final int offset = offset();
+        final int number = parseNumber(len,len, what);
+        if ( ! validator.test( number ) ) {
+            fail("Number "+number+" is out-of-range for "+what,offset);
+        }
+        return number;
+    }
+
+    private void parsePRI() {
+        consume('<' );
+        parsePRIVal();
+        consume('>' );
+    }
+
+    private void parsePRIVal()
+    {
+        final int offset = offset();
+        final int prio = parseNumber( 3, "priority value" );
+        if ( prio > 191 ) {
+            fail("Priority must be [0...191] but was "+prio,offset);
+        }
+        message.priority = (short) prio;
+    }
+
+    private void parseSP() {
+        consume(' ');
+    }
+
+    private boolean maybeConsume(char c)
+    {
+        if ( ! eof() && peek() == c ) {
+            ptr++;
+            return true;
+        }
+        return false;
+    }
+
+    private void consume(char c)
+    {
+        if ( ! maybeConsume( c ) ) {
+            fail("Expected '"+c+"'");
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package de.codesourcery.logreceiver.parsing;
 
+import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SDParam;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
 import de.codesourcery.logreceiver.logstorage.ILogStorage;
 import de.codesourcery.logreceiver.storage.IHostManager;
 import de.codesourcery.logreceiver.util.DateUtils;
@@ -9,9 +11,6 @@ import de.codesourcery.logreceiver.util.DateUtils;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
 import java.util.function.IntPredicate;
 
 public class RFC5424Parser implements ILogParser
@@ -21,24 +20,37 @@ public class RFC5424Parser implements ILogParser
     private final Scanner scanner = new Scanner();
     private final ILogStorage logStorage;
 
-    private final SyslogMessage message = new SyslogMessage();
+    private SyslogMessage message;
 
     private final StringBuilder buffer = new StringBuilder();
 
     private final IHostManager hostManager;
+    private final HostStringInterner interner;
+    private final SyslogMessagePool pool;
+
+    // intern table of the host that sent the current message
+    private StringInternTable strings;
+    private long stringsHostId;
 
     private InetAddress currentIP;
 
     public RFC5424Parser(IHostManager hostManager, ILogStorage logWriter) {
+        this( hostManager, logWriter, new HostStringInterner( 0 ), new SyslogMessagePool( 1 ) );
+    }
+
+    public RFC5424Parser(IHostManager hostManager, ILogStorage logWriter, HostStringInterner interner, SyslogMessagePool pool)
+    {
         this.logStorage = logWriter;
         this.hostManager = hostManager;
+        this.interner = interner;
+        this.pool = pool;
     }
 
     @Override
     public void parse(InetAddress sender,InputStream in)
     {
         scanner.setData( new InputStreamReader( in ) );
-        message.reset();
+        message = pool.acquire();
         currentIP = sender;
         buffer.setLength( 0 );
         try
@@ -54,6 +66,11 @@ public class RFC5424Parser implements ILogParser
             }
             throw (RuntimeException) t;
         }
+        finally
+        {
+            message.release();
+            message = null;
+        }
     }
 
     private void fail(String message) {
@@ -116,15 +133,13 @@ public class RFC5424Parser implements ILogParser
         }
         final String id = parseSDId();
 
-        final SDParam param = new SDParam( id );
+        final SDParam param = message.newParam( id );
 
         while (  maybeConsume( ' ' ) )
         {
             parseSDParam( param );
         }
         consume(']' );
-
-        message.addParam(param );
         return true;
     }
 
@@ -153,7 +168,7 @@ public class RFC5424Parser implements ILogParser
     private String parseSDName()
     {
         int offset = scanner.offset();
-        final String string = parseUSAscii( 32 );
+        final String string = parseUSAscii( 32, strings );
         for ( int i = 0, len = string.length() ; i < len ; i++ ) {
             char c = string.charAt( i );
             if ( c == '=' || c == ' ' || c == ']' || c == '"' ) {
@@ -190,33 +205,43 @@ public class RFC5424Parser implements ILogParser
         if ( maybeParseNilValue() ) {
             return;
         }
-        message.msgId = parseUSAscii( 32 );
+        message.msgId = parseUSAscii( 32, strings );
     }
 
     private void parsePROCID() {
         if ( maybeParseNilValue() ) {
             return;
         }
-        message.procId = parseUSAscii( 128 );
+        message.procId = parseUSAscii( 128, strings );
     }
 
     private void parseHostname() {
         if ( maybeParseNilValue() ) {
-            message.host = hostManager.getOrCreateHost( currentIP , null );
+            setHost( hostManager.getOrCreateHost( currentIP , null ) );
             return;
         }
-        message.hostName = parseUSAscii( 255 );
-        message.host = hostManager.getOrCreateHost( currentIP, message.hostName );
+        message.hostName = parseUSAscii( 255, interner.hostNames() );
+        setHost( hostManager.getOrCreateHost( currentIP, message.hostName ) );
+    }
+
+    private void setHost(Host host)
+    {
+        message.host = host;
+        if ( strings == null || stringsHostId != host.id )
+        {
+            strings = interner.forHost( host );
+            stringsHostId = host.id;
+        }
     }
 
     private void parseAppName() {
         if ( maybeParseNilValue() ) {
             return;
         }
-        message.appName = parseUSAscii( 48 );
+        message.appName = parseUSAscii( 48, strings );
     }
 
-    private String parseUSAscii(int maxLength) {
+    private String parseUSAscii(int maxLength, StringInternTable table) {
 
         buffer.setLength( 0 );
         int count = 0;
@@ -235,7 +260,7 @@ public class RFC5424Parser implements ILogParser
         if ( count < 1 ) {
             fail( "Expected at least one US ASCII character", scanner.offset() );
         }
-        return buffer.toString();
+        return table.intern( buffer );
     }
 
     private void parseTimestamp()
@@ -280,20 +305,11 @@ public class RFC5424Parser implements ILogParser
             tzMinutes = factor*parseFixedLengthNumber( "TZ offset minutes", 2, x -> x >= 0 && x < 60 );
         }
 
-        // assumption is that timestamp must ALWAYS be
-        // set so we don't bother checking values
-        // for validity (ZonedDateTime will do it anyway)
-        final ZoneId zoneId;
-        if (tzHours == 0 && tzMinutes == 0)
-        {
-            zoneId = DateUtils.UTC;
-        }
-        else
-        {
-            final ZoneOffset offset = ZoneOffset.ofHoursMinutes( tzHours, tzMinutes);
-            zoneId = ZoneId.from(offset);
+        if ( ! DateUtils.isValidDate( year, month, dayOfMonth ) ) {
+            fail( "Invalid date "+year+"-"+month+"-"+dayOfMonth );
         }
-        message.timestamp  = ZonedDateTime.of( year, month, dayOfMonth, hour, minute, second, secondFrag, zoneId);
+        final int offsetSeconds = tzHours*3600 + tzMinutes*60;
+        message.setTimestamp( DateUtils.toEpochSecond( year, month, dayOfMonth, hour, minute, second, offsetSeconds ), secondFrag, offsetSeconds );
     }
 
     private static boolean isNoDigit(char c) {
@@ -0,0 +1,199 @@
+package de.codesourcery.logreceiver.parsing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded table of canonical Strings that resolves US-ASCII byte or character ranges
+ * to a previously seen String without allocating.
+ *
+ * The table is 2-way set associative. New Strings always go into the second slot of their set and only
+ * move to the first slot when they are looked up again, so values that never repeat (random process IDs,
+ * message IDs, ...) just keep replacing each other in the second slot instead of evicting the values that do.
+ *
+ * Lookups are lock-free. Concurrent updates may lose an entry or store it twice, which is harmless as
+ * every hit gets verified against the input and Strings are immutable.
+ */
+public final class StringInternTable
+{
+    /**
+     * Longer Strings are never interned.
+     */
+    public static final int MAX_LENGTH = 64;
+
+    private final String[] slots;
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create table.
+     *
+     * @param capacity max. number of Strings, rounded up to the next power of two. 0 disables interning.
+     */
+    public StringInternTable(int capacity)
+    {
+        if ( capacity < 0 ) {
+            throw new IllegalArgumentException( "Capacity must be >= 0" );
+        }
+        final int sets = capacity < 2 ? ( capacity == 0 ? 0 : 1 ) : Integer.highestOneBit( capacity - 1 );
+        this.slots = new String[ sets * 2 ];
+        this.setMask = sets - 1;
+    }
+
+    public boolean isEnabled() {
+        return slots.length > 0;
+    }
+
+    /**
+     * Returns a String for a range of US-ASCII bytes.
+     *
+     * @param data
+     * @param from start offset (inclusive)
+     * @param to end offset (exclusive)
+     * @return
+     */
+    public String intern(ByteBuffer data, int from, int to)
+    {
+        final int len = to - from;
+        if ( ! isEnabled() || len > MAX_LENGTH ) {
+            return newString( data, from, to );
+        }
+        int hash = 0;
+        for ( int i = from ; i < to ; i++ ) {
+            hash = 31 * hash + ( data.get( i ) & 0xff );
+        }
+        final int first = ( spread( hash ) & setMask ) << 1;
+        final String s0 = slots[first];
+        if ( matches( s0, hash, data, from, len ) )
+        {
+            hits.increment();
+            return s0;
+        }
+        final String s1 = slots[first+1];
+        if ( matches( s1, hash, data, from, len ) ) {
+            return promote( first, s1, s0 );
+        }
+        misses.increment();
+        final String result = newString( data, from, to );
+        slots[first+1] = result;
+        return result;
+    }
+
+    /**
+     * Returns a String for a sequence of US-ASCII characters.
+     *
+     * @param chars
+     * @return
+     */
+    public String intern(CharSequence chars)
+    {
+        final int len = chars.length();
+        if ( ! isEnabled() || len > MAX_LENGTH ) {
+            return chars.toString();
+        }
+        int hash = 0;
+        for ( int i = 0 ; i < len ; i++ ) {
+            hash = 31 * hash + chars.charAt( i );
+        }
+        final int first = ( spread( hash ) & setMask ) << 1;
+        final String s0 = slots[first];
+        if ( matches( s0, hash, chars, len ) )
+        {
+            hits.increment();
+            return s0;
+        }
+        final String s1 = slots[first+1];
+        if ( matches( s1, hash, chars, len ) ) {
+            return promote( first, s1, s0 );
+        }
+        misses.increment();
+        final String result = chars.toString();
+        slots[first+1] = result;
+        return result;
+    }
+
+    private String promote(int first, String hit, String demoted)
+    {
+        hits.increment();
+        slots[first] = hit;
+        slots[first+1] = demoted;
+        return hit;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ ( hash >>> 16 );
+    }
+
+    // the hash is computed the same way as String#hashCode() which caches it
+    private static boolean matches(String s, int hash, ByteBuffer data, int from, int len)
+    {
+        if ( s == null || s.length() != len || s.hashCode() != hash ) {
+            return false;
+        }
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            if ( s.charAt( i ) != ( data.get( from + i ) & 0xff ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String s, int hash, CharSequence chars, int len)
+    {
+        if ( s == null || s.length() != len || s.hashCode() != hash ) {
+            return false;
+        }
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            if ( s.charAt( i ) != chars.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String newString(ByteBuffer data, int from, int to)
+    {
+        final int len = to - from;
+        if ( data.hasArray() ) {
+            return new String( data.array(), data.arrayOffset() + from, len, StandardCharsets.US_ASCII );
+        }
+        final byte[] tmp = new byte[ len ];
+        for ( int i = 0 ; i < len ; i++ ) {
+            tmp[i] = data.get( from + i );
+        }
+        return new String( tmp, StandardCharsets.US_ASCII );
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of Strings currently held by this table.
+     *
+     * @return
+     */
+    public int size()
+    {
+        int count = 0;
+        for ( String s : slots ) {
+            if ( s != null ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,279 @@
+package de.codesourcery.logreceiver.receiving;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.parsing.HostStringInterner;
+import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.LogParserFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Hands received packets to the parsers.
+ *
+ * If {@link Configuration#parserThreads} is greater than zero, receiving threads only copy packets into a
+ * {@link PacketRingBuffer} that gets drained by a pool of parser threads. Otherwise packets are parsed
+ * on the receiving thread.
+ *
+ * Parser threads may store consecutive messages of a sender in a different order than they were received.
+ */
+public class PacketProcessor
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( PacketProcessor.class.getName() );
+
+    /**
+     * Snapshot of the counters of a single parser thread.
+     */
+    public static final class WorkerStatistics
+    {
+        public final int workerId;
+        public final long packetsParsed;
+        public final long packetsFailed;
+
+        private WorkerStatistics(Worker worker)
+        {
+            this.workerId = worker.id;
+            this.packetsParsed = worker.packetsParsed.get();
+            this.packetsFailed = worker.packetsFailed.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "parser #"+workerId+": parsed="+packetsParsed+", failed="+packetsFailed;
+        }
+    }
+
+    private final class Worker extends Thread
+    {
+        public final int id;
+
+        private final AtomicLong packetsParsed = new AtomicLong();
+        private final AtomicLong packetsFailed = new AtomicLong();
+
+        private Worker(int id)
+        {
+            super( "packet-parser-"+id );
+            this.id = id;
+            setDaemon( true );
+        }
+
+        @Override
+        public void run()
+        {
+            final ILogParser parser = parserFactory.get();
+            final int batchSize = Math.max( 1, config.parserBatchSize );
+            final PacketRingBuffer.Slot[] slots = new PacketRingBuffer.Slot[ batchSize ];
+            final InetAddress[] senders = new InetAddress[ batchSize ];
+            final ByteBuffer[] payloads = new ByteBuffer[ batchSize ];
+            int idleCount = 0;
+            while ( true )
+            {
+                final int count = ringBuffer.poll( slots, batchSize );
+                if ( count == 0 )
+                {
+                    if ( shutdown ) {
+                        break;
+                    }
+                    PacketRingBuffer.idle( idleCount++ );
+                    continue;
+                }
+                idleCount = 0;
+                try
+                {
+                    for ( int i = 0 ; i < count ; i++ )
+                    {
+                        senders[i] = slots[i].sender;
+                        payloads[i] = slots[i].data;
+                    }
+                    final int parsed = parser.parse( senders, payloads, count );
+                    packetsParsed.addAndGet( parsed );
+                    packetsFailed.addAndGet( count - parsed );
+                }
+                catch(Exception e)
+                {
+                    packetsFailed.addAndGet( count );
+                    LOG.error("run(): Failed to parse/store "+count+" packets",e);
+                }
+                finally
+                {
+                    for ( int i = 0 ; i < count ; i++ )
+                    {
+                        ringBuffer.release( slots[i] );
+                        slots[i] = null;
+                        payloads[i] = null;
+                    }
+                }
+            }
+            LOG.info( "run(): Parser thread terminated, "+new WorkerStatistics( this ) );
+        }
+    }
+
+    private final Configuration config;
+    private final LogParserFactory parserFactory;
+
+    private final PacketRingBuffer ringBuffer;
+    private final int highWatermark;
+
+    private final ThreadLocal<ILogParser> parser;
+
+    private volatile boolean shutdown;
+    private final BooleanSupplier isShutdown = () -> shutdown;
+
+    private volatile List<Worker> workers = Collections.emptyList();
+
+    public PacketProcessor(Configuration config, LogParserFactory parserFactory)
+    {
+        this.config = config;
+        this.parserFactory = parserFactory;
+        this.parser = ThreadLocal.withInitial( parserFactory::get );
+        if ( config.parserThreads > 0 ) {
+            ringBuffer = new PacketRingBuffer( config.receiveRingBufferSize, config.maxReceiveBufferSize, config.receiveRingBufferOverflowPolicy );
+            highWatermark = Math.max( 1, (int) ( ringBuffer.capacity() * config.receiveRingBufferHighWatermark ) );
+        } else {
+            ringBuffer = null;
+            highWatermark = Integer.MAX_VALUE;
+        }
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if ( ringBuffer == null ) {
+            LOG.info( "start(): Packets will be parsed on the receiving threads." );
+            return;
+        }
+        if ( ! workers.isEmpty() || shutdown ) {
+            return;
+        }
+        final List<Worker> list = new ArrayList<>();
+        for ( int i = 0 ; i < config.parserThreads ; i++ )
+        {
+            final Worker worker = new Worker( i );
+            list.add( worker );
+            worker.start();
+        }
+        workers = Collections.unmodifiableList( list );
+        LOG.info( "start(): Started "+list.size()+" parser threads, ring buffer capacity "+ringBuffer.capacity()+
+                      ", overflow policy "+ringBuffer.getOverflowPolicy() );
+    }
+
+    /**
+     * Process a packet.
+     *
+     * @param payload packet payload (bytes between position and limit), the buffer may be re-used as soon as this method returns
+     * @param sender
+     * @return <code>true</code> if the packet was parsed or queued for parsing, <code>false</code> if it was dropped
+     */
+    public boolean process(ByteBuffer payload, InetAddress sender)
+    {
+        if ( ringBuffer != null ) {
+            return ringBuffer.offer( payload, sender, isShutdown );
+        }
+        try
+        {
+            parser.get().parse( sender, payload );
+            return true;
+        }
+        catch(Exception e)
+        {
+            LOG.error("process(): Failed to parse packet",e);
+            return false;
+        }
+    }
+
+    /**
+     * Process multiple packets.
+     *
+     * @param payloads packet payloads (bytes between position and limit), the buffers may be re-used as soon as this method returns
+     * @param senders
+     * @param count number of packets (starting at index 0) to process
+     * @return number of packets that were parsed or queued for parsing
+     */
+    public int process(ByteBuffer[] payloads, InetAddress[] senders, int count)
+    {
+        if ( ringBuffer != null )
+        {
+            int accepted = 0;
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                if ( ringBuffer.offer( payloads[i], senders[i], isShutdown ) ) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
+        try
+        {
+            return parser.get().parse( senders, payloads, count );
+        }
+        catch(Exception e)
+        {
+            LOG.error("process(): Failed to parse/store "+count+" packets",e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns whether the parser threads are falling behind.
+     *
+     * Receivers that can push back on senders (TCP) should stop reading while this is the case.
+     *
+     * @return <code>true</code> if the ring buffer is filled beyond {@link Configuration#receiveRingBufferHighWatermark},
+     * always <code>false</code> if packets are parsed on the receiving threads
+     */
+    public boolean isSaturated()
+    {
+        return ringBuffer != null && ringBuffer.size() >= highWatermark;
+    }
+
+    /**
+     * Returns the ring buffer used to hand packets to the parser threads.
+     *
+     * @return ring buffer or <code>null</code> if packets are parsed on the receiving threads
+     */
+    public PacketRingBuffer getRingBuffer()
+    {
+        return ringBuffer;
+    }
+
+    /**
+     * Returns the counters of all parser threads.
+     *
+     * @return statistics, empty if packets are parsed on the receiving threads
+     */
+    public List<WorkerStatistics> getStatistics()
+    {
+        return workers.stream().map( WorkerStatistics::new ).collect( Collectors.toList() );
+    }
+
+    /**
+     * Stops accepting packets and waits for the parser threads to drain the ring buffer.
+     *
+     * @throws InterruptedException
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException
+    {
+        shutdown = true;
+        for ( Worker worker : workers ) {
+            worker.join();
+        }
+        if ( ringBuffer != null ) {
+            LOG.info( "shutdown(): "+ringBuffer );
+        }
+        LOG.info( "shutdown(): Message pool: "+parserFactory.getMessagePoolStatistics() );
+        final List<HostStringInterner.InternStatistics> internStatistics = parserFactory.getInternStatistics();
+        if ( ! internStatistics.isEmpty() ) {
+            LOG.info( "shutdown(): String intern tables: "+internStatistics.stream().map( HostStringInterner.InternStatistics::toString ).collect( Collectors.joining(" | ") ) );
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package de.codesourcery.logreceiver.receiving;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded, lock-free multi-producer/multi-consumer ring buffer of pre-allocated packet slots.
+ *
+ * Producers copy the payload of a received packet into the next free slot, consumers claim
+ * published slots, process the payload in-place and hand the slot back using {@link #release(Slot)}.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whether the slot
+ * is free, published or currently being processed (see Dmitry Vyukov's bounded MPMC queue).
+ */
+public final class PacketRingBuffer
+{
+    /**
+     * What to do when a producer finds the ring buffer full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Wait until a consumer releases a slot.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest packet that has not been claimed by a consumer yet.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the packet that is about to be inserted.
+         */
+        DROP_NEWEST
+    }
+
+    public static final class Slot
+    {
+        /**
+         * Payload, ready for reading (position 0, limit = payload size).
+         */
+        public ByteBuffer data;
+        public InetAddress sender;
+
+        private long position;
+
+        private Slot(int bufferSize)
+        {
+            this.data = ByteBuffer.allocate( bufferSize );
+        }
+
+        private void copyFrom(ByteBuffer payload,InetAddress sender)
+        {
+            final int len = payload.remaining();
+            if ( len > data.capacity() ) {
+                data = ByteBuffer.allocate( len );
+            }
+            data.clear();
+            data.put( payload.duplicate() );
+            data.flip();
+            this.sender = sender;
+        }
+    }
+
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong head = new AtomicLong(); // next position to consume
+    private final AtomicLong tail = new AtomicLong(); // next position to publish
+
+    private final AtomicLong packetsAccepted = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong blockedOffers = new AtomicLong();
+
+    /**
+     * Create instance.
+     *
+     * @param capacity number of slots, gets rounded up to the next power of two
+     * @param slotBufferSize initial size of each slot's payload buffer
+     * @param overflowPolicy
+     */
+    public PacketRingBuffer(int capacity, int slotBufferSize, OverflowPolicy overflowPolicy)
+    {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "Capacity must be >= 1" );
+        }
+        if ( overflowPolicy == null ) {
+            throw new IllegalArgumentException( "Overflow policy must not be NULL" );
+        }
+        final int size = capacity == 1 ? 2 : Integer.highestOneBit( capacity - 1 ) << 1;
+        this.slots = new Slot[ size ];
+        this.sequences = new AtomicLongArray( size );
+        for ( int i = 0 ; i < size ; i++ )
+        {
+            slots[i] = new Slot( slotBufferSize );
+            sequences.set( i, i );
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Copy a packet into the ring buffer.
+     *
+     * @param payload payload, the bytes between position and limit get copied. The buffer's position is not changed.
+     * @param sender
+     * @param cancel used while waiting for a free slot, returns <code>true</code> if the caller should give up waiting
+     * @return <code>true</code> if the packet was inserted, <code>false</code> if it was dropped
+     */
+    public boolean offer(ByteBuffer payload, InetAddress sender, BooleanSupplier cancel)
+    {
+        boolean blocked = false;
+        int idleCount = 0;
+        while ( true )
+        {
+            final long pos = tail.get();
+            final int idx = (int) (pos & mask);
+            final long delta = sequences.get( idx ) - pos;
+            if ( delta == 0 )
+            {
+                if ( tail.compareAndSet( pos, pos + 1 ) )
+                {
+                    slots[idx].copyFrom( payload, sender );
+                    sequences.set( idx, pos + 1 );
+                    packetsAccepted.incrementAndGet();
+                    return true;
+                }
+            }
+            else if ( delta < 0 )
+            {
+                // ring buffer is full (or the slot is still being processed by a consumer)
+                switch( overflowPolicy )
+                {
+                    case DROP_NEWEST:
+                        droppedNewest.incrementAndGet();
+                        return false;
+                    case DROP_OLDEST:
+                        if ( head.get() > pos - slots.length )
+                        {
+                            // oldest packet is currently being processed by a consumer,
+                            // wait for it instead of discarding newer packets
+                            idle( idleCount++ );
+                            break;
+                        }
+                        final Slot oldest = poll();
+                        if ( oldest != null )
+                        {
+                            release( oldest );
+                            droppedOldest.incrementAndGet();
+                        }
+                        break;
+                    case BLOCK:
+                        if ( ! blocked ) {
+                            blocked = true;
+                            blockedOffers.incrementAndGet();
+                        }
+                        if ( cancel.getAsBoolean() ) {
+                            droppedNewest.incrementAndGet();
+                            return false;
+                        }
+                        idle( idleCount++ );
+                        break;
+                    default:
+                        throw new RuntimeException( "Unhandled switch/case: " + overflowPolicy );
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim the oldest published slot.
+     *
+     * The slot must be handed back using {@link #release(Slot)} as soon as the caller is done with it.
+     *
+     * @return slot or <code>null</code> if the ring buffer is empty
+     */
+    public Slot poll()
+    {
+        while ( true )
+        {
+            final long pos = head.get();
+            final int idx = (int) (pos & mask);
+            final long delta = sequences.get( idx ) - (pos + 1);
+            if ( delta == 0 )
+            {
+                if ( head.compareAndSet( pos, pos + 1 ) )
+                {
+                    final Slot slot = slots[idx];
+                    slot.position = pos;
+                    return slot;
+                }
+            }
+            else if ( delta < 0 )
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Claim up to <code>max</code> of the oldest published slots at once.
+     *
+     * All slots must be handed back using {@link #release(Slot)} as soon as the caller is done with them.
+     *
+     * @param dest array to store the claimed slots in
+     * @param max max. number of slots to claim, must not be greater than <code>dest.length</code>
+     * @return number of slots claimed, 0 if the ring buffer is empty
+     */
+    public int poll(Slot[] dest, int max)
+    {
+        while ( true )
+        {
+            final long pos = head.get();
+            int count = 0;
+            while ( count < max )
+            {
+                final long p = pos + count;
+                if ( sequences.get( (int) (p & mask) ) != p + 1 ) {
+                    break;
+                }
+                count++;
+            }
+            if ( count == 0 ) {
+                if ( head.get() == pos ) {
+                    return 0;
+                }
+                continue;
+            }
+            if ( head.compareAndSet( pos, pos + count ) )
+            {
+                for ( int i = 0 ; i < count ; i++ )
+                {
+                    final long p = pos + i;
+                    final Slot slot = slots[(int) (p & mask)];
+                    slot.position = p;
+                    dest[i] = slot;
+                }
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Hand back a slot claimed by {@link #poll()} or {@link #poll(Slot[], int)} so that it can be re-used by producers.
+     *
+     * @param slot
+     */
+    public void release(Slot slot)
+    {
+        slot.sender = null;
+        sequences.set( (int) (slot.position & mask), slot.position + slots.length );
+    }
+
+    /**
+     * Back-off strategy for threads waiting on the ring buffer: spin first, then yield and finally park.
+     *
+     * @param idleCount number of times the caller already went idle without making progress
+     */
+    public static void idle(int idleCount)
+    {
+        if ( idleCount < 100 ) {
+            Thread.onSpinWait();
+        } else if ( idleCount < 200 ) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos( idleCount < 1000 ? 10_000 : 1_000_000 );
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the approximate number of packets waiting to be consumed.
+     *
+     * @return
+     */
+    public int size()
+    {
+        final long result = tail.get() - head.get();
+        return result < 0 ? 0 : (int) Math.min( result, slots.length );
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getPacketsAccepted() {
+        return packetsAccepted.get();
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest.get();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * Returns the number of offers that had to wait for a free slot.
+     *
+     * @return
+     */
+    public long getBlockedOffers() {
+        return blockedOffers.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PacketRingBuffer[ size "+size()+"/"+capacity()+", policy="+overflowPolicy+", accepted="+getPacketsAccepted()+
+                   ", dropped_newest="+getDroppedNewest()+", dropped_oldest="+getDroppedOldest()+", blocked="+getBlockedOffers()+" ]";
+    }
+}
@@ -0,0 +1,541 @@
+package de.codesourcery.logreceiver.receiving;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Receives syslog messages over TCP, framed either by octet counting or by a trailing newline (RFC 6587).
+ *
+ * Connections are spread across a small number of selector threads. Frames are handed to the {@link PacketProcessor}
+ * straight out of the connection's read buffer. While the packet processor is saturated, selector threads stop
+ * reading from their connections so that TCP flow control pushes back on the senders.
+ */
+public class TCPServer
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( TCPServer.class.getName() );
+
+    // max. number of digits in the length prefix of an octet-counted frame
+    private static final int MAX_LENGTH_DIGITS = 10;
+
+    // how often paused selector threads check whether the packet processor caught up
+    private static final long PAUSE_CHECK_MILLIS = 10;
+
+    /**
+     * Snapshot of the counters of a single selector thread.
+     */
+    public static final class ReceiverStatistics
+    {
+        public final int receiverId;
+        public final int connections;
+        public final long framesReceived;
+        public final long framesAccepted;
+        public final long framesDropped;
+        public final long framingErrors;
+        public final long pauses;
+
+        private ReceiverStatistics(Receiver receiver)
+        {
+            this.receiverId = receiver.id;
+            this.connections = receiver.connections.get();
+            this.framesReceived = receiver.framesReceived.get();
+            this.framesAccepted = receiver.framesAccepted.get();
+            this.framesDropped = receiver.framesDropped.get();
+            this.framingErrors = receiver.framingErrors.get();
+            this.pauses = receiver.pauses.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "receiver #"+receiverId+": connections="+connections+", received="+framesReceived+", accepted="+framesAccepted+
+                       ", dropped="+framesDropped+", framing errors="+framingErrors+", pauses="+pauses;
+        }
+    }
+
+    /**
+     * Per-connection state.
+     */
+    private final class Connection
+    {
+        public final SocketChannel channel;
+        public final InetAddress sender;
+
+        private ByteBuffer buffer;
+        // views of the read buffer, one per frame of a batch
+        private ByteBuffer[] frames;
+
+        private Connection(SocketChannel channel, InetAddress sender)
+        {
+            this.channel = channel;
+            this.sender = sender;
+            allocate( Math.min( config.tcpReadBufferSize, maxBufferSize() ) );
+        }
+
+        /**
+         * Grows the read buffer (ready for writing) if it is full and below its max. size.
+         */
+        public void growIfFull()
+        {
+            if ( ! buffer.hasRemaining() && buffer.capacity() < maxBufferSize() ) {
+                allocate( Math.min( maxBufferSize(), buffer.capacity() * 2 ) );
+            }
+        }
+
+        private void allocate(int size)
+        {
+            final ByteBuffer newBuffer = ByteBuffer.allocate( size );
+            if ( buffer != null )
+            {
+                buffer.flip();
+                newBuffer.put( buffer );
+            }
+            buffer = newBuffer;
+            frames = new ByteBuffer[ batchSize ];
+            for ( int i = 0 ; i < batchSize ; i++ ) {
+                frames[i] = buffer.duplicate();
+            }
+        }
+    }
+
+    /**
+     * Selector thread, serves any number of connections.
+     */
+    private final class Receiver
+    {
+        public final int id;
+
+        private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+        // keys whose reads are suspended because the packet processor is saturated
+        private final List<SelectionKey> pausedKeys = new ArrayList<>();
+
+        private final InetAddress[] senders = new InetAddress[ batchSize ];
+
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicLong framesReceived = new AtomicLong();
+        // frames handed to the packet processor (either parsed or queued for parsing)
+        private final AtomicLong framesAccepted = new AtomicLong();
+        // frames that failed to parse or were dropped because the parsers could not keep up
+        private final AtomicLong framesDropped = new AtomicLong();
+        // connections closed because of malformed or oversized frames
+        private final AtomicLong framingErrors = new AtomicLong();
+        private final AtomicLong pauses = new AtomicLong();
+
+        private final Selector selector;
+
+        private Receiver(int id) throws IOException
+        {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        public void add(SocketChannel channel)
+        {
+            newConnections.add( channel );
+            selector.wakeup();
+        }
+
+        public void run()
+        {
+            try
+            {
+                while ( !shutdown )
+                {
+                    try
+                    {
+                        selector.select( pausedKeys.isEmpty() ? 0 : PAUSE_CHECK_MILLIS );
+                        registerNewConnections();
+                        if ( ! pausedKeys.isEmpty() && ! packetProcessor.isSaturated() ) {
+                            resume();
+                        }
+                        final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                        while ( selectedKeys.hasNext() )
+                        {
+                            final SelectionKey key = selectedKeys.next();
+                            selectedKeys.remove();
+
+                            if ( ! key.isValid() ) {
+                                continue;
+                            }
+                            if ( key.isAcceptable() ) {
+                                accept( (ServerSocketChannel) key.channel() );
+                            }
+                            else if ( key.isReadable() )
+                            {
+                                if ( packetProcessor.isSaturated() ) {
+                                    pause( key );
+                                } else {
+                                    read( key );
+                                }
+                            }
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        LOG.error( "run(): Caught ", e );
+                    }
+                }
+            }
+            catch(ClosedSelectorException e)
+            {
+                if ( ! shutdown ) {
+                    throw e;
+                }
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        private void registerNewConnections()
+        {
+            SocketChannel channel;
+            while ( ( channel = newConnections.poll() ) != null )
+            {
+                try
+                {
+                    final InetAddress sender = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                    channel.configureBlocking( false );
+                    channel.register( selector, SelectionKey.OP_READ, new Connection( channel, sender ) );
+                    connections.incrementAndGet();
+                    if ( LOG.isDebugEnabled() ) {
+                        LOG.debug( "registerNewConnections(): Accepted connection from "+sender+" (receiver #"+id+")" );
+                    }
+                }
+                catch (IOException e)
+                {
+                    LOG.error( "registerNewConnections(): Failed to register connection", e );
+                    closeQuietly( channel );
+                }
+            }
+        }
+
+        private void pause(SelectionKey key)
+        {
+            if ( pausedKeys.isEmpty() ) {
+                pauses.incrementAndGet();
+                LOG.debug( "pause(): Packet processor is saturated, suspending reads (receiver #"+id+")" );
+            }
+            key.interestOps( 0 );
+            pausedKeys.add( key );
+        }
+
+        private void resume()
+        {
+            for ( SelectionKey key : pausedKeys )
+            {
+                if ( key.isValid() ) {
+                    key.interestOps( SelectionKey.OP_READ );
+                }
+            }
+            pausedKeys.clear();
+        }
+
+        private void read(SelectionKey key)
+        {
+            final Connection connection = (Connection) key.attachment();
+            final int bytesRead;
+            try
+            {
+                bytesRead = connection.channel.read( connection.buffer );
+            }
+            catch (IOException e)
+            {
+                LOG.debug( "read(): Connection from "+connection.sender+" failed: "+e.getMessage() );
+                close( key );
+                return;
+            }
+            connection.buffer.flip();
+            final boolean valid = decode( connection, bytesRead < 0 );
+            connection.buffer.compact();
+            connection.growIfFull();
+            if ( ! valid )
+            {
+                framingErrors.incrementAndGet();
+                close( key );
+            }
+            else if ( bytesRead < 0 )
+            {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "read(): Connection closed by "+connection.sender );
+                }
+                close( key );
+            }
+        }
+
+        /**
+         * Hands all complete frames in the connection's read buffer to the packet processor.
+         *
+         * @param connection
+         * @param endOfStream whether the peer closed the connection, a trailing frame without newline is complete then
+         * @return <code>false</code> if the data is malformed and the connection should be closed
+         */
+        private boolean decode(Connection connection, boolean endOfStream)
+        {
+            final ByteBuffer buffer = connection.buffer;
+            final int maxFrameSize = config.tcpMaxMessageSize;
+            int count = 0;
+            int pos = buffer.position();
+            final int limit = buffer.limit();
+            while ( pos < limit )
+            {
+                final int frameStart;
+                final int frameEnd;
+                final int next;
+                final byte first = buffer.get( pos );
+                if ( first >= '1' && first <= '9' )
+                {
+                    // octet counting: MSG-LEN SP SYSLOG-MSG
+                    long len = 0;
+                    int i = pos;
+                    while ( i < limit && i - pos < MAX_LENGTH_DIGITS && buffer.get( i ) >= '0' && buffer.get( i ) <= '9' ) {
+                        len = len * 10 + ( buffer.get( i++ ) - '0' );
+                    }
+                    if ( i == limit && i - pos < MAX_LENGTH_DIGITS && ! endOfStream ) {
+                        break; // length prefix incomplete
+                    }
+                    if ( i == limit || buffer.get( i ) != ' ' || len > maxFrameSize )
+                    {
+                        LOG.warn( "decode(): Malformed or oversized frame from "+connection.sender+", closing connection" );
+                        flush( connection, count );
+                        return false;
+                    }
+                    frameStart = i + 1;
+                    if ( frameStart + len > limit ) {
+                        break; // frame incomplete
+                    }
+                    frameEnd = frameStart + (int) len;
+                    next = frameEnd;
+                }
+                else
+                {
+                    // non-transparent framing: SYSLOG-MSG LF
+                    int i = pos;
+                    while ( i < limit && buffer.get( i ) != '\n' ) {
+                        i++;
+                    }
+                    if ( i == limit && ! endOfStream )
+                    {
+                        if ( limit - pos > maxFrameSize )
+                        {
+                            LOG.warn( "decode(): Oversized frame from "+connection.sender+", closing connection" );
+                            flush( connection, count );
+                            return false;
+                        }
+                        break; // frame incomplete
+                    }
+                    frameStart = pos;
+                    frameEnd = i > pos && buffer.get( i - 1 ) == '\r' ? i - 1 : i;
+                    next = Math.min( i + 1, limit );
+                }
+                pos = next;
+                if ( frameEnd > frameStart )
+                {
+                    final ByteBuffer frame = connection.frames[count];
+                    frame.limit( frameEnd ).position( frameStart );
+                    senders[count++] = connection.sender;
+                    if ( count == batchSize ) {
+                        count = flush( connection, count );
+                    }
+                }
+            }
+            flush( connection, count );
+            buffer.position( pos );
+            return true;
+        }
+
+        private int flush(Connection connection, int count)
+        {
+            if ( count > 0 )
+            {
+                framesReceived.addAndGet( count );
+                final int accepted = packetProcessor.process( connection.frames, senders, count );
+                framesAccepted.addAndGet( accepted );
+                framesDropped.addAndGet( count - accepted );
+            }
+            return 0;
+        }
+
+        private void accept(ServerSocketChannel server)
+        {
+            try
+            {
+                SocketChannel channel;
+                while ( ( channel = server.accept() ) != null )
+                {
+                    final Receiver receiver = receivers.get( Math.floorMod( nextReceiver.getAndIncrement(), receivers.size() ) );
+                    receiver.add( channel );
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.error( "accept(): Failed to accept connection", e );
+            }
+        }
+
+        private void close(SelectionKey key)
+        {
+            key.cancel();
+            closeQuietly( key.channel() );
+            connections.decrementAndGet();
+        }
+
+        public void close()
+        {
+            for ( SelectionKey key : selector.keys() ) {
+                closeQuietly( key.channel() );
+            }
+            SocketChannel channel;
+            while ( ( channel = newConnections.poll() ) != null ) {
+                closeQuietly( channel );
+            }
+            closeQuietly( selector );
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // nothing to be done about it
+        }
+    }
+
+    private final Configuration config;
+    private final PacketProcessor packetProcessor;
+    private final int batchSize;
+
+    private volatile boolean shutdown;
+
+    private ServerSocketChannel serverChannel;
+    private volatile List<Receiver> receivers = Collections.emptyList();
+    private final AtomicInteger nextReceiver = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+
+    public TCPServer(Configuration config, PacketProcessor packetProcessor)
+    {
+        this.config = config;
+        this.packetProcessor = packetProcessor;
+        this.batchSize = Math.max( 1, config.parserBatchSize );
+    }
+
+    private int maxBufferSize() {
+        // room for a frame of max. size plus its length prefix
+        return config.tcpMaxMessageSize + MAX_LENGTH_DIGITS + 1;
+    }
+
+    /**
+     * Binds the server socket and starts the selector threads.
+     *
+     * @throws IOException if binding the server socket failed
+     */
+    @PostConstruct
+    public synchronized void start() throws IOException
+    {
+        if ( ! config.startTCPServer ) {
+            LOG.info( "start(): TCP server disabled in configuration." );
+            return;
+        }
+        if ( serverChannel != null || shutdown ) {
+            return;
+        }
+        final List<Receiver> list = new ArrayList<>();
+        try
+        {
+            for ( int i = 0 ; i < Math.max( 1, config.tcpReceiverThreads ) ; i++ ) {
+                list.add( new Receiver( i ) );
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind( new InetSocketAddress( config.tcpPort ) );
+            serverChannel.configureBlocking( false );
+            serverChannel.register( list.get( 0 ).selector, SelectionKey.OP_ACCEPT );
+        }
+        catch(IOException e)
+        {
+            list.forEach( Receiver::close );
+            if ( serverChannel != null ) {
+                closeQuietly( serverChannel );
+                serverChannel = null;
+            }
+            throw e;
+        }
+        this.receivers = Collections.unmodifiableList( list );
+        for ( Receiver receiver : list )
+        {
+            final Thread t = new Thread( receiver::run, "tcp-receiver-"+receiver.id );
+            t.setDaemon( true );
+            t.start();
+            threads.add( t );
+        }
+        LOG.info( "start(): Now listening on TCP port " + getLocalPort()+" using "+list.size()+" receiver threads" );
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return port or -1 if the server has not been started
+     */
+    public int getLocalPort()
+    {
+        try
+        {
+            return serverChannel == null ? -1 : ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the counters of all selector threads.
+     *
+     * @return statistics, empty list if the server has not been started (yet)
+     */
+    public List<ReceiverStatistics> getStatistics()
+    {
+        return receivers.stream().map( ReceiverStatistics::new ).collect( Collectors.toList() );
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws InterruptedException
+    {
+        shutdown = true;
+        if ( serverChannel != null ) {
+            closeQuietly( serverChannel );
+        }
+        receivers.forEach( r -> r.selector.wakeup() );
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        threads.clear();
+        if ( ! receivers.isEmpty() ) {
+            LOG.info( "shutdown(): Statistics on shutdown: "+getStatistics().stream().map( ReceiverStatistics::toString ).collect( Collectors.joining(" | ") ) );
+        }
+    }
+}
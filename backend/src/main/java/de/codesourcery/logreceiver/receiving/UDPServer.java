@@ -1,86 +1,215 @@
 package de.codesourcery.logreceiver.receiving;
 
 import de.codesourcery.logreceiver.entity.Configuration;
-import de.codesourcery.logreceiver.parsing.ILogParser;
-import de.codesourcery.logreceiver.parsing.LogParserFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 public class UDPServer
 {
-    private static final boolean DEBUG = true;
-
     private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( UDPServer.class.getName() );
 
-    class PacketBuffer
+    /**
+     * Snapshot of the packet counters of a single receiver thread.
+     */
+    public static final class ReceiverStatistics
     {
-        public final ByteBuffer req;
-        public InetAddress clientIP;
+        public final int receiverId;
+        public final long packetsReceived;
+        public final long packetsAccepted;
+        public final long packetsDropped;
 
-        public PacketBuffer(int bufferSize) {
-            req = ByteBuffer.allocate( bufferSize );
+        private ReceiverStatistics(Receiver receiver)
+        {
+            this.receiverId = receiver.id;
+            this.packetsReceived = receiver.packetsReceived.get();
+            this.packetsAccepted = receiver.packetsAccepted.get();
+            this.packetsDropped = receiver.packetsDropped.get();
         }
 
-        public InputStream createInputStream(DatagramChannel chan) throws IOException
+        @Override
+        public String toString()
         {
-            req.rewind();
-            clientIP = ((InetSocketAddress) chan.receive(req)).getAddress();
-            final int available = req.position();
-            req.rewind();
-            LOG.debug("createInputStream(): Payload size "+available);
-            return new InputStream() {
+            return "receiver #"+receiverId+": received="+packetsReceived+", accepted="+packetsAccepted+", dropped="+packetsDropped;
+        }
+    }
+
+    /**
+     * Receives packets on its own socket, all receivers are bound to the same port using SO_REUSEPORT
+     * so that the kernel spreads incoming datagrams across them.
+     */
+    private final class Receiver
+    {
+        public final int id;
+
+        // datagrams received during one selector wake-up
+        private final ByteBuffer[] buffers;
+        private final InetAddress[] senders;
+
+        private final AtomicLong packetsReceived = new AtomicLong();
+        // packets handed to the packet processor (either parsed or queued for parsing)
+        private final AtomicLong packetsAccepted = new AtomicLong();
+        // packets that failed to parse or were dropped because the parsers could not keep up
+        private final AtomicLong packetsDropped = new AtomicLong();
 
-                private int remaining = available;
+        private Selector selector;
+        private DatagramChannel channel;
 
-                @Override
-                public int read()
+        private Receiver(int id)
+        {
+            this.id = id;
+            final int batchSize = Math.max( 1, config.udpReceiveBatchSize );
+            this.buffers = new ByteBuffer[ batchSize ];
+            this.senders = new InetAddress[ batchSize ];
+            for ( int i = 0 ; i < batchSize ; i++ ) {
+                buffers[i] = ByteBuffer.allocate( config.maxReceiveBufferSize );
+            }
+        }
+
+        public void open(boolean reusePort) throws IOException
+        {
+            selector = Selector.open();
+            try
+            {
+                channel = DatagramChannel.open();
+                if ( reusePort ) {
+                    channel.setOption( StandardSocketOptions.SO_REUSEPORT, true );
+                }
+                channel.bind( new InetSocketAddress( config.udpPort ) );
+                channel.configureBlocking( false );
+                channel.register( selector, SelectionKey.OP_READ );
+            }
+            catch(IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+
+        public void run()
+        {
+            try
+            {
+                while ( !shutdown )
                 {
-                    if ( remaining == 0 ) {
-                        return -1;
-                    }
+                    try
+                    {
+                        selector.select();
+                        final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                        while ( selectedKeys.hasNext() )
+                        {
+                            final SelectionKey key = selectedKeys.next();
+                            selectedKeys.remove();
 
-                    remaining--;
-                    return req.get();
+                            if ( key.isValid() && key.isReadable() )
+                            {
+                                read( key );
+                            }
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        LOG.error( "process(): Caught ", e );
+                    }
                 }
-            };
+            }
+            catch(ClosedSelectorException e)
+            {
+                if ( ! shutdown ) {
+                    throw e;
+                }
+            }
+            finally
+            {
+                close();
+            }
         }
-    }
 
-    private final LogParserFactory parserFactory;
+        private void read(SelectionKey key) throws IOException
+        {
+            final DatagramChannel chan = (DatagramChannel) key.channel();
 
-    private volatile boolean shutdown;
+            // drain as many datagrams as possible before handing them on in one go
+            int count = 0;
+            while ( count < buffers.length )
+            {
+                final ByteBuffer buffer = buffers[count];
+                buffer.clear();
+                final InetSocketAddress sender = (InetSocketAddress) chan.receive( buffer );
+                if ( sender == null ) {
+                    break;
+                }
+                buffer.flip();
+                senders[count++] = sender.getAddress();
+            }
+            if ( count == 0 ) {
+                return;
+            }
+            packetsReceived.addAndGet( count );
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("read(): Received "+count+" UDP packets on port "+config.udpPort+" (receiver #"+id+")");
+            }
+            final int accepted = packetProcessor.process( buffers, senders, count );
+            packetsAccepted.addAndGet( accepted );
+            packetsDropped.addAndGet( count - accepted );
+        }
 
-    private final ThreadLocal<ILogParser> parser = new ThreadLocal()
-    {
-        @Override
-        protected Object initialValue()
+        public void close()
         {
-            return parserFactory.get();
+            try
+            {
+                if ( channel != null ) {
+                    channel.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // nothing to be done about it
+            }
+            try
+            {
+                if ( selector != null ) {
+                    selector.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // nothing to be done about it
+            }
         }
-    };
+    }
+
+    private final PacketProcessor packetProcessor;
+
+    private volatile boolean shutdown;
 
     private final Configuration config;
 
-    public UDPServer(Configuration config, LogParserFactory parserFactory) {
-        this.parserFactory = parserFactory;
+    private volatile List<Receiver> receivers = Collections.emptyList();
+
+    public UDPServer(Configuration config, PacketProcessor packetProcessor) {
+        this.packetProcessor = packetProcessor;
         this.config = config;
     }
 
-    private final AtomicReference<Selector> selector = new AtomicReference<>();
-
     @PostConstruct
     public void run() throws IOException, InterruptedException
     {
@@ -115,73 +244,99 @@ public class UDPServer
         }
     }
 
+    /**
+     * Binds all receiver sockets and processes packets until {@link #shutdown()} is called.
+     *
+     * The first receiver runs on the calling thread, all other receivers get their own thread.
+     *
+     * @throws IOException if binding any of the receiver sockets failed
+     */
     public void process() throws IOException
     {
-        try ( Selector selector = Selector.open(); )
+        final int receiverCount = getReceiverCount();
+        final List<Receiver> list = new ArrayList<>();
+        try
         {
-            this.selector.set(selector);
-            try ( DatagramChannel channel = DatagramChannel.open() )
+            for ( int i = 0 ; i < receiverCount ; i++ )
             {
-                final InetSocketAddress isa = new InetSocketAddress( config.udpPort );
-                channel.socket().bind( isa );
-                channel.configureBlocking( false );
-
-                final SelectionKey clientKey = channel.register( selector, SelectionKey.OP_READ );
-                clientKey.attach( new PacketBuffer( config.maxReceiveBufferSize ) );
-                LOG.info( "process(): Now listening on port " + config.udpPort );
-                while ( !shutdown )
-                {
-                    try
-                    {
-                        selector.select();
-                        final Iterator selectedKeys = selector.selectedKeys().iterator();
-                        while ( selectedKeys.hasNext() )
-                        {
-                            final SelectionKey key = (SelectionKey) selectedKeys.next();
-                            selectedKeys.remove();
-
-                            if ( key.isValid() && key.isReadable() )
-                            {
-                                read( key );
-                            }
-                        }
-                    }
-                    catch (IOException e)
-                    {
-                        LOG.error( "process(): Caught ", e );
-                    }
-                }
+                final Receiver receiver = new Receiver( i );
+                receiver.open( receiverCount > 1 );
+                list.add( receiver );
             }
         }
-    }
+        catch(IOException e)
+        {
+            list.forEach( Receiver::close );
+            throw e;
+        }
+        this.receivers = Collections.unmodifiableList( list );
+        if ( shutdown ) {
+            list.forEach( Receiver::close );
+            return;
+        }
+        LOG.info( "process(): Now listening on port " + config.udpPort+" using "+receiverCount+" receiver threads" );
 
-    @PreDestroy
-    public void shutdown() {
-        shutdown = true;
-        try
+        final List<Thread> threads = new ArrayList<>();
+        for ( int i = 1 ; i < receiverCount ; i++ )
         {
-            selector.get().close();
+            final Receiver receiver = list.get(i);
+            final Thread t = new Thread( receiver::run, "udp-receiver-"+i );
+            t.setDaemon( true );
+            t.start();
+            threads.add( t );
         }
-        catch (IOException e)
+        list.get(0).run();
+
+        for ( Thread t : threads )
         {
-            // nothing to be done about it
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                LOG.warn("process(): Interrupted while waiting for receiver threads to terminate");
+                break;
+            }
         }
+        LOG.info( "process(): Statistics on shutdown: "+getStatistics().stream().map( ReceiverStatistics::toString ).collect( Collectors.joining(" | ") ) );
     }
 
-    private void read(SelectionKey key)
+    private int getReceiverCount()
     {
-        if ( LOG.isDebugEnabled() ) {
-            LOG.debug("process(): Received a UDP packet on port "+config.udpPort);
-        }
-        final DatagramChannel chan = (DatagramChannel) key.channel();
-        final PacketBuffer packet = (PacketBuffer) key.attachment();
-        try
+        final int requested = Math.max( 1, config.udpReceiverThreads );
+        if ( requested > 1 )
         {
-            final InputStream stream = packet.createInputStream( chan );
-            parser.get().parse( packet.clientIP , stream );
-        }
-        catch(Exception e) {
-            LOG.error("read(): Failed to parse packet",e);
+            try ( DatagramChannel probe = DatagramChannel.open() )
+            {
+                if ( ! probe.supportedOptions().contains( StandardSocketOptions.SO_REUSEPORT ) )
+                {
+                    LOG.warn( "getReceiverCount(): SO_REUSEPORT is not supported on this platform, falling back to a single receiver thread" );
+                    return 1;
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warn( "getReceiverCount(): Failed to check for SO_REUSEPORT support, falling back to a single receiver thread", e );
+                return 1;
+            }
         }
+        return requested;
+    }
+
+    /**
+     * Returns the packet counters of all receiver threads.
+     *
+     * @return statistics, empty list if the server has not been started (yet)
+     */
+    public List<ReceiverStatistics> getStatistics()
+    {
+        return receivers.stream().map( ReceiverStatistics::new ).collect( Collectors.toList() );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        receivers.forEach( Receiver::close );
     }
-}
\ No newline at end of file
+}
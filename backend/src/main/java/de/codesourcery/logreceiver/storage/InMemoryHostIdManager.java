@@ -7,9 +7,12 @@ import de.codesourcery.logreceiver.util.EventBus;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class InMemoryHostIdManager implements IHostManager
 {
@@ -17,14 +20,14 @@ public class InMemoryHostIdManager implements IHostManager
 
     private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-    protected final Object LOCK = new Object();
+    private final AtomicLong currentId = new AtomicLong( 1 );
 
-    private long currentId = 1;
+    // lookups of known hosts don't lock
+    protected final Map<Long, Host> hostsById = new ConcurrentHashMap<>();
+    protected final Map<InetAddress,Host> hostsByIP = new ConcurrentHashMap<>();
 
-    // @GuardedBy( LOCK )
-    protected final Map<Long, Host> hostsById = new HashMap<>();
-    // @GuardedBy( LOCK )
-    protected final Map<InetAddress,Host> hostsByIP = new HashMap<>();
+    // hosts currently being created by generateHost(), so that only requests for the same IP have to wait
+    private final Map<InetAddress, CompletableFuture<Host>> pendingHosts = new ConcurrentHashMap<>();
 
     protected final Configuration config;
 
@@ -38,52 +41,68 @@ public class InMemoryHostIdManager implements IHostManager
     @Override
     public List<Host> getAllHosts()
     {
-        synchronized (LOCK) {
-            final List<Host> result = new ArrayList<>();
-            for ( Host h : hostsById.values() ) {
-                result.add( h.copy() );
-            }
-            return result;
+        final List<Host> result = new ArrayList<>();
+        for ( Host h : hostsById.values() ) {
+            result.add( h.copy() );
         }
+        return result;
     }
 
     @Override
     public Host getHost(long id)
     {
-        synchronized(LOCK)
-        {
-            final Host result = hostsById.get( id );
-            return result == null ? null : result.copy();
-        }
+        final Host result = hostsById.get( id );
+        return result == null ? null : result.copy();
     }
 
     @Override
     public Host getHost(InetAddress address)
     {
-        synchronized(LOCK)
-        {
-            return hostsByIP.get( address );
-        }
+        return hostsByIP.get( address );
     }
 
     @Override
     public final Host getOrCreateHost(InetAddress ip,  String hostname)
     {
+        final Host host = hostsByIP.get( ip );
+        return host != null ? host : createHost( ip, hostname );
+    }
+
+    private Host createHost(InetAddress ip, String hostname)
+    {
+        final CompletableFuture<Host> future = new CompletableFuture<>();
+        final CompletableFuture<Host> pending = pendingHosts.putIfAbsent( ip, future );
+        if ( pending != null ) {
+            return await( pending );
+        }
+
         Host host;
         boolean isNewHost = false;
-        synchronized (LOCK)
+        try
         {
-            host = hostsByIP.get(ip);
+            // another thread might have finished creating the host in the meantime
+            host = hostsByIP.get( ip );
             if ( host == null )
             {
                 if ( LOG.isTraceEnabled() ) {
                     LOG.trace("getOrCreateHostId(): Generating ID for "+ip+" ("+hostname+")");
                 }
-                host = generateHost(ip,hostname);
-                isNewHost = true;
-                hostsByIP.put( ip, host );
+                host = generateHost( ip, hostname );
                 hostsById.put( host.id, host );
+                hostsByIP.put( ip, host );
+                isNewHost = true;
             }
+            future.complete( host );
+        }
+        catch(RuntimeException | Error e)
+        {
+            future.completeExceptionally( e );
+            throw e;
+        }
+        finally
+        {
+            // only after the host became visible in hostsByIP
+            pendingHosts.remove( ip, future );
         }
         if ( isNewHost )
         {
@@ -92,10 +111,28 @@ public class InMemoryHostIdManager implements IHostManager
         return host;
     }
 
+    private static Host await(CompletableFuture<Host> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch(CompletionException e)
+        {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            if ( e.getCause() instanceof Error ) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     protected Host generateHost(InetAddress ip,String HostName)
     {
         final Host host = new Host();
-        host.id = currentId++;
+        host.id = currentId.getAndIncrement();
         host.ip = ip;
         host.hostName = HostName;
         host.dataRetentionTime = config.defaultDataRetentionTime;
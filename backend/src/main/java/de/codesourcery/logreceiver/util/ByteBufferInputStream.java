@@ -0,0 +1,71 @@
+package de.codesourcery.logreceiver.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Re-usable {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}.
+ *
+ * The buffer's position is not modified.
+ */
+public final class ByteBufferInputStream extends InputStream
+{
+    private ByteBuffer buffer;
+    private int ptr;
+    private int limit;
+
+    public ByteBufferInputStream() {
+    }
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        setData( buffer );
+    }
+
+    public ByteBufferInputStream setData(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.ptr = buffer.position();
+        this.limit = buffer.limit();
+        return this;
+    }
+
+    @Override
+    public int read()
+    {
+        if ( ptr >= limit ) {
+            return -1;
+        }
+        return buffer.get( ptr++ ) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+        if ( len == 0 ) {
+            return 0;
+        }
+        final int remaining = limit - ptr;
+        if ( remaining <= 0 ) {
+            return -1;
+        }
+        final int count = Math.min( remaining, len );
+        if ( buffer.hasArray() )
+        {
+            System.arraycopy( buffer.array(), buffer.arrayOffset() + ptr, b, off, count );
+        }
+        else
+        {
+            for ( int i = 0 ; i < count ; i++ ) {
+                b[off+i] = buffer.get( ptr + i );
+            }
+        }
+        ptr += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return limit - ptr;
+    }
+}
@@ -2,7 +2,134 @@ package de.codesourcery.logreceiver.util;
 
 import java.time.ZoneId;
 
+/**
+ * Date helpers.
+ *
+ * The calendar arithmetic works on plain numbers (proleptic Gregorian calendar, same as <code>java.time</code>)
+ * so timestamps can be converted without allocating any objects.
+ */
 public class DateUtils
 {
     public static final ZoneId UTC = ZoneId.of( "UTC");
+
+    public static final int SECONDS_PER_DAY = 24*60*60;
+
+    private static final int[] DAYS_PER_MONTH = {31,28,31,30,31,30,31,31,30,31,30,31};
+
+    public static boolean isLeapYear(long year) {
+        return (year & 3) == 0 && ( year % 100 != 0 || year % 400 == 0 );
+    }
+
+    /**
+     * Returns whether a date exists.
+     *
+     * @param year
+     * @param month month (1-12)
+     * @param dayOfMonth day of month (1-31)
+     * @return
+     */
+    public static boolean isValidDate(int year, int month, int dayOfMonth)
+    {
+        if ( month < 1 || month > 12 || dayOfMonth < 1 ) {
+            return false;
+        }
+        if ( month == 2 && isLeapYear( year ) ) {
+            return dayOfMonth <= 29;
+        }
+        return dayOfMonth <= DAYS_PER_MONTH[ month - 1 ];
+    }
+
+    /**
+     * Returns the number of days since 1970-01-01 for a date.
+     *
+     * @param year
+     * @param month month (1-12)
+     * @param dayOfMonth day of month (1-31)
+     * @return
+     */
+    public static long toEpochDay(long year, int month, int dayOfMonth)
+    {
+        // years start in March so the leap day is the last day of the year
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv( y, 400 );
+        final long yearOfEra = y - era * 400;
+        final int shiftedMonth = month > 2 ? month - 3 : month + 9;
+        final long dayOfYear = ( 153 * shiftedMonth + 2 ) / 5 + dayOfMonth - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Returns the number of seconds since 1970-01-01T00:00:00Z for a local date and time.
+     *
+     * @param year
+     * @param month month (1-12)
+     * @param dayOfMonth day of month (1-31)
+     * @param hour
+     * @param minute
+     * @param second
+     * @param offsetSeconds time zone offset of the local date and time
+     * @return
+     */
+    public static long toEpochSecond(int year, int month, int dayOfMonth, int hour, int minute, int second, int offsetSeconds)
+    {
+        return toEpochDay( year, month, dayOfMonth ) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - offsetSeconds;
+    }
+
+    /**
+     * Returns the local day (days since 1970-01-01) of an instant.
+     *
+     * @param epochSecond
+     * @param offsetSeconds time zone offset
+     * @return
+     */
+    public static long toLocalEpochDay(long epochSecond, int offsetSeconds) {
+        return Math.floorDiv( epochSecond + offsetSeconds, SECONDS_PER_DAY );
+    }
+
+    /**
+     * Returns the local second-of-day (0...86399) of an instant.
+     *
+     * @param epochSecond
+     * @param offsetSeconds time zone offset
+     * @return
+     */
+    public static int toLocalSecondOfDay(long epochSecond, int offsetSeconds) {
+        return (int) Math.floorMod( epochSecond + offsetSeconds, (long) SECONDS_PER_DAY );
+    }
+
+    /**
+     * Converts days since 1970-01-01 into a date.
+     *
+     * @param epochDay
+     * @return date packed as <code>year*10000 + month*100 + dayOfMonth</code>
+     * @see #getYear(int)
+     * @see #getMonth(int)
+     * @see #getDayOfMonth(int)
+     */
+    public static int toDate(long epochDay)
+    {
+        final long days = epochDay + 719468;
+        final long era = Math.floorDiv( days, 146097 );
+        final long dayOfEra = days - era * 146097;
+        final long yearOfEra = ( dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096 ) / 365;
+        final long dayOfYear = dayOfEra - ( 365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100 );
+        final int shiftedMonth = (int) ( 5 * dayOfYear + 2 ) / 153;
+        final int dayOfMonth = (int) ( dayOfYear - ( 153 * shiftedMonth + 2 ) / 5 + 1 );
+        final int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        final long year = yearOfEra + era * 400 + ( month <= 2 ? 1 : 0 );
+        return (int) ( year * 10000 + month * 100 + dayOfMonth );
+    }
+
+    public static int getYear(int date) {
+        return date / 10000;
+    }
+
+    public static int getMonth(int date) {
+        return ( date / 100 ) % 100;
+    }
+
+    public static int getDayOfMonth(int date) {
+        return date % 100;
+    }
 }
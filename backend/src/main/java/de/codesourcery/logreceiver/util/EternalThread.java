@@ -78,6 +78,10 @@ public class EternalThread
     {
         private final Object SLEEP_LOCK = new Object();
 
+        // wakeUp() got called while not sleeping, the next sleep() call returns right away
+        // @GuardedBy( SLEEP_LOCK )
+        private boolean wokenUp;
+
         private final Interruptable r = supplier.get();
 
         private final CountDownLatch stopped = new CountDownLatch( 1 );
@@ -103,6 +107,7 @@ public class EternalThread
         public void wakeUp()
         {
             synchronized (SLEEP_LOCK) {
+                wokenUp = true;
                 SLEEP_LOCK.notifyAll();
             }
         }
@@ -175,12 +180,15 @@ public class EternalThread
                 }
                 try
                 {
-                    SLEEP_LOCK.wait( millis );
+                    if ( ! wokenUp ) {
+                        SLEEP_LOCK.wait( millis );
+                    }
                 }
                 catch (InterruptedException e)
                 {
                     LOG.warn( "sleepMillis(): Interrupted" );
                 }
+                wokenUp = false;
                 return true;
             }
         }
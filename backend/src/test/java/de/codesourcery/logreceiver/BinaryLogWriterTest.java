@@ -0,0 +1,149 @@
+package de.codesourcery.logreceiver;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.BinaryLogWriter;
+import de.codesourcery.logreceiver.logstorage.ISQLLogStorage;
+import de.codesourcery.logreceiver.logstorage.RowBatch;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryLogWriterTest
+{
+    private final List<ByteBuffer> rows = new ArrayList<>();
+    private final List<Host> hosts = new ArrayList<>();
+
+    private BinaryLogWriter writer;
+    private SyslogMessage msg;
+    private Host host;
+
+    @Before
+    public void setup()
+    {
+        writer = new BinaryLogWriter( new ISQLLogStorage()
+        {
+            @Override
+            public void store(Host host, long epochSecond, String sql)
+            {
+                throw new UnsupportedOperationException( "Binary rows expected" );
+            }
+
+            @Override
+            public void store(RowBatch batch)
+            {
+                assertTrue( batch.isBinary() );
+                for ( int i = 0 ; i < batch.size() ; i++ )
+                {
+                    final ByteBuffer row = ByteBuffer.allocate( batch.binaryLength( i, i+1 ) );
+                    batch.copyBinaryRows( i, i+1, row );
+                    rows.add( row.flip() );
+                    hosts.add( batch.host( i ) );
+                }
+            }
+        });
+
+        host = new Host();
+        host.id = 42;
+
+        msg = new SyslogMessage();
+        msg.host = host;
+        msg.priority = 13;
+        msg.setTimestamp( ZonedDateTime.of( 2019,8,18,23,40,18,123, ZoneId.of( "UTC+0200" ) ) );
+    }
+
+    @Test
+    public void testNullColumns()
+    {
+        writer.store( msg );
+
+        final ByteBuffer row = rows.get( 0 );
+        assertSame( host, hosts.get( 0 ) );
+        assertEquals( 9, row.getShort() );
+        assertEquals( 2, row.getInt() );
+        assertEquals( 13, row.getShort() );
+
+        assertEquals( 8, row.getInt() );
+        final long micros = row.getLong();
+        final Instant expected = msg.getTimestamp().toInstant().minusNanos( 123 );
+        assertEquals( expected, Instant.parse( "2000-01-01T00:00:00Z" ).plusSeconds( micros / 1_000_000 ) );
+
+        assertEquals( 4, row.getInt() );
+        assertEquals( 123, row.getInt() );
+
+        assertEquals( 8, row.getInt() );
+        assertEquals( 42, row.getLong() );
+
+        for ( int i = 0 ; i < 5 ; i++ ) {
+            assertEquals( -1, row.getInt() );
+        }
+        assertFalse( row.hasRemaining() );
+    }
+
+    @Test
+    public void testTextAndJSONColumns() throws IOException
+    {
+        msg.appName = "app";
+        msg.procId = "";
+        msg.msgId = "id";
+        msg.message = "h\u00e4llo | \"world\"\n\ud83d\ude00";
+        final SDParam param = new SDParam( "exampleSDID@32473" );
+        param.addParam( "iut", "3" );
+        param.addParam( "quote\"d", "tab\t" );
+        msg.addParam( param );
+        msg.addParam( new SDParam( "empty" ) );
+
+        writer.store( new SyslogMessage[] { msg, msg }, 2 );
+        assertEquals( 2, rows.size() );
+
+        final ByteBuffer row = rows.get( 1 );
+        row.position( 2 + 4+2 + 4+8 + 4+4 + 4+8 );
+        assertEquals( "app", readText( row ) );
+        assertNull( readText( row ) );
+        assertEquals( "id", readText( row ) );
+
+        final int jsonLength = row.getInt();
+        assertEquals( 1, row.get() );
+        final byte[] json = new byte[ jsonLength - 1 ];
+        row.get( json );
+        final JsonNode node = new ObjectMapper().readTree( json );
+        final JsonNode data = node.get( "data" );
+        assertEquals( 2, data.size() );
+        assertEquals( "empty", data.get( 0 ).get( "id" ).asText() );
+        assertTrue( data.get( 0 ).get( "params" ).isNull() );
+        assertEquals( "exampleSDID@32473", data.get( 1 ).get( "id" ).asText() );
+        assertEquals( "3", data.get( 1 ).get( "params" ).get( "iut" ).asText() );
+        assertEquals( "tab\t", data.get( 1 ).get( "params" ).get( "quote\"d" ).asText() );
+
+        assertEquals( msg.message, readText( row ) );
+        assertFalse( row.hasRemaining() );
+    }
+
+    private static String readText(ByteBuffer row)
+    {
+        final int len = row.getInt();
+        if ( len == -1 ) {
+            return null;
+        }
+        final byte[] data = new byte[ len ];
+        row.get( data );
+        return new String( data, StandardCharsets.UTF_8 );
+    }
+}
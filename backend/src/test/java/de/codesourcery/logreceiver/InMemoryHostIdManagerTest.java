@@ -4,13 +4,22 @@ import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
 import de.codesourcery.logreceiver.util.EventBus;
+import de.codesourcery.logreceiver.util.IEvent;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 public class InMemoryHostIdManagerTest
 {
@@ -31,4 +40,63 @@ public class InMemoryHostIdManagerTest
         final String name = id1.getSQLCompatibleHostName();
         assertEquals("host",name);
     }
+
+    @Test
+    public void testSlowHostCreationOnlyBlocksSameHost() throws Exception
+    {
+        final InetAddress slowIP = InetAddress.getByName( "10.0.0.1" );
+        final InetAddress fastIP = InetAddress.getByName( "10.0.0.2" );
+        final CountDownLatch creating = new CountDownLatch( 1 );
+        final CountDownLatch proceed = new CountDownLatch( 1 );
+        final AtomicInteger generated = new AtomicInteger();
+        final AtomicInteger events = new AtomicInteger();
+        final EventBus eventBus = new EventBus() {
+            @Override
+            public void send(IEvent event) {
+                events.incrementAndGet();
+            }
+        };
+        final InMemoryHostIdManager slowManager = new InMemoryHostIdManager( new Configuration(), eventBus )
+        {
+            @Override
+            protected Host generateHost(InetAddress ip, String hostName)
+            {
+                generated.incrementAndGet();
+                if ( ip.equals( slowIP ) )
+                {
+                    creating.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException( e );
+                    }
+                }
+                return super.generateHost( ip, hostName );
+            }
+        };
+
+        final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            final Future<Host> first = pool.submit( () -> slowManager.getOrCreateHost( slowIP, "slow" ) );
+            creating.await();
+            final Future<Host> second = pool.submit( () -> slowManager.getOrCreateHost( slowIP, "slow" ) );
+
+            // other hosts are not blocked by the pending one
+            final Host fast = pool.submit( () -> slowManager.getOrCreateHost( fastIP, "fast" ) ).get( 5, TimeUnit.SECONDS );
+            assertEquals( "fast", fast.hostName );
+            assertSame( fast, slowManager.getHost( fastIP ) );
+            assertFalse( second.isDone() );
+
+            proceed.countDown();
+            assertSame( first.get( 5, TimeUnit.SECONDS ), second.get( 5, TimeUnit.SECONDS ) );
+            assertEquals( 2, generated.get() );
+            assertEquals( 2, events.get() );
+        }
+        finally
+        {
+            proceed.countDown();
+            pool.shutdownNow();
+        }
+    }
 }
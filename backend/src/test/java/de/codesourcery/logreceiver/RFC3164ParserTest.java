@@ -0,0 +1,123 @@
+package de.codesourcery.logreceiver;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.parsing.DetectingLogParser;
+import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.parsing.RFC3164Parser;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.DateUtils;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RFC3164ParserTest
+{
+    private final List<SyslogMessage> messages = new ArrayList<>();
+
+    private InMemoryHostIdManager hostIdManager;
+    private InetAddress localhost;
+    private ILogParser parser;
+
+    @Before
+    public void setup()
+    {
+        hostIdManager = new InMemoryHostIdManager( new Configuration(), new EventBus() );
+        localhost = InetAddress.getLoopbackAddress();
+        parser = new RFC3164Parser( hostIdManager, msg -> messages.add( msg.copy() ), DateUtils.UTC );
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap( s.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private SyslogMessage parse(String s)
+    {
+        messages.clear();
+        parser.parse( localhost, bytes( s ) );
+        assertEquals( 1, messages.size() );
+        return messages.get( 0 );
+    }
+
+    @Test
+    public void testFullMessage()
+    {
+        final SyslogMessage msg = parse( "<34>Oct 11 22:14:15 mymachine su[123]: 'su root' failed for lonvick on /dev/pts/8" );
+        assertEquals( 34, msg.priority );
+        assertEquals( 10, msg.getTimestamp().getMonthValue() );
+        assertEquals( 11, msg.getTimestamp().getDayOfMonth() );
+        assertEquals( 22, msg.getTimestamp().getHour() );
+        assertEquals( 14, msg.getTimestamp().getMinute() );
+        assertEquals( 15, msg.getTimestamp().getSecond() );
+        assertFalse( msg.getTimestamp().isAfter( ZonedDateTime.now( DateUtils.UTC ).plusDays( 1 ) ) );
+        assertEquals( "mymachine", msg.hostName );
+        assertEquals( "su", msg.appName );
+        assertEquals( "123", msg.procId );
+        assertEquals( "'su root' failed for lonvick on /dev/pts/8", msg.message );
+    }
+
+    @Test
+    public void testPaddedDayWithoutHostname()
+    {
+        final SyslogMessage msg = parse( "<13>Feb  5 01:02:03 kernel: link up" );
+        assertEquals( 5, msg.getTimestamp().getDayOfMonth() );
+        assertNull( msg.hostName );
+        assertEquals( "kernel", msg.appName );
+        assertNull( msg.procId );
+        assertEquals( "link up", msg.message );
+    }
+
+    @Test
+    public void testLenientParsing()
+    {
+        SyslogMessage msg = parse( "Oct 11 22:14:15 host just some text" );
+        assertEquals( 13, msg.priority );
+        assertEquals( "host", msg.hostName );
+        assertNull( msg.appName );
+        assertEquals( "just some text", msg.message );
+
+        msg = parse( "<14>not a timestamp: hello" );
+        assertEquals( 14, msg.priority );
+        assertTrue( msg.getTimestamp() != null );
+        assertNull( msg.hostName );
+        assertEquals( "not a timestamp: hello", msg.message );
+    }
+
+    @Test
+    public void testFormatDetection()
+    {
+        assertTrue( DetectingLogParser.isRFC5424( bytes( "<13>1 2019-06-11T10:09:08.7Z host app - - - msg" ) ) );
+        assertTrue( DetectingLogParser.isRFC5424( bytes( "<191>12 -" ) ) );
+        assertFalse( DetectingLogParser.isRFC5424( bytes( "<13>Jun 11 10:09:08 host app: msg" ) ) );
+        assertFalse( DetectingLogParser.isRFC5424( bytes( "<13>10:09:08 msg" ) ) );
+        assertFalse( DetectingLogParser.isRFC5424( bytes( "1 2019-06-11T10:09:08.7Z" ) ) );
+        assertFalse( DetectingLogParser.isRFC5424( bytes( "<13>" ) ) );
+
+        final ILogParser detecting = new LogParserFactory( msg -> messages.add( msg.copy() ), hostIdManager ).get();
+        messages.clear();
+        final ByteBuffer[] payloads = {
+            bytes( "<13>Jun 11 10:09:08 host app: bsd1" ),
+            bytes( "<13>1 2019-06-11T10:09:08.7Z host app - - - ietf1" ),
+            bytes( "<13>1 2019-06-11T10:09:08.7Z host app - - - ietf2" ),
+            bytes( "<13>Jun 11 10:09:08 host app: bsd2" )
+        };
+        assertEquals( 4, detecting.parse( new InetAddress[] { localhost, localhost, localhost, localhost }, payloads, 4 ) );
+        // messages keep the order they were received in
+        assertEquals( Arrays.asList( "bsd1", "ietf1", "ietf2", "bsd2" ), messages.stream().map( m -> m.message ).collect( Collectors.toList() ) );
+    }
+}
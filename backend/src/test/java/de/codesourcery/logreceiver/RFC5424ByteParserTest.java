@@ -0,0 +1,238 @@
+package de.codesourcery.logreceiver;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.LogMessageParseException;
+import de.codesourcery.logreceiver.parsing.RFC5424ByteParser;
+import de.codesourcery.logreceiver.parsing.RFC5424Parser;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class RFC5424ByteParserTest
+{
+    private final List<SyslogMessage> messages = new ArrayList<>();
+
+    private InMemoryHostIdManager hostIdManager;
+    private InetAddress localhost;
+
+    @Before
+    public void setup() {
+        hostIdManager = new InMemoryHostIdManager( new Configuration(), new EventBus() );
+        localhost = InetAddress.getLoopbackAddress();
+    }
+
+    @Test
+    public void testSameResultAsCharacterBasedParser() throws IOException
+    {
+        final List<String> lines = new ArrayList<>();
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( getClass().getResourceAsStream( "/example.txt" ), StandardCharsets.UTF_8 ) ) )
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                lines.add( line );
+            }
+        }
+
+        final ILogParser charParser = new RFC5424Parser( hostIdManager, msg -> messages.add( capture( msg ) ) );
+        final ILogParser byteParser = new RFC5424ByteParser( hostIdManager, msg -> messages.add( capture( msg ) ) );
+        for ( String line : lines )
+        {
+            final byte[] data = line.getBytes( StandardCharsets.UTF_8 );
+            charParser.parse( localhost, new ByteArrayInputStream( data ) );
+            final SyslogMessage expected = messages.remove( 0 );
+
+            byteParser.parse( localhost, ByteBuffer.wrap( data ) );
+            assertSameMessage( expected, messages.remove( 0 ) );
+
+            final ByteBuffer direct = ByteBuffer.allocateDirect( data.length );
+            direct.put( data ).flip();
+            byteParser.parse( localhost, direct );
+            assertSameMessage( expected, messages.remove( 0 ) );
+            assertEquals( 0, direct.position() );
+        }
+    }
+
+    @Test
+    public void testParseStructuredData()
+    {
+        final SyslogMessage msg = parse( "<165>1 2003-10-11T22:14:15.003Z mymachine.example.com evntslog - ID47 " +
+            "[exampleSDID@32473 iut=\"3\" eventSource=\"Application\"][examplePriority@32473 class=\"high\"] \uFEFFAn application event" );
+
+        assertEquals( 165, msg.priority );
+        assertEquals( "mymachine.example.com", msg.hostName );
+        assertEquals( "evntslog", msg.appName );
+        assertNull( msg.procId );
+        assertEquals( "ID47", msg.msgId );
+        assertEquals( "An application event", msg.message );
+
+        assertEquals( 2, msg.getParamCount() );
+        final SDParam first = msg.params[0];
+        assertEquals( "exampleSDID@32473", first.id );
+        assertEquals( 2, first.paramCount() );
+        assertEquals( "3", first.getParameters().get( "iut" ) );
+        assertEquals( "Application", first.getParameters().get( "eventSource" ) );
+        assertEquals( "examplePriority@32473", msg.params[1].id );
+        assertEquals( "high", msg.params[1].getParameters().get( "class" ) );
+    }
+
+    @Test
+    public void testParseFromInputStream()
+    {
+        final ILogParser parser = new RFC5424ByteParser( hostIdManager, msg -> messages.add( capture( msg ) ) );
+        final StringBuilder text = new StringBuilder();
+        for ( int i = 0 ; i < 1000 ; i++ ) {
+            text.append( "x\u00e4" );
+        }
+        parser.parse( localhost, new ByteArrayInputStream( ( "<6>1 2019-08-14T07:02:47Z tobi kernel - - - " + text ).getBytes( StandardCharsets.UTF_8 ) ) );
+        assertEquals( text.toString(), messages.get( 0 ).message );
+    }
+
+    @Test
+    public void testParseBatch()
+    {
+        final int[] batchSizes = new int[1];
+        final ILogParser parser = new RFC5424ByteParser( hostIdManager, new ILogStorage()
+        {
+            @Override
+            public void store(SyslogMessage message)
+            {
+                throw new UnsupportedOperationException( "Batch expected" );
+            }
+
+            @Override
+            public void store(SyslogMessage[] batch, int count)
+            {
+                batchSizes[0] = count;
+                for ( int i = 0 ; i < count ; i++ ) {
+                    messages.add( capture( batch[i] ) );
+                }
+            }
+        });
+        final String[] input = {
+            "<6>1 2019-08-14T07:02:47Z tobi kernel - - - first",
+            "garbage",
+            "<6>1 2019-08-14T07:02:48Z tobi kernel - - - second"
+        };
+        final InetAddress[] senders = new InetAddress[ input.length ];
+        final ByteBuffer[] data = new ByteBuffer[ input.length ];
+        for ( int i = 0 ; i < input.length ; i++ )
+        {
+            senders[i] = localhost;
+            data[i] = ByteBuffer.wrap( input[i].getBytes( StandardCharsets.UTF_8 ) );
+        }
+        assertEquals( 2, parser.parse( senders, data, input.length ) );
+        assertEquals( 2, batchSizes[0] );
+        assertEquals( "first", messages.get( 0 ).message );
+        assertEquals( "second", messages.get( 1 ).message );
+    }
+
+    @Test
+    public void testFailedBatchGetsStoredOneByOne()
+    {
+        final ILogParser parser = new RFC5424ByteParser( hostIdManager, new ILogStorage()
+        {
+            @Override
+            public void store(SyslogMessage message)
+            {
+                if ( "bad".equals( message.message ) ) {
+                    throw new IllegalStateException( "Storage failure" );
+                }
+                messages.add( capture( message ) );
+            }
+
+            @Override
+            public void store(SyslogMessage[] batch, int count) {
+                throw new IllegalStateException( "Storage failure" );
+            }
+        });
+        final String[] input = {
+            "<6>1 2019-08-14T07:02:47Z tobi kernel - - - first",
+            "<6>1 2019-08-14T07:02:48Z tobi kernel - - - bad",
+            "<6>1 2019-08-14T07:02:49Z tobi kernel - - - second"
+        };
+        final InetAddress[] senders = new InetAddress[ input.length ];
+        final ByteBuffer[] data = new ByteBuffer[ input.length ];
+        for ( int i = 0 ; i < input.length ; i++ )
+        {
+            senders[i] = localhost;
+            data[i] = ByteBuffer.wrap( input[i].getBytes( StandardCharsets.UTF_8 ) );
+        }
+        assertEquals( 2, parser.parse( senders, data, input.length ) );
+        assertEquals( "first", messages.get( 0 ).message );
+        assertEquals( "second", messages.get( 1 ).message );
+    }
+
+    @Test
+    public void testUnsupportedVersion()
+    {
+        try
+        {
+            parse( "<6>2 2019-08-14T07:02:47Z tobi kernel - - - test" );
+            fail( "Should've failed" );
+        }
+        catch(LogMessageParseException e)
+        {
+            // ok
+        }
+    }
+
+    @Test
+    public void testInvalidMessage()
+    {
+        try
+        {
+            parse( "<6>1 2019-08-14T07:02:47Z  kernel - - - test" );
+            fail( "Should've failed" );
+        }
+        catch(LogMessageParseException e)
+        {
+            // ok
+        }
+    }
+
+    private SyslogMessage parse(String s)
+    {
+        final ILogParser parser = new RFC5424ByteParser( hostIdManager, msg -> messages.add( capture( msg ) ) );
+        parser.parse( localhost, ByteBuffer.wrap( s.getBytes( StandardCharsets.UTF_8 ) ) );
+        assertEquals( 1, messages.size() );
+        return messages.get( 0 );
+    }
+
+    private static SyslogMessage capture(SyslogMessage msg)
+    {
+        // parsers recycle messages and their SD elements, copies don't share either of them
+        return msg.copy();
+    }
+
+    private static void assertSameMessage(SyslogMessage expected,SyslogMessage actual)
+    {
+        assertEquals( expected.host, actual.host );
+        assertEquals( expected.getTimestamp(), actual.getTimestamp() );
+        assertEquals( expected.priority, actual.priority );
+        assertEquals( expected.hostName, actual.hostName );
+        assertEquals( expected.appName, actual.appName );
+        assertEquals( expected.procId, actual.procId );
+        assertEquals( expected.msgId, actual.msgId );
+        assertEquals( expected.message, actual.message );
+        assertEquals( expected.getParamCount(), actual.getParamCount() );
+    }
+}
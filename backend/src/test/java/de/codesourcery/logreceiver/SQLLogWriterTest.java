@@ -26,7 +26,7 @@ public class SQLLogWriterTest
         public final StringBuilder buffer = new StringBuilder();
         
         @Override
-        public void store(Host host, ZonedDateTime timestamp, String sql)
+        public void store(Host host, long epochSecond, String sql)
         {
             if ( buffer.length() > 0 ) {
                 buffer.append(',');
@@ -41,7 +41,7 @@ public class SQLLogWriterTest
     public void setup()
     {
         msg.reset();
-        msg.timestamp = null;
+        msg.setTimestamp( null );
         /*
 msg.year = (byte) 2019;
         msg.month = 8;
@@ -54,7 +54,7 @@ msg.year = (byte) 2019;
         msg.tzMinutes = 0;
          */
          ZoneId id = ZoneId.of( "UTC+0200" );
-        msg.timestamp = ZonedDateTime.of( 2019,8,18,23,40,18,123, id);
+        msg.setTimestamp( ZonedDateTime.of( 2019,8,18,23,40,18,123, id) );
         storage = new MockStorage();
         writer = new SQLLogWriter(storage,
                 new InMemoryHostIdManager(new Configuration(), new EventBus()) );
@@ -79,8 +79,8 @@ msg.year = (byte) 2019;
     public void test4()
     {
         final ZoneId zoneId = ZoneId.of("UTC-0607");
-        msg.timestamp = ZonedDateTime.of( 1234,12,1,
-                                          2,3,4,5, zoneId );
+        msg.setTimestamp( ZonedDateTime.of( 1234,12,1,
+                                          2,3,4,5, zoneId ) );
 
         writer.store(msg);
         assertEquals( "0|1234-12-1 2:3:4-6:7|5|null|null|null|null|null|null", storage.buffer.toString() );
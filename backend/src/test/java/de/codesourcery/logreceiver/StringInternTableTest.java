@@ -0,0 +1,85 @@
+package de.codesourcery.logreceiver;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
+import de.codesourcery.logreceiver.parsing.HostStringInterner;
+import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.RFC5424ByteParser;
+import de.codesourcery.logreceiver.parsing.StringInternTable;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringInternTableTest
+{
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap( s.getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private static String intern(StringInternTable table, String s) {
+        return table.intern( bytes( "xx" + s + "yy" ), 2, 2 + s.length() );
+    }
+
+    @Test
+    public void testIntern()
+    {
+        final StringInternTable table = new StringInternTable( 16 );
+        final String first = intern( table, "sshd" );
+        assertEquals( "sshd", first );
+        assertSame( first, intern( table, "sshd" ) );
+        assertSame( first, table.intern( new StringBuilder( "sshd" ) ) );
+        assertEquals( "sshe", intern( table, "sshe" ) );
+        assertEquals( 2, table.getHits() );
+        assertEquals( 2, table.getMisses() );
+    }
+
+    @Test
+    public void testRandomValuesDoNotEvictRepeatingOnes()
+    {
+        final StringInternTable table = new StringInternTable( 2 ); // single set
+        final String app = intern( table, "app" );
+        assertSame( app, intern( table, "app" ) ); // promoted
+        for ( int i = 0 ; i < 1000 ; i++ ) {
+            intern( table, Integer.toString( i ) );
+        }
+        assertSame( app, intern( table, "app" ) );
+        assertEquals( 2, table.size() );
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        final StringInternTable table = new StringInternTable( 0 );
+        assertNotSame( intern( table, "app" ), intern( table, "app" ) );
+        assertEquals( 0, table.getHits() + table.getMisses() );
+    }
+
+    @Test
+    public void testParserReusesStrings()
+    {
+        final List<SyslogMessage> messages = new ArrayList<>();
+        final HostStringInterner interner = new HostStringInterner( 64 );
+        final ILogParser parser = new RFC5424ByteParser( new InMemoryHostIdManager( new Configuration(), new EventBus() ), msg -> messages.add( msg.copy() ), interner, new SyslogMessagePool( 1 ) );
+        for ( int i = 0 ; i < 2 ; i++ ) {
+            parser.parse( InetAddress.getLoopbackAddress(), bytes( "<13>1 2019-06-11T10:09:08.7Z myhost app 123 ID47 [id@1 key=\"value\"] msg" ) );
+        }
+        assertEquals( 2, messages.size() );
+        assertSame( messages.get( 0 ).hostName, messages.get( 1 ).hostName );
+        assertSame( messages.get( 0 ).appName, messages.get( 1 ).appName );
+        assertSame( messages.get( 0 ).procId, messages.get( 1 ).procId );
+        assertSame( messages.get( 0 ).msgId, messages.get( 1 ).msgId );
+        assertTrue( interner.getStatistics().stream().mapToLong( s -> s.hits ).sum() >= 4 );
+    }
+}
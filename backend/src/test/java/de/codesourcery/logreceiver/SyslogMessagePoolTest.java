@@ -0,0 +1,126 @@
+package de.codesourcery.logreceiver;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.SyslogMessagePool;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.parsing.HostStringInterner;
+import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.RFC5424ByteParser;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyslogMessagePoolTest
+{
+    @Test
+    public void testRetainRelease()
+    {
+        final SyslogMessagePool pool = new SyslogMessagePool( 4 );
+        final SyslogMessage msg = pool.acquire();
+        assertTrue( msg.isPooled() );
+        msg.message = "test";
+
+        msg.retain();
+        msg.release();
+        assertEquals( 0, pool.getStatistics().idle );
+        assertEquals( "test", msg.message );
+
+        msg.release();
+        assertEquals( 1, pool.getStatistics().idle );
+        assertEquals( null, msg.message );
+        try {
+            msg.release();
+            fail( "Should've failed" );
+        } catch(IllegalStateException e) {
+            // ok
+        }
+        assertSame( msg, pool.acquire() );
+        assertEquals( 1, pool.getStatistics().reused );
+    }
+
+    @Test
+    public void testSDParamsGetReused()
+    {
+        final SyslogMessagePool pool = new SyslogMessagePool( 4 );
+        final SyslogMessage msg = pool.acquire();
+        final SDParam param = msg.newParam( "first" );
+        param.addParam( "key", "value" );
+
+        final SyslogMessage copy = msg.copy();
+        assertTrue( ! copy.isPooled() );
+        copy.release(); // no-op
+
+        msg.release();
+        assertSame( msg, pool.acquire() );
+        assertEquals( 0, msg.getParamCount() );
+        final SDParam reused = msg.newParam( "second" );
+        assertSame( param, reused );
+        assertEquals( 0, reused.paramCount() );
+
+        // copies are not affected
+        assertEquals( 1, copy.getParamCount() );
+        assertNotSame( param, copy.params[0] );
+        assertEquals( "first", copy.params[0].id );
+        assertEquals( "value", copy.params[0].getParameters().get( "key" ) );
+    }
+
+    @Test
+    public void testSteadyStateAllocationRate()
+    {
+        Assume.assumeTrue( ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean );
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue( bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() );
+
+        final int batchSize = 64;
+        final SyslogMessagePool pool = new SyslogMessagePool( batchSize );
+        final long[] params = new long[1];
+        final ILogStorage storage = new ILogStorage()
+        {
+            @Override
+            public void store(SyslogMessage message) {
+                params[0] += message.getParamCount();
+            }
+        };
+        final ILogParser parser = new RFC5424ByteParser( new InMemoryHostIdManager( new Configuration(), new EventBus() ), storage, new HostStringInterner( 256 ), pool );
+
+        final InetAddress[] senders = new InetAddress[ batchSize ];
+        Arrays.fill( senders, InetAddress.getLoopbackAddress() );
+        final ByteBuffer[] payloads = new ByteBuffer[ batchSize ];
+        for ( int i = 0 ; i < batchSize ; i++ ) {
+            final String text = "<13>1 2019-06-11T10:09:08.7Z myhost app " + ( i % 4 ) + " ID47 [id@1 key=\"v\"][prio@1 class=\"high\"] text";
+            payloads[i] = ByteBuffer.wrap( text.getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        final int warmupRounds = 2_000;
+        final int rounds = 5_000;
+        for ( int i = 0 ; i < warmupRounds ; i++ ) {
+            parser.parse( senders, payloads, batchSize );
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes( threadId );
+        for ( int i = 0 ; i < rounds ; i++ ) {
+            parser.parse( senders, payloads, batchSize );
+        }
+        final long bytesPerMessage = ( bean.getThreadAllocatedBytes( threadId ) - before ) / ( (long) rounds * batchSize );
+
+        assertEquals( (long) ( warmupRounds + rounds ) * batchSize * 2, params[0] );
+        // what's left is the message text and the SD parameter values
+        assertTrue( "Allocated " + bytesPerMessage + " bytes per message, pool: " + pool.getStatistics(), bytesPerMessage < 256 );
+        assertEquals( batchSize, pool.getStatistics().created );
+    }
+}
@@ -0,0 +1,285 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.IMessageDAO;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterCallbackManagerTest
+{
+    private final List<Long> received = Collections.synchronizedList( new ArrayList<>() );
+    private final List<Long> catchUps = Collections.synchronizedList( new ArrayList<>() );
+
+    // entry ID of the latest message "in the database"
+    private volatile long latestId = 10;
+
+    // IDs up to latestId whose rows have not been committed yet
+    private final Set<Long> uncommitted = ConcurrentHashMap.newKeySet();
+
+    private InMemoryHostIdManager hostManager;
+    private Host host;
+    private FilterCallbackManager manager;
+
+    private final IMessageDAO dao = new IMessageDAO()
+    {
+        @Override
+        public Long getLatestMessageId(Host host) {
+            return latestId;
+        }
+
+        @Override
+        public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
+        {
+            catchUps.add( latestId );
+            if ( latestId >= FilterCallbackManagerTest.this.latestId ) {
+                return null;
+            }
+            final List<SyslogMessage> messages = messages( latestId + 1, FilterCallbackManagerTest.this.latestId );
+            messages.removeIf( msg -> uncommitted.contains( msg.id ) );
+            filters.forEach( f -> f.visit( messages ) );
+            return FilterCallbackManagerTest.this.latestId;
+        }
+
+        @Override
+        public void visitMessages(Host host, Consumer<SyslogMessage> consumer, List<Long> ids)
+        {
+            for ( long id : ids )
+            {
+                if ( id <= latestId && ! uncommitted.contains( id ) ) {
+                    consumer.accept( messages( id, id ).get( 0 ) );
+                }
+            }
+        }
+
+        @Override
+        public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction, long refLogEntryId, int maxCount) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static List<SyslogMessage> messages(long firstId, long lastId)
+    {
+        return LongStream.rangeClosed( firstId, lastId ).mapToObj( id ->
+        {
+            final SyslogMessage msg = new SyslogMessage();
+            msg.id = id;
+            return msg;
+        }).collect( Collectors.toList() );
+    }
+
+    /**
+     * Simulates a storage writing messages to the database.
+     */
+    private void publish(long firstId, long lastId)
+    {
+        latestId = Math.max( latestId, lastId );
+        manager.publish( host.ip, messages( firstId, lastId ) );
+    }
+
+    private void awaitReceived(long lastId) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( ( received.isEmpty() || received.get( received.size() - 1 ) < lastId ) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    private void awaitCount(int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( received.size() < count && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    @Before
+    public void setup()
+    {
+        hostManager = new InMemoryHostIdManager( new Configuration(), new EventBus() );
+        host = hostManager.getOrCreateHost( InetAddress.getLoopbackAddress(), "localhost" );
+        manager = new FilterCallbackManager( hostManager, dao, new Configuration() );
+        manager.afterPropertiesSet();
+        manager.register( host.ip, new IFilterCallback()
+        {
+            @Override
+            public void visit(SyslogMessage message) {
+                received.add( message.id );
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        manager.destroy();
+    }
+
+    @Test
+    public void testPublishedMessagesDoNotHitTheDatabase() throws InterruptedException
+    {
+        publish( 11, 12 );
+        publish( 13, 15 );
+        awaitReceived( 15 );
+        assertEquals( Arrays.asList( 11L, 12L, 13L, 14L, 15L ), received );
+        assertEquals( Collections.emptyList(), catchUps );
+    }
+
+    @Test
+    public void testGapCatchesUpFromDatabase() throws InterruptedException
+    {
+        publish( 11, 12 );
+        awaitReceived( 12 );
+
+        // 13 and 14 got written without being published
+        latestId = 14;
+        publish( 15, 16 );
+        awaitReceived( 16 );
+
+        publish( 17, 17 );
+        awaitReceived( 17 );
+        assertEquals( Arrays.asList( 11L, 12L, 13L, 14L, 15L, 16L, 17L ), received );
+        assertEquals( Collections.singletonList( 12L ), catchUps );
+    }
+
+    @Test
+    public void testMarkDirtyCatchesUpFromDatabase() throws InterruptedException
+    {
+        latestId = 13;
+        manager.markDirty( host.ip );
+        awaitReceived( 13 );
+
+        // already seen
+        publish( 12, 13 );
+        publish( 14, 14 );
+        awaitReceived( 14 );
+        assertEquals( Arrays.asList( 11L, 12L, 13L, 14L ), received );
+        assertEquals( Collections.singletonList( 10L ), catchUps );
+    }
+
+    @Test
+    public void testCatchUpDoesNotLoseUncommittedIds() throws InterruptedException
+    {
+        publish( 11, 12 );
+        awaitReceived( 12 );
+
+        // another storage reserved 13 and 14 but has not committed them yet
+        uncommitted.addAll( Arrays.asList( 13L, 14L ) );
+        publish( 15, 16 );
+        awaitReceived( 16 );
+        assertEquals( Arrays.asList( 11L, 12L, 15L, 16L ), received );
+
+        // 13 gets published after its commit
+        uncommitted.remove( 13L );
+        manager.publish( host.ip, messages( 13, 13 ) );
+        awaitCount( 5 );
+
+        // 14 gets committed without being published
+        uncommitted.remove( 14L );
+        manager.markDirty( host.ip );
+        awaitCount( 6 );
+        assertEquals( Arrays.asList( 11L, 12L, 15L, 16L, 13L, 14L ), received );
+
+        // nothing gets passed on twice
+        publish( 13, 14 );
+        publish( 17, 17 );
+        awaitReceived( 17 );
+        assertEquals( Arrays.asList( 11L, 12L, 15L, 16L, 13L, 14L, 17L ), received );
+    }
+
+    @Test
+    public void testHasCallbacks() throws Exception
+    {
+        assertEquals( true, manager.hasCallbacks( host.ip ) );
+        assertEquals( false, manager.hasCallbacks( InetAddress.getByName( "10.0.0.1" ) ) );
+    }
+
+    @Test
+    public void testHostsGetShardedAcrossThreads() throws Exception
+    {
+        final Configuration config = new Configuration();
+        config.filterThreads = 3;
+        final FilterCallbackManager sharded = new FilterCallbackManager( hostManager, dao, config );
+        sharded.afterPropertiesSet();
+        try
+        {
+            final int hostCount = 8;
+            final List<Host> hosts = new ArrayList<>();
+            final Map<InetAddress,List<Long>> receivedByHost = new ConcurrentHashMap<>();
+            final Map<InetAddress,Set<Thread>> threadsByHost = new ConcurrentHashMap<>();
+            for ( int i = 0 ; i < hostCount ; i++ )
+            {
+                final Host h = hostManager.getOrCreateHost( InetAddress.getByName( "10.0.0." + ( i + 1 ) ), "host" + i );
+                hosts.add( h );
+                receivedByHost.put( h.ip, Collections.synchronizedList( new ArrayList<>() ) );
+                threadsByHost.put( h.ip, ConcurrentHashMap.newKeySet() );
+                sharded.register( h.ip, new IFilterCallback()
+                {
+                    @Override
+                    public void visit(SyslogMessage message)
+                    {
+                        receivedByHost.get( h.ip ).add( message.id );
+                        threadsByHost.get( h.ip ).add( Thread.currentThread() );
+                    }
+                });
+            }
+
+            // every host starts at the latest entry ID the DAO reported
+            for ( long id = 11 ; id < 111 ; id += 5 ) {
+                for ( Host h : hosts ) {
+                    sharded.publish( h.ip, messages( id, id + 4 ) );
+                }
+            }
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ( receivedByHost.values().stream().anyMatch( list -> list.size() < 100 ) && System.currentTimeMillis() < deadline ) {
+                Thread.sleep( 10 );
+            }
+            final List<Long> expected = LongStream.range( 11, 111 ).boxed().collect( Collectors.toList() );
+            final Set<Thread> allThreads = new HashSet<>();
+            for ( Host h : hosts )
+            {
+                assertEquals( expected, receivedByHost.get( h.ip ) );
+                assertEquals( 1, threadsByHost.get( h.ip ).size() );
+                allThreads.addAll( threadsByHost.get( h.ip ) );
+            }
+            assertTrue( allThreads.size() > 1 );
+            assertEquals( Collections.emptyList(), catchUps );
+
+            final List<FilterCallbackManager.ShardStatistics> stats = sharded.getStatistics();
+            assertEquals( 3, stats.size() );
+            assertEquals( hostCount * 100, stats.stream().mapToLong( s -> s.pushedMessages ).sum() );
+            assertEquals( 0, stats.stream().mapToLong( s -> s.pendingBatches ).sum() );
+        }
+        finally
+        {
+            sharded.destroy();
+        }
+    }
+}
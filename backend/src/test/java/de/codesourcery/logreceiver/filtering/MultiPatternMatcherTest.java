@@ -0,0 +1,154 @@
+package de.codesourcery.logreceiver.filtering;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MultiPatternMatcherTest
+{
+    private static String literal(String regex) {
+        return MultiPatternMatcher.getRequiredLiteral( Pattern.compile( regex ) );
+    }
+
+    private static MultiPatternMatcher<String> matcher(String... regex)
+    {
+        final List<String> list = Arrays.asList( regex );
+        return MultiPatternMatcher.create( list, list.stream().map( Pattern::compile ).collect( Collectors.toList() ) );
+    }
+
+    private static List<String> matches(MultiPatternMatcher<String> matcher, String text)
+    {
+        final List<String> result = new ArrayList<>();
+        matcher.forEachMatch( text, result::add );
+        return result;
+    }
+
+    @Test
+    public void testRequiredLiteral()
+    {
+        assertEquals( "connection refused", literal( ".*connection refused.*" ) );
+        assertEquals( " error: ", literal( "^.*\\d+ error: .*$" ) );
+        assertEquals( "sshd[", literal( ".*sshd\\[\\d+\\].*" ) );
+        assertEquals( "failed for ", literal( "(?i).*failed for (root|admin).*" ) );
+        assertEquals( "abc", literal( "x?abcd*" ) );
+        assertEquals( "ab", literal( "ab+c{2}" ) );
+        assertEquals( "host", literal( "[a-z]+host[0-9]*" ) );
+        assertNull( literal( ".*" ) );
+        assertNull( literal( "foo|bar" ) );
+        assertNull( literal( "\\x41bc" ) );
+        assertNull( literal( "(?x) a b c" ) );
+        assertNull( MultiPatternMatcher.getRequiredLiteral( Pattern.compile( "a.b", Pattern.LITERAL ) ) );
+    }
+
+    @Test
+    public void testMatches()
+    {
+        final MultiPatternMatcher<String> matcher = matcher( ".*refused.*", ".*", ".*(?i)DISK FULL.*", "foo|bar", ".*user.*login.*" );
+        assertEquals( Arrays.asList( ".*refused.*", ".*" ), matches( matcher, "connection refused" ) );
+        assertEquals( Arrays.asList( ".*", ".*(?i)DISK FULL.*" ), matches( matcher, "/dev/sda1: disk full" ) );
+        assertEquals( Arrays.asList( ".*", "foo|bar" ), matches( matcher, "bar" ) );
+        assertEquals( Arrays.asList( ".*", ".*user.*login.*" ), matches( matcher, "user root: login ok" ) );
+        assertEquals( Arrays.asList( ".*" ), matches( matcher, "login of user root" ) );
+    }
+
+    @Test
+    public void testOverlappingLiterals()
+    {
+        final MultiPatternMatcher<String> matcher = matcher( ".*she.*", ".*he.*", ".*hers.*", ".*his.*" );
+        assertEquals( Arrays.asList( ".*she.*", ".*he.*", ".*hers.*" ), matches( matcher, "ushers" ) );
+        assertEquals( Arrays.asList( ".*his.*" ), matches( matcher, "this" ) );
+        assertEquals( 0, matcher.getCandidates( "nothing" ).cardinality() );
+    }
+
+    private static List<Pattern> subscriptions(int count)
+    {
+        final List<Pattern> patterns = new ArrayList<>();
+        for ( int i = 0 ; i < count ; i++ ) {
+            patterns.add( Pattern.compile( ".*app" + i + "\\[\\d+\\]: error code " + ( i * 7 ) + ".*" ) );
+        }
+        return patterns;
+    }
+
+    private static List<String> messages(int subscriptions, int count)
+    {
+        final Random rnd = new Random( 42 );
+        final List<String> messages = new ArrayList<>();
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final int app = rnd.nextInt( subscriptions );
+            final int code = rnd.nextBoolean() ? app * 7 : app * 7 + 1;
+            messages.add( "2019-06-11 10:09:08.7 myhost app" + app + "[" + rnd.nextInt( 65536 ) + "]: error code " + code + " while processing request" );
+        }
+        return messages;
+    }
+
+    private static long countNaive(List<Pattern> patterns, List<String> messages)
+    {
+        long matches = 0;
+        for ( String msg : messages )
+        {
+            for ( Pattern p : patterns ) {
+                if ( p.matcher( msg ).matches() ) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static long countMatcher(MultiPatternMatcher<Pattern> matcher, List<String> messages)
+    {
+        final long[] count = new long[1];
+        for ( String msg : messages ) {
+            matcher.forEachMatch( msg, p -> count[0]++ );
+        }
+        return count[0];
+    }
+
+    @Test
+    public void testSameMatchesAsNaiveMatching()
+    {
+        final List<Pattern> patterns = subscriptions( 100 );
+        final List<String> messages = messages( patterns.size(), 500 );
+        final long naiveMatches = countNaive( patterns, messages );
+        assertTrue( naiveMatches > 0 );
+        assertEquals( naiveMatches, countMatcher( MultiPatternMatcher.create( patterns, patterns ), messages ) );
+    }
+
+    /**
+     * Compares against one regex per subscription, run with <code>-Dbenchmark=true</code>.
+     */
+    @Test
+    public void testBenchmark()
+    {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+
+        final List<Pattern> patterns = subscriptions( 1000 );
+        final List<String> messages = messages( patterns.size(), 2000 );
+        final MultiPatternMatcher<Pattern> matcher = MultiPatternMatcher.create( patterns, patterns );
+
+        long naiveNanos = 0;
+        long matcherNanos = 0;
+        for ( int round = 0 ; round < 3 ; round++ ) // first round is warm-up
+        {
+            long start = System.nanoTime();
+            final long naiveMatches = countNaive( patterns, messages );
+            naiveNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertEquals( naiveMatches, countMatcher( matcher, messages ) );
+            matcherNanos = System.nanoTime() - start;
+        }
+        assertTrue( "Matcher took " + ( matcherNanos / 1_000_000 ) + " ms, naive matching " + ( naiveNanos / 1_000_000 ) + " ms", matcherNanos < naiveNanos );
+    }
+}
@@ -46,6 +46,14 @@ public class PatternLogFormatterTest
         assertMatch("a{b=c}","%P");
     }
 
+    @Test
+    public void testIsMessageOnly() {
+        assertEquals( true, PatternLogFormatter.ofPattern( "%t" ).isMessageOnly() );
+        assertEquals( false, PatternLogFormatter.ofPattern( "%t " ).isMessageOnly() );
+        assertEquals( false, PatternLogFormatter.ofPattern( "%a %t" ).isMessageOnly() );
+        assertEquals( false, PatternLogFormatter.ofPattern( PatternLogFormatter.DEFAULT_PATTERN ).isMessageOnly() );
+    }
+
     @Test
     public void testIllegalPatterns() {
         assertThrows( () -> eval( "%%" ) );
@@ -89,8 +97,8 @@ public class PatternLogFormatterTest
         final SyslogMessage msg = new SyslogMessage();
 
         final ZoneId zoneId = ZoneId.of( "UTC-0330");
-        msg.timestamp = ZonedDateTime.of( 1974, 12, 11,
-                                          10, 9, 8, 7, zoneId );
+        msg.setTimestamp( ZonedDateTime.of( 1974, 12, 11,
+                                          10, 9, 8, 7, zoneId ) );
 
         msg.priority = 123;
         msg.procId = "procid";
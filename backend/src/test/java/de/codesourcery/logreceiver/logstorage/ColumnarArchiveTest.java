@@ -0,0 +1,185 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ColumnarArchiveTest
+{
+    private static final long EPOCH_MILLIS = 1_560_000_000_000L;
+
+    private static IFilterCallback filter(Predicate<SyslogMessage> predicate)
+    {
+        return new IFilterCallback()
+        {
+            @Override
+            public void visit(SyslogMessage message) {
+            }
+
+            @Override
+            public Predicate<SyslogMessage> getPredicate() {
+                return predicate;
+            }
+        };
+    }
+
+    private Path directory;
+    private Host host;
+    private ColumnarArchive archive;
+
+    @Before
+    public void setup() throws IOException
+    {
+        directory = Files.createTempDirectory( "archivetest" );
+        final Configuration config = new Configuration();
+        config.archiveDirectory = directory.toString();
+        config.archiveCacheSize = 1;
+        host = new Host();
+        host.id = 42;
+        archive = new ColumnarArchive( config );
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    /**
+     * Archives rows with IDs <code>firstId, firstId+step, ...</code>.
+     */
+    private void archive(String name, long firstId, int step, int count) throws IOException
+    {
+        final ArchiveFile.Writer writer = new ArchiveFile.Writer( 0, 3600 );
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final long id = firstId + i * step;
+            writer.add( id, (short) 13, EPOCH_MILLIS + id * 1000, i % 3 == 0 ? -1 : 123456789,
+                "app" + ( id % 2 ), i % 5 == 0 ? null : "proc", null, null, "message " + id );
+        }
+        final Path hostDirectory = ColumnarArchive.hostDirectory( directory, host );
+        Files.createDirectories( hostDirectory );
+        writer.write( hostDirectory.resolve( name + ColumnarArchive.FILE_SUFFIX ) );
+        ColumnarArchive.invalidate( hostDirectory );
+    }
+
+    private static List<Long> ids(List<SyslogMessage> messages) {
+        return messages.stream().map( m -> m.id ).collect( Collectors.toList() );
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        assertNull( archive.getLatestMessageId( host ) );
+        archive( "part", 1, 1, 1000 );
+        assertEquals( Long.valueOf( 1000 ), archive.getLatestMessageId( host ) );
+
+        final List<SyslogMessage> visited = new ArrayList<>();
+        archive.visitMessages( host, visited::add, Arrays.asList( 3L, 1L, 5000L ) );
+        assertEquals( Arrays.asList( 1L, 3L ), ids( visited ) );
+
+        final SyslogMessage one = visited.get( 0 );
+        assertEquals( 13, one.priority );
+        assertEquals( EPOCH_MILLIS / 1000 + 1, one.getTimestamp().toEpochSecond() );
+        assertEquals( 0, one.getTimestamp().getNano() );
+        assertEquals( "app1", one.appName );
+        assertNull( one.procId );
+        assertNull( one.msgId );
+        assertEquals( "message 1", one.message );
+        assertEquals( host, one.host );
+
+        final SyslogMessage three = visited.get( 1 );
+        assertEquals( 123456789, three.getTimestamp().getNano() );
+        assertEquals( "app1", three.appName );
+        assertEquals( "proc", three.procId );
+    }
+
+    @Test
+    public void testFileListIsCachedUntilInvalidated() throws IOException
+    {
+        archive( "part1", 1, 1, 10 );
+        assertEquals( Long.valueOf( 10 ), archive.getLatestMessageId( host ) );
+
+        final Path hostDirectory = ColumnarArchive.hostDirectory( directory, host );
+        Files.delete( hostDirectory.resolve( "part1" + ColumnarArchive.FILE_SUFFIX ) );
+        assertEquals( Long.valueOf( 10 ), archive.getLatestMessageId( host ) );
+        ColumnarArchive.invalidate( hostDirectory );
+        assertNull( archive.getLatestMessageId( host ) );
+
+        archive( "part2", 11, 1, 10 );
+        assertEquals( Long.valueOf( 20 ), archive.getLatestMessageId( host ) );
+    }
+
+    @Test
+    public void testParams() throws IOException
+    {
+        final ArchiveFile.Writer writer = new ArchiveFile.Writer( 0, 3600 );
+        writer.add( 1, (short) 13, EPOCH_MILLIS, -1, "app", null, null,
+            "{\"data\":[{\"id\":\"b\",\"params\":null},{\"id\":\"a\",\"params\":{\"k2\":\"v2\",\"k1\":\"v1\"}}]}", "message 1" );
+        writer.add( 2, (short) 13, EPOCH_MILLIS, -1, "app", null, null, null, "message 2" );
+        final Path hostDirectory = ColumnarArchive.hostDirectory( directory, host );
+        Files.createDirectories( hostDirectory );
+        writer.write( hostDirectory.resolve( "part" + ColumnarArchive.FILE_SUFFIX ) );
+        ColumnarArchive.invalidate( hostDirectory );
+
+        final List<SyslogMessage> visited = new ArrayList<>();
+        archive.visitMessages( host, visited::add, Arrays.asList( 1L, 2L ) );
+        assertEquals( 2, visited.size() );
+
+        final SyslogMessage one = visited.get( 0 );
+        assertEquals( 2, one.getParamCount() );
+        assertEquals( "a", one.params[0].id );
+        assertEquals( 2, one.params[0].paramCount() );
+        assertEquals( "k1", one.params[0].paramNames[0] );
+        assertEquals( "v1", one.params[0].paramValues[0] );
+        assertEquals( "k2", one.params[0].paramNames[1] );
+        assertEquals( "v2", one.params[0].paramValues[1] );
+        assertEquals( "b", one.params[1].id );
+        assertEquals( 0, one.params[1].paramCount() );
+
+        assertEquals( 0, visited.get( 1 ).getParamCount() );
+    }
+
+    @Test
+    public void testPagingAcrossFiles() throws IOException
+    {
+        // interleaved IDs, as if a partition got re-created by late messages
+        archive( "a", 1, 2, 50 );
+        archive( "b", 2, 2, 50 );
+        archive( "c", 101, 1, 50 );
+
+        final IFilterCallback all = filter( msg -> true );
+        assertEquals( Arrays.asList( 150L, 149L, 148L ), ids( archive.getLatestMessages( host, all, 3 ) ) );
+        assertEquals( Arrays.asList( 11L, 12L, 13L ), ids( archive.getMessages( host, all, IAPI.PagingDirection.FORWARD_IN_TIME, 10, 3 ) ) );
+        assertEquals( Arrays.asList( 102L, 101L, 100L, 99L ), ids( archive.getMessages( host, all, IAPI.PagingDirection.BACKWARD_IN_TIME, 103, 4 ) ) );
+
+        final IFilterCallback odd = filter( msg -> msg.id % 2 == 1 );
+        assertEquals( Arrays.asList( 97L, 99L, 101L ), ids( archive.getMessages( host, odd, IAPI.PagingDirection.FORWARD_IN_TIME, 96, 3 ) ) );
+
+        final List<SyslogMessage> visited = new ArrayList<>();
+        final IFilterCallback collector = visited::add;
+        assertEquals( Long.valueOf( 150 ), archive.visitNewerMessages( host, Arrays.asList( collector ), 140L, () -> false ) );
+        assertEquals( 10, visited.size() );
+    }
+}
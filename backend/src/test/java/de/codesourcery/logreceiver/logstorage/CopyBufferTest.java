@@ -0,0 +1,95 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class CopyBufferTest
+{
+    private static byte[] rows(CopyBuffer buffer) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeRows( out );
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testTextRowsWithEntryIds()
+    {
+        final CopyBuffer buffer = CopyBuffer.create( CopyFormat.TEXT );
+        buffer.append( RowBatch.of( null, 0, "1|a" ), 0, 1 );
+        buffer.append( RowBatch.of( null, 0, "2|b" ), 0, 1 );
+
+        final CopyBuffer withIds = CopyBuffer.create( CopyFormat.TEXT );
+        withIds.appendWithEntryIds( buffer, new long[] { 10, 11 } );
+        assertEquals( 2, withIds.rowCount() );
+        assertEquals( "10|1|a\n11|2|b", withIds.toString() );
+    }
+
+    @Test
+    public void testBinaryRowsWithEntryIds() throws IOException
+    {
+        final Host host = new Host();
+        host.id = 3;
+        host.ip = InetAddress.getLoopbackAddress();
+
+        final CopyBuffer buffer = CopyBuffer.create( CopyFormat.BINARY );
+        final BinaryLogWriter writer = new BinaryLogWriter( new ISQLLogStorage()
+        {
+            @Override
+            public void store(Host host, long epochSecond, String sql) {
+                throw new UnsupportedOperationException( "Binary rows expected" );
+            }
+
+            @Override
+            public void store(RowBatch batch)
+            {
+                buffer.append( batch, 0, batch.size() );
+                buffer.keepMessages( batch, 0, batch.size() );
+            }
+        });
+        final SyslogMessage[] messages = new SyslogMessage[2];
+        for ( int i = 0 ; i < messages.length ; i++ )
+        {
+            messages[i] = new SyslogMessage();
+            messages[i].host = host;
+            messages[i].setTimestamp( 1_560_247_748L, 0, 0 );
+            messages[i].message = "message " + i;
+        }
+        writer.store( messages, 2 );
+        assertEquals( 2, buffer.messageCount() );
+        assertNotSame( messages[1], buffer.message( 1 ) );
+        assertEquals( "message 1", buffer.message( 1 ).message );
+
+        final CopyBuffer withIds = CopyBuffer.create( CopyFormat.BINARY );
+        withIds.appendWithEntryIds( buffer, new long[] { 42, 43 } );
+        assertEquals( 2, withIds.rowCount() );
+        assertEquals( 0, withIds.messageCount() );
+        assertNull( withIds.message( 0 ) );
+
+        final ByteBuffer original = ByteBuffer.wrap( rows( buffer ) );
+        final ByteBuffer actual = ByteBuffer.wrap( rows( withIds ) );
+        assertEquals( original.limit() + 2 * ( 4 + 8 ), actual.limit() );
+        final int rowLength = original.limit() / 2;
+        for ( int row = 0 ; row < 2 ; row++ )
+        {
+            final int offset = row * rowLength;
+            assertEquals( original.getShort( offset ) + 1, actual.getShort() );
+            assertEquals( 8, actual.getInt() );
+            assertEquals( 42 + row, actual.getLong() );
+            final byte[] fields = new byte[ rowLength - 2 ];
+            actual.get( fields );
+            assertEquals( Arrays.toString( Arrays.copyOfRange( original.array(), offset + 2, offset + rowLength ) ), Arrays.toString( fields ) );
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushSchedulerTest
+{
+    private final FlushScheduler scheduler = new FlushScheduler( 2 );
+
+    @After
+    public void tearDown() throws InterruptedException {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testTaskRunsOnlyWhenScheduled() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final FlushScheduler.Registration task = scheduler.register( "test", () ->
+        {
+            latch.countDown();
+            return FlushScheduler.NOT_SCHEDULED;
+        });
+        assertFalse( latch.await( 100, TimeUnit.MILLISECONDS ) );
+
+        task.schedule( System.currentTimeMillis() + 50 );
+        assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testEarlierDeadlineWins() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final FlushScheduler.Registration task = scheduler.register( "test", () ->
+        {
+            latch.countDown();
+            return FlushScheduler.NOT_SCHEDULED;
+        });
+        task.schedule( System.currentTimeMillis() + 60_000 );
+        task.wakeUp();
+        task.schedule( System.currentTimeMillis() + 60_000 );
+        assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testTaskRescheduledByItself() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch( 3 );
+        final FlushScheduler.Registration task = scheduler.register( "test", () ->
+        {
+            latch.countDown();
+            return latch.getCount() > 0 ? System.currentTimeMillis() : FlushScheduler.NOT_SCHEDULED;
+        });
+        task.wakeUp();
+        assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testWakeUpWhileRunningRunsTaskAgain() throws InterruptedException
+    {
+        final CountDownLatch running = new CountDownLatch( 1 );
+        final CountDownLatch proceed = new CountDownLatch( 1 );
+        final CountDownLatch secondRun = new CountDownLatch( 1 );
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final AtomicInteger runs = new AtomicInteger();
+        final FlushScheduler.Registration task = scheduler.register( "test", () ->
+        {
+            maxConcurrent.accumulateAndGet( concurrent.incrementAndGet(), Math::max );
+            try
+            {
+                if ( runs.incrementAndGet() == 1 )
+                {
+                    running.countDown();
+                    proceed.await();
+                }
+                else
+                {
+                    secondRun.countDown();
+                }
+            }
+            finally
+            {
+                concurrent.decrementAndGet();
+            }
+            return FlushScheduler.NOT_SCHEDULED;
+        });
+        task.wakeUp();
+        assertTrue( running.await( 5, TimeUnit.SECONDS ) );
+        task.wakeUp();
+        Thread.sleep( 100 );
+        assertEquals( 1, runs.get() );
+        proceed.countDown();
+        assertTrue( secondRun.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, maxConcurrent.get() );
+    }
+
+    @Test
+    public void testCancelWaitsForRunningTask() throws InterruptedException
+    {
+        final CountDownLatch running = new CountDownLatch( 1 );
+        final AtomicInteger finished = new AtomicInteger();
+        final FlushScheduler.Registration task = scheduler.register( "test", () ->
+        {
+            running.countDown();
+            Thread.sleep( 200 );
+            finished.incrementAndGet();
+            return System.currentTimeMillis();
+        });
+        task.wakeUp();
+        assertTrue( running.await( 5, TimeUnit.SECONDS ) );
+        task.cancel();
+        assertEquals( 1, finished.get() );
+
+        Thread.sleep( 100 );
+        assertEquals( 1, finished.get() );
+        assertEquals( 0, scheduler.getQueuedTaskCount() );
+    }
+}
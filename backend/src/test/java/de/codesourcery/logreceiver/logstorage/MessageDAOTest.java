@@ -0,0 +1,73 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.filtering.FilterCriteria;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageDAOTest
+{
+    private static Host host()
+    {
+        final Host host = new Host();
+        host.id = 1;
+        host.hostName = "host";
+        return host;
+    }
+
+    @Test
+    public void testNoCriteria()
+    {
+        final List<Object> arguments = new ArrayList<>();
+        final String sql = MessageDAO.createQuery( host(), "entry_id > 5", "ASC", null, 10, arguments );
+        assertEquals( "SELECT * FROM logs_host WHERE entry_id > 5 ORDER BY entry_id ASC", sql );
+        assertEquals( Collections.emptyList(), arguments );
+    }
+
+    @Test
+    public void testMatchAllGetsLimited()
+    {
+        final List<Object> arguments = new ArrayList<>();
+        final String sql = MessageDAO.createQuery( host(), null, "DESC", FilterCriteria.all(), 10, arguments );
+        assertEquals( "SELECT * FROM logs_host ORDER BY entry_id DESC LIMIT ?", sql );
+        assertEquals( Collections.singletonList( 10 ), arguments );
+    }
+
+    @Test
+    public void testAllCriteria()
+    {
+        final FilterCriteria criteria = new FilterCriteria();
+        criteria.maxSeverity = 3;
+        criteria.appName = "sshd";
+        criteria.substring = "failed";
+        criteria.regex = "user [a-z]+";
+        criteria.ignoreCase = true;
+
+        final List<Object> arguments = new ArrayList<>();
+        final String sql = MessageDAO.createQuery( host(), "entry_id < 5", "DESC", criteria, 10, arguments );
+        assertEquals( "SELECT * FROM logs_host WHERE entry_id < 5 AND (priority & 7) BETWEEN ? AND ? AND app_name = ?" +
+                      " AND msg ILIKE ? AND msg ~* ? ORDER BY entry_id DESC", sql );
+        assertEquals( Arrays.asList( 0, 3, "sshd", "%failed%", "user [a-z]+" ), arguments );
+
+        // the same criteria, without a client-side predicate
+        criteria.ignoreCase = false;
+        criteria.complete = true;
+        arguments.clear();
+        assertEquals( "SELECT * FROM logs_host WHERE (priority & 7) BETWEEN ? AND ? AND app_name = ?" +
+                      " AND msg LIKE ? AND msg ~ ? ORDER BY entry_id ASC LIMIT ?",
+                      MessageDAO.createQuery( host(), null, "ASC", criteria, 10, arguments ) );
+        assertEquals( Arrays.asList( 0, 3, "sshd", "%failed%", "user [a-z]+", 10 ), arguments );
+    }
+
+    @Test
+    public void testSubstringGetsEscaped()
+    {
+        assertEquals( "100\\% of a\\_b in c:\\\\d", MessageDAO.escapeLikePattern( "100% of a_b in c:\\d" ) );
+    }
+}
@@ -0,0 +1,31 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionPrunerTest
+{
+    @Test
+    public void testShortIndexNameIsKept()
+    {
+        assertEquals( "logs_host_2019_06_11_msg_trgm", PartitionPruner.trigramIndexName( "logs_host_2019_06_11", "msg" ) );
+    }
+
+    @Test
+    public void testLongIndexNameIsBounded()
+    {
+        final String table = "logs_a_very_long_host_name_of_some_machine_in_the_datacenter_2019_06_11";
+        final String first = PartitionPruner.trigramIndexName( table, "msg" );
+        final String second = PartitionPruner.trigramIndexName( table.replace( "2019_06_11", "2019_06_12" ), "msg" );
+        assertEquals( 63, first.getBytes( StandardCharsets.UTF_8 ).length );
+        assertTrue( first, first.startsWith( "logs_a_very_long_host_name" ) );
+        assertTrue( first, first.endsWith( "_trgm" ) );
+        assertNotEquals( first, second );
+        assertEquals( first, PartitionPruner.trigramIndexName( table, "msg" ) );
+    }
+}
@@ -0,0 +1,54 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.util.DateUtils;
+import de.codesourcery.logreceiver.util.Interval;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PartitionRouteCacheTest
+{
+    private static final ZonedDateTime START = ZonedDateTime.of( 2019, 8, 14, 4, 0, 0, 0, DateUtils.UTC );
+    private static final Interval INTERVAL = new Interval( START, START.plusHours( 4 ) );
+
+    @Test
+    public void testRangeCheck()
+    {
+        final PartitionRouteCache<String> cache = new PartitionRouteCache<>( 16 );
+        assertNull( cache.get( 1, START.toEpochSecond() ) );
+
+        cache.put( 1, INTERVAL, "partition" );
+        assertEquals( "partition", cache.get( 1, START.toEpochSecond() ) );
+        assertEquals( "partition", cache.get( 1, START.plusHours( 4 ).toEpochSecond() - 1 ) );
+        assertNull( cache.get( 1, START.toEpochSecond() - 1 ) );
+        assertNull( cache.get( 1, START.plusHours( 4 ).toEpochSecond() ) );
+        assertNull( cache.get( 2, START.toEpochSecond() ) );
+    }
+
+    @Test
+    public void testCollidingHostsEvictEachOther()
+    {
+        final PartitionRouteCache<String> cache = new PartitionRouteCache<>( 16 );
+        cache.put( 1, INTERVAL, "host1" );
+        cache.put( 2, INTERVAL, "host2" );
+        cache.put( 17, INTERVAL, "host17" );
+        assertNull( cache.get( 1, START.toEpochSecond() ) );
+        assertEquals( "host2", cache.get( 2, START.toEpochSecond() ) );
+        assertEquals( "host17", cache.get( 17, START.toEpochSecond() ) );
+    }
+
+    @Test
+    public void testRemove()
+    {
+        final PartitionRouteCache<String> cache = new PartitionRouteCache<>( 16 );
+        final String partition = "partition";
+        cache.put( 1, INTERVAL, partition );
+        cache.put( 2, INTERVAL, "other" );
+        cache.remove( partition );
+        assertNull( cache.get( 1, START.toEpochSecond() ) );
+        assertEquals( "other", cache.get( 2, START.toEpochSecond() ) );
+    }
+}
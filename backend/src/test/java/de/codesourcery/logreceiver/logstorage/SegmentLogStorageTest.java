@@ -0,0 +1,203 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentLogStorageTest
+{
+    // recent enough to not get pruned by the default data retention time
+    private static final ZonedDateTime TIMESTAMP = ZonedDateTime.now( ZoneId.of( "UTC" ) ).withNano( 0 );
+
+    private static final IFilterCallback ALL = new IFilterCallback()
+    {
+        @Override
+        public void visit(SyslogMessage message) {
+        }
+
+        @Override
+        public Predicate<SyslogMessage> getPredicate() {
+            return msg -> true;
+        }
+    };
+
+    private Path directory;
+    private Configuration config;
+    private InMemoryHostIdManager hostManager;
+    private Host host;
+    private SegmentLogStorage storage;
+
+    @Before
+    public void setup() throws IOException
+    {
+        directory = Files.createTempDirectory( "segmenttest" );
+        config = new Configuration();
+        config.segmentStorageDirectory = directory.toString();
+        config.segmentStorageHosts.add( "segmenthost" );
+        config.segmentStorageSegmentSize = 1024;
+        hostManager = new InMemoryHostIdManager( config, new EventBus() );
+        host = hostManager.getOrCreateHost( InetAddress.getLoopbackAddress(), "segmenthost" );
+        storage = new SegmentLogStorage( hostManager, config );
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        storage.shutdown();
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    private void store(int count)
+    {
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final SyslogMessage msg = new SyslogMessage();
+            msg.host = host;
+            // alternate between two partitions so that entry IDs interleave across segments
+            msg.setTimestamp( TIMESTAMP.plusHours( i % 2 == 0 ? 0 : config.hoursPerPartition ).plusSeconds( i ) );
+            msg.priority = 13;
+            msg.appName = "app";
+            msg.message = "message " + i;
+            storage.store( msg );
+        }
+    }
+
+    private static List<Long> ids(List<SyslogMessage> messages) {
+        return messages.stream().map( m -> m.id ).collect( Collectors.toList() );
+    }
+
+    @Test
+    public void testRouting() throws IOException
+    {
+        assertTrue( storage.handles( host ) );
+        assertFalse( storage.handles( hostManager.getOrCreateHost( InetAddress.getByName( "10.0.0.1" ), "other" ) ) );
+    }
+
+    @Test
+    public void testReadsAcrossSegments()
+    {
+        assertNull( storage.getLatestMessageId( host ) );
+        store( 100 );
+        assertEquals( Long.valueOf( 100 ), storage.getLatestMessageId( host ) );
+
+        final List<SyslogMessage> latest = storage.getLatestMessages( host, ALL, 3 );
+        assertEquals( Arrays.asList( 100L, 99L, 98L ), ids( latest ) );
+        assertEquals( "message 99", latest.get( 0 ).message );
+        assertEquals( TIMESTAMP.plusHours( config.hoursPerPartition ).plusSeconds( 99 ).toInstant(), latest.get( 0 ).getTimestamp().toInstant() );
+
+        assertEquals( Arrays.asList( 51L, 52L ), ids( storage.getMessages( host, ALL, IAPI.PagingDirection.FORWARD_IN_TIME, 50, 2 ) ) );
+        assertEquals( Arrays.asList( 49L, 48L ), ids( storage.getMessages( host, ALL, IAPI.PagingDirection.BACKWARD_IN_TIME, 50, 2 ) ) );
+
+        final List<SyslogMessage> visited = new ArrayList<>();
+        storage.visitMessages( host, visited::add, Arrays.asList( 77L, 3L, 1000L ) );
+        assertEquals( Arrays.asList( 3L, 77L ), ids( visited ) );
+    }
+
+    @Test
+    public void testMessagesWithoutTimestampGetDropped()
+    {
+        final SyslogMessage msg = new SyslogMessage();
+        msg.host = host;
+        msg.message = "no timestamp";
+        storage.store( msg );
+        assertNull( storage.getLatestMessageId( host ) );
+
+        store( 1 );
+        assertEquals( Long.valueOf( 1 ), storage.getLatestMessageId( host ) );
+    }
+
+    @Test
+    public void testOversizedMessagesDoNotCreateSegments() throws IOException
+    {
+        final SyslogMessage msg = new SyslogMessage();
+        msg.host = host;
+        msg.setTimestamp( TIMESTAMP );
+        final char[] text = new char[ config.segmentStorageSegmentSize ];
+        Arrays.fill( text, 'x' );
+        msg.message = new String( text );
+        storage.store( msg );
+        storage.store( msg );
+        assertNull( storage.getLatestMessageId( host ) );
+        try ( Stream<Path> files = Files.list( directory.resolve( Long.toString( host.id ) ) ) ) {
+            assertEquals( 0, files.count() );
+        }
+    }
+
+    @Test
+    public void testVisitNewerMessages()
+    {
+        store( 20 );
+        final List<SyslogMessage> visited = new ArrayList<>();
+        final IFilterCallback filter = visited::add;
+        assertEquals( Long.valueOf( 20 ), storage.visitNewerMessages( host, Arrays.asList( filter ), 15L, () -> false ) );
+        assertEquals( Arrays.asList( 16L, 17L, 18L, 19L, 20L ), ids( visited ) );
+        assertNull( storage.visitNewerMessages( host, Arrays.asList( filter ), 20L, () -> false ) );
+    }
+
+    @Test
+    public void testParams()
+    {
+        final SyslogMessage msg = new SyslogMessage();
+        msg.host = host;
+        msg.setTimestamp( TIMESTAMP );
+        msg.message = "with params";
+        msg.newParam( "id@1" ).addParam( "key", "v\u00e4lue" );
+        msg.getParameters().get( 0 ).addParam( "empty", null );
+        msg.newParam( "prio@1" );
+        storage.store( msg );
+        store( 1 );
+
+        final List<SyslogMessage> latest = storage.getLatestMessages( host, ALL, 2 );
+        assertEquals( 0, latest.get( 0 ).getParamCount() );
+        final SyslogMessage read = latest.get( 1 );
+        assertEquals( 2, read.getParamCount() );
+        assertEquals( "id@1", read.params[0].id );
+        assertEquals( 2, read.params[0].paramCount() );
+        assertEquals( "key", read.params[0].paramNames[0] );
+        assertEquals( "v\u00e4lue", read.params[0].paramValues[0] );
+        assertEquals( "empty", read.params[0].paramNames[1] );
+        assertNull( read.params[0].paramValues[1] );
+        assertEquals( "prio@1", read.params[1].id );
+        assertEquals( 0, read.params[1].paramCount() );
+    }
+
+    @Test
+    public void testReopenContinuesIds() throws Exception
+    {
+        store( 30 );
+        storage.shutdown();
+
+        storage = new SegmentLogStorage( hostManager, config );
+        assertEquals( Long.valueOf( 30 ), storage.getLatestMessageId( host ) );
+        store( 1 );
+        assertEquals( Arrays.asList( 31L, 30L ), ids( storage.getLatestMessages( host, ALL, 2 ) ) );
+    }
+}
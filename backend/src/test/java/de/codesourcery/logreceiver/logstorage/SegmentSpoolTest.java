@@ -0,0 +1,77 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Host;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class SegmentSpoolTest
+{
+    private static final ZonedDateTime TIMESTAMP = ZonedDateTime.of( 2019, 7, 1, 12, 0, 0, 123_000_000, ZoneId.of( "UTC" ) );
+
+    private final Host host = new Host();
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException
+    {
+        host.id = 42;
+        directory = Files.createTempDirectory( "spooltest" );
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    @Test
+    public void testReadBackAcrossSegments() throws Exception
+    {
+        final SegmentSpool spool = new SegmentSpool( directory, 1024, 1024*1024 );
+        for ( int i = 0 ; i < 100 ; i++ ) {
+            spool.append( host, TIMESTAMP.plusSeconds( i ).toEpochSecond(), "row " + i );
+        }
+        final RowBatch batch = new RowBatch();
+        assertEquals( 100, spool.read( batch, 1000, id -> id == host.id ? host : null ) );
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            assertEquals( "row " + i, batch.row( i ) );
+            assertEquals( TIMESTAMP.plusSeconds( i ).toEpochSecond(), batch.epochSecond( i ) );
+            assertEquals( host, batch.host( i ) );
+        }
+        spool.close();
+    }
+
+    @Test
+    public void testReopenResumesAtCheckpoint() throws Exception
+    {
+        SegmentSpool spool = new SegmentSpool( directory, 1024, 1024*1024 );
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            spool.append( host, TIMESTAMP.toEpochSecond(), "row " + i );
+        }
+        RowBatch batch = new RowBatch();
+        assertEquals( 4, spool.read( batch, 4, id -> host ) );
+        spool.checkpoint( spool.getReadOffset() );
+        assertEquals( 6, spool.read( batch, 10, id -> host ) );
+        spool.close();
+
+        spool = new SegmentSpool( directory, 1024, 1024*1024 );
+        batch = new RowBatch();
+        assertEquals( 6, spool.read( batch, 10, id -> host ) );
+        assertEquals( "row 4", batch.row( 0 ) );
+        spool.close();
+    }
+}
@@ -0,0 +1,90 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpillTest
+{
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory( "spilltest" );
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    private List<Path> files() throws IOException
+    {
+        try ( Stream<Path> files = Files.list( directory ) ) {
+            return files.sorted().collect( Collectors.toList() );
+        }
+    }
+
+    @Test
+    public void testCompletedFileHoldsAllRows() throws IOException
+    {
+        final Spill spill = new Spill( directory, "test", CopyFormat.TEXT );
+        assertTrue( spill.isEmpty() );
+
+        final CopyBuffer buffer = CopyBuffer.create( CopyFormat.TEXT );
+        buffer.append( RowBatch.of( null, 0, "1|a" ), 0, 1 );
+        buffer.append( RowBatch.of( null, 0, "2|b" ), 0, 1 );
+        spill.write( buffer );
+        buffer.clear();
+        buffer.append( RowBatch.of( null, 0, "3|c" ), 0, 1 );
+        spill.write( buffer );
+        assertFalse( spill.isEmpty() );
+        assertFalse( spill.hasCompleteFiles() );
+
+        spill.complete();
+        assertTrue( spill.hasCompleteFiles() );
+        final List<Path> files = files();
+        assertEquals( 1, files.size() );
+        assertEquals( "00000000000000000000.text", files.get( 0 ).getFileName().toString() );
+        assertEquals( "1|a\n2|b\n3|c\n", new String( Files.readAllBytes( files.get( 0 ) ), StandardCharsets.UTF_8 ) );
+        assertEquals( Files.size( files.get( 0 ) ), spill.getBytes() );
+    }
+
+    @Test
+    public void testReopenKeepsCompleteFilesOnly() throws IOException
+    {
+        Spill spill = new Spill( directory, "test", CopyFormat.TEXT );
+        final CopyBuffer buffer = CopyBuffer.create( CopyFormat.TEXT );
+        buffer.append( RowBatch.of( null, 0, "1|a" ), 0, 1 );
+        spill.write( buffer );
+        spill.complete();
+        spill.write( buffer ); // left incomplete
+        assertEquals( 2, files().size() );
+
+        spill = new Spill( directory, "test", CopyFormat.TEXT );
+        final List<Path> files = files();
+        assertEquals( 1, files.size() );
+        assertEquals( "00000000000000000000.text", files.get( 0 ).getFileName().toString() );
+        assertTrue( spill.hasCompleteFiles() );
+
+        spill.write( buffer );
+        spill.complete();
+        assertEquals( "00000000000000000002.text", files().get( 1 ).getFileName().toString() );
+    }
+}
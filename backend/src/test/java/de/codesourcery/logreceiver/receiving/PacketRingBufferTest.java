@@ -0,0 +1,210 @@
+package de.codesourcery.logreceiver.receiving;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingBufferTest
+{
+    private static final InetAddress LOCALHOST = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void testCapacityIsRoundedUp()
+    {
+        assertEquals( 8, new PacketRingBuffer( 5, 16, PacketRingBuffer.OverflowPolicy.BLOCK ).capacity() );
+        assertEquals( 8, new PacketRingBuffer( 8, 16, PacketRingBuffer.OverflowPolicy.BLOCK ).capacity() );
+    }
+
+    @Test
+    public void testPollReturnsPacketsInOrder()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 4, 16, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        assertNull( buffer.poll() );
+        assertTrue( offer( buffer, "a" ) );
+        assertTrue( offer( buffer, "bb" ) );
+        assertEquals( 2, buffer.size() );
+
+        assertEquals( "a", pollAndRelease( buffer ) );
+        assertEquals( "bb", pollAndRelease( buffer ) );
+        assertNull( buffer.poll() );
+        assertEquals( 2, buffer.getPacketsAccepted() );
+    }
+
+    @Test
+    public void testBatchPoll()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 4, 16, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        final PacketRingBuffer.Slot[] slots = new PacketRingBuffer.Slot[3];
+        assertEquals( 0, buffer.poll( slots, 3 ) );
+
+        for ( String s : new String[]{ "1","2","3","4" } ) {
+            assertTrue( offer( buffer, s ) );
+        }
+        assertEquals( 3, buffer.poll( slots, 3 ) );
+        assertEquals( "1", toString( slots[0] ) );
+        assertEquals( "2", toString( slots[1] ) );
+        assertEquals( "3", toString( slots[2] ) );
+
+        // claimed slots can not be re-used until released
+        assertFalse( offer( buffer, "5" ) );
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            buffer.release( slots[i] );
+        }
+        assertTrue( offer( buffer, "5" ) );
+        assertTrue( offer( buffer, "6" ) );
+
+        assertEquals( 3, buffer.poll( slots, 3 ) );
+        assertEquals( "4", toString( slots[0] ) );
+        assertEquals( "5", toString( slots[1] ) );
+        assertEquals( "6", toString( slots[2] ) );
+    }
+
+    @Test
+    public void testSlotGrowsForLargePackets()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 2, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        assertTrue( offer( buffer, "0123456789" ) );
+        assertEquals( "0123456789", pollAndRelease( buffer ) );
+    }
+
+    @Test
+    public void testDropNewest()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 16, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        assertTrue( offer( buffer, "1" ) );
+        assertTrue( offer( buffer, "2" ) );
+        assertFalse( offer( buffer, "3" ) );
+        assertEquals( 1, buffer.getDroppedNewest() );
+        assertEquals( "1", pollAndRelease( buffer ) );
+        assertEquals( "2", pollAndRelease( buffer ) );
+        assertNull( buffer.poll() );
+    }
+
+    @Test
+    public void testDropOldest()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 16, PacketRingBuffer.OverflowPolicy.DROP_OLDEST );
+        assertTrue( offer( buffer, "1" ) );
+        assertTrue( offer( buffer, "2" ) );
+        assertTrue( offer( buffer, "3" ) );
+        assertEquals( 1, buffer.getDroppedOldest() );
+        assertEquals( "2", pollAndRelease( buffer ) );
+        assertEquals( "3", pollAndRelease( buffer ) );
+        assertNull( buffer.poll() );
+    }
+
+    @Test
+    public void testBlockingOfferGivesUpWhenCancelled()
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 16, PacketRingBuffer.OverflowPolicy.BLOCK );
+        assertTrue( offer( buffer, "1" ) );
+        assertTrue( offer( buffer, "2" ) );
+        assertFalse( buffer.offer( toBuffer( "3" ), LOCALHOST, () -> true ) );
+        assertEquals( 1, buffer.getBlockedOffers() );
+    }
+
+    @Test(timeout = 30_000)
+    public void testConcurrentProducersAndConsumers() throws InterruptedException
+    {
+        final int producerCount = 4;
+        final int consumerCount = 3;
+        final int packetsPerProducer = 50_000;
+
+        final PacketRingBuffer buffer = new PacketRingBuffer( 64, 16, PacketRingBuffer.OverflowPolicy.BLOCK );
+        final AtomicLong checksum = new AtomicLong();
+        final AtomicLong consumed = new AtomicLong();
+        final AtomicBoolean producersDone = new AtomicBoolean();
+
+        final List<Thread> consumers = new ArrayList<>();
+        for ( int i = 0 ; i < consumerCount ; i++ )
+        {
+            final Thread t = new Thread( () ->
+            {
+                int idle = 0;
+                while ( true )
+                {
+                    final PacketRingBuffer.Slot slot = buffer.poll();
+                    if ( slot == null )
+                    {
+                        if ( producersDone.get() && buffer.size() == 0 ) {
+                            break;
+                        }
+                        PacketRingBuffer.idle( idle++ );
+                        continue;
+                    }
+                    idle = 0;
+                    checksum.addAndGet( slot.data.getInt( 0 ) );
+                    consumed.incrementAndGet();
+                    buffer.release( slot );
+                }
+            });
+            t.start();
+            consumers.add( t );
+        }
+
+        final List<Thread> producers = new ArrayList<>();
+        for ( int i = 0 ; i < producerCount ; i++ )
+        {
+            final Thread t = new Thread( () ->
+            {
+                final ByteBuffer payload = ByteBuffer.allocate( 4 );
+                for ( int j = 1 ; j <= packetsPerProducer ; j++ )
+                {
+                    payload.clear();
+                    payload.putInt( j ).flip();
+                    assertTrue( buffer.offer( payload, LOCALHOST, () -> false ) );
+                }
+            });
+            t.start();
+            producers.add( t );
+        }
+        for ( Thread t : producers ) {
+            t.join();
+        }
+        producersDone.set( true );
+        for ( Thread t : consumers ) {
+            t.join();
+        }
+        final long expectedSum = producerCount * ( (long) packetsPerProducer * (packetsPerProducer+1) / 2 );
+        assertEquals( producerCount * packetsPerProducer, consumed.get() );
+        assertEquals( expectedSum, checksum.get() );
+    }
+
+    private static boolean offer(PacketRingBuffer buffer, String payload)
+    {
+        return buffer.offer( toBuffer( payload ), LOCALHOST, () -> false );
+    }
+
+    private static ByteBuffer toBuffer(String s)
+    {
+        return ByteBuffer.wrap( s.getBytes() );
+    }
+
+    private static String pollAndRelease(PacketRingBuffer buffer)
+    {
+        final PacketRingBuffer.Slot slot = buffer.poll();
+        assertNotNull( slot );
+        assertEquals( LOCALHOST, slot.sender );
+        final String result = toString( slot );
+        buffer.release( slot );
+        return result;
+    }
+
+    private static String toString(PacketRingBuffer.Slot slot)
+    {
+        final byte[] data = new byte[ slot.data.remaining() ];
+        slot.data.duplicate().get( data );
+        return new String( data );
+    }
+}
@@ -0,0 +1,110 @@
+package de.codesourcery.logreceiver.receiving;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TCPServerTest
+{
+    private final List<String> messages = Collections.synchronizedList( new ArrayList<>() );
+
+    private Configuration config;
+    private TCPServer server;
+
+    @Before
+    public void setup() throws IOException
+    {
+        config = new Configuration();
+        config.startTCPServer = true;
+        config.tcpPort = 0;
+        config.tcpReceiverThreads = 2;
+        config.tcpReadBufferSize = 64; // force buffer growth
+        config.tcpMaxMessageSize = 1024;
+        config.parserThreads = 0;
+        final InMemoryHostIdManager hostManager = new InMemoryHostIdManager( config, new EventBus() );
+        final LogParserFactory parserFactory = new LogParserFactory( msg -> messages.add( msg.message ), hostManager, config );
+        server = new TCPServer( config, new PacketProcessor( config, parserFactory ) );
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+    }
+
+    private static String message(String text) {
+        return "<13>1 2019-06-11T10:09:08.7Z myhost app - - - " + text;
+    }
+
+    private static String octetCounted(String text)
+    {
+        final String msg = message( text );
+        return msg.getBytes( StandardCharsets.UTF_8 ).length + " " + msg;
+    }
+
+    private void awaitMessages(int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( messages.size() < count && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    private static void send(OutputStream out, String data) throws IOException
+    {
+        out.write( data.getBytes( StandardCharsets.UTF_8 ) );
+        out.flush();
+    }
+
+    @Test
+    public void testFraming() throws Exception
+    {
+        final char[] large = new char[500];
+        Arrays.fill( large, 'x' );
+        try ( Socket socket = new Socket( InetAddress.getLoopbackAddress(), server.getLocalPort() ) )
+        {
+            final OutputStream out = socket.getOutputStream();
+            final String frames = octetCounted( "one" ) + message( "two" ) + "\r\n" + octetCounted( new String( large ) ) + message( "four" ) + "\n";
+            // split frames across writes
+            send( out, frames.substring( 0, 5 ) );
+            Thread.sleep( 50 );
+            send( out, frames.substring( 5, 60 ) );
+            Thread.sleep( 50 );
+            send( out, frames.substring( 60 ) );
+            // trailing frame without newline is complete once the connection gets closed
+            send( out, message( "five" ) );
+        }
+        awaitMessages( 5 );
+        assertEquals( Arrays.asList( "one", "two", new String( large ), "four", "five" ), messages );
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception
+    {
+        try ( Socket socket = new Socket( InetAddress.getLoopbackAddress(), server.getLocalPort() ) )
+        {
+            final OutputStream out = socket.getOutputStream();
+            send( out, octetCounted( "ok" ) + "2000 " );
+            awaitMessages( 1 );
+            assertEquals( -1, socket.getInputStream().read() );
+        }
+        assertEquals( Arrays.asList( "ok" ), messages );
+        assertEquals( 1, server.getStatistics().stream().mapToLong( s -> s.framingErrors ).sum() );
+    }
+}
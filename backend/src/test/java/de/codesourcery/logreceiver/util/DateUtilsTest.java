@@ -0,0 +1,48 @@
+package de.codesourcery.logreceiver.util;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.*;
+
+public class DateUtilsTest
+{
+    @Test
+    public void testSameResultAsJavaTime()
+    {
+        for ( long epochDay = LocalDate.of( 1, 1, 1 ).toEpochDay() ; epochDay < LocalDate.of( 2500, 1, 1 ).toEpochDay() ; epochDay += 7 )
+        {
+            final LocalDate expected = LocalDate.ofEpochDay( epochDay );
+            final int date = DateUtils.toDate( epochDay );
+            assertEquals( expected.getYear(), DateUtils.getYear( date ) );
+            assertEquals( expected.getMonthValue(), DateUtils.getMonth( date ) );
+            assertEquals( expected.getDayOfMonth(), DateUtils.getDayOfMonth( date ) );
+            assertEquals( epochDay, DateUtils.toEpochDay( expected.getYear(), expected.getMonthValue(), expected.getDayOfMonth() ) );
+        }
+    }
+
+    @Test
+    public void testEpochSecondWithOffset()
+    {
+        final ZonedDateTime ts = ZonedDateTime.of( 1969, 12, 31, 23, 30, 15, 0, ZoneOffset.ofHoursMinutes( -6, -7 ) );
+        final int offset = ts.getOffset().getTotalSeconds();
+        final long epochSecond = DateUtils.toEpochSecond( 1969, 12, 31, 23, 30, 15, offset );
+        assertEquals( ts.toEpochSecond(), epochSecond );
+        assertEquals( 19691231, DateUtils.toDate( DateUtils.toLocalEpochDay( epochSecond, offset ) ) );
+        assertEquals( 23*3600 + 30*60 + 15, DateUtils.toLocalSecondOfDay( epochSecond, offset ) );
+    }
+
+    @Test
+    public void testIsValidDate()
+    {
+        assertTrue( DateUtils.isValidDate( 2020, 2, 29 ) );
+        assertTrue( DateUtils.isValidDate( 2000, 2, 29 ) );
+        assertFalse( DateUtils.isValidDate( 1900, 2, 29 ) );
+        assertFalse( DateUtils.isValidDate( 2019, 2, 29 ) );
+        assertFalse( DateUtils.isValidDate( 2019, 4, 31 ) );
+        assertTrue( DateUtils.isValidDate( 2019, 12, 31 ) );
+    }
+}
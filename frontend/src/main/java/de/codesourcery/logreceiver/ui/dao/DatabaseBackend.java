@@ -2,7 +2,7 @@ package de.codesourcery.logreceiver.ui.dao;
 
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
-import de.codesourcery.logreceiver.logstorage.MessageDAO;
+import de.codesourcery.logreceiver.logstorage.IMessageDAO;
 import de.codesourcery.logreceiver.logstorage.PostgreSQLHostIdManager;
 import de.codesourcery.logreceiver.parsing.JDBCHelper;
 import de.codesourcery.logreceiver.ui.auth.HashUtils;
@@ -103,7 +103,7 @@ public class DatabaseBackend implements IDatabaseBackend, ApplicationContextAwar
 
     private JdbcTemplate jdbcTemplate;
 
-    private MessageDAO messageDAO;
+    private IMessageDAO messageDAO;
 
     private static final RowMapper<User> USER_MAPPER = (rs,idx) -> {
         final User user = new User();
@@ -683,7 +683,7 @@ public class DatabaseBackend implements IDatabaseBackend, ApplicationContextAwar
     }
 
     @Resource
-    public void setMessageDAO(MessageDAO messageDAO)
+    public void setMessageDAO(IMessageDAO messageDAO)
     {
         this.messageDAO = messageDAO;
     }
@@ -7,6 +7,7 @@ import de.codesourcery.logreceiver.events.HostAddedEvent;
 import de.codesourcery.logreceiver.events.HostDeletedEvent;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.filtering.MultiPatternMatcher;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatterCache;
 import de.codesourcery.logreceiver.storage.IHostManager;
@@ -18,7 +19,6 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Component
 public class MetaFilter implements IFilterCallback
@@ -46,6 +47,10 @@ public class MetaFilter implements IFilterCallback
     // key is Host, value is Map<Log pattern,List<SubscriptionCallback>>
     private final Map<Host, Map<String,List<SubscriptionCallback>>> callbacksByHost = new HashMap<>();
 
+    // @GuardedBy( callbacksByHost );
+    // matchers for the callback lists above, created when first needed
+    private final Map<Host, Map<String,MultiPatternMatcher<SubscriptionCallback>>> matchersByHost = new HashMap<>();
+
     public interface IBatchCallback
     {
         /**
@@ -90,28 +95,25 @@ public class MetaFilter implements IFilterCallback
             this.batchCallback = batchCallback;
         }
 
-        public void visit(SyslogMessage message,String formattedMessage, ZonedDateTime now)
+        public void matched(SyslogMessage message)
         {
-            if ( regex.matcher( formattedMessage ).matches() )
+            if ( matchedMsgCount == matchedMessageIds.length )
             {
-                if ( matchedMsgCount == matchedMessageIds.length )
-                {
-                    final int newLen = 1 + matchedMessageIds.length*2;
-                    long[] tmp = new long[ newLen ];
-                    System.arraycopy( matchedMessageIds,0,tmp,0,matchedMessageIds.length );
-                    matchedMessageIds = tmp;
-                    tmp = new long[ newLen ];
-                    System.arraycopy( matchedHostIds,0,tmp,0,matchedHostIds.length );
-                    matchedHostIds = tmp;
+                final int newLen = 1 + matchedMessageIds.length*2;
+                long[] tmp = new long[ newLen ];
+                System.arraycopy( matchedMessageIds,0,tmp,0,matchedMessageIds.length );
+                matchedMessageIds = tmp;
+                tmp = new long[ newLen ];
+                System.arraycopy( matchedHostIds,0,tmp,0,matchedHostIds.length );
+                matchedHostIds = tmp;
 
-                }
-                matchedMessageIds[ matchedMsgCount ] = message.id;
-                matchedHostIds[ matchedMsgCount++ ] = message.host.id;
-                if ( matchedMsgCount > 1000 )
-                {
-                    flush(false);
-                    matchedMsgCount = 0;
-                }
+            }
+            matchedMessageIds[ matchedMsgCount ] = message.id;
+            matchedHostIds[ matchedMsgCount++ ] = message.host.id;
+            if ( matchedMsgCount > 1000 )
+            {
+                flush(false);
+                matchedMsgCount = 0;
             }
         }
 
@@ -132,26 +134,29 @@ public class MetaFilter implements IFilterCallback
         // key is LogFormatter pattern, value is current message formatted by this pattern
         synchronized (callbacksByHost)
         {
-            final ZonedDateTime now = ZonedDateTime.now();
             for (SyslogMessage msg : messages)
             {
                 final Map<String, List<SubscriptionCallback>> map = callbacksByHost.get( msg.host );
                 if ( map != null )
                 {
-                    for (String logPattern : map.keySet())
+                    for (Map.Entry<String, List<SubscriptionCallback>> entry : map.entrySet() )
                     {
-                        final PatternLogFormatter formatter = formatterCache.get( logPattern );
+                        final PatternLogFormatter formatter = formatterCache.get( entry.getKey() );
                         final String formatted = formatter.format( msg );
-                        for (SubscriptionCallback cb : map.get( logPattern ) )
-                        {
-                            cb.visit( msg, formatted , now );
-                        }
+                        getMatcher( msg.host, entry.getKey(), entry.getValue() ).forEachMatch( formatted, cb -> cb.matched( msg ) );
                     }
                 }
             }
         }
     }
 
+    // @GuardedBy( callbacksByHost )
+    private MultiPatternMatcher<SubscriptionCallback> getMatcher(Host host, String logPattern, List<SubscriptionCallback> callbacks)
+    {
+        return matchersByHost.computeIfAbsent( host, key -> new HashMap<>() ).computeIfAbsent( logPattern, key ->
+            MultiPatternMatcher.create( callbacks, callbacks.stream().map( cb -> cb.regex ).collect( Collectors.toList() ) ) );
+    }
+
     public void register(Subscription sub, IBatchCallback batchCallback)
     {
         Validate.notNull( sub, "sub must not be null" );
@@ -185,6 +190,7 @@ public class MetaFilter implements IFilterCallback
                 }
                 list.add(cb);
             }
+            matchersByHost.clear();
         }
     }
 
@@ -228,6 +234,7 @@ public class MetaFilter implements IFilterCallback
                     iterator.remove();
                 }
             }
+            matchersByHost.clear();
         }
         if ( removed )
         {
@@ -245,6 +252,7 @@ public class MetaFilter implements IFilterCallback
                 x.values().forEach( list -> list.forEach( cb -> callbacksBySubscriptionId.put( cb.sub.id, cb ) ) );
             }
             callbacksByHost.clear();
+            matchersByHost.clear();
         }
         for ( SubscriptionCallback cb : callbacksBySubscriptionId.values() )
         {
@@ -9,6 +9,7 @@ import de.codesourcery.logreceiver.IAPI;
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.FilterCriteria;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
 import de.codesourcery.logreceiver.ui.auth.IAuthenticator;
@@ -55,6 +56,9 @@ public class WebSocketEndpoint {
 
     private static final ObjectMapper mapper = new ObjectMapper();
 
+    // search text without regex meta characters
+    private static final Pattern LITERAL = Pattern.compile( "[^\\\\\\[\\](){}.*+?^$|]+" );
+
     private Session session;
     private IAPI api;
     private Configuration configuration;
@@ -298,9 +302,15 @@ public class WebSocketEndpoint {
                             {
                                 return predicate;
                             }
+
+                            @Override
+                            public FilterCriteria getCriteria()
+                            {
+                                return FilterCriteria.all();
+                            }
                         };
                     } else if ( ! req.regex.contains(".*" ) && ! req.regex.contains("^") && ! req.regex.contains("$")) {
-                        newCallback = new MyCallback(host, ".*"+ req.regex +".*" );
+                        newCallback = new MyCallback(host, ".*"+ req.regex +".*", substringCriteria( req.regex ) );
                     } else {
                         newCallback = new MyCallback(host, req.regex);
                     }
@@ -337,6 +347,26 @@ public class WebSocketEndpoint {
         }
     }
 
+    /**
+     * Returns criteria that let the database look up messages containing some text by itself,
+     * possible if the text has no regex meta characters and only the message text gets displayed.
+     *
+     * @param text
+     * @return criteria or <code>null</code>
+     */
+    private FilterCriteria substringCriteria(String text)
+    {
+        if ( ! LITERAL.matcher( text ).matches() || ! PatternLogFormatter.ofPattern( configuration.defaultLogDisplayPattern ).isMessageOnly() ) {
+            return null;
+        }
+        final FilterCriteria criteria = new FilterCriteria();
+        criteria.substring = text;
+        criteria.ignoreCase = true;
+        // the regex still needs to be checked, '.' does not match line terminators
+        criteria.complete = false;
+        return criteria;
+    }
+
     private synchronized void sendToClient(List<SyslogMessage> messages, APIResponse response) throws IOException, EncodeException
     {
         // javascript expects the data to be ordered ascending by ID already
@@ -391,10 +421,17 @@ public class WebSocketEndpoint {
     {
         private final Matcher matcher;
         private final Predicate<SyslogMessage> predicate;
+        private final FilterCriteria criteria;
 
         public MyCallback(Host host, String pattern)
+        {
+            this(host,pattern,null);
+        }
+
+        public MyCallback(Host host, String pattern, FilterCriteria criteria)
         {
             super(host,pattern);
+            this.criteria = criteria;
             this.matcher = regex.matcher("" );
             this.predicate = new Predicate<>()
             {
@@ -416,6 +453,12 @@ public class WebSocketEndpoint {
             return predicate;
         }
 
+        @Override
+        public FilterCriteria getCriteria()
+        {
+            return criteria;
+        }
+
         @Override
         public synchronized void visit(SyslogMessage message)
         {